@@ -0,0 +1,297 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The Choker decides which peers are allowed to download from this client. It implements the
+ * standard tit-for-tat algorithm: every RECHOKE_INTERVAL the interested peers with the best rate
+ * (download rate while leeching, upload rate while seeding) fill the regular upload slots, and
+ * every OPTIMISTIC_INTERVAL a random choked, interested peer is given the optimistic slot.
+ * While leeching, peers that are snubbing this client are denied regular slots and may only
+ * be unchoked optimistically.
+ *
+ * The Choker never sleeps on its own. The owner calls tick() periodically and the Choker checks
+ * its Clock to decide whether a rechoke or an optimistic rotation is due, which allows the
+ * algorithm to be driven by a fake clock.
+ */
+public class Choker
+{
+	//Choker constants across all instances.
+	public static final int RECHOKE_INTERVAL = 10000; //In milliseconds.
+	public static final int OPTIMISTIC_INTERVAL = 30000; //In milliseconds.
+
+	/**
+	 * A source of the current time in milliseconds.
+	 */
+	public interface Clock
+	{
+		public long currentTimeMillis();
+	}
+
+	/**
+	 * The Clock backed by System.currentTimeMillis().
+	 */
+	public static final Clock SYSTEM_CLOCK = new Clock()
+	{
+		public long currentTimeMillis()
+		{
+			return System.currentTimeMillis();
+		}
+	};
+
+	//Configuration
+	private final int regular_slots;
+	private final int optimistic_slots;
+	private final Clock clock;
+	private final Random rand;
+
+	//Rate tracking. The counts are the peer's downloaded/uploaded totals at the last rechoke.
+	private HashMap<Peer, long[]> lastCounts;
+	private HashMap<Peer, Double> rates;
+
+	//Unchoked peers
+	private ArrayList<Peer> regularPeers;
+	private ArrayList<Peer> optimisticPeers;
+
+	//State fields
+	private long lastRechoke;
+	private long lastOptimistic;
+
+	/**
+	 * Constructor for the Choker.
+	 *
+	 * @param regularSlotsIn The number of peers unchoked based on their rate.
+	 * @param optimisticSlotsIn The number of peers unchoked at random.
+	 * @param clockIn The source of time for the rechoke and optimistic intervals.
+	 */
+	public Choker(int regularSlotsIn, int optimisticSlotsIn, Clock clockIn)
+	{
+		//Validate the arguments.
+		if(regularSlotsIn < 0 || optimisticSlotsIn < 0)
+			throw new IllegalArgumentException();
+		if(clockIn == null)
+			throw new IllegalArgumentException();
+
+		regular_slots = regularSlotsIn;
+		optimistic_slots = optimisticSlotsIn;
+		clock = clockIn;
+		rand = new Random();
+
+		lastCounts = new HashMap<Peer, long[]>();
+		rates = new HashMap<Peer, Double>();
+		regularPeers = new ArrayList<Peer>();
+		optimisticPeers = new ArrayList<Peer>();
+
+		lastRechoke = clock.currentTimeMillis();
+		lastOptimistic = lastRechoke;
+	}
+
+	/**
+	 * Starts tracking a newly connected peer. If a regular slot is free the peer is unchoked
+	 * immediately so a fresh download does not wait for the first rechoke.
+	 *
+	 * @param peer The peer that has just connected.
+	 */
+	public synchronized void addPeer(Peer peer)
+	{
+		lastCounts.put(peer, new long[]{getDownloaded(peer), getUploaded(peer)});
+		rates.put(peer, 0.0);
+
+		if(regularPeers.size() < regular_slots && !regularPeers.contains(peer))
+		{
+			peer.unchokePeer();
+			regularPeers.add(peer);
+		}
+		else
+			peer.chokePeer();
+	}
+
+	/**
+	 * Stops tracking the given peer and frees any slot it held.
+	 *
+	 * @param peer The peer that has disconnected.
+	 */
+	public synchronized void removePeer(Peer peer)
+	{
+		lastCounts.remove(peer);
+		rates.remove(peer);
+		regularPeers.remove(peer);
+		optimisticPeers.remove(peer);
+	}
+
+	/**
+	 * Checks whether the given peer currently holds a regular or optimistic slot.
+	 *
+	 * @param peer The peer to check.
+	 * @return True when the peer is allowed to download from this client.
+	 */
+	public synchronized boolean isUnchoked(Peer peer)
+	{
+		return regularPeers.contains(peer) || optimisticPeers.contains(peer);
+	}
+
+	/**
+	 * Gets the rate measured for the given peer during the last rechoke.
+	 *
+	 * @param peer The peer to look up.
+	 * @return The rate in bytes per second, or 0 if the peer is unknown.
+	 */
+	public synchronized double getRate(Peer peer)
+	{
+		Double rate = rates.get(peer);
+		return rate == null ? 0 : rate;
+	}
+
+	/**
+	 * Performs a rechoke if RECHOKE_INTERVAL has passed since the previous one.
+	 *
+	 * @param peers The currently known peers. Only connected peers are considered.
+	 * @param seeding True when the download is complete and peers should be ranked by upload rate.
+	 * @return True if a rechoke was performed.
+	 */
+	public synchronized boolean tick(List<Peer> peers, boolean seeding)
+	{
+		long now = clock.currentTimeMillis();
+		if(now - lastRechoke < RECHOKE_INTERVAL)
+			return false;
+
+		rechoke(peers, seeding, now);
+		return true;
+	}
+
+	/**
+	 * Measures every peer's rate and reassigns the regular and optimistic slots.
+	 */
+	private void rechoke(List<Peer> peers, boolean seeding, long now)
+	{
+		double elapsed = Math.max(1, now - lastRechoke) / 1000.0;
+		lastRechoke = now;
+
+		//Measure the rate of each connected peer and gather the interested ones.
+		ArrayList<Peer> candidates = new ArrayList<Peer>();
+		for(int i = 0; i < peers.size(); i++)
+		{
+			Peer peer = peers.get(i);
+			if(peer == null || peer.getDisconnected())
+				continue;
+
+			long downloaded = getDownloaded(peer);
+			long uploaded = getUploaded(peer);
+			long[] last = lastCounts.get(peer);
+			if(last == null)
+				last = new long[]{downloaded, uploaded};
+
+			double rate;
+			if(!seeding)
+				rate = (downloaded - last[0]) / elapsed;
+			else
+				rate = (uploaded - last[1]) / elapsed;
+
+			lastCounts.put(peer, new long[]{downloaded, uploaded});
+			rates.put(peer, rate);
+
+			if(isCandidate(peer))
+				candidates.add(peer);
+		}
+
+		//Forget peers that are no longer listed.
+		lastCounts.keySet().retainAll(peers);
+		rates.keySet().retainAll(peers);
+
+		//Fill the regular slots with the fastest candidates.
+		Collections.sort(candidates, new Comparator<Peer>()
+		{
+			public int compare(Peer a, Peer b)
+			{
+				return Double.compare(rates.get(b), rates.get(a));
+			}
+		});
+
+		ArrayList<Peer> newRegular = new ArrayList<Peer>();
+		for(int i = 0; i < candidates.size() && newRegular.size() < regular_slots; i++)
+			if(!isPenalized(candidates.get(i), seeding))
+				newRegular.add(candidates.get(i));
+
+		//Keep the optimistic peers unless they earned a regular slot, left, or the rotation is due.
+		ArrayList<Peer> newOptimistic = new ArrayList<Peer>();
+		boolean rotate = now - lastOptimistic >= OPTIMISTIC_INTERVAL;
+		if(rotate)
+			lastOptimistic = now;
+		else
+		{
+			for(int i = 0; i < optimisticPeers.size(); i++)
+			{
+				Peer peer = optimisticPeers.get(i);
+				if(candidates.contains(peer) && !newRegular.contains(peer))
+					newOptimistic.add(peer);
+			}
+		}
+
+		//Choose random choked candidates for any free optimistic slot.
+		ArrayList<Peer> choked = new ArrayList<Peer>(candidates);
+		choked.removeAll(newRegular);
+		choked.removeAll(newOptimistic);
+		while(newOptimistic.size() < optimistic_slots && choked.size() > 0)
+			newOptimistic.add(choked.remove(rand.nextInt(choked.size())));
+
+		//Choke the peers that lost their slot and unchoke the ones that gained one.
+		for(int i = 0; i < regularPeers.size(); i++)
+			if(!newRegular.contains(regularPeers.get(i)) && !newOptimistic.contains(regularPeers.get(i)))
+				regularPeers.get(i).chokePeer();
+		for(int i = 0; i < optimisticPeers.size(); i++)
+			if(!newRegular.contains(optimisticPeers.get(i)) && !newOptimistic.contains(optimisticPeers.get(i)))
+				optimisticPeers.get(i).chokePeer();
+
+		for(int i = 0; i < newRegular.size(); i++)
+			if(!isUnchoked(newRegular.get(i)))
+				newRegular.get(i).unchokePeer();
+		for(int i = 0; i < newOptimistic.size(); i++)
+			if(!isUnchoked(newOptimistic.get(i)))
+				newOptimistic.get(i).unchokePeer();
+
+		regularPeers = newRegular;
+		optimisticPeers = newOptimistic;
+	}
+
+	/**
+	 * Checks whether the given peer may compete for an upload slot. Whether seeding or not, only
+	 * interested peers compete; seeding changes how they are ranked, not who competes.
+	 */
+	private boolean isCandidate(Peer peer)
+	{
+		return peer.getPeerInterested();
+	}
+	
+	/**
+	 * Checks whether the given peer is barred from the regular slots.
+	 */
+	private boolean isPenalized(Peer peer, boolean seeding)
+	{
+		return !seeding && peer.getSnubbed();
+	}
+
+	/**
+	 * Reads the peer's total downloaded count.
+	 */
+	private static long getDownloaded(Peer peer)
+	{
+		return peer.downloaded.get();
+	}
+
+	/**
+	 * Reads the peer's total uploaded count.
+	 */
+	private static long getUploaded(Peer peer)
+	{
+		return peer.uploaded.get();
+	}
+}
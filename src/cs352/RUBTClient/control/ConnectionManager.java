@@ -0,0 +1,414 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ConnectionManager opens every outbound peer connection for the torrents registered with it.
+ * Torrents offer the addresses they learn, and a single dispatcher thread hands the best candidate
+ * to a small pool of connecting threads whenever a slot is free. This bounds the number of
+ * half-open connections, and the total number of connections per torrent and per session, no
+ * matter how many peers the trackers return.
+ *
+ * Each torrent keeps its candidates in a PeerCandidatePool, which ranks them by their source, how
+ * often they connected and failed before, how quickly they answered and how much data they moved.
+ * An address that fails is retried after an exponentially growing backoff.
+ * Torrents with the fewest connections are served first, so one busy torrent cannot starve others.
+ *
+ * The manager never calls into a DownloadManager while holding its own lock, so download managers
+ * may call it while holding theirs.
+ */
+public class ConnectionManager
+{
+	//Connection Manager defaults.
+	public static final int DEFAULT_MAX_HALF_OPEN = 8;
+	public static final int DEFAULT_MAX_PER_TORRENT = 50;
+	public static final int DEFAULT_MAX_PER_SESSION = 200;
+	private static final int CONNECT_TIMEOUT = 5000; //In milliseconds.
+	private static final int HANDSHAKE_TIMEOUT = 10000; //In milliseconds.
+	private static final long BASE_BACKOFF = 15000; //In milliseconds, after the first failure.
+	private static final long MAX_BACKOFF = 1800000; //In milliseconds.
+	private static final long DISPATCH_INTERVAL = 1000; //In milliseconds, the longest the dispatcher sleeps.
+
+	/**
+	 * Where a candidate address came from. Sources with a higher rank are tried first.
+	 */
+	public enum Source
+	{
+		SAVED(0), //Saved by an earlier run of the torrent.
+		TRACKER(1); //Listed by the tracker in this run.
+
+		final int rank;
+
+		Source(int rank)
+		{
+			this.rank = rank;
+		}
+	}
+
+	private final int maxHalfOpen;
+	private final int maxPerTorrent;
+	private final int maxPerSession;
+
+	//Connection state. Everything below is guarded by the manager itself.
+	private final HashMap<DownloadManager, Torrent> torrents;
+	private int halfOpen; //Outbound attempts in progress.
+	private int sessionOpen; //Slots held across all torrents.
+	private boolean closed;
+
+	private final ExecutorService connectPool;
+	private final Thread dispatchThread;
+
+	/**
+	 * Constructor for a ConnectionManager with the default limits.
+	 */
+	public ConnectionManager()
+	{
+		this(DEFAULT_MAX_HALF_OPEN, DEFAULT_MAX_PER_TORRENT, DEFAULT_MAX_PER_SESSION);
+	}
+
+	/**
+	 * Constructor for a ConnectionManager. It starts the dispatcher right away.
+	 *
+	 * @param maxHalfOpen The number of outbound connections that may be in progress at once.
+	 * @param maxPerTorrent The number of connections, in either direction, one torrent may hold.
+	 * @param maxPerSession The number of connections all torrents together may hold.
+	 */
+	public ConnectionManager(int maxHalfOpen, int maxPerTorrent, int maxPerSession)
+	{
+		this.maxHalfOpen = Math.max(1, maxHalfOpen);
+		this.maxPerTorrent = Math.max(1, maxPerTorrent);
+		this.maxPerSession = Math.max(1, maxPerSession);
+		torrents = new HashMap<DownloadManager, Torrent>();
+		halfOpen = 0;
+		sessionOpen = 0;
+		closed = false;
+
+		connectPool = Executors.newFixedThreadPool(this.maxHalfOpen, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "RUBT-connect");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		//Construct the dispatch thread.
+		dispatchThread = new Thread(new Runnable()
+		{
+			public void run()
+			{dispatch();}
+		}, "RUBT-dispatch");
+		dispatchThread.setDaemon(true);
+		dispatchThread.start();
+	}
+
+	/**
+	 * Starts opening connections for the given torrent, beginning with the candidates already in its pool.
+	 * The pool belongs to the manager until the torrent is unregistered.
+	 *
+	 * @param dm The torrent.
+	 * @param pool The candidates of the torrent.
+	 */
+	public synchronized void register(DownloadManager dm, PeerCandidatePool pool)
+	{
+		if(!closed && !torrents.containsKey(dm))
+		{
+			torrents.put(dm, new Torrent(dm, pool));
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Forgets the given torrent and frees the slots it held, handing its pool back. Attempts already
+	 * in progress finish, but the torrent closes their peers itself.
+	 *
+	 * @param dm The torrent.
+	 */
+	public synchronized void unregister(DownloadManager dm)
+	{
+		Torrent torrent = torrents.remove(dm);
+		if(torrent != null)
+		{
+			sessionOpen -= torrent.open;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Adds candidate addresses for the given torrent. Addresses it already knows keep their history.
+	 * Candidates that have grown too old or too many are evicted afterwards.
+	 *
+	 * @param dm The torrent, which must be registered.
+	 * @param addresses Addresses as "ip:port" strings. Malformed ones are skipped.
+	 * @param source Where the addresses came from.
+	 */
+	public synchronized void offer(DownloadManager dm, String[] addresses, Source source)
+	{
+		Torrent torrent = torrents.get(dm);
+		if(torrent == null || addresses == null)
+			return;
+
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < addresses.length; i++)
+		{
+			String address = addresses[i];
+			int colon = (address == null) ? -1 : address.lastIndexOf(':');
+			if(colon <= 0)
+				continue;
+
+			int port;
+			try{port = Integer.parseInt(address.substring(colon + 1));}
+			catch(NumberFormatException e){continue;}
+			if(port <= 0 || port > 0xffff)
+				continue;
+
+			torrent.pool.add(address.substring(0, colon), port, source, now);
+		}
+
+		torrent.pool.evict(now);
+		notifyAll();
+	}
+
+	/**
+	 * Takes a slot for an incoming connection to the given torrent if one is free. The slot is
+	 * given back with peerClosed once the connection ends.
+	 *
+	 * @param dm The torrent the connection is for.
+	 * @return True if a slot was taken.
+	 */
+	public synchronized boolean reserveIncoming(DownloadManager dm)
+	{
+		Torrent torrent = torrents.get(dm);
+		if(torrent == null || torrent.open >= maxPerTorrent || sessionOpen >= maxPerSession)
+			return false;
+
+		torrent.open++;
+		sessionOpen++;
+		return true;
+	}
+
+	/**
+	 * Gives back the slot of a connection that ended. If the peer was one of the candidates, it is
+	 * credited with the data that moved and may be connected to again after a short pause.
+	 *
+	 * @param dm The torrent the peer belonged to.
+	 * @param peer The peer whose connection ended.
+	 */
+	public synchronized void peerClosed(DownloadManager dm, Peer peer)
+	{
+		Torrent torrent = torrents.get(dm);
+		if(torrent == null)
+			return;
+
+		torrent.open--;
+		sessionOpen--;
+
+		PeerCandidatePool.Candidate candidate = torrent.pool.get(peer.getIP(), peer.getPort());
+		if(candidate != null && candidate.connected)
+			torrent.pool.closed(candidate, peer.downloaded.get(), peer.uploaded.get(), BASE_BACKOFF, System.currentTimeMillis());
+
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of outbound connections in progress.
+	 */
+	public synchronized int getHalfOpenCount()
+	{
+		return halfOpen;
+	}
+
+	/**
+	 * @param dm The torrent.
+	 * @return The number of slots the given torrent holds, for connected peers and attempts in progress.
+	 */
+	public synchronized int getOpenCount(DownloadManager dm)
+	{
+		Torrent torrent = torrents.get(dm);
+		return (torrent == null) ? 0 : torrent.open;
+	}
+
+	/**
+	 * @return The number of slots held across all torrents.
+	 */
+	public synchronized int getSessionOpenCount()
+	{
+		return sessionOpen;
+	}
+
+	/**
+	 * Stops the dispatcher and abandons the queued candidates of every torrent.
+	 */
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			closed = true;
+			torrents.clear();
+			notifyAll();
+		}
+
+		dispatchThread.interrupt();
+		connectPool.shutdownNow();
+	}
+
+	/**
+	 * Runs the dispatcher: waits for a free slot and a candidate to fill it, then hands the attempt
+	 * to the connect pool.
+	 */
+	private void dispatch()
+	{
+		while(true)
+		{
+			Attempt attempt;
+			synchronized(this)
+			{
+				while((attempt = nextAttempt()) == null)
+				{
+					if(closed)
+						return;
+
+					try{wait(DISPATCH_INTERVAL);}
+					catch(InterruptedException e){return;}
+				}
+			}
+
+			try{connectPool.execute(attempt);}
+			catch(Exception e){return;}
+		}
+	}
+
+	/**
+	 * Chooses the next candidate to connect to and takes its slots. The torrent holding the fewest
+	 * connections goes first, and within it the candidate with the best score.
+	 *
+	 * @return The attempt to make, or null if no slot or no candidate is available.
+	 */
+	private Attempt nextAttempt()
+	{
+		if(closed || halfOpen >= maxHalfOpen || sessionOpen >= maxPerSession)
+			return null;
+
+		long now = System.currentTimeMillis();
+		Torrent best = null;
+		for(Torrent torrent : torrents.values())
+		{
+			//Candidates whose backoff has passed may be tried again.
+			torrent.pool.promote(now);
+
+			if(!torrent.pool.hasReady() || torrent.open >= maxPerTorrent)
+				continue;
+			if(best == null || torrent.open < best.open)
+				best = torrent;
+		}
+
+		if(best == null)
+			return null;
+
+		PeerCandidatePool.Candidate candidate = best.pool.poll();
+		best.open++;
+		sessionOpen++;
+		halfOpen++;
+		return new Attempt(best, candidate);
+	}
+
+	/**
+	 * Records the outcome of an attempt and releases its half-open slot. A failed attempt also
+	 * releases its connection slot and backs the candidate off.
+	 */
+	private synchronized void finishAttempt(Torrent torrent, PeerCandidatePool.Candidate candidate, boolean connected, long latency)
+	{
+		halfOpen--;
+		notifyAll();
+
+		//The torrent may have been removed while the attempt was in progress.
+		if(torrents.get(torrent.dm) != torrent)
+			return;
+
+		if(connected)
+		{
+			torrent.pool.succeeded(candidate, latency, System.currentTimeMillis());
+			return;
+		}
+
+		torrent.open--;
+		sessionOpen--;
+		long backoff = BASE_BACKOFF << Math.min(candidate.consecutiveFailures, 20);
+		torrent.pool.failed(candidate, Math.min(backoff, MAX_BACKOFF), System.currentTimeMillis());
+	}
+
+	/**
+	 * Drops a candidate the torrent refused to connect to, such as a banned address.
+	 */
+	private synchronized void dropAttempt(Torrent torrent, PeerCandidatePool.Candidate candidate)
+	{
+		halfOpen--;
+		notifyAll();
+
+		if(torrents.get(torrent.dm) != torrent)
+			return;
+
+		torrent.open--;
+		sessionOpen--;
+		torrent.pool.remove(candidate);
+	}
+
+	/**
+	 * The candidates and connection count of one torrent.
+	 */
+	private static class Torrent
+	{
+		final DownloadManager dm;
+		final PeerCandidatePool pool;
+		int open; //Slots held: connected peers and attempts in progress.
+
+		Torrent(DownloadManager dm, PeerCandidatePool pool)
+		{
+			this.dm = dm;
+			this.pool = pool;
+			open = 0;
+		}
+	}
+
+	/**
+	 * One outbound connection attempt, run on the connect pool.
+	 */
+	private class Attempt implements Runnable
+	{
+		private final Torrent torrent;
+		private final PeerCandidatePool.Candidate candidate;
+
+		Attempt(Torrent torrent, PeerCandidatePool.Candidate candidate)
+		{
+			this.torrent = torrent;
+			this.candidate = candidate;
+		}
+
+		public void run()
+		{
+			Peer peer = torrent.dm.createOutboundPeer(candidate.ip, candidate.port);
+			if(peer == null)
+			{
+				dropAttempt(torrent, candidate);
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			boolean connected = peer.connect(CONNECT_TIMEOUT, HANDSHAKE_TIMEOUT);
+			long latency = System.currentTimeMillis() - start;
+
+			//Record the attempt before the torrent can drop the peer and report it closed.
+			finishAttempt(torrent, candidate, connected, latency);
+			if(!torrent.dm.finishConnect(peer, connected) && connected)
+				peerClosed(torrent.dm, peer);
+		}
+	}
+}
@@ -1,30 +1,82 @@
 package cs352.RUBTClient.control;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.URLConnection;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URL;
-import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cs352.RUBTClient.resources.BencodingException;
 
 /**
  * The ContactTracker method contacts the tracker based on the information provided
  * in the torrent file, and retrieves the list of peer URLs/port numbers
  * and any other relevant information.
  * 
+ * Announces are timed by a small scheduler shared by every torrent, so no torrent
+ * holds a thread while it waits for its next announce, and a slow tracker never holds
+ * up peer traffic. The scheduler only keeps time: HTTP requests run on their own pool,
+ * at most HTTP_PER_HOST at once for each tracker host, so a slow tracker delays only
+ * the torrents announcing to it. HTTP connections are kept alive between announces to
+ * the same tracker. A failed announce, including one that fails with an unexpected
+ * exception, is retried after an exponentially growing, jittered delay that never
+ * undercuts the tracker's min interval; the previous peers are kept meanwhile.
+ * 
+ * Torrents whose announce URL has the udp scheme announce over the UDP tracker protocol
+ * (BEP 15) through the UdpTrackerClient shared by every torrent instead of HTTP.
+ * 
  * @Main_Author Yuriy Granaev
  * @Co_Authors Kyle Waranis and Thomas Travis
  */
 public class ContactTracker
 {
+	//Seconds between announces when the tracker does not say.
+	private static final int DEFAULT_INTERVAL = 1800;
+	//Seconds before the first retry of a failed announce, and the most a retry waits.
+	private static final int BASE_RETRY = 15;
+	private static final int MAX_RETRY = 1800;
+	//Milliseconds to wait for the tracker to accept the connection and to answer.
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 30000;
+	//The largest response accepted, in bytes.
+	private static final int MAX_RESPONSE = 1 << 20;
+	private static final int SCHEDULER_THREADS = 2;
+	//HTTP requests in flight at once, in all and for each tracker host.
+	private static final int HTTP_THREADS = 8;
+	private static final int HTTP_PER_HOST = 2;
+	
+	private static ScheduledExecutorService scheduler = null;
+	private static HostExecutor httpExecutor = null;
+	private static final Random random = new Random();
+	
 	private String my_peer_id;
 	private int listener_port;
-	private String [] remote_peer_URLs;
-	public Thread ContactTrackerThread;
-	int uploaded;
-	int downloaded;
-	int left;
+	private volatile String [] remote_peer_URLs;
+	long uploaded;
+	long downloaded;
+	long left;
 	boolean initialGet;
 	private DownloadManager dm;
 	
+	//Scheduling state, guarded by the tracker itself.
+	private ScheduledFuture<?> nextAnnounce;
+	private int failures;
+	private int minInterval;
+	private boolean stopped;
+	
 	/**
 	 * Constructor - performs the initial get request
 	 * 
@@ -42,89 +94,464 @@ public class ContactTracker
 		this.downloaded = 0;
 		this.left = 0;
 		this.initialGet = true;
+		this.failures = 0;
+		this.minInterval = 0;
+		this.stopped = false;
 		
 		remote_peer_URLs = null;
 		
 	}
 	
 	public String[] getPeerURLS(){
-		
-		if( remote_peer_URLs == null )
-			return null;
-		
-		synchronized( remote_peer_URLs){
-			return remote_peer_URLs;
-		}
+		return remote_peer_URLs;
 	}
 
 	/**
 	 * Provide to this ContactTracker object a reference to the DownloadManager it is supporting,
-	 * then begin its thread action.
+	 * then schedule its first announce right away.
 	 * @param dm - The DownloadManager instance this ContactTracker is supporting.
 	 */
 	public void start( DownloadManager dm ){
 		
 		this.dm = dm;
+		schedule(0);
+	}
+	
+	/**
+	 * Cancel the next announce and tell the tracker this client is leaving. The stopped
+	 * event is sent once, in the background; its failure is ignored.
+	 */
+	public void stop(){
 		
-		ContactTrackerThread = new Thread( new Runnable(){
+		synchronized (this){
+			if (stopped || dm == null){
+				stopped = true;
+				return;
+			}
+			stopped = true;
+			if (nextAnnounce != null)
+				nextAnnounce.cancel(false);
+		}
 		
-			public void run(){
-				while (true){
-					
-					//Create the URL connection as a get request.
-					URLConnection connection;
-					if(initialGet)
-						connection = notifyTracker("started");
-					else
-						connection = notifyTracker("");
-					initialGet = false;
-					
-					//create input stream and read in bytes from connection
-					byte[] responseBytes = null;
+		try{
+			if (isUdp()){
+				requestUdp("stopped", new UdpTrackerClient.AnnounceCallback(){
+					public void completed(TrackerResponse response){}
+					public void failed(IOException e){}
+				});
+				return;
+			}
+			
+			getHttpExecutor().execute(getHostKey(), new Runnable(){
+				public void run(){
 					try{
-						InputStream is = connection.getInputStream();
-						long length = is.available();
-						responseBytes = new byte[(int) length];
-						is.read(responseBytes);
-						is.close();
-					}catch(Exception e){errorOut(e, "ERROR: Unable to open input stream");}
-					
-					//Decode the response.
-					TrackerResponseDecoder.decode(responseBytes);
-
-					Map<String, Integer>trackerResponseMap = TrackerResponseDecoder.trackerResponseMap;
-					remote_peer_URLs = TrackerResponseDecoder.peerURLs;
-			        
-			        int waitTime = 0;
-			        //Determine interval to contact tracker again
-			        if (trackerResponseMap.containsKey("interval")){
-			        	waitTime = trackerResponseMap.get("interval");
-			        }else if (trackerResponseMap.containsKey("min_interval")){
-			        	waitTime = trackerResponseMap.get("min_interval");
-			        }
-			        
-			        //Wait the specified time.
-			        try{
-			        	Thread.sleep(waitTime * 1000); //Convert to seconds.
-			        } catch (InterruptedException e){return;}    
-				}		
+						request("stopped");
+					}catch(Exception e){
+						//The client is leaving either way.
+					}
+				}
+			});
+		}catch(IOException e){
+			//The client is leaving either way.
+		}catch(RuntimeException e){
+			//The client is leaving either way.
+		}
+	}
+	
+	/**
+	 * Start one announce. Runs on the shared scheduler, which it hands the request off from
+	 * at once; the answer reaches completed(), which schedules the next announce.
+	 */
+	private void announce(){
+		
+		synchronized (this){
+			if (stopped)
+				return;
+		}
+		
+		try{
+			if (isUdp())
+				announceUdp();
+			else
+				announceHttp();
+		}catch(RuntimeException e){
+			completed(null, "ERROR: Unable to announce. " + e);
+		}
+	}
+	
+	/**
+	 * Announce once over HTTP, on the HTTP pool.
+	 */
+	private void announceHttp(){
+		
+		getHttpExecutor().execute(getHostKey(), new Runnable(){
+			public void run(){
+				TrackerResponse response = null;
+				String error = null;
+				try{
+					response = request(initialGet ? "started" : "");
+					if (response.getFailureReason() != null)
+						error = "Tracker failure: " + response.getFailureReason();
+				}catch(IOException e){
+					error = "ERROR: Unable to contact the tracker. " + e.getMessage();
+				}catch(BencodingException e){
+					error = "ERROR: Unable to decode tracker response. " + e.getMessage();
+				}catch(RuntimeException e){
+					error = "ERROR: Unable to announce. " + e;
+				}
+				
+				completed(response, error);
 			}
 		});
+	}
+	
+	/**
+	 * Announce once over UDP. The answer arrives on the client's I/O thread and is handed
+	 * back to the shared scheduler, so the I/O thread never waits on the download manager.
+	 */
+	private void announceUdp(){
 		
-		ContactTrackerThread.start();
+		try{
+			requestUdp(initialGet ? "started" : "", new UdpTrackerClient.AnnounceCallback(){
+				public void completed(final TrackerResponse response){
+					getScheduler().execute(new Runnable(){
+						public void run(){
+							ContactTracker.this.completed(response, response.getFailureReason() == null ? null
+									: "Tracker failure: " + response.getFailureReason());
+						}
+					});
+				}
+				public void failed(final IOException e){
+					getScheduler().execute(new Runnable(){
+						public void run(){
+							ContactTracker.this.completed(null, "ERROR: Unable to contact the tracker. " + e.getMessage());
+						}
+					});
+				}
+			});
+		}catch(IOException e){
+			completed(null, "ERROR: Unable to contact the tracker. " + e.getMessage());
+		}
 	}
 	
-	public void stop(){
+	/**
+	 * Hand the peers of a finished announce to the download manager and schedule the next one.
+	 * Whatever goes wrong, another announce is scheduled.
+	 * @param response - the tracker's answer, or null if none arrived.
+	 * @param error - why the announce did not work, or null if it did.
+	 */
+	private void completed(TrackerResponse response, String error){
+		
+		synchronized (this){
+			if (stopped)
+				return;
+		}
 		
-		if( ContactTrackerThread.isAlive() )
-			ContactTrackerThread.interrupt();
+		try{
+			handleResponse(response, error);
+		}catch(RuntimeException e){
+			System.err.println("ERROR: Unable to handle the tracker response. " + e);
+			failures++;
+			schedule(retryDelay());
+		}
 	}
 	
 	/**
-	 * Sends a notification to the tracker with the correct event.
+	 * The body of completed(), which catches what it throws.
+	 */
+	private void handleResponse(TrackerResponse response, String error){
+		
+		//Keep the previous peers, and retry later, if the announce did not work.
+		if (error != null){
+			System.err.println(error);
+			if (response != null && response.getMinInterval() > 0)
+				minInterval = response.getMinInterval();
+			failures++;
+			schedule(retryDelay());
+			return;
+		}
+		
+		initialGet = false;
+		failures = 0;
+		if (response.getWarningMessage() != null)
+			System.err.println("Tracker warning: " + response.getWarningMessage());
+		if (response.getMinInterval() > 0)
+			minInterval = response.getMinInterval();
+		
+		remote_peer_URLs = response.getPeers();
+		dm.setPeers();
+		
+		//Determine interval to contact tracker again
+		long waitTime = DEFAULT_INTERVAL;
+		if (response.getInterval() > 0){
+			waitTime = response.getInterval();
+		}else if (response.getMinInterval() > 0){
+			waitTime = response.getMinInterval();
+		}
+		schedule(Math.max(waitTime, minInterval));
+	}
+	
+	/**
+	 * Schedule the next announce, unless stopped.
+	 * @param seconds - delay before the announce.
+	 */
+	private synchronized void schedule(long seconds){
+		
+		if (stopped)
+			return;
+		
+		nextAnnounce = getScheduler().schedule(new Runnable(){
+			public void run(){
+				announce();
+			}
+		}, seconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * The delay before retrying a failed announce: BASE_RETRY doubled for each failure in a row,
+	 * up to MAX_RETRY, spread by up to a quarter either way so that torrents sharing a tracker do
+	 * not retry in step. Never less than the tracker's min interval.
+	 */
+	private long retryDelay(){
+		
+		long delay = Math.min((long)BASE_RETRY << Math.min(failures - 1, 20), MAX_RETRY);
+		delay += (long)(delay * (random.nextDouble() - 0.5) / 2);
+		return Math.max(delay, minInterval);
+	}
+	
+	/**
+	 * Send one announce to the tracker and read its whole response.
+	 * @param eventIn - "started", "stopped", "completed" or "" for a regular announce.
+	 * @return the decoded response
+	 * @throws IOException if the tracker could not be reached or did not answer with 200 OK.
+	 * @throws BencodingException if the response could not be decoded.
+	 */
+	private TrackerResponse request(String eventIn) throws IOException, BencodingException{
+		
+		HttpURLConnection connection = (HttpURLConnection) notifyTracker(eventIn).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		connection.setUseCaches(false);
+		
+		int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK){
+			//Drain the error body so the connection can be kept alive.
+			InputStream es = connection.getErrorStream();
+			if (es != null){
+				try{
+					readAll(es);
+				}catch(IOException e){
+					//The connection is dropped instead.
+				}
+			}
+			throw new IOException("Tracker answered " + status + " " + connection.getResponseMessage());
+		}
+		
+		return TrackerResponse.parse(readAll(connection.getInputStream()));
+	}
+	
+	/**
+	 * Send one announce to a UDP tracker. The callback is told the outcome.
+	 * @param eventIn - "started", "stopped", "completed" or "" for a regular announce.
+	 * @throws IOException if the UDP client could not be opened.
+	 */
+	private void requestUdp(String eventIn, UdpTrackerClient.AnnounceCallback callback) throws IOException{
+		
+		int event = UdpTrackerClient.EVENT_NONE;
+		if ("started".equals(eventIn))
+			event = UdpTrackerClient.EVENT_STARTED;
+		else if ("stopped".equals(eventIn))
+			event = UdpTrackerClient.EVENT_STOPPED;
+		else if ("completed".equals(eventIn))
+			event = UdpTrackerClient.EVENT_COMPLETED;
+		
+		updateCounts(event == UdpTrackerClient.EVENT_STARTED);
+		URL url = dm.getSessionInfo().announce_url();
+		if (url.getPort() < 0)
+			throw new IOException("UDP announce URL " + url + " has no port.");
+		UdpTrackerClient.getShared().announce(new InetSocketAddress(url.getHost(), url.getPort()),
+				dm.getSessionInfo().info_hash().array(), my_peer_id.getBytes("ISO-8859-1"),
+				downloaded, left, uploaded, event, listener_port, callback);
+	}
+	
+	/**
+	 * The tracker host, with its port, that HTTP requests are bounded by.
+	 */
+	private String getHostKey(){
+		
+		URL url = dm.getSessionInfo().announce_url();
+		return url.getHost() + ":" + url.getPort();
+	}
+	
+	/**
+	 * Whether the torrent announces over UDP rather than HTTP.
+	 */
+	private boolean isUdp(){
+		return "udp".equalsIgnoreCase(dm.getSessionInfo().announce_url().getProtocol());
+	}
+	
+	/**
+	 * Set the transfer counts reported to the tracker.
+	 * @param started - whether this is the started event, which reports nothing transferred yet.
+	 */
+	private void updateCounts(boolean started){
+		
+		if (started){
+			downloaded = 0;
+			uploaded = 0;
+			left = dm.getSessionInfo().file_length();
+		}
+		else{
+			downloaded = dm.getDownloaded();
+			uploaded = dm.getUploaded();
+			left = dm.getLeft();
+		}
+	}
+	
+	/**
+	 * Read a stream to its end and close it, which hands a kept-alive connection back for reuse.
+	 */
+	private static byte[] readAll(InputStream is) throws IOException{
+		
+		try{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = is.read(buffer)) != -1){
+				out.write(buffer, 0, read);
+				if (out.size() > MAX_RESPONSE)
+					throw new IOException("Tracker response is larger than " + MAX_RESPONSE + " bytes.");
+			}
+			return out.toByteArray();
+		}finally{
+			is.close();
+		}
+	}
+	
+	/**
+	 * The scheduler shared by the trackers of every torrent. Its threads are daemons,
+	 * so a pending announce never keeps the process alive.
+	 */
+	private static synchronized ScheduledExecutorService getScheduler(){
+		
+		if (scheduler == null){
+			scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "RUBT-tracker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+	
+	/**
+	 * The executor shared by the HTTP requests of every torrent. Its threads are daemons
+	 * and exit when idle.
+	 */
+	private static synchronized HostExecutor getHttpExecutor(){
+		
+		if (httpExecutor == null){
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(HTTP_THREADS, HTTP_THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "RUBT-tracker-http");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			httpExecutor = new HostExecutor(pool, HTTP_PER_HOST);
+		}
+		return httpExecutor;
+	}
+	
+	/**
+	 * Runs tasks on a pool, at most a fixed number at a time for each host. Tasks beyond
+	 * that wait, in order, until one for the same host finishes, so they never take pool
+	 * threads from other hosts.
+	 */
+	private static class HostExecutor{
+		
+		private final ExecutorService pool;
+		private final int perHost;
+		//Guarded by the executor itself.
+		private final HashMap<String, Integer> running = new HashMap<String, Integer>();
+		private final HashMap<String, LinkedList<Runnable>> waiting = new HashMap<String, LinkedList<Runnable>>();
+		
+		HostExecutor(ExecutorService pool, int perHost){
+			this.pool = pool;
+			this.perHost = perHost;
+		}
+		
+		void execute(String host, Runnable task){
+			
+			synchronized (this){
+				Integer count = running.get(host);
+				if (count != null && count >= perHost){
+					LinkedList<Runnable> queue = waiting.get(host);
+					if (queue == null){
+						queue = new LinkedList<Runnable>();
+						waiting.put(host, queue);
+					}
+					queue.add(task);
+					return;
+				}
+				running.put(host, count == null ? 1 : count + 1);
+			}
+			submit(host, task);
+		}
+		
+		private void submit(final String host, final Runnable task){
+			
+			try{
+				pool.execute(new Runnable(){
+					public void run(){
+						try{
+							task.run();
+						}finally{
+							finished(host);
+						}
+					}
+				});
+			}catch(RejectedExecutionException e){
+				finished(host);
+				throw e;
+			}
+		}
+		
+		/**
+		 * Start the next waiting task for the host in the finished one's place, or give its place up.
+		 */
+		private void finished(String host){
+			
+			Runnable next = null;
+			synchronized (this){
+				LinkedList<Runnable> queue = waiting.get(host);
+				if (queue != null){
+					next = queue.poll();
+					if (queue.isEmpty())
+						waiting.remove(host);
+				}
+				if (next == null){
+					int count = running.get(host) - 1;
+					if (count == 0)
+						running.remove(host);
+					else
+						running.put(host, count);
+				}
+			}
+			if (next != null)
+				submit(host, next);
+		}
+	}
+	
+	/**
+	 * Builds the announce URL with the correct event.
 	 * @param eventIn
 	 */
-	private URLConnection notifyTracker(String eventIn){		
+	private URL notifyTracker(String eventIn) throws IOException{
 		
 		//Set the event, if applicable.
 		String event;
@@ -142,16 +569,7 @@ public class ContactTracker
 		//Escape the info hash.
 		String escaped_info_hash = escapeByteArray( dm.getSessionInfo().info_hash().array() );
 		
-		if( event.equals("started") ){
-			downloaded = 0;
-			uploaded = 0;
-			left = dm.getSessionInfo().file_length();
-		}
-		else{
-			downloaded = dm.getDownloaded();
-			uploaded = dm.getUploaded();
-			left = dm.getLeft();
-		}
+		updateCounts( event.equals("started") );
 		
 		//Construct the query as a string.
 		String query = "peer_id=" + my_peer_id + "&" +
@@ -159,17 +577,13 @@ public class ContactTracker
 						"port=" + Integer.toString(listener_port) + "&" +
 						"uploaded="+uploaded+"&" +
 						"downloaded="+downloaded+"&" +
-						"left=" + left;
+						"left=" + left + "&" +
+						"compact=1";
 		
 		if(!event.equals(""))
-			query = query + "event=" + event;
-		
-		//Create the URL connection as a get request.
-		URLConnection connection = null;
-		try{connection = new URL(dm.getSessionInfo().announce_url() + "?" + query).openConnection();}
-		catch(Exception e){errorOut(e, "ERROR: Unable to create URL connection.");}
+			query = query + "&event=" + event;
 		
-		return connection;
+		return new URL(dm.getSessionInfo().announce_url() + "?" + query);
 	}
 	
 	/**
@@ -213,22 +627,4 @@ public class ContactTracker
 		//Return the output.
 		return new String(output);
 	}
-
-	/**
-	 * This force closes the application and prints debugging information.
-	 * 
-	 * @param e The exception forcing the halt of the application.
-	 * @param error A string to be printed to standard error.
-	 */
-	private void errorOut(Exception e, String error)
-	{
-		System.err.println(error);
-		
-		if(e != null)
-			e.printStackTrace();
-		
-		System.exit(1);
-	}
 }
-
-
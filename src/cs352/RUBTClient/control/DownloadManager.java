@@ -4,19 +4,28 @@
 
 package cs352.RUBTClient.control;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.Comparable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.BitSet;
 import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Random;
 
 import cs352.RUBTClient.model.FileManager;
+import cs352.RUBTClient.model.PieceRechecker;
 import cs352.RUBTClient.utils.SessionInfo;
 
 public class DownloadManager 
@@ -24,45 +33,61 @@ public class DownloadManager
 	//Download Manager constants across all instances.
 	private static final int MAX_DOWNLOADERS = 4;
 	private static final int MAX_OPTIMISTIC_PEERS = 1;
-	private static final int MAINTENANCE_TIMER = 30000; //In milliseconds.
+	private static final int MAINTENANCE_TIMER = 1000; //In milliseconds.
 	private static final int MAX_CONCURRENT_DOWNLOADS = 25;
+	private static final int SNUB_TIMEOUT = 60000; //In milliseconds.
+	private static final int READ_AHEAD_PIECES = 16; //Pieces after the playhead fetched in order while streaming.
+	private static final int DEADLINE_PIECES = 4; //Pieces after the playhead given deadlines while streaming.
+	private static final int DEADLINE_STEP = 1000; //In milliseconds, per piece after the playhead.
+	private static final int HAVE_BATCH_DELAY = 100; //In milliseconds, time spent gathering completed pieces before announcing them.
 	
 	//Helper Classes
 	private ContactTracker tracker_connection = null;
 	private FileManager file_manager = null;
 	private SessionInfo info = null;
+	private Choker choker = null;
+	private HashFailureTracker hashFailures = null;
+	private final Choker.Clock clock; //Times rechokes, requests and snubs.
 	
 	//Connection information fields
 	private final String my_peer_id = generatePeerID();
-	private final int listener_port = getAvailablePort();
+	private final int listener_port;
 	private ServerSocket listenerSocket;
+	private final SessionManager session; //Null if this DM listens on its own port.
+	private final ConnectionManager connections; //Shared with the session, or my own without one.
+	private PeerCandidatePool peerPool; //Handed to the connection manager while running.
 	
-	//Peer Lists
-	private String[][] remote_peer_array;
-	private ArrayList<Peer> peers;
-	private ArrayList<Peer> downloaders;
-	private ArrayList<Peer> waitList;
-	private ArrayList<Peer> chokedPeers;
-	private ArrayList<Peer> optimisticPeers;
-	private ArrayList<Piece> pieces;
+	//Peer Lists. Each structure is guarded by its own lock, never by the DM itself.
+	private final ArrayList<Peer> peers; //Guarded by itself.
+	private ArrayList<Piece> pieces; //Never changes after construction. Each piece guards its own peersWhoHave.
+	private HashMap<Peer, ArrayList<DLRequest>> outstandingRequests; //Guarded by itself.
+	private HashMap<Integer, Long> deadlines; //Guarded by itself.
+	private BitSet pendingPieces; //Pieces counted in totalPendingPieces. Guarded by pendingLock.
+	private final Object pendingLock = new Object();
 	
 	//Data Transfer Queues
 	private LinkedBlockingQueue<ULRequest> ULQueue;
 	private PriorityBlockingQueue<Piece> DLQueue;
+	private LinkedBlockingQueue<Integer> completedPieces; //Verified pieces waiting to be announced to peers.
 	
 	//State fields
-	public boolean download_complete;
-	public boolean paused;
-	private Integer downloadingPieces;
-	private Integer totalPendingPieces;
-	private Integer totalDownloaded;
-	private Integer totalUploaded;
+	public volatile boolean download_complete;
+	public volatile boolean paused;
+	private volatile boolean accepting; //True once started, while incoming peers are welcome.
+	private volatile boolean streaming;
+	private volatile int playhead;
+	private volatile boolean suppressRedundantHaves;
+	private final AtomicInteger downloadingPieces;
+	private final AtomicInteger totalPendingPieces;
+	private final AtomicLong totalDownloaded;
+	private final AtomicLong totalUploaded;
 	
 	//Action threads
 	Thread downloadThread;
 	Thread uploadThread;
 	Thread maintenanceThread;
 	Thread listenerThread;
+	Thread haveThread;
 	
 	private DownloadManager instance;
 	
@@ -74,28 +99,74 @@ public class DownloadManager
 	 */
 	public DownloadManager(String torrent_file_path, String download_file_path)
 	{
+		this(torrent_file_path, download_file_path, null);
+	}
+	
+	/**
+	 * Constructor for DownloadManager that sets the download priority of each file up front, so that
+	 * skipped files are never created.
+	 * 
+	 * @param filePriorities The priority of each file in torrent order, or null if every file is NORMAL.
+	 */
+	public DownloadManager(String torrent_file_path, String download_file_path, FileManager.Priority[] filePriorities)
+	{
+		this(torrent_file_path, download_file_path, filePriorities, null);
+	}
+	
+	/**
+	 * Constructor for a DownloadManager that belongs to a session. It announces the session port and
+	 * is handed its incoming peers by the session instead of listening itself.
+	 * 
+	 * @param filePriorities The priority of each file in torrent order, or null if every file is NORMAL.
+	 * @param session The session that routes incoming peers and limits rates, or null to run alone.
+	 */
+	public DownloadManager(String torrent_file_path, String download_file_path, FileManager.Priority[] filePriorities, SessionManager session)
+	{
+		this(new SessionInfo(torrent_file_path, download_file_path), filePriorities, session, Choker.SYSTEM_CLOCK);
+	}
+	
+	/**
+	 * Constructor for a DownloadManager that reads the time from the given clock, so that the choker
+	 * and the snub checks can be driven by a fake clock, and keeps its files under the home directory
+	 * of the given session info.
+	 * 
+	 * @param info The torrent and where its files are kept.
+	 * @param clock The source of time for choking, request tracking and snub detection.
+	 */
+	DownloadManager(SessionInfo info, FileManager.Priority[] filePriorities, SessionManager session, Choker.Clock clock)
+	{
+		this.session = session;
+		this.clock = clock;
+		listener_port = (session != null) ? session.getPort() : getAvailablePort();
+		connections = (session != null) ? session.getConnectionManager() : new ConnectionManager();
+		
 		//Initialize Helper Classes
-		info = new SessionInfo( torrent_file_path, download_file_path );
-		file_manager = new FileManager( info );
+		this.info = info;
+		file_manager = new FileManager( info, FileManager.getDefaultPreallocation(), filePriorities );
 		tracker_connection = new ContactTracker( my_peer_id, listener_port );
-		
-		//Initialize Peer Lists		
-		downloaders = new ArrayList<Peer>();
-		optimisticPeers = new ArrayList<Peer>();
-		waitList = new ArrayList<Peer>();
-		chokedPeers = new ArrayList<Peer>();
+		choker = new Choker( MAX_DOWNLOADERS, MAX_OPTIMISTIC_PEERS, clock );
+		hashFailures = new HashFailureTracker();
 		
 		//Initialize the data transfer queues
 		ULQueue = new LinkedBlockingQueue<ULRequest>();
 		DLQueue = new PriorityBlockingQueue<Piece>();
+		completedPieces = new LinkedBlockingQueue<Integer>();
+		outstandingRequests = new HashMap<Peer, ArrayList<DLRequest>>();
+		deadlines = new HashMap<Integer, Long>();
+		pendingPieces = new BitSet(info.number_of_pieces());
+		peers = new ArrayList<Peer>();
 		
 		//Initialize state fields
 		paused = false;
+		accepting = false;
 		download_complete = false;
-		totalPendingPieces = new Integer(0);
-		downloadingPieces = new Integer(0);
-		totalDownloaded = 0;
-		totalUploaded = new Integer(0);
+		streaming = false;
+		playhead = 0;
+		suppressRedundantHaves = false;
+		totalPendingPieces = new AtomicInteger();
+		downloadingPieces = new AtomicInteger();
+		totalDownloaded = new AtomicLong();
+		totalUploaded = new AtomicLong();
 		
 		//Initialize the pieces array for all but the final piece.
 		int numPieces = info.number_of_pieces();
@@ -119,6 +190,10 @@ public class DownloadManager
 	 */
 	public void start(boolean resume)
 	{
+		//Keep the piece hashes loaded while the torrent is active.
+		try{info.activate();}
+		catch(Exception e){System.err.println("ERROR: Unable to load the piece hashes. " + e); return;}
+		
 		//Tell the piece assembler to resume if needed.
 		Integer response = new Integer(-1);
 
@@ -130,26 +205,6 @@ public class DownloadManager
 			if(response == 1)
 				download_complete = true;
 		
-		tracker_connection.start( this );
-		
-		//Ensure we have peers to connect to before moving forward.
-		while (tracker_connection.getPeerURLS() == null){
-			try{
-				Thread.sleep(100);
-			}
-			catch( InterruptedException e )
-			{return;}
-		}
-		
-		remote_peer_array = getPeerArray();
-		peers = setRemotePeerList();
-		
-		//Start connecting all peers.
-		for(int i = 0; i < peers.size(); i++)
-		{
-			connectPeer(peers.get(i), null);
-		}
-		
 		//Start the download thread.
 		startDownloader();
 		
@@ -159,9 +214,129 @@ public class DownloadManager
 		//Start the maintenance thread.
 		startMaintenance();
 		
-		//Start the listener thread.
-		startListener();
+		//Welcome peers from here on, and let the connection manager start on the peers saved last time.
+		accepting = true;
+		peerPool = PeerCandidatePool.read(getPeerPoolFile(), info.info_hash().array());
+		connections.register(this, peerPool);
+		
+		//Start the listener thread, unless the session listens for me.
+		if(session == null)
+			startListener();
+		
+		//Start the have broadcasting thread.
+		startHaveBroadcaster();
+		
+		//Every successful announce hands its peers to setPeers.
+		tracker_connection.start( this );
+	}
+	
+	/**
+	 * Takes an incoming connection whose handshake has already been read, as the session listener
+	 * does to find the torrent it is for.
+	 * 
+	 * @param socket The incoming connection.
+	 * @param handshake The 68 byte handshake read from it.
+	 * @return False if the peer was turned away. The caller then closes the socket.
+	 */
+	public boolean acceptPeer(Socket socket, byte[] handshake)
+	{
+		//Turn away peers while not running, and banned peers.
+		String address = socket.getInetAddress().getHostAddress();
+		if(!accepting || hashFailures.isBanned(address))
+			return false;
+		
+		//Turn away peers once my share of connections is used up.
+		if(!connections.reserveIncoming(this))
+			return false;
+		
+		connectPeer(createInboundPeer(socket), socket, handshake);
+		return true;
+	}
+	
+	/**
+	 * Creates the peer for an incoming connection. It is named by the remote address and port of the
+	 * connection, so that two connections from one address, as from behind a NAT, are distinct peers
+	 * with their own requests and choking state.
+	 * 
+	 * @param socket The incoming connection.
+	 * @return The peer, not yet connected.
+	 */
+	Peer createInboundPeer(Socket socket)
+	{
+		String address = socket.getInetAddress().getHostAddress();
+		return new Peer(address, Integer.toString(socket.getPort()), "tmp", info.info_hash().array(), my_peer_id, instance);
+	}
+	
+	/**
+	 * Welcomes or turns away peers, as start and shutdown do, without starting or stopping anything
+	 * else. This lets peers be connected to a download manager that was never started.
+	 * 
+	 * @param accepting True to welcome peers.
+	 */
+	void setAccepting(boolean accepting)
+	{
+		this.accepting = accepting;
+	}
+	
+	/**
+	 * Creates a peer for the connection manager to connect to.
+	 * 
+	 * @return The peer, or null if the address is banned or I am not running.
+	 */
+	Peer createOutboundPeer(String ip, int port)
+	{
+		if(!accepting || hashFailures.isBanned(ip))
+			return null;
+		
+		byte[] infoHash = info.info_hash().array();
+		try{return new Peer(ip, Integer.toString(port), "", infoHash, my_peer_id, instance);}
+		catch(IllegalArgumentException e){return null;}
+	}
+	
+	/**
+	 * Takes a peer whose connection attempt ended, in either direction. A connected peer joins the
+	 * peer list, is sent my bitfield and is handed to the choker; any other peer is closed.
+	 * 
+	 * @param peer The peer.
+	 * @param connected True if the handshake succeeded.
+	 * @return True if the peer was kept.
+	 */
+	boolean finishConnect(Peer peer, boolean connected)
+	{
+		if(!connected || !accepting)
+		{
+			peer.close();
+			return false;
+		}
+		
+		synchronized(peers)
+		{peers.add(peer);}
+		
+		//Send the bitfield. The file manager keeps it ready in wire format.
+		peer.sendBitfield(file_manager.getWireBitField());
 		
+		//Notify the peer that I'm interested.
+		peer.interestedInPeer();
+		
+		//Hand the peer to the choker, which unchokes it if a slot is free.
+		choker.addPeer(peer);
+		return true;
+	}
+	
+	/**
+	 * @return The file the candidate pool is saved to, next to the resume data of the download.
+	 */
+	private File getPeerPoolFile()
+	{
+		return new File(info.getHomeDirectory().getPath() + File.separator + "data" + File.separator + info.getDownloadFilePath() + ".peers");
+	}
+	
+	/**
+	 * @return The info hash of the torrent.
+	 */
+	public ByteBuffer getInfoHash()
+	{
+		return info.info_hash();
 	}
 	
 	/**
@@ -171,54 +346,75 @@ public class DownloadManager
 	 * @param piece The data that has been received.
 	 * @param peer The peer posting the data.
 	 */
-	public synchronized void registerPiece(int length, byte[] piece, Peer peer)
+	public void registerPiece(int length, byte[] piece, final Peer peer)
 	{	
-		//Pull out the index of the piece
+		//Hold the peer's reader back while the session is over its download limit.
+		if(session != null)
+		{
+			try{session.getDownloadLimiter().acquire(length - 9);}
+			catch(InterruptedException e){Thread.currentThread().interrupt();}
+		}
+		
+		//Pull out the index and offset of the block
 		byte[] indexB = Arrays.copyOfRange(piece, 1, 5);
 		int index = java.nio.ByteBuffer.wrap(indexB).order(java.nio.ByteOrder.BIG_ENDIAN).getInt();
+		byte[] offsetB = Arrays.copyOfRange(piece, 5, 9);
+		int offset = java.nio.ByteBuffer.wrap(offsetB).order(java.nio.ByteOrder.BIG_ENDIAN).getInt();
 		
-		//Pass the piece off to the file_manager.
-		Integer response = file_manager.storeDataBlock(length, piece);
+		//The peer is alive, so clear any snub and stop tracking the request.
+		peer.blockReceived(clock.currentTimeMillis());
+		completeRequest(index, offset, peer);
+		
+		//Pass the piece off to the file_manager, which tells me who sent the block only if it is kept,
+		//so that of two copies of a block only the stored one is attributed.
+		Integer response = file_manager.storeDataBlock(length, piece, new FileManager.BlockListener()
+		{
+			public void blockStored(int index, int offset, byte[] block, int blockLength)
+			{hashFailures.recordBlock(index, offset, block, 0, blockLength, peer.getIP());}
+		});
 		
 		//Check if we already have this piece, and if so ignore it.
 		if(response == null)
 			return;
 		
+		//Credit the peer for every block so the choker sees a steady rate.
+		peer.downloaded.addAndGet(length - 9);
+		
 		//If the piece is complete then update the necessary things.
 		if(response == 1)
 		{	
 			//Decrement the number of pending downloads.
-			synchronized(downloadingPieces)
-			{downloadingPieces--;}
+			downloadingPieces.decrementAndGet();
 			
 			//Decrement the number of pending pieces.
-			synchronized(totalPendingPieces)
-			{totalPendingPieces--;}
-			
-			//Increment the total number of downloaded bytes.
-			synchronized(totalDownloaded)
-			{totalDownloaded += length;}
-			synchronized(peer.downloaded)
-			{peer.downloaded += length;}
-			
-			//Send a have notice to all connected peers.
-			synchronized(peers)
+			synchronized(pendingLock)
 			{
-				for(int i = 0; i < peers.size(); i++)
+				if(pendingPieces.get(index))
 				{
-					if(peers.get(i) != null)
-						if(!peers.get(i).getDisconnected())
-							peers.get(i).have(index);
+					pendingPieces.clear(index);
+					totalPendingPieces.decrementAndGet();
 				}
 			}
+			
+			//Increment the total number of downloaded bytes.
+			totalDownloaded.addAndGet(length);
+			
+			//If an earlier copy of the piece failed, ban whoever sent the differing blocks.
+			banPeers(hashFailures.pieceVerified(index));
+			
+			//Queue a have notice for all connected peers. The broadcaster sends it off this thread.
+			completedPieces.offer(index);
 		}
 		//If the piece fails SHA-1 hash re-add it to the DL queue.
 		else if(response == -1)
 		{
-			synchronized(pieces)
-			{
-				DLQueue.offer(pieces.get(index));
-			}
+			downloadingPieces.decrementAndGet();
+			
+			//Blame the contributors. The piece will be fetched from a single trusted peer if needed.
+			int blocks = (pieces.get(index).length + FileManager.BLOCK_LENGTH - 1) / FileManager.BLOCK_LENGTH;
+			banPeers(hashFailures.pieceFailed(index, blocks));
+			
+			DLQueue.offer(pieces.get(index));
 		}
 	}
 	
@@ -228,26 +424,27 @@ public class DownloadManager
 	 * @param bitfieldIn The bitfield received from the Peer.
 	 * @param peer The peer that the bitfield originated from.
 	 */
-	public synchronized void registerBitfield(byte[] bitfieldIn, Peer peer)
+	public void registerBitfield(byte[] bitfieldIn, Peer peer)
 	{
-		//Update the pieces array. The Bitfield is read in reverse order.
-		synchronized(pieces)
+		//Update the pieces array. The leading bit of the first byte is index 0.
+		int index  = 0;
+		for(byte b : bitfieldIn)
 		{
-			int index  = 0;
-			for(byte b : bitfieldIn)
+			for(int mask = 0x80; mask != 0; mask >>= 1)
 			{
-				for(int mask = 0x100; mask != 0x01; mask >>= 1)
+				if(index >= pieces.size())
+					break;
+				if((b & mask) != 0)
 				{
-					if(index >= pieces.size())
-						break;
-					if((b & mask) != 0)
+					Piece tmpPiece = pieces.get(index);
+					synchronized(tmpPiece.peersWhoHave)
 					{
-						if(!pieces.get(index).peersWhoHave.contains(peer))
-							pieces.get(index).peersWhoHave.add(peer);
+						if(!tmpPiece.peersWhoHave.contains(peer))
+							tmpPiece.peersWhoHave.add(peer);
 					}
-					
-					index++;
 				}
+				
+				index++;
 			}
 		}
 	}
@@ -258,24 +455,29 @@ public class DownloadManager
 	 * @param index The index that the Peer has.
 	 * @param peer The owner of said piece.
 	 */
-	public synchronized void registerHave(byte[] indexIn, Peer peer)
+	public void registerHave(byte[] indexIn, Peer peer)
 	{
 		//Parse the index of the piece
 		int index = java.nio.ByteBuffer.wrap(indexIn).order(java.nio.ByteOrder.BIG_ENDIAN).getInt();
+		if(index < 0 || index >= pieces.size())
+			return;
 		
 		//If we didn't already know that this peer has this piece, then record it.
-		synchronized(pieces)
+		Piece tmpPiece = pieces.get(index);
+		boolean added = false;
+		synchronized(tmpPiece.peersWhoHave)
 		{
-			if(!pieces.get(index).peersWhoHave.contains(peer))
+			if(!tmpPiece.peersWhoHave.contains(peer))
 			{
-				pieces.get(index).peersWhoHave.add(peer);
-				
-				//If The peer has something that I dont, be interested.
-				if(!file_manager.have(index))
-					if(!peer.getAmInterested())
-						peer.interestedInPeer();
+				tmpPiece.peersWhoHave.add(peer);
+				added = true;
 			}
 		}
+		
+		//If The peer has something that I dont, be interested.
+		if(added && !file_manager.have(index))
+			if(!peer.getAmInterested())
+				peer.interestedInPeer();
 	}
 	
 	/**
@@ -286,7 +488,7 @@ public class DownloadManager
 	 * @param lengthIn The length requested from the peer.
 	 * @param peer The peer that the request originated from.
 	 */
-	public synchronized void registerRequest(byte[] indexIn, byte[] offsetIn, byte[] lengthIn, Peer peer)
+	public void registerRequest(byte[] indexIn, byte[] offsetIn, byte[] lengthIn, Peer peer)
 	{
 		//Parse the arguments of the piece
 		int index = java.nio.ByteBuffer.wrap(indexIn).order(java.nio.ByteOrder.BIG_ENDIAN).getInt();
@@ -305,7 +507,7 @@ public class DownloadManager
 	 * @param lengthIn The length requested from the peer.
 	 * @param peer The peer that the request originated from.
 	 */
-	public synchronized void registerCancel(byte[] indexIn, byte[] offsetIn, byte[] lengthIn, Peer peer)
+	public void registerCancel(byte[] indexIn, byte[] offsetIn, byte[] lengthIn, Peer peer)
 	{
 		//Parse the arguments of the piece
 		int index = java.nio.ByteBuffer.wrap(indexIn).order(java.nio.ByteOrder.BIG_ENDIAN).getInt();
@@ -317,41 +519,18 @@ public class DownloadManager
 	}
 	
 	/**
-	 * Updates the peer list and disconnects peers that are no longer present.
-	 * 
-	 * @param peersIn The updated list of peers.
+	 * Merges the peers from the latest tracker response into the candidate pool. Connected peers are
+	 * kept whether or not the tracker listed them again; only the maintenance thread drops peers, and
+	 * only once they are dead.
 	 */
-	@SuppressWarnings("unchecked")
 	public void setPeers()
 	{
 		//Obtain a new list of remote peers from the tracker.
-		remote_peer_array = getPeerArray();
-		
-		//Create the new array list of Peers.
-		ArrayList<Peer> peersTmp = setRemotePeerList();
+		String[] listed = tracker_connection.getPeerURLS();
+		if(listed == null)
+			return;
 		
-		synchronized(peers)
-		{
-			//Recover the removed peers and close connections with all of them.
-			ArrayList<Peer> oldPeers = (ArrayList<Peer>) peers.clone();
-			oldPeers.removeAll(peersTmp);
-			
-			for(int i = 0; i < oldPeers.size(); i++)
-				oldPeers.get(i).close();
-			
-			oldPeers.clear();
-			
-			//Recover the new peers and open connections to all of them.
-			ArrayList<Peer> newPeers = (ArrayList<Peer>) peersTmp.clone();
-			newPeers.removeAll(peers);
-			
-			for(int i = 0; i < newPeers.size(); i++)
-				connectPeer(newPeers.get(i), null);
-			
-			newPeers.clear();
-			
-			peers = peersTmp;
-		}
+		connections.offer(this, listed, ConnectionManager.Source.TRACKER);
 	}
 	
 	public SessionInfo getSessionInfo(){
@@ -371,21 +550,18 @@ public class DownloadManager
 	 * This gets the total amount downloaded so far this session.
 	 * @return The total downloaded this session in bytes.
 	 */
-	public int getDownloaded()
+	public long getDownloaded()
 	{
-		synchronized(totalDownloaded)
-		{
-			return totalDownloaded;
-		}
+		return totalDownloaded.get();
 	}
 	
 	/**
 	 * This gets the total amount left to download in this session.
 	 * @return The total amount left to download in bytes.
 	 */
-	public int getLeft()
+	public long getLeft()
 	{
-		int remaining = info.file_length() - file_manager.getTotalBytesSavedToDisk();
+		long remaining = info.file_length() - file_manager.getTotalBytesSavedToDisk();
 		return remaining;
 	}
 	
@@ -393,12 +569,26 @@ public class DownloadManager
 	 * This gets the total amount uploaded so far this session.
 	 * @return The total uploaded this session in bytes.
 	 */
-	public int getUploaded()
+	public long getUploaded()
 	{
-		synchronized(totalUploaded)
-		{
-			return totalUploaded;
-		}
+		return totalUploaded.get();
+	}
+	
+	/**
+	 * Verifies the existing download file against the piece hashes and rebuilds the bitfield.
+	 * This must be called before start().
+	 * 
+	 * @param listener Receives progress and throughput reports; may be null.
+	 * @return 1 if the whole file is present, 0 if some of it is, -1 if none of it is, or null on error.
+	 */
+	public Integer recheck(PieceRechecker.Listener listener)
+	{
+		Integer response = file_manager.recheck(listener);
+		
+		if(response != null)
+			download_complete = (response == 1);
+		
+		return response;
 	}
 	
 	/**
@@ -406,11 +596,27 @@ public class DownloadManager
 	 */
 	public void shutdown()
 	{
+		accepting = false;
+		
+		//Stop opening connections. A connection manager of my own is not needed any more.
+		connections.unregister(this);
+		if(session == null)
+			connections.shutdown();
+		
+		//Remember the best peers for the next start.
+		if(peerPool != null)
+		{
+			try{peerPool.write(getPeerPoolFile());}
+			catch(IOException e){System.err.println("ERROR: Unable to save the peers. " + e.getMessage());}
+		}
+		
 		//Interrupt all threads.
 		downloadThread.interrupt();
 		uploadThread.interrupt();
 		maintenanceThread.interrupt();
-		listenerThread.interrupt();
+		if(listenerThread != null)
+			listenerThread.interrupt();
+		haveThread.interrupt();
 		tracker_connection.stop();
 		
 		//Close the server socket.
@@ -424,14 +630,18 @@ public class DownloadManager
 				peers.get(i).close();
 		}
 		
-		//Notify the Piece Assembler to save its state.
+		//Notify the Piece Assembler to save its state and release the download file.
 		file_manager.save();
+		file_manager.close();
+		
+		//Let the piece hashes be dropped from the cache.
+		info.deactivate();
 	}
 	
 	/**
 	 * Sets the DM state to paused.
 	 */
-	public synchronized void pause()
+	public void pause()
 	{
 		paused = true;
 	}
@@ -439,11 +649,126 @@ public class DownloadManager
 	/**
 	 * Sets the DM state to unpaused.
 	 */
-	public synchronized void unPause()
+	public void unPause()
 	{
 		paused = false;
 	}
 	
+	/**
+	 * Sets whether have notices are withheld from peers that already have the piece. Such peers
+	 * can never be interested in it, so the notice only costs a write.
+	 * 
+	 * @param suppress True to skip peers that already have the piece.
+	 */
+	public void setSuppressRedundantHaves(boolean suppress)
+	{
+		suppressRedundantHaves = suppress;
+	}
+	
+	/**
+	 * Opens a channel over the downloaded file for playback while the download runs. Opening the
+	 * channel switches the piece picker into streaming mode, and reading from it moves the playhead.
+	 * Reads block until the piece holding the requested bytes has been verified.
+	 * 
+	 * @return A read-only channel over the whole file.
+	 */
+	public SeekableByteChannel openStream()
+	{
+		streaming = true;
+		setPlayhead(0);
+		return new PieceStreamChannel(file_manager, this);
+	}
+	
+	/**
+	 * Moves the playhead of streaming mode. The next READ_AHEAD_PIECES pieces are downloaded in order
+	 * ahead of everything else, and the first DEADLINE_PIECES of them get deadlines DEADLINE_STEP apart.
+	 * Pieces beyond the window keep the rarest-first order.
+	 * 
+	 * @param index The index of the piece being read.
+	 */
+	public void setPlayhead(int index)
+	{
+		if(!streaming)
+			return;
+		
+		synchronized(deadlines)
+		{
+			if(index == playhead && !deadlines.isEmpty())
+				return;
+			
+			playhead = index;
+			
+			//Give the pieces right after the playhead staggered deadlines.
+			long now = clock.currentTimeMillis();
+			deadlines.clear();
+			for(int i = 0; i < DEADLINE_PIECES && index + i < info.number_of_pieces(); i++)
+				if(!file_manager.have(index + i))
+					deadlines.put(index + i, now + (i + 1) * DEADLINE_STEP);
+		}
+		
+		//The queue orders on insertion, so re-insert everything under the new window.
+		ArrayList<Piece> queued = new ArrayList<Piece>();
+		DLQueue.drainTo(queued);
+		DLQueue.addAll(queued);
+	}
+	
+	/**
+	 * Changes the download priority of a file. Pieces that become wanted are queued, restarting the
+	 * download if it had already completed; pieces that only touch skipped files are dropped when the
+	 * downloader reaches them. Pieces shared with a wanted file are always downloaded.
+	 * 
+	 * @param file The index of the file in torrent order.
+	 * @param priority The new priority.
+	 * @return False if the file could not be created.
+	 */
+	public boolean setFilePriority(int file, FileManager.Priority priority)
+	{
+		if(!file_manager.setFilePriority(file, priority))
+			return false;
+		
+		//Find the pieces the file spans.
+		long[] fileLengths = info.file_lengths();
+		long start = 0;
+		for(int i = 0; i < file; i++)
+			start += fileLengths[i];
+		
+		if(fileLengths[file] > 0)
+		{
+			int first = (int)(start / info.piece_length());
+			int last = (int)((start + fileLengths[file] - 1) / info.piece_length());
+			
+			boolean wanted = false;
+			synchronized(pendingLock)
+			{
+				//Queue the wanted pieces that are neither had nor already pending.
+				for(int i = first; i <= last; i++)
+				{
+					if(file_manager.have(i) || pendingPieces.get(i)
+							|| file_manager.getPiecePriority(i) == FileManager.Priority.SKIP)
+						continue;
+					
+					DLQueue.offer(pieces.get(i));
+					pendingPieces.set(i);
+					totalPendingPieces.incrementAndGet();
+					wanted = true;
+				}
+				
+				//A finished downloader has to be started again for the new pieces.
+				if(wanted && download_complete && downloadThread != null)
+				{
+					download_complete = false;
+					startDownloader();
+				}
+			}
+		}
+		
+		//The queue orders on insertion, so re-insert everything under the new priorities.
+		ArrayList<Piece> queued = new ArrayList<Piece>();
+		DLQueue.drainTo(queued);
+		DLQueue.addAll(queued);
+		return true;
+	}
+	
 	/**
 	 * This directs the DM to start the download process.
 	 */
@@ -479,54 +804,38 @@ public class DownloadManager
 					catch(InterruptedException e){return;}
 				}
 				
-				//Add all needed pieces to the download queue
-				for(int i = 0; i < pieces.size(); i++)
-				{
-					if(!file_manager.have(i))
-					{
-						DLQueue.offer(pieces.get(i));
-						
-						//Increment the total pending pieces.
-						synchronized(totalPendingPieces)
-						{
-							totalPendingPieces++;
-						}
-					}
-				}
+				queueNeededPieces();
 				
 				//Request pieces until the download is download_complete, 
 				//while capping the total number of concurrent downloading pieces.
 				Piece tmpPiece = null;
-				int downloadingPiecesEst = 0;
+				Peer tmpPeer = null;
+				ArrayList<Piece> deferred = new ArrayList<Piece>();
+				long lastDeadlineCheck = 0;
 				while(!download_complete)
 				{
-					synchronized(totalPendingPieces)
-					{
-						//Check if I'm download_complete.
-						if(totalPendingPieces == 0)
-						{
-							download_complete = true;
-							break;
-						}
-					}
-					
-					//Get an estimate if I'm capped. Since this MUST be synchronized it can't be used directly in an if statement.
-					synchronized(downloadingPieces)
+					//Check if I'm download_complete.
+					if(totalPendingPieces.get() == 0)
 					{
-						downloadingPiecesEst = downloadingPieces;
+						download_complete = true;
+						break;
 					}
 					
-					if(downloadingPiecesEst < MAX_CONCURRENT_DOWNLOADS)
+					if(downloadingPieces.get() < MAX_CONCURRENT_DOWNLOADS)
 					{
 						//Check if I'm supposed to be paused.
-						synchronized(this)
+						if(paused)
 						{
-							if(paused)
-							{
-								try{Thread.sleep(100);}
-								catch(InterruptedException e){return;}
-								continue;
-							}
+							try{Thread.sleep(100);}
+							catch(InterruptedException e){return;}
+							continue;
+						}
+						
+						//Keep the pieces right after the playhead on schedule.
+						if(clock.currentTimeMillis() - lastDeadlineCheck >= 100)
+						{
+							serviceDeadlines();
+							lastDeadlineCheck = clock.currentTimeMillis();
 						}
 						
 						tmpPiece = DLQueue.poll();
@@ -534,34 +843,52 @@ public class DownloadManager
 						//If I'm not download_complete but the queue is empty, wait for it to be full again.
 						if(tmpPiece == null)
 						{
+							//Give the pieces nobody could serve another chance.
+							for(int i = 0; i < deferred.size(); i++)
+								DLQueue.offer(deferred.get(i));
+							deferred.clear();
+							
 							//See if I should be in an end game strategy.
-							if(totalPendingPieces < (info.number_of_pieces() * .1))
+							if(totalPendingPieces.get() < (info.number_of_pieces() * .1))
+								requestEndGame();
+							
+							try{Thread.sleep(100);}
+							catch(InterruptedException e){return;}
+							continue;
+						}
+						
+						//Drop pieces whose files were all skipped after they were queued.
+						if(file_manager.getPiecePriority(tmpPiece.index) == FileManager.Priority.SKIP)
+						{
+							synchronized(pendingLock)
 							{
-								for(int i = 0; i < pieces.size(); i++)
+								if(pendingPieces.get(tmpPiece.index))
 								{
-									if(!file_manager.have(i))
-									{
-										for(int j = 0; j < pieces.get(i).peersWhoHave.size(); j++)
-											pieces.get(i).peersWhoHave.get(j).request(i, 0, pieces.get(i).length);
-									}
+									pendingPieces.clear(tmpPiece.index);
+									totalPendingPieces.decrementAndGet();
 								}
 							}
-							try{Thread.sleep(100);}
-							catch(InterruptedException e){return;}
 							continue;
 						}
 						
-						//Send a request packet for the desired piece to all connected peers that have it.
-						for(int i = 0; i < tmpPiece.peersWhoHave.size(); i++)
-							tmpPiece.peersWhoHave.get(i).request(tmpPiece.index, 0, tmpPiece.length);
-						
-						synchronized(downloadingPieces)
+						//Pick the least loaded unchoked peer that has the piece, or set the piece aside.
+						tmpPeer = choosePeer(tmpPiece);
+						if(tmpPeer == null)
 						{
-							downloadingPieces++;
+							deferred.add(tmpPiece);
+							continue;
 						}
+						
+						//Request the missing blocks of the piece from that peer.
+						requestBlocks(tmpPiece, tmpPeer);
+						downloadingPieces.incrementAndGet();
 					}
 					else
 					{
+						//Deadline pieces are not held back by the cap.
+						serviceDeadlines();
+						lastDeadlineCheck = clock.currentTimeMillis();
+						
 						try{Thread.sleep(100);}
 						catch(InterruptedException e){return;}
 						continue;
@@ -592,14 +919,11 @@ public class DownloadManager
 				while(true)
 				{
 					//Check if I'm supposed to be paused.
-					synchronized(this)
+					if(paused)
 					{
-						if(paused)
-						{
-							try{Thread.sleep(100);}
-							catch(InterruptedException e){return;}
-							continue;
-						}
+						try{Thread.sleep(100);}
+						catch(InterruptedException e){return;}
+						continue;
 					}
 					
 					//Get the request from the queue. This is a blocking call.
@@ -611,14 +935,8 @@ public class DownloadManager
 						continue;
 					if(tmpULRequest.peer.getDisconnected())
 						continue;
-					synchronized(downloaders)
-					{
-						synchronized(optimisticPeers)
-						{
-							if(!downloaders.contains(tmpULRequest.peer) && !optimisticPeers.contains(tmpULRequest.peer))
-								continue;
-						}
-					}
+					if(!choker.isUnchoked(tmpULRequest.peer))
+						continue;
 					
 					//Get the requested block from the PA.
 					block = file_manager.retrieveDataBlock(tmpULRequest.index, tmpULRequest.offset, tmpULRequest.length);
@@ -627,14 +945,19 @@ public class DownloadManager
 					if (block == null)
 						continue;
 					
+					//Wait for the session's upload limit to allow the block.
+					if(session != null)
+					{
+						try{session.getUploadLimiter().acquire(tmpULRequest.length);}
+						catch(InterruptedException e){return;}
+					}
+					
 					//Send the requested block.
 					tmpULRequest.peer.sendBlock(tmpULRequest.index, tmpULRequest.offset, block.array());
 					
 					//Update the uploaded counts.
-					synchronized(totalUploaded)
-					{totalUploaded += tmpULRequest.length;}
-					synchronized(tmpULRequest.peer.uploaded)
-					{tmpULRequest.peer.uploaded += tmpULRequest.length;}
+					totalUploaded.addAndGet(tmpULRequest.length);
+					tmpULRequest.peer.uploaded.addAndGet(tmpULRequest.length);
 				}
 			}
 		});
@@ -643,7 +966,7 @@ public class DownloadManager
 	}
 	
 	/**
-	 * Starts the maintenance thread that prunes disconnected peers and performs the next step in the choking algorithm.
+	 * Starts the maintenance thread that prunes disconnected peers and drives the choking algorithm.
 	 */
 	private void startMaintenance()
 	{
@@ -654,190 +977,100 @@ public class DownloadManager
 			{
 				while(true)
 				{
-					//Wait for 10 seconds.
+					//Wait for the next maintenance pass.
 					try{Thread.sleep(MAINTENANCE_TIMER);}
 					catch(InterruptedException e){return;}
 					
-					//Check the peers list for disconnected nodes and remove them.
+					//Mark silent peers as snubbed and requeue the blocks they hold, before the choker ranks them.
+					checkSnubbed();
+					
 					synchronized(peers)
 					{
-						for(int i = 0; i < peers.size(); i++)
+						//Check the peers list for disconnected nodes and remove them.
+						for(Iterator<Peer> it = peers.iterator(); it.hasNext();)
 						{
-							//If the peer is disconnected, remove it.
-							if(peers.get(i).getDisconnected())
+							Peer tmpPeer = it.next();
+							if(tmpPeer.getDisconnected())
 							{
-								Peer tmpPeer = peers.get(i);
-								peers.remove(i);
-								
-								//If the peer was unchoked, remove it from the appropriate list.
-								if(!tmpPeer.getAmChoking())
-								{
-									synchronized(downloaders)
-									{downloaders.remove(tmpPeer);}
-									synchronized(optimisticPeers)
-									{optimisticPeers.remove(tmpPeer);}
-									synchronized(waitList)
-									{waitList.remove(tmpPeer);}
-								}
-								else
-									synchronized(chokedPeers)
-									{chokedPeers.remove(tmpPeer);}
-								
+								it.remove();
+								choker.removePeer(tmpPeer);
 								tmpPeer.close();
+								connections.peerClosed(instance, tmpPeer);
 							}
 						}
+						
+						//Let the choker rechoke if its interval has passed.
+						choker.tick(peers, download_complete);
 					}
-					
-					//Gather the current lowest download rate from peers in the downloaders list.
-					long[] lowest = getLowestMetric();
-
-					//Check if anyone should be removed from the waitList.
-					boolean move = false;
-					synchronized(waitList)
-					{
-						for(int i = 0; i < waitList.size(); i++)
-						{
-							if(!download_complete)
-								synchronized(waitList.get(i).downloaded)
-								{move = waitList.get(i).downloaded < lowest[0];}
-							else
-								synchronized(waitList.get(i).uploaded)
-								{move = waitList.get(i).uploaded < lowest[0];}
-							
-							if(move)
-							{
-								waitList.get(i).chokePeer();
-								synchronized(chokedPeers)
-								{chokedPeers.add(waitList.get(i));}
-								waitList.remove(i);
-							}
-						}
-					}
-					
-					//Check if anyone should be moved to the waitList from the chokedPeers list.
-					synchronized(waitList)
+				}
+			}
+		});
+		
+		maintenanceThread.start();
+	}
+	
+	/**
+	 * Starts the thread that announces completed pieces. Pieces completed within HAVE_BATCH_DELAY
+	 * of each other are queued on every peer together and flushed in a single write per peer.
+	 */
+	private void startHaveBroadcaster()
+	{
+		//Construct the have broadcasting thread.
+		haveThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				ArrayList<Integer> batch = new ArrayList<Integer>();
+				while(true)
+				{
+					//Wait for a completed piece, then give others a moment to join it.
+					try
 					{
-						synchronized(chokedPeers)
-						{
-							move = false;
-							for(int i = 0; i < chokedPeers.size(); i++)
-							{
-								if(!download_complete)
-									synchronized(chokedPeers.get(i).downloaded)
-									{move = chokedPeers.get(i).downloaded > lowest[0];}
-								else
-									synchronized(chokedPeers.get(i).uploaded)
-									{move = chokedPeers.get(i).uploaded > lowest[0];}
-								
-								if(move)
-								{
-									chokedPeers.get(i).unchokePeer();
-									waitList.add(chokedPeers.get(i));
-									chokedPeers.remove(i);
-								}
-							}
-						}
+						batch.add(completedPieces.take());
+						Thread.sleep(HAVE_BATCH_DELAY);
 					}
+					catch(InterruptedException e){return;}
 					
-					//See if anyone should be moved to the waitList from the optimisticPeers list.
-					synchronized(optimisticPeers)
-					{
-						move = false;
-						for(int i = 0; i < optimisticPeers.size(); i++)
-						{
-								if(!download_complete)
-									synchronized(optimisticPeers.get(i).downloaded)
-									{move = optimisticPeers.get(i).downloaded > lowest[0];}
-								else
-									synchronized(optimisticPeers.get(i).uploaded)
-									{move = optimisticPeers.get(i).uploaded > lowest[0];}
-									
-								if(move)
-								{
-									synchronized(waitList)
-									{waitList.add(optimisticPeers.get(i));}
-									optimisticPeers.remove(i);
-								}
-						}
-					}
+					completedPieces.drainTo(batch);
 					
-					//See if anyone from the waitList should be moved to the downloaders list.
-					synchronized(downloaders)
-					{
-						synchronized(waitList)
-						{
-							move = false;
-							for(int i = 0; i < waitList.size(); i++)
-							{
-								if(!download_complete)
-									synchronized(waitList.get(i).downloaded)
-									{move = waitList.get(i).downloaded > lowest[0];}
-								else
-									synchronized(waitList.get(i).uploaded)
-									{move = waitList.get(i).uploaded > lowest[0];}
-								
-								if(move)
-								{
-									//Remove the old downloader.
-									downloaders.get(i).chokePeer();
-									synchronized(chokedPeers)
-									{chokedPeers.add(downloaders.get(i));}
-									
-									//Add the new downloader.
-									downloaders.set((int)lowest[1], waitList.get(i));
-									waitList.remove(i);
-									
-									//Recompute the lowest downloader.
-									lowest = getLowestMetric();
-								}
-							}
-						}
-					}
+					//Copy the peer list so the broadcast doesn't hold it during the writes.
+					ArrayList<Peer> targets;
+					synchronized(peers)
+					{targets = new ArrayList<Peer>(peers);}
 					
-					//Re-fill the optimisticPeer list every 3 steps.
-					synchronized(optimisticPeers)
+					for(int i = 0; i < targets.size(); i++)
 					{
-						synchronized(chokedPeers)
+						Peer peer = targets.get(i);
+						if(peer == null || peer.getDisconnected())
+							continue;
+						
+						for(int j = 0; j < batch.size(); j++)
 						{
-							if(chokedPeers.size() > 0)
+							int index = batch.get(j);
+							
+							//Skip peers that already have the piece, if asked to.
+							if(suppressRedundantHaves)
 							{
-								//Reset state.
-								optimisticPeers.clear();
-								
-								//Re-fill the optimisticPeers list.
-								Random rand = new Random();
-
-								for(int i = 0; i < MAX_OPTIMISTIC_PEERS; i++)
+								Piece tmpPiece = pieces.get(index);
+								synchronized(tmpPiece.peersWhoHave)
 								{
-									//Choose a random peer thats choked and unchoke it.
-									int index = rand.nextInt(chokedPeers.size());
-									chokedPeers.get(index).unchokePeer();
-									chokedPeers.get(index).interestedInPeer();
-									
-									optimisticPeers.add(chokedPeers.get(index));
-									
-									chokedPeers.remove(index);
+									if(tmpPiece.peersWhoHave.contains(peer))
+										continue;
 								}
 							}
+							
+							peer.queueHave(index);
 						}
+						
+						peer.flushHaves();
 					}
 					
-					//Rest the uploaded/downloaded counts for the next maintenance pass.
-					synchronized(peers)
-					{
-						for(int i = 0; i < peers.size(); i++)
-						{
-							synchronized(peers.get(i).downloaded)
-							{peers.get(i).downloaded = (long)0;}
-							synchronized(peers.get(i).uploaded)
-							{peers.get(i).uploaded = (long)0;}
-						}
-					}
+					batch.clear();
 				}
 			}
 		});
 		
-		maintenanceThread.start();
+		haveThread.start();
 	}
 	
 	/**
@@ -860,11 +1093,12 @@ public class DownloadManager
 					try{tmpSocket = listenerSocket.accept();}
 					catch(Exception e){return;}
 					
-					String port_string = Integer.toString( listener_port );
-					byte[] infoHash = info.info_hash().array();
-					Peer tmpPeer = new Peer(tmpSocket.getInetAddress().getHostAddress(), port_string, "tmp", infoHash, my_peer_id, instance);
-					peers.add(tmpPeer);
-					connectPeer(tmpPeer, tmpSocket);
+					//The handshake is read by the peer itself, since this port serves only me.
+					if(!acceptPeer(tmpSocket, null))
+					{
+						try{tmpSocket.close();}
+						catch(IOException e){;}
+					}
 				}
 				
 			}
@@ -874,96 +1108,481 @@ public class DownloadManager
 	}
 	
 	/**
-	 * This launches a thread that walks the given peer through connecting process.
+	 * This launches a thread that walks an incoming peer through the connecting process.
+	 * Outbound connections are made by the connection manager.
 	 * 
 	 * @param peer The peer to be connected.
+	 * @param socket The incoming connection.
+	 * @param handshake The handshake already read from it, or null.
 	 */
-	private void connectPeer(final Peer peer, final Socket socket)
+	private void connectPeer(final Peer peer, final Socket socket, final byte[] handshake)
 	{
 		//Construct the connection thread.
 		Thread connectPeer = new Thread(new Runnable()
 		{
 			public void run()
 			{
-				//Have the peer attempt connection and act accordingly.
-				boolean connected = false;
-				if(socket == null)
-					connected = peer.connect();
-				else
-					connected = peer.connect(socket);
+				//Have the peer attempt connection and give back its slot if it is not kept.
+				boolean connected = peer.connect(socket, handshake);
+				if(!finishConnect(peer, connected))
+					connections.peerClosed(instance, peer);
+			}
+		});
+		
+		//Start the connection thread.
+		connectPeer.start();
+	}
+	
+	/**
+	 * Chooses the peer to request the given piece from. Unchoked peers that are not snubbing me
+	 * are preferred, and among those the one with the fewest outstanding requests wins. A piece
+	 * that failed its hash check goes to a peer trusted to isolate the culprit whenever one is available.
+	 * 
+	 * @param piece The piece to be requested.
+	 * @return The chosen peer, or null if no unchoked peer has the piece.
+	 */
+	private Peer choosePeer(Piece piece)
+	{
+		Peer best = null;
+		int bestLoad = Integer.MAX_VALUE;
+		boolean isolate = hashFailures.needsIsolation(piece.index);
+		
+		synchronized(piece.peersWhoHave)
+		{
+			for(int i = 0; i < piece.peersWhoHave.size(); i++)
+			{
+				Peer peer = piece.peersWhoHave.get(i);
+				if(peer.getDisconnected() || peer.getPeerChoking() || !peer.getAmInterested())
+					continue;
 				
-				if(connected)
-				{	
-					//Get the bitfield.
-					byte[] bitfield = (byte[])file_manager.getBitField().array();
-							
-					
-					for(int i  = 0; i < bitfield.length; i++)
-					{
-					    byte out = 0;
-					    for (int j = 0 ; j < 8 ; j++) 
-					    {
-					        byte bit = (byte)(bitfield[i] & 1);
-					        out = (byte)((out << 1) | bit);
-					        bitfield[i] = (byte)(bitfield[i] >> 1);
-					    }
-					    
-					    bitfield[i] = out;
-					}
-					
-					//Check to see if it needs to be 0'd out.
-					if(bitfield.length == 0)
+				//Snubbing and untrusted peers are only used when nobody else is available.
+				int penalty = MAX_CONCURRENT_DOWNLOADS * (info.piece_length() / FileManager.BLOCK_LENGTH + 1);
+				int load = getOutstandingCount(peer);
+				if(peer.getSnubbed())
+					load += penalty;
+				if(isolate && !hashFailures.isTrusted(piece.index, peer.getIP()))
+					load += 2 * penalty;
+				
+				if(load < bestLoad)
+				{
+					best = peer;
+					bestLoad = load;
+				}
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Requests every block of the given piece that is neither received nor already requested from the peer.
+	 * 
+	 * @param piece The piece to be requested.
+	 * @param peer The peer to request the blocks from.
+	 */
+	private void requestBlocks(Piece piece, Peer peer)
+	{
+		for(int offset = 0; offset < piece.length; offset += FileManager.BLOCK_LENGTH)
+		{
+			if(file_manager.haveBlock(piece.index, offset))
+				continue;
+			
+			int length = Math.min(FileManager.BLOCK_LENGTH, piece.length - offset);
+			DLRequest request = new DLRequest(piece.index, offset, length, peer);
+			
+			synchronized(outstandingRequests)
+			{
+				ArrayList<DLRequest> requests = outstandingRequests.get(peer);
+				if(requests == null)
+				{
+					requests = new ArrayList<DLRequest>();
+					outstandingRequests.put(peer, requests);
+				}
+				
+				if(requests.contains(request))
+					continue;
+				
+				requests.add(request);
+			}
+			
+			peer.request(piece.index, offset, length);
+		}
+	}
+	
+	/**
+	 * Stops tracking every request for the given block. Duplicate requests sent to other peers
+	 * during the end game are cancelled.
+	 * 
+	 * @param index The index of the received block.
+	 * @param offset The offset of the received block.
+	 * @param peer The peer that sent the block.
+	 */
+	private void completeRequest(int index, int offset, Peer peer)
+	{
+		ArrayList<DLRequest> duplicates = new ArrayList<DLRequest>();
+		
+		synchronized(outstandingRequests)
+		{
+			for(Iterator<ArrayList<DLRequest>> it = outstandingRequests.values().iterator(); it.hasNext();)
+			{
+				ArrayList<DLRequest> requests = it.next();
+				for(int i = requests.size() - 1; i >= 0; i--)
+				{
+					DLRequest request = requests.get(i);
+					if(request.index == index && request.offset == offset)
 					{
-						bitfield = new byte[(int)Math.ceil(info.number_of_pieces() / (double)8)];
-						
-						for(int i = 0; i < bitfield.length; i++)
-							bitfield[i] = 0;
+						requests.remove(i);
+						if(request.peer != peer)
+							duplicates.add(request);
 					}
+				}
+				
+				if(requests.isEmpty())
+					it.remove();
+			}
+		}
+		
+		for(int i = 0; i < duplicates.size(); i++)
+			duplicates.get(i).peer.cancel(duplicates.get(i).index, duplicates.get(i).offset, duplicates.get(i).length);
+	}
+	
+	/**
+	 * Gets the number of blocks currently requested from the given peer.
+	 */
+	private int getOutstandingCount(Peer peer)
+	{
+		synchronized(outstandingRequests)
+		{
+			ArrayList<DLRequest> requests = outstandingRequests.get(peer);
+			return requests == null ? 0 : requests.size();
+		}
+	}
+	
+	/**
+	 * Finds peers that have disconnected, choked me, or sent no block for SNUB_TIMEOUT while
+	 * requests were outstanding. Silent peers are marked as snubbed so the choker penalizes them,
+	 * and the outstanding blocks of all such peers are handed back to the download queue.
+	 */
+	void checkSnubbed()
+	{
+		long now = clock.currentTimeMillis();
+		ArrayList<DLRequest> orphaned = new ArrayList<DLRequest>();
+		
+		synchronized(outstandingRequests)
+		{
+			for(Iterator<Map.Entry<Peer, ArrayList<DLRequest>>> it = outstandingRequests.entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry<Peer, ArrayList<DLRequest>> entry = it.next();
+				Peer peer = entry.getKey();
+				ArrayList<DLRequest> requests = entry.getValue();
+				
+				//Find the oldest request still waiting on this peer.
+				long oldest = now;
+				for(int i = 0; i < requests.size(); i++)
+					oldest = Math.min(oldest, requests.get(i).time);
+				
+				boolean snubbed = now - Math.max(oldest, peer.getLastBlockTime()) > SNUB_TIMEOUT;
+				if(snubbed)
+					peer.setSnubbed(true);
+				
+				if(snubbed || peer.getDisconnected() || peer.getPeerChoking())
+				{
+					orphaned.addAll(requests);
+					it.remove();
+				}
+			}
+		}
+		
+		//Re-queue each affected piece once so its missing blocks are requested from another peer.
+		ArrayList<Integer> requeued = new ArrayList<Integer>();
+		for(int i = 0; i < orphaned.size(); i++)
+		{
+			int index = orphaned.get(i).index;
+			if(requeued.contains(index) || file_manager.have(index) || isRequested(index))
+				continue;
+			
+			requeued.add(index);
+			downloadingPieces.decrementAndGet();
+			DLQueue.offer(pieces.get(index));
+		}
+	}
+	
+	/**
+	 * Takes the given piece off the download queue and requests its missing blocks from the given
+	 * peer, as the downloader does once it has chosen a peer for the piece.
+	 * 
+	 * @param index The index of the piece.
+	 * @param peer The peer to request the blocks from.
+	 */
+	void requestPiece(int index, Peer peer)
+	{
+		DLQueue.remove(pieces.get(index));
+		requestBlocks(pieces.get(index), peer);
+		downloadingPieces.incrementAndGet();
+	}
+	
+	/**
+	 * Checks whether the given piece is waiting in the download queue.
+	 */
+	boolean isQueued(int index)
+	{
+		return DLQueue.contains(pieces.get(index));
+	}
+	
+	/**
+	 * Lists the indexes of the queued pieces in the order the downloader will take them.
+	 */
+	ArrayList<Integer> queueOrder()
+	{
+		PriorityQueue<Piece> copy = new PriorityQueue<Piece>(DLQueue);
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		while(!copy.isEmpty())
+			order.add(copy.poll().index);
+		return order;
+	}
+	
+	/**
+	 * Adds all needed pieces to the download queue, leaving out those that only touch skipped files.
+	 */
+	void queueNeededPieces()
+	{
+		synchronized(pendingLock)
+		{
+			for(int i = 0; i < pieces.size(); i++)
+			{
+				if(!file_manager.have(i) && !pendingPieces.get(i)
+						&& file_manager.getPiecePriority(i) != FileManager.Priority.SKIP)
+				{
+					DLQueue.offer(pieces.get(i));
+					pendingPieces.set(i);
 					
-					//Send the bitfield.
-					peer.sendBitfield(bitfield);
-					
-					//Notify the peer that I'm interested.
-					peer.interestedInPeer();
-					
-					//If the downloaders list isn't full, add this peer to it.
-
-					synchronized(downloaders)
+					//Increment the total pending pieces.
+					totalPendingPieces.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether any block of the given piece is still requested from some peer.
+	 */
+	private boolean isRequested(int index)
+	{
+		synchronized(outstandingRequests)
+		{
+			for(ArrayList<DLRequest> requests : outstandingRequests.values())
+				for(int i = 0; i < requests.size(); i++)
+					if(requests.get(i).index == index)
+						return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Duplicates every outstanding request to one other unchoked peer that has the piece, so the
+	 * last few pieces are not held up by a single slow peer.
+	 */
+	private void requestEndGame()
+	{
+		ArrayList<DLRequest> snapshot = new ArrayList<DLRequest>();
+		synchronized(outstandingRequests)
+		{
+			for(ArrayList<DLRequest> requests : outstandingRequests.values())
+				for(int i = 0; i < requests.size(); i++)
+					if(!requests.get(i).duplicated)
 					{
-						if(downloaders.size() < MAX_DOWNLOADERS)
-						{
-							peer.unchokePeer();
-							downloaders.add(peer);
-							return;
-						}
+						requests.get(i).duplicated = true;
+						snapshot.add(requests.get(i));
 					}
-					
-					//If the optimisticPeers list isn't full, add this peer to it.
-					synchronized(optimisticPeers)
+		}
+		
+		for(int i = 0; i < snapshot.size(); i++)
+		{
+			DLRequest request = snapshot.get(i);
+			if(hashFailures.needsIsolation(request.index))
+				continue;
+			
+			Piece piece = pieces.get(request.index);
+			
+			Peer other = null;
+			synchronized(piece.peersWhoHave)
+			{
+				for(int j = 0; j < piece.peersWhoHave.size(); j++)
+				{
+					Peer peer = piece.peersWhoHave.get(j);
+					if(peer != request.peer && !peer.getDisconnected() && !peer.getPeerChoking() && !peer.getSnubbed())
 					{
-						if(optimisticPeers.size() < MAX_OPTIMISTIC_PEERS)
-						{
-							peer.unchokePeer();
-							optimisticPeers.add(peer);
-							return;
-						}
+						other = peer;
+						break;
 					}
-					
-					//Otherwise, choke the peer and add it to the unchoked list.
-					peer.chokePeer();
-					synchronized(chokedPeers)
-					{chokedPeers.add(peer);}
 				}
-				else
+			}
+			
+			if(other != null)
+				sendDuplicate(request, other);
+		}
+	}
+	
+	/**
+	 * Sends a copy of the given request to another peer and tracks it, unless that peer already has it.
+	 * 
+	 * @param request The outstanding request to duplicate.
+	 * @param other The peer to send the duplicate to.
+	 */
+	private void sendDuplicate(DLRequest request, Peer other)
+	{
+		DLRequest duplicate = new DLRequest(request.index, request.offset, request.length, other);
+		duplicate.duplicated = true;
+		synchronized(outstandingRequests)
+		{
+			ArrayList<DLRequest> requests = outstandingRequests.get(other);
+			if(requests == null)
+			{
+				requests = new ArrayList<DLRequest>();
+				outstandingRequests.put(other, requests);
+			}
+			if(requests.contains(duplicate))
+				return;
+			requests.add(duplicate);
+		}
+		
+		other.request(request.index, request.offset, request.length);
+	}
+	
+	/**
+	 * Makes sure the pieces right after the playhead are being downloaded. A deadline piece still
+	 * waiting in the queue is requested at once from the fastest peer that has it, ignoring the
+	 * concurrency cap. A deadline piece that is already requested but has missed its deadline has
+	 * its outstanding blocks duplicated to the next fastest peer.
+	 */
+	void serviceDeadlines()
+	{
+		if(!streaming)
+			return;
+		
+		long now = clock.currentTimeMillis();
+		HashMap<Integer, Long> snapshot;
+		synchronized(deadlines)
+		{snapshot = new HashMap<Integer, Long>(deadlines);}
+		
+		for(Map.Entry<Integer, Long> entry : snapshot.entrySet())
+		{
+			int index = entry.getKey();
+			if(file_manager.have(index))
+			{
+				synchronized(deadlines)
+				{deadlines.remove(index);}
+				continue;
+			}
+			
+			Piece piece = pieces.get(index);
+			
+			//Pull the piece out of the queue and request it right away.
+			if(DLQueue.remove(piece))
+			{
+				Peer fastest = chooseFastestPeer(piece, new ArrayList<Peer>());
+				if(fastest == null)
 				{
-					peers.remove(peer);
-					peer.close();
+					DLQueue.offer(piece);
+					continue;
 				}
+				
+				requestBlocks(piece, fastest);
+				downloadingPieces.incrementAndGet();
 			}
-		});
+			//Race the holder of a late piece with a second peer.
+			else if(now > entry.getValue() && !hashFailures.needsIsolation(index))
+			{
+				ArrayList<DLRequest> late = new ArrayList<DLRequest>();
+				ArrayList<Peer> holders = new ArrayList<Peer>();
+				synchronized(outstandingRequests)
+				{
+					for(ArrayList<DLRequest> requests : outstandingRequests.values())
+						for(int i = 0; i < requests.size(); i++)
+							if(requests.get(i).index == index)
+							{
+								late.add(requests.get(i));
+								if(!holders.contains(requests.get(i).peer))
+									holders.add(requests.get(i).peer);
+							}
+				}
+				
+				Peer fastest = chooseFastestPeer(piece, holders);
+				if(fastest != null)
+					for(int i = 0; i < late.size(); i++)
+						sendDuplicate(late.get(i), fastest);
+				
+				//Give the duplicate time to arrive before racing again.
+				synchronized(deadlines)
+				{
+					if(deadlines.containsKey(index))
+						deadlines.put(index, now + DEADLINE_STEP);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Chooses the unchoked, non-snubbing peer with the best measured download rate that has the given piece.
+	 * A piece that failed its hash check is isolated as in choosePeer: peers trusted for it win over
+	 * faster untrusted ones, which are only used when no trusted peer is available.
+	 * 
+	 * @param piece The piece to be requested.
+	 * @param exclude Peers that must not be chosen.
+	 * @return The fastest eligible peer, or null if there is none.
+	 */
+	private Peer chooseFastestPeer(Piece piece, ArrayList<Peer> exclude)
+	{
+		Peer best = null;
+		double bestRate = -1;
+		boolean bestTrusted = false;
+		boolean isolate = hashFailures.needsIsolation(piece.index);
 		
-		//Start the connection thread.
-		connectPeer.start();
+		synchronized(piece.peersWhoHave)
+		{
+			for(int i = 0; i < piece.peersWhoHave.size(); i++)
+			{
+				Peer peer = piece.peersWhoHave.get(i);
+				if(peer.getDisconnected() || peer.getPeerChoking() || !peer.getAmInterested() || peer.getSnubbed())
+					continue;
+				if(exclude.contains(peer))
+					continue;
+				
+				boolean trusted = !isolate || hashFailures.isTrusted(piece.index, peer.getIP());
+				if(bestTrusted && !trusted)
+					continue;
+				
+				double rate = choker.getRate(peer);
+				if(rate > bestRate || (trusted && !bestTrusted))
+				{
+					best = peer;
+					bestRate = rate;
+					bestTrusted = trusted;
+				}
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Disconnects every peer at the given banned addresses. The maintenance thread then prunes
+	 * them and reassigns their outstanding blocks.
+	 * 
+	 * @param bannedIPs The addresses that have just been banned.
+	 */
+	private void banPeers(ArrayList<String> bannedIPs)
+	{
+		if(bannedIPs.isEmpty())
+			return;
+		
+		synchronized(peers)
+		{
+			for(int i = 0; i < peers.size(); i++)
+				if(bannedIPs.contains(peers.get(i).getIP()))
+					peers.get(i).close();
+		}
 	}
 	
 	/**
@@ -1009,99 +1628,6 @@ public class DownloadManager
 		return null;
 	}
 	
-	/**
-	 * Create a 2D String array representing the contact information of the remote peers.  Index 0 corresponds
-	 * to the IP, index 1 to the port, and index 2 to the remote peers self-selected peerID.
-	 * 
-	 * @author Thomas Travis
-	 */
-	private String[][] getPeerArray(){
-		
-		String [] IPPortConcat = tracker_connection.getPeerURLS();
-		String[][] peer_IP_port_array = new String[ IPPortConcat.length ][ 3 ];
-		for(int i = 0; i < IPPortConcat.length; i++ ){
-			String concat = IPPortConcat[i];
-			String IP = concat.substring(0, concat.indexOf(':'));
-			String Port = concat.substring( concat.indexOf(':') + 1 );
-			peer_IP_port_array[i][0] = IP;
-			peer_IP_port_array[i][1] = Port;
-			peer_IP_port_array[i][2] = ""; //Currently placeholder for peer_id
-		}
-		return peer_IP_port_array;
-	}
-	
-	/**
-	 * This computes the lowest downloader based on either upload rate or download rate depending on what state the DM is in.
-	 * 
-	 * @return A 2d array where the first element in the amound downloaded/uploaded and the second is the index of the offending peer.
-	 */
-	private long[] getLowestMetric()
-	{
-		long[] response = new long[2];
-		long lowestMetric;
-		
-		if(!download_complete)
-			lowestMetric = totalDownloaded;
-		else
-			lowestMetric = totalUploaded;
-		
-		synchronized(downloaders)
-		{
-			for(int i = 0; i < downloaders.size(); i++)
-			{
-				//Check if I should be comparing based on uploaded or downloaded rates.
-				if(!download_complete)
-				{
-					synchronized(downloaders.get(i).downloaded)
-					{
-						//Compare based on the found rate.
-						if(downloaders.get(i).downloaded < lowestMetric)
-						{
-							response[0] = downloaders.get(i).downloaded;
-							response[1] = i;
-						}
-					}
-				}
-				else
-				{
-					synchronized(downloaders.get(i).uploaded)
-					{
-						//Compare based on the found rate.
-						if(downloaders.get(i).uploaded < lowestMetric)
-						{
-							response[0] = downloaders.get(i).uploaded;
-							response[1] = i;
-						}
-					}
-				}
-				
-
-			}
-		}
-		
-		return response;
-	}
-	
-	private ArrayList<Peer> setRemotePeerList(){
-		
-		ArrayList<Peer> list = new ArrayList<Peer>();
-		for( int i = 0; i < remote_peer_array.length; i++ ){
-			
-			String remote_IP = remote_peer_array[i][0];
-			String remote_port = remote_peer_array[i][1];
-			String remote_peer_id = remote_peer_array[i][2];
-			byte[] info_hash = info.info_hash().array();
-			
-			//if(remote_IP.equals("172.31.145.89"))
-			//{
-				Peer p = new Peer( remote_IP, remote_port, remote_peer_id, info_hash, my_peer_id, this );
-				list.add(p);
-			//}
-		}
-		
-		return list;
-	}
-	
 	/**
 	 * This is used to bundle all of the data the uploader needs to track for each request.
 	 * In addition it supports equality to test for removal and insertion.
@@ -1156,6 +1682,61 @@ public class DownloadManager
 		}
 	}
 	
+	/**
+	 * This is used to track a block requested from a peer and when it was requested,
+	 * so that blocks held by a silent peer can be requested elsewhere.
+	 */
+	private class DLRequest 
+	{
+		public int index;
+		public int offset;
+		public int length;
+		public Peer peer;
+		public long time;
+		public boolean duplicated;
+		
+		/**
+		 * A constructor for the DLRequest class, it does basic initialization and no argument checking.
+		 * @param indexIn
+		 * @param offsetIn
+		 * @param lengthIn
+		 * @param peerIn
+		 */
+		public DLRequest(int indexIn, int offsetIn, int lengthIn, Peer peerIn)
+		{
+			index = indexIn;
+			offset = offsetIn;
+			length = lengthIn;
+			peer = peerIn;
+			time = clock.currentTimeMillis();
+			duplicated = false;
+		}
+		
+		/**
+		 * An equality tester to support insertion and removal of DLRequests into array lists.
+		 */
+		public boolean equals(Object obj)
+		{
+			if(obj == null)
+				return false;
+			if(!(obj instanceof DLRequest))
+				return false;
+			if(obj == this)
+				return true;
+			
+			DLRequest DL = (DLRequest)obj;
+			return DL.peer == this.peer && DL.index == this.index && DL.offset == this.offset && DL.length == this.length;
+		}
+		
+		/**
+		 * A hash code consistent with equals, built from the block the request names.
+		 */
+		public int hashCode()
+		{
+			return (index * 31 + offset) * 31 + length;
+		}
+	}
+	
 	/**
 	 * This is used to track what pieces exist and some basic attributes about them.
 	 * Most importantly it tracks a list of peers that claim to have a given piece.
@@ -1179,10 +1760,30 @@ public class DownloadManager
 		}
 		
 		/**
-		 * Provides a way for the DLQueue to prioritize rarer pieces.
+		 * Provides a way for the DLQueue to prioritize rarer pieces. While streaming, pieces inside
+		 * the read-ahead window come first and in index order. Otherwise pieces of higher file
+		 * priority come first.
 		 */
 		public int compareTo(Piece DLIn)
 		{
+			if(streaming)
+			{
+				int head = playhead;
+				boolean mine = index >= head && index < head + READ_AHEAD_PIECES;
+				boolean theirs = DLIn.index >= head && DLIn.index < head + READ_AHEAD_PIECES;
+				
+				if(mine && theirs)
+					return index - DLIn.index;
+				if(mine)
+					return -1;
+				if(theirs)
+					return 1;
+			}
+			
+			int priority = file_manager.getPiecePriority(DLIn.index).compareTo(file_manager.getPiecePriority(index));
+			if(priority != 0)
+				return priority;
+			
 			int difference = 0;
 			synchronized(DLIn.peersWhoHave)
 			{
@@ -0,0 +1,214 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+/**
+ * The HashFailureTracker attributes pieces that fail their SHA-1 check to the peers that sent them.
+ * It remembers which peer sent each block of a piece along with a CRC32 of the block. When a piece
+ * from a single peer fails, that peer is the culprit. When a piece assembled from several peers, or
+ * partly from blocks restored from disk, fails, the piece is marked for isolation: it is downloaded
+ * again from one trusted peer, and once that copy verifies the blocks of the failed attempt are
+ * compared against it to find who sent bad data.
+ *
+ * Every involvement in a failed piece earns a strike, a proven bad block earns BAN_STRIKES, and
+ * addresses that reach BAN_STRIKES are banned.
+ */
+public class HashFailureTracker
+{
+	//Tracker constants across all instances.
+	public static final int BAN_STRIKES = 3;
+
+	//Blocks of pieces currently being assembled, keyed by piece index then block offset.
+	private HashMap<Integer, HashMap<Integer, BlockSource>> currentBlocks;
+
+	//Blocks of failed attempts waiting for a verified copy to be compared against.
+	private HashMap<Integer, HashMap<Integer, BlockSource>> failedBlocks;
+
+	//Strikes and bans keyed by IP address.
+	private HashMap<String, Integer> strikes;
+	private HashSet<String> banned;
+
+	/**
+	 * Constructor for the HashFailureTracker.
+	 */
+	public HashFailureTracker()
+	{
+		currentBlocks = new HashMap<Integer, HashMap<Integer, BlockSource>>();
+		failedBlocks = new HashMap<Integer, HashMap<Integer, BlockSource>>();
+		strikes = new HashMap<String, Integer>();
+		banned = new HashSet<String>();
+	}
+
+	/**
+	 * Records that the peer at the given address supplied a block of a piece.
+	 *
+	 * @param index The index of the piece.
+	 * @param offset The offset of the block within the piece.
+	 * @param data The array holding the block.
+	 * @param dataOffset The position of the block within data.
+	 * @param length The length of the block.
+	 * @param ip The address of the peer that sent the block.
+	 */
+	public synchronized void recordBlock(int index, int offset, byte[] data, int dataOffset, int length, String ip)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data, dataOffset, length);
+
+		HashMap<Integer, BlockSource> blocks = currentBlocks.get(index);
+		if(blocks == null)
+		{
+			blocks = new HashMap<Integer, BlockSource>();
+			currentBlocks.put(index, blocks);
+		}
+
+		blocks.put(offset, new BlockSource(ip, crc.getValue()));
+	}
+
+	/**
+	 * Records that the given piece passed its hash check. If an earlier attempt failed, the blocks of
+	 * that attempt are compared against this one and the peers that sent differing blocks are banned.
+	 *
+	 * @param index The index of the verified piece.
+	 * @return The addresses that were banned as a result.
+	 */
+	public synchronized ArrayList<String> pieceVerified(int index)
+	{
+		ArrayList<String> newlyBanned = new ArrayList<String>();
+		HashMap<Integer, BlockSource> good = currentBlocks.remove(index);
+		HashMap<Integer, BlockSource> bad = failedBlocks.remove(index);
+
+		if(good == null || bad == null)
+			return newlyBanned;
+
+		for(Integer offset : bad.keySet())
+		{
+			BlockSource goodBlock = good.get(offset);
+			BlockSource badBlock = bad.get(offset);
+			if(goodBlock != null && goodBlock.crc != badBlock.crc)
+				addStrikes(badBlock.ip, BAN_STRIKES, newlyBanned);
+		}
+
+		return newlyBanned;
+	}
+
+	/**
+	 * Records that the given piece failed its hash check. A peer that sent every block of the piece
+	 * is banned outright. Otherwise each contributor receives a strike and the piece is marked for
+	 * isolation, including when a single peer sent only some blocks: the rest came from the resume
+	 * data or the journal, which may be what is corrupt.
+	 *
+	 * @param index The index of the failed piece.
+	 * @param blockCount The number of blocks in the piece.
+	 * @return The addresses that were banned as a result.
+	 */
+	public synchronized ArrayList<String> pieceFailed(int index, int blockCount)
+	{
+		ArrayList<String> newlyBanned = new ArrayList<String>();
+		HashMap<Integer, BlockSource> blocks = currentBlocks.remove(index);
+		if(blocks == null)
+			return newlyBanned;
+
+		HashSet<String> contributors = new HashSet<String>();
+		for(BlockSource block : blocks.values())
+			contributors.add(block.ip);
+
+		if(contributors.size() == 1 && blocks.size() >= blockCount)
+		{
+			addStrikes(contributors.iterator().next(), BAN_STRIKES, newlyBanned);
+			failedBlocks.remove(index);
+			return newlyBanned;
+		}
+
+		for(String ip : contributors)
+			addStrikes(ip, 1, newlyBanned);
+
+		//Keep the first failed attempt, which is the one being isolated.
+		if(!failedBlocks.containsKey(index))
+			failedBlocks.put(index, blocks);
+
+		return newlyBanned;
+	}
+
+	/**
+	 * Checks whether the given piece must be downloaded again from a single trusted peer.
+	 *
+	 * @param index The index of the piece.
+	 * @return True while a failed attempt of the piece awaits comparison.
+	 */
+	public synchronized boolean needsIsolation(int index)
+	{
+		return failedBlocks.containsKey(index);
+	}
+
+	/**
+	 * Checks whether the peer at the given address may be used to isolate a failed piece. A trusted
+	 * peer has no strikes and did not contribute to the failed attempt.
+	 *
+	 * @param index The index of the piece.
+	 * @param ip The address of the candidate peer.
+	 * @return True if the peer is trusted for the piece.
+	 */
+	public synchronized boolean isTrusted(int index, String ip)
+	{
+		if(strikes.containsKey(ip))
+			return false;
+
+		HashMap<Integer, BlockSource> blocks = failedBlocks.get(index);
+		if(blocks != null)
+			for(BlockSource block : blocks.values())
+				if(block.ip.equals(ip))
+					return false;
+
+		return true;
+	}
+
+	/**
+	 * Checks whether the given address is banned.
+	 *
+	 * @param ip The address of the peer.
+	 * @return True if the address is banned.
+	 */
+	public synchronized boolean isBanned(String ip)
+	{
+		return banned.contains(ip);
+	}
+
+	/**
+	 * Adds strikes to the given address and bans it once it reaches BAN_STRIKES.
+	 */
+	private void addStrikes(String ip, int count, ArrayList<String> newlyBanned)
+	{
+		Integer total = strikes.get(ip);
+		total = (total == null ? 0 : total) + count;
+		strikes.put(ip, total);
+
+		if(total >= BAN_STRIKES && banned.add(ip))
+			newlyBanned.add(ip);
+	}
+
+	/**
+	 * This is used to record who sent a block and a checksum of its contents.
+	 * I would make this a struct if I could.
+	 */
+	private class BlockSource
+	{
+		public String ip;
+		public long crc;
+
+		/**
+		 * A basic constructor for the BlockSource class that does initialization but no argument checking.
+		 */
+		public BlockSource(String ipIn, long crcIn)
+		{
+			ip = ipIn;
+			crc = crcIn;
+		}
+	}
+}
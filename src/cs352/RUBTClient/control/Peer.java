@@ -6,15 +6,17 @@
 package cs352.RUBTClient.control;
 
 import java.net.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Peer 
 {
-	public Long downloaded; //This should be reset by the maintenance thread.
-	public Long uploaded; //This should be reset by the maintenance thread.
+	public final AtomicLong downloaded; //Total bytes received from this peer. The Choker derives rates from it.
+	public final AtomicLong uploaded; //Total bytes sent to this peer. The Choker derives rates from it.
 	
 	private String ip;
 	private int port;
@@ -27,6 +29,9 @@ public class Peer
 	private boolean amInterested;	//True when I am interested in the remote peer
 	private boolean peerInterested;	//True when the remote peer is interested in me
 	private boolean disconnected;
+	private boolean snubbed;		//True when the remote peer stopped sending requested blocks
+	private long lastBlockTime;		//When the remote peer last sent me a block
+	private ArrayList<Integer> pendingHaves;	//Have messages queued until the next flush
 	
 	private Thread keepAliveThread;
 	private Thread listenerThread;
@@ -67,14 +72,17 @@ public class Peer
 		peerID = peerIDIn;
 		DM = DMIn;
 		//remotePeerID = remotePeerIDIn;
-		downloaded = new Long(0);
-		uploaded = new Long(0);
+		downloaded = new AtomicLong();
+		uploaded = new AtomicLong();
 		
 		amChoking = true;
 		peerChoking = true;
 		amInterested = false;
 		peerInterested = false;
 		disconnected = true;
+		snubbed = false;
+		lastBlockTime = 0;
+		pendingHaves = new ArrayList<Integer>();
 	}
 	
 	/**
@@ -83,6 +91,18 @@ public class Peer
 	 * @return True if the connection was successfull.
 	 */
 	public boolean connect(Socket sockIn)
+	{
+		return connect(sockIn, null);
+	}
+	
+	/**
+	 * Connects a peer to an incoming connection whose handshake may already have been read,
+	 * as the session listener does to learn which torrent the connection is for.
+	 * @param sockIn The socket for the incoming peer.
+	 * @param received The 68 byte handshake already read from the socket, or null to read it here.
+	 * @return True if the connection was successfull.
+	 */
+	public boolean connect(Socket sockIn, byte[] received)
 	{
 		//Create the socket for the peer.
 		if(sockIn == null)
@@ -100,12 +120,16 @@ public class Peer
 		try{fromPeer = new DataInputStream(peerSock.getInputStream());}
 		catch(Exception e){errorOut(e, "ERROR: Unable to get input stream.");}
 		
-		//Listen for a handshake
-		byte[] buffer = new byte[68];
-		try{fromPeer.readFully(buffer);}
-		catch(SocketTimeoutException e){disconnected = true; return false;}
-		catch(EOFException e){disconnected = true; return false;}
-		catch(IOException e){disconnected = true; return false;}
+		//Listen for a handshake, unless it was already read.
+		byte[] buffer = received;
+		if(buffer == null)
+		{
+			buffer = new byte[68];
+			try{fromPeer.readFully(buffer);}
+			catch(SocketTimeoutException e){disconnected = true; return false;}
+			catch(EOFException e){disconnected = true; return false;}
+			catch(IOException e){disconnected = true; return false;}
+		}
 		
 		//Check if the response is an acceptable handshaking message.
 		String protocol = "BitTorrent protocol";
@@ -166,14 +190,26 @@ public class Peer
 	 * @return Returns true if the connection was successful, else false.
 	 */
 	public boolean connect()
+	{
+		return connect(120000, 120000);
+	}
+	
+	/**
+	 * Connects to the remote peer with the given timeouts, so that an unreachable or silent peer
+	 * gives up its connection slot quickly.
+	 * @param connectTimeout Milliseconds to wait for the TCP connection.
+	 * @param handshakeTimeout Milliseconds to wait for the handshake reply.
+	 * @return True if the connection was successfull.
+	 */
+	public boolean connect(int connectTimeout, int handshakeTimeout)
 	{
 		//Create the socket for the peer.
 		peerSock = new Socket();
 		
 		//Connect the newly created socket. This way the connection can be closed mid-connection.
-		try{peerSock.connect(new InetSocketAddress(ip, port), 120000);;}
+		try{peerSock.connect(new InetSocketAddress(ip, port), connectTimeout);}
 		catch(Exception e){disconnected = true; return false;}
-		try{peerSock.setSoTimeout(120000);} 
+		try{peerSock.setSoTimeout(handshakeTimeout);} 
 		catch(SocketException e){errorOut(e, "ERROR: Unable to set socket timeout.");}
 		
 		//Create the input/output streams.
@@ -224,6 +260,10 @@ public class Peer
 					{
 						disconnected = false;
 						
+						//The handshake is done, so fall back to the regular read timeout.
+						try{peerSock.setSoTimeout(120000);} 
+						catch(SocketException e){disconnected = true; return false;}
+						
 						//Start the listener thread.
 						startListener();
 						
@@ -485,27 +525,49 @@ public class Peer
 	 */
 	public void have(int index)
 	{
+		queueHave(index);
+		flushHaves();
+	}
+	
+	/**
+	 * Queues a have message for the given index. Nothing is sent until flushHaves is called.
+	 */
+	public void queueHave(int index)
+	{
+		synchronized(pendingHaves)
+		{pendingHaves.add(index);}
+	}
+	
+	/**
+	 * Sends every queued have message to the peer in a single write.
+	 */
+	public void flushHaves()
+	{
+		//Take the queued indices.
+		ArrayList<Integer> indices;
+		synchronized(pendingHaves)
+		{
+			if(pendingHaves.isEmpty())
+				return;
+			
+			indices = pendingHaves;
+			pendingHaves = new ArrayList<Integer>();
+		}
+		
 		//Make sure I'm still connected.
 		if(disconnected)
 			return;
 		
-		//Assemble and send the have packet.
-		ByteArrayOutputStream byteOut= null;
-		try 
+		//Assemble the have packets back to back.
+		ByteBuffer message = ByteBuffer.allocate(indices.size() * 9);
+		for(int i = 0; i < indices.size(); i++)
 		{
-			byteOut = new ByteArrayOutputStream();
-			byteOut.write(0); //length
-			byteOut.write(0); //length
-			byteOut.write(0); //length
-			byteOut.write(5); //length
-			byteOut.write(4); //id
-			byteOut.write(toBytes(index));
-		} 
-		catch (Exception e) {errorOut(e, "ERROR: Unable to generate have message.");}
-				
-		byte[] message = byteOut.toByteArray();
+			message.putInt(5); //length
+			message.put((byte)4); //id
+			message.putInt(indices.get(i));
+		}
 				
-		try{toPeer.write(message);}
+		try{toPeer.write(message.array());}
 		catch(SocketException e){return;}
 		catch(Exception e){errorOut(e, "ERROR: Unable to send have message to peer.");}
 	}
@@ -546,6 +608,38 @@ public class Peer
 		catch(Exception e){errorOut(e, "ERROR: Unable to send request to peer.");}
 	}
 	
+	/**
+	 * Cancels an earlier request for the data at the given index beginning at an offset for the given length.
+	 */
+	public void cancel(int index, int begin, int length)
+	{	
+		//Make sure I'm still connected.
+		if(disconnected)
+			return;
+		
+		//Assemble and send the cancel packet.
+		ByteArrayOutputStream byteOut= null;
+		try 
+		{
+			byteOut = new ByteArrayOutputStream();
+			byteOut.write(0); //length
+			byteOut.write(0); //length
+			byteOut.write(0); //length
+			byteOut.write(13); //length
+			byteOut.write(8); //id
+			byteOut.write(toBytes(index));
+			byteOut.write(toBytes(begin));
+			byteOut.write(toBytes(length));
+		} 
+		catch (Exception e) {errorOut(e, "ERROR: Unable to generate cancel message.");}
+				
+		byte[] message = byteOut.toByteArray();
+				
+		try{toPeer.write(message);}
+		catch(SocketException e){return;}
+		catch(Exception e){errorOut(e, "ERROR: Unable to send cancel to peer.");}
+	}
+	
 	/**
 	 * Sends the given data at the given index beginning at an offset.
 	 */
@@ -606,6 +700,24 @@ public class Peer
 		catch(Exception e){errorOut(e, "ERROR: Unable to send bitfield to peer.");}
 	}
 	
+	/**
+	 *  Gets the IP address of the remote peer.
+	 * @return The IP address this peer was created with.
+	 */
+	public String getIP()
+	{
+		return ip;
+	}
+	
+	/**
+	 *  Gets the port of the remote peer.
+	 * @return The port this peer was created with.
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+	
 	/**
 	 *  Gets the amChoking value.
 	 * @return True when this peer has choked the remote peer.
@@ -642,6 +754,42 @@ public class Peer
 		return peerInterested;
 	}
 	
+	/**
+	 * Records that the peer has just sent me a block, which clears any snub.
+	 * @param now The time of receipt, from the clock of the download manager.
+	 */
+	public synchronized void blockReceived(long now)
+	{
+		lastBlockTime = now;
+		snubbed = false;
+	}
+	
+	/**
+	 *  Gets the time the last block was received from the peer.
+	 * @return The time in milliseconds, or 0 if no block has been received.
+	 */
+	public synchronized long getLastBlockTime()
+	{
+		return lastBlockTime;
+	}
+	
+	/**
+	 * Records whether the peer is snubbing me.
+	 */
+	public synchronized void setSnubbed(boolean snubbedIn)
+	{
+		snubbed = snubbedIn;
+	}
+	
+	/**
+	 *  Gets the snubbed value.
+	 * @return True when the remote peer has stopped sending the blocks I requested.
+	 */
+	public synchronized boolean getSnubbed()
+	{
+		return snubbed;
+	}
+	
 	/**
 	 *  Gets the disconnected value.
 	 * @return True when this peer has been disconnected from the remote peer.
@@ -704,6 +852,14 @@ public class Peer
 			return false;
 	}
 	
+	/**
+	 * A hash code consistent with equals so Peers can be used as map keys.
+	 */
+	public int hashCode()
+	{
+		return ip.hashCode() * 31 + port;
+	}
+	
 	/**
 	 * Provides a way for the peerQueue to prioritize better peers.
 	 */
@@ -712,25 +868,9 @@ public class Peer
 		int difference = 0;
 
 		if(!DM.download_complete)
-		{
-			synchronized(downloaded)
-			{
-				synchronized(peer.downloaded)
-				{
-					difference =  (int)(downloaded - peer.downloaded);
-				}
-			}
-		}
+			difference = Long.signum(downloaded.get() - peer.downloaded.get());
 		else
-		{
-			synchronized(uploaded)
-			{
-				synchronized(peer.uploaded)
-				{
-					difference =  (int)(uploaded - peer.uploaded);
-				}
-			}
-		}
+			difference = Long.signum(uploaded.get() - peer.uploaded.get());
 		
 		return difference;
 	}
@@ -0,0 +1,409 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * The PeerCandidatePool remembers every peer address a torrent has learned, keyed by "ip:port",
+ * together with what is known about it: when it was last listed or connected, how often connecting
+ * to it worked and failed, how quickly it answered and how much data moved over its connections.
+ * Tracker responses are merged in, so an address keeps its history across re-announces.
+ *
+ * Candidates that have not been seen for MAX_AGE, or that failed MAX_FAILURES times in a row, are
+ * evicted. Beyond MAX_CANDIDATES the candidates with the lowest score go first. Candidates that are
+ * being connected to or are connected are never evicted.
+ *
+ * The pool is saved next to the resume data of its download, so that a restarted torrent can go
+ * back to its best peers before the tracker answers. The pool is not thread safe; the
+ * ConnectionManager guards it with its own lock.
+ */
+public class PeerCandidatePool
+{
+	//Pool limits.
+	public static final int MAX_CANDIDATES = 500;
+	public static final long MAX_AGE = 6L * 60 * 60 * 1000; //In milliseconds.
+	public static final int MAX_FAILURES = 6; //Consecutive failed attempts before an address is dropped.
+
+	//Saved pool format.
+	public static final int MAGIC = 0x52554250; //"RUBP"
+	public static final short VERSION = 1;
+	private static final int MAX_SAVED = 100;
+
+	private final byte[] infoHash;
+	private final HashMap<String, Candidate> candidates; //Every known address, by "ip:port".
+	private final PriorityQueue<Candidate> ready; //Candidates that may be tried now, best first.
+	private final ArrayList<Candidate> backingOff; //Candidates waiting for their nextAttempt.
+
+	/**
+	 * Constructor for an empty pool.
+	 *
+	 * @param infoHash The info hash of the torrent, recorded when the pool is saved.
+	 */
+	public PeerCandidatePool(byte[] infoHash)
+	{
+		this.infoHash = infoHash.clone();
+		candidates = new HashMap<String, Candidate>();
+		ready = new PriorityQueue<Candidate>(16, new Comparator<Candidate>()
+		{
+			public int compare(Candidate a, Candidate b)
+			{return Integer.compare(b.score(), a.score());}
+		});
+		backingOff = new ArrayList<Candidate>();
+	}
+
+	/**
+	 * Adds an address, or refreshes it if already known. A refreshed address keeps its history, and
+	 * takes on the given source if that ranks higher.
+	 *
+	 * @param ip The address of the peer.
+	 * @param port The port of the peer.
+	 * @param source Where the address came from.
+	 * @param now The current time in milliseconds.
+	 */
+	public void add(String ip, int port, ConnectionManager.Source source, long now)
+	{
+		String key = key(ip, port);
+		Candidate candidate = candidates.get(key);
+		if(candidate == null)
+		{
+			candidate = new Candidate(ip, port, source);
+			candidate.lastSeen = now;
+			candidates.put(key, candidate);
+			ready.add(candidate);
+			return;
+		}
+
+		candidate.lastSeen = now;
+		if(source.rank > candidate.source.rank)
+		{
+			//Re-queue the candidate so its place reflects the new score.
+			boolean queued = ready.remove(candidate);
+			candidate.source = source;
+			if(queued)
+				ready.add(candidate);
+		}
+	}
+
+	/**
+	 * Moves the candidates whose backoff has passed back to the ready queue.
+	 *
+	 * @param now The current time in milliseconds.
+	 */
+	public void promote(long now)
+	{
+		for(Iterator<Candidate> it = backingOff.iterator(); it.hasNext();)
+		{
+			Candidate candidate = it.next();
+			if(candidate.nextAttempt <= now)
+			{
+				it.remove();
+				ready.add(candidate);
+			}
+		}
+	}
+
+	/**
+	 * @return True if a candidate may be tried now.
+	 */
+	public boolean hasReady()
+	{
+		return !ready.isEmpty();
+	}
+
+	/**
+	 * Takes the best ready candidate and marks it busy.
+	 *
+	 * @return The candidate, or null if none is ready.
+	 */
+	public Candidate poll()
+	{
+		Candidate candidate = ready.poll();
+		if(candidate != null)
+			candidate.busy = true;
+		return candidate;
+	}
+
+	/**
+	 * @return The candidate with the given address, or null.
+	 */
+	public Candidate get(String ip, int port)
+	{
+		return candidates.get(key(ip, port));
+	}
+
+	/**
+	 * Records a successful connection to a busy candidate.
+	 *
+	 * @param latency The time taken to connect and handshake, in milliseconds.
+	 */
+	public void succeeded(Candidate candidate, long latency, long now)
+	{
+		candidate.successes++;
+		candidate.consecutiveFailures = 0;
+		candidate.latency = latency;
+		candidate.lastSeen = now;
+		candidate.connected = true;
+	}
+
+	/**
+	 * Records a failed attempt on a busy candidate and backs it off, or drops it once it has failed
+	 * MAX_FAILURES times in a row.
+	 *
+	 * @param backoff How long to wait before trying it again, in milliseconds.
+	 */
+	public void failed(Candidate candidate, long backoff, long now)
+	{
+		candidate.busy = false;
+		candidate.failures++;
+		candidate.consecutiveFailures++;
+		if(candidate.consecutiveFailures >= MAX_FAILURES)
+		{
+			candidates.remove(key(candidate.ip, candidate.port));
+			return;
+		}
+
+		candidate.nextAttempt = now + backoff;
+		backingOff.add(candidate);
+	}
+
+	/**
+	 * Records the end of a connection to a connected candidate, crediting it with the data that moved,
+	 * and lets it be tried again after the given pause.
+	 *
+	 * @param downloaded Bytes received from the peer over the connection.
+	 * @param uploaded Bytes sent to the peer over the connection.
+	 * @param pause How long to wait before connecting again, in milliseconds.
+	 */
+	public void closed(Candidate candidate, long downloaded, long uploaded, long pause, long now)
+	{
+		candidate.busy = false;
+		candidate.connected = false;
+		candidate.downloaded += downloaded;
+		candidate.uploaded += uploaded;
+		candidate.lastSeen = now;
+		candidate.nextAttempt = now + pause;
+		backingOff.add(candidate);
+	}
+
+	/**
+	 * Forgets a candidate, such as one the torrent refused to connect to.
+	 */
+	public void remove(Candidate candidate)
+	{
+		candidates.remove(key(candidate.ip, candidate.port));
+		ready.remove(candidate);
+		backingOff.remove(candidate);
+	}
+
+	/**
+	 * Evicts idle candidates that are too old, then the idle candidates with the lowest score while
+	 * the pool holds more than MAX_CANDIDATES.
+	 *
+	 * @param now The current time in milliseconds.
+	 */
+	public void evict(long now)
+	{
+		ArrayList<Candidate> idle = new ArrayList<Candidate>();
+		for(Iterator<Candidate> it = candidates.values().iterator(); it.hasNext();)
+		{
+			Candidate candidate = it.next();
+			if(candidate.busy)
+				continue;
+
+			if(now - candidate.lastSeen > MAX_AGE)
+			{
+				it.remove();
+				ready.remove(candidate);
+				backingOff.remove(candidate);
+			}
+			else
+				idle.add(candidate);
+		}
+
+		int excess = candidates.size() - MAX_CANDIDATES;
+		if(excess <= 0)
+			return;
+
+		Candidate[] worst = idle.toArray(new Candidate[idle.size()]);
+		Arrays.sort(worst, new Comparator<Candidate>()
+		{
+			public int compare(Candidate a, Candidate b)
+			{return Integer.compare(a.score(), b.score());}
+		});
+		for(int i = 0; i < excess && i < worst.length; i++)
+			remove(worst[i]);
+	}
+
+	/**
+	 * @return The number of known addresses.
+	 */
+	public int size()
+	{
+		return candidates.size();
+	}
+
+	/**
+	 * Reads a saved pool. Saved candidates keep their history and are all ready to be tried.
+	 * A missing file, or one saved for another torrent, gives an empty pool.
+	 *
+	 * @param file The saved pool.
+	 * @param infoHash The info hash of the torrent.
+	 * @return The pool.
+	 */
+	public static PeerCandidatePool read(File file, byte[] infoHash)
+	{
+		PeerCandidatePool pool = new PeerCandidatePool(infoHash);
+		if(!file.exists())
+			return pool;
+
+		try
+		{
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				if(dis.readInt() != MAGIC || dis.readShort() != VERSION)
+					return pool;
+				byte[] savedHash = new byte[20];
+				dis.readFully(savedHash);
+				if(!Arrays.equals(savedHash, infoHash))
+					return pool;
+
+				int count = dis.readInt();
+				for(int i = 0; i < count; i++)
+				{
+					Candidate candidate = new Candidate(dis.readUTF(), dis.readUnsignedShort(), ConnectionManager.Source.SAVED);
+					candidate.successes = dis.readInt();
+					candidate.failures = dis.readInt();
+					candidate.latency = dis.readLong();
+					candidate.downloaded = dis.readLong();
+					candidate.uploaded = dis.readLong();
+					candidate.lastSeen = dis.readLong();
+
+					String key = key(candidate.ip, candidate.port);
+					if(!pool.candidates.containsKey(key))
+					{
+						pool.candidates.put(key, candidate);
+						pool.ready.add(candidate);
+					}
+				}
+			}
+			finally{dis.close();}
+		}
+		catch(IOException e){System.err.println("ERROR: Unable to read the saved peers. " + e.getMessage());}
+
+		pool.evict(System.currentTimeMillis());
+		return pool;
+	}
+
+	/**
+	 * Saves the MAX_SAVED best candidates that ever connected. The pool is written to a temporary file
+	 * which then replaces the target, so a crash never leaves a half-written file behind.
+	 *
+	 * @param file Where to save the pool.
+	 * @throws IOException If the file could not be written.
+	 */
+	public void write(File file) throws IOException
+	{
+		Candidate[] best = candidates.values().toArray(new Candidate[candidates.size()]);
+		Arrays.sort(best, new Comparator<Candidate>()
+		{
+			public int compare(Candidate a, Candidate b)
+			{return Integer.compare(b.score(), a.score());}
+		});
+
+		ArrayList<Candidate> saved = new ArrayList<Candidate>();
+		for(int i = 0; i < best.length && saved.size() < MAX_SAVED; i++)
+			if(best[i].successes > 0)
+				saved.add(best[i]);
+
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try
+		{
+			dos.writeInt(MAGIC);
+			dos.writeShort(VERSION);
+			dos.write(infoHash, 0, 20);
+			dos.writeInt(saved.size());
+			for(int i = 0; i < saved.size(); i++)
+			{
+				Candidate candidate = saved.get(i);
+				dos.writeUTF(candidate.ip);
+				dos.writeShort(candidate.port);
+				dos.writeInt(candidate.successes);
+				dos.writeInt(candidate.failures);
+				dos.writeLong(candidate.latency);
+				dos.writeLong(candidate.downloaded);
+				dos.writeLong(candidate.uploaded);
+				dos.writeLong(candidate.lastSeen);
+			}
+		}
+		finally{dos.close();}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String key(String ip, int port)
+	{
+		return ip + ":" + port;
+	}
+
+	/**
+	 * A peer address and what is known about it. A candidate is in at most one of ready and
+	 * backingOff, and in neither while it is busy being connected to or connected.
+	 */
+	static class Candidate
+	{
+		final String ip;
+		final int port;
+		ConnectionManager.Source source;
+		int successes;
+		int failures;
+		int consecutiveFailures;
+		long latency; //In milliseconds, of the last successful connection, or -1 if unknown.
+		long downloaded; //Bytes received over all past connections.
+		long uploaded; //Bytes sent over all past connections.
+		long lastSeen; //When the address was last listed or connected.
+		long nextAttempt; //When a backed off candidate may be tried again.
+		boolean busy;
+		boolean connected;
+
+		Candidate(String ip, int port, ConnectionManager.Source source)
+		{
+			this.ip = ip;
+			this.port = port;
+			this.source = source;
+			latency = -1;
+		}
+
+		/**
+		 * @return Higher for candidates more likely to give a quick, productive connection.
+		 */
+		int score()
+		{
+			int score = source.rank * 100 + Math.min(successes, 10) * 100 - Math.min(failures, 10) * 150;
+			score += (int)Math.min((downloaded + uploaded) >> 20, 20) * 50; //Per MiB moved.
+			if(latency >= 0)
+				score -= (int)Math.min(latency, 5000) / 50;
+			return score;
+		}
+	}
+}
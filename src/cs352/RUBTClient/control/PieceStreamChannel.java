@@ -0,0 +1,141 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+import cs352.RUBTClient.model.FileManager;
+import cs352.RUBTClient.utils.SessionInfo;
+
+/**
+ * A read-only channel over the file being downloaded, used to play media before the download is
+ * complete. Every read moves the DownloadManager's playhead to the piece being read and blocks until
+ * that piece has been verified.
+ */
+public class PieceStreamChannel implements SeekableByteChannel
+{
+	//Channel constants across all instances.
+	private static final int WAIT_SLICE = 1000; //In milliseconds.
+	
+	private FileManager file_manager;
+	private DownloadManager DM;
+	private SessionInfo info;
+	
+	private long position;
+	private volatile boolean open;
+	
+	/**
+	 * Constructor for PieceStreamChannel. Use DownloadManager.openStream() to obtain one.
+	 * 
+	 * @param fileManagerIn The file manager holding the download.
+	 * @param DMIn The download manager to report the playhead to.
+	 */
+	PieceStreamChannel(FileManager fileManagerIn, DownloadManager DMIn)
+	{
+		file_manager = fileManagerIn;
+		DM = DMIn;
+		info = DMIn.getSessionInfo();
+		position = 0;
+		open = true;
+	}
+	
+	/**
+	 * Reads bytes at the current position, waiting for the piece that holds them if needed.
+	 * 
+	 * @param dst The buffer to read into.
+	 * @return The number of bytes read, or -1 at the end of the file.
+	 */
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		if(!open)
+			throw new ClosedChannelException();
+		if(position >= info.file_length())
+			return -1;
+		if(!dst.hasRemaining())
+			return 0;
+		
+		//Tell the picker where playback is, then wait for the piece.
+		int index = (int)(position / info.piece_length());
+		DM.setPlayhead(index);
+		
+		try
+		{
+			while(!file_manager.awaitPiece(index, WAIT_SLICE))
+				if(!open)
+					throw new ClosedChannelException();
+		}
+		catch(InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+		
+		int read = file_manager.readData(position, dst);
+		if(read > 0)
+			position += read;
+		return read;
+	}
+	
+	/**
+	 * Gets an InputStream view of this channel.
+	 * 
+	 * @return An InputStream reading from the current position.
+	 */
+	public InputStream asInputStream()
+	{
+		return Channels.newInputStream(this);
+	}
+	
+	public int write(ByteBuffer src) throws IOException
+	{
+		throw new NonWritableChannelException();
+	}
+	
+	public synchronized long position() throws IOException
+	{
+		if(!open)
+			throw new ClosedChannelException();
+		return position;
+	}
+	
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException
+	{
+		if(!open)
+			throw new ClosedChannelException();
+		if(newPosition < 0)
+			throw new IllegalArgumentException();
+		
+		position = newPosition;
+		return this;
+	}
+	
+	public long size() throws IOException
+	{
+		if(!open)
+			throw new ClosedChannelException();
+		return info.file_length();
+	}
+	
+	public SeekableByteChannel truncate(long size) throws IOException
+	{
+		throw new NonWritableChannelException();
+	}
+	
+	public boolean isOpen()
+	{
+		return open;
+	}
+	
+	public void close() throws IOException
+	{
+		open = false;
+	}
+}
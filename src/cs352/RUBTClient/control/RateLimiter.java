@@ -0,0 +1,86 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+/**
+ * A token bucket that limits a byte rate. Every caller that is about to move bytes acquires them
+ * first, and is put to sleep for as long as it takes the bucket to pay off what it borrowed. The
+ * bucket holds at most one second worth of bytes, so an idle limiter allows a short burst and
+ * nothing more. A rate of 0 means unlimited, and acquire() then returns at once.
+ *
+ * One limiter is shared by every torrent of a session, so the rate is a global limit.
+ */
+public class RateLimiter
+{
+	private volatile long rate; //In bytes per second, 0 for unlimited.
+	private double available; //Bytes that may be moved right now. Negative while callers are paying off a debt.
+	private long lastRefill; //In nanoseconds.
+
+	/**
+	 * @param rate The limit in bytes per second, or 0 for unlimited.
+	 */
+	public RateLimiter(long rate)
+	{
+		this.rate = Math.max(0, rate);
+		this.available = this.rate;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Changes the limit. Bytes already acquired are not affected.
+	 *
+	 * @param rate The limit in bytes per second, or 0 for unlimited.
+	 */
+	public synchronized void setRate(long rate)
+	{
+		refill();
+		this.rate = Math.max(0, rate);
+		available = Math.min(available, this.rate);
+	}
+
+	/**
+	 * @return The limit in bytes per second, or 0 if unlimited.
+	 */
+	public long getRate()
+	{
+		return rate;
+	}
+
+	/**
+	 * Takes the given number of bytes from the bucket, sleeping until the bucket has refilled enough
+	 * to cover them.
+	 *
+	 * @param bytes The number of bytes about to be moved.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void acquire(int bytes) throws InterruptedException
+	{
+		long wait = 0;
+		synchronized(this)
+		{
+			if(rate == 0)
+				return;
+
+			refill();
+			available -= bytes;
+			if(available < 0)
+				wait = (long)Math.ceil(-available * 1000 / rate);
+		}
+
+		//Sleep outside the lock so other callers can queue up their own debt meanwhile.
+		if(wait > 0)
+			Thread.sleep(wait);
+	}
+
+	/**
+	 * Adds the bytes earned since the last refill, up to one second worth.
+	 */
+	private void refill()
+	{
+		long now = System.nanoTime();
+		available = Math.min(rate, available + (now - lastRefill) * (double)rate / 1000000000L);
+		lastRefill = now;
+	}
+}
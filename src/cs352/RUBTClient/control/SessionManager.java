@@ -0,0 +1,400 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The SessionManager runs any number of torrents side by side. It owns the single listening port
+ * of the client and routes every incoming connection to the torrent named by the info hash in its
+ * handshake, so the number of torrents is no longer bounded by the ports in 6881-6889. It also
+ * holds the upload and download rate limits shared by all of its torrents, and the connection
+ * manager that opens their outbound connections within session wide limits.
+ *
+ * At most maxActive torrents run at once. Torrents started beyond that wait in a queue and are
+ * started in order as running torrents are removed. The cap is read from the
+ * rubt.max_active_torrents system property unless given explicitly.
+ *
+ * The piece hash cache and the hashing pool used by rechecks are already shared by every torrent
+ * in the JVM, so the session does not need to hold them.
+ */
+public class SessionManager
+{
+	//Session Manager constants across all instances.
+	public static final String MAX_ACTIVE_PROPERTY = "rubt.max_active_torrents";
+	public static final int DEFAULT_MAX_ACTIVE = 8;
+	private static final int FIRST_PORT = 6881;
+	private static final int LAST_PORT = 6889;
+	private static final int HANDSHAKE_LENGTH = 68;
+	private static final int HANDSHAKE_TIMEOUT = 10000; //In milliseconds.
+	private static final int HANDSHAKE_THREADS = 4;
+	private static final String PROTOCOL = "BitTorrent protocol";
+
+	private final int maxActive;
+	private final RateLimiter uploadLimiter;
+	private final RateLimiter downloadLimiter;
+	private final ConnectionManager connections;
+
+	//Torrents. Both structures are guarded by the session itself.
+	private final HashMap<ByteBuffer, DownloadManager> active; //Running torrents by info hash.
+	private final LinkedHashMap<DownloadManager, Boolean> waiting; //Queued torrents and their resume flags, in order.
+
+	//Listener fields
+	private final ServerSocket listenerSocket;
+	private final ExecutorService handshakePool;
+	private Thread listenerThread;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor for a SessionManager whose active torrent cap is read from the system properties.
+	 *
+	 * @throws IOException If no port between 6881 and 6889 could be bound.
+	 */
+	public SessionManager() throws IOException
+	{
+		this(getConfiguredMaxActive());
+	}
+
+	/**
+	 * Constructor for a SessionManager. It binds the listening port and starts accepting connections.
+	 *
+	 * @param maxActive The number of torrents allowed to run at once.
+	 * @throws IOException If no port between 6881 and 6889 could be bound.
+	 */
+	public SessionManager(int maxActive) throws IOException
+	{
+		this.maxActive = Math.max(1, maxActive);
+		uploadLimiter = new RateLimiter(0);
+		downloadLimiter = new RateLimiter(0);
+		connections = new ConnectionManager();
+		active = new HashMap<ByteBuffer, DownloadManager>();
+		waiting = new LinkedHashMap<DownloadManager, Boolean>();
+		closed = false;
+
+		listenerSocket = bindListener();
+
+		//Handshakes are read off the accept thread, so a slow peer never holds up the others.
+		handshakePool = Executors.newFixedThreadPool(HANDSHAKE_THREADS, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "RUBT-handshake");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		startListener();
+	}
+
+	/**
+	 * Creates a download manager that belongs to this session. It is not started.
+	 *
+	 * @param torrent_file_path The .torrent file.
+	 * @param download_file_path Where to save the download.
+	 * @return The new download manager.
+	 */
+	public DownloadManager createTorrent(String torrent_file_path, String download_file_path)
+	{
+		return new DownloadManager(torrent_file_path, download_file_path, null, this);
+	}
+
+	/**
+	 * Starts the given torrent if a slot is free, or queues it until one is. A torrent that is
+	 * started right away is started on the calling thread.
+	 *
+	 * @param dm A download manager created for this session.
+	 * @param resume Passed on to DownloadManager.start.
+	 * @return True if the torrent was started, false if it was queued.
+	 */
+	public boolean startTorrent(DownloadManager dm, boolean resume)
+	{
+		synchronized(this)
+		{
+			if(closed || active.containsValue(dm) || waiting.containsKey(dm))
+				return false;
+
+			if(active.size() >= maxActive || active.containsKey(dm.getInfoHash()))
+			{
+				waiting.put(dm, resume);
+				return false;
+			}
+
+			active.put(dm.getInfoHash(), dm);
+		}
+
+		dm.start(resume);
+		return true;
+	}
+
+	/**
+	 * Stops the given torrent if it is running, or takes it off the queue if it is waiting, then
+	 * starts the next waiting torrent if a slot came free.
+	 *
+	 * @param dm The torrent to remove.
+	 */
+	public void removeTorrent(DownloadManager dm)
+	{
+		boolean wasActive = false;
+		synchronized(this)
+		{
+			waiting.remove(dm);
+			if(active.get(dm.getInfoHash()) == dm)
+			{
+				active.remove(dm.getInfoHash());
+				wasActive = true;
+			}
+		}
+
+		if(wasActive)
+			dm.shutdown();
+
+		startWaiting();
+	}
+
+	/**
+	 * @return The number of torrents running.
+	 */
+	public synchronized int getActiveCount()
+	{
+		return active.size();
+	}
+
+	/**
+	 * @return The number of torrents waiting for a free slot.
+	 */
+	public synchronized int getWaitingCount()
+	{
+		return waiting.size();
+	}
+
+	/**
+	 * @return The port every torrent of the session announces and listens on.
+	 */
+	public int getPort()
+	{
+		return listenerSocket.getLocalPort();
+	}
+
+	/**
+	 * @return The limiter every torrent acquires from before sending a block.
+	 */
+	public RateLimiter getUploadLimiter()
+	{
+		return uploadLimiter;
+	}
+
+	/**
+	 * @return The limiter every torrent acquires from after receiving a block.
+	 */
+	public RateLimiter getDownloadLimiter()
+	{
+		return downloadLimiter;
+	}
+
+	/**
+	 * @return The connection manager every torrent of the session connects through.
+	 */
+	public ConnectionManager getConnectionManager()
+	{
+		return connections;
+	}
+
+	/**
+	 * Sets the global upload limit.
+	 *
+	 * @param bytesPerSecond The limit, or 0 for unlimited.
+	 */
+	public void setUploadRate(long bytesPerSecond)
+	{
+		uploadLimiter.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Sets the global download limit.
+	 *
+	 * @param bytesPerSecond The limit, or 0 for unlimited.
+	 */
+	public void setDownloadRate(long bytesPerSecond)
+	{
+		downloadLimiter.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Stops every running torrent, forgets the waiting ones and closes the listening port.
+	 */
+	public void shutdown()
+	{
+		ArrayList<DownloadManager> running;
+		synchronized(this)
+		{
+			closed = true;
+			running = new ArrayList<DownloadManager>(active.values());
+			active.clear();
+			waiting.clear();
+		}
+
+		//Close the server socket, which ends the listener thread.
+		try{listenerSocket.close();}
+		catch(IOException e){;}
+		listenerThread.interrupt();
+		handshakePool.shutdownNow();
+
+		for(int i = 0; i < running.size(); i++)
+			running.get(i).shutdown();
+		connections.shutdown();
+	}
+
+	/**
+	 * Starts waiting torrents, in order, while slots are free. Each is started on its own thread,
+	 * since starting a torrent waits on its tracker.
+	 */
+	private void startWaiting()
+	{
+		while(true)
+		{
+			final DownloadManager next;
+			final boolean resume;
+			synchronized(this)
+			{
+				if(closed || active.size() >= maxActive)
+					return;
+
+				//Take the first waiting torrent whose info hash is not already running.
+				DownloadManager found = null;
+				boolean foundResume = false;
+				for(Iterator<Map.Entry<DownloadManager, Boolean>> it = waiting.entrySet().iterator(); it.hasNext(); )
+				{
+					Map.Entry<DownloadManager, Boolean> entry = it.next();
+					if(active.containsKey(entry.getKey().getInfoHash()))
+						continue;
+					found = entry.getKey();
+					foundResume = entry.getValue();
+					it.remove();
+					break;
+				}
+
+				if(found == null)
+					return;
+
+				next = found;
+				resume = foundResume;
+				active.put(next.getInfoHash(), next);
+			}
+
+			new Thread(new Runnable()
+			{
+				public void run()
+				{next.start(resume);}
+			}).start();
+		}
+	}
+
+	/**
+	 * Starts the thread that accepts connections on the session port.
+	 */
+	private void startListener()
+	{
+		//Construct the listener thread.
+		listenerThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while(!closed)
+				{
+					final Socket socket;
+					try{socket = listenerSocket.accept();}
+					catch(IOException e){return;}
+
+					try
+					{
+						handshakePool.execute(new Runnable()
+						{
+							public void run()
+							{route(socket);}
+						});
+					}
+					catch(Exception e){close(socket);}
+				}
+			}
+		});
+
+		listenerThread.start();
+	}
+
+	/**
+	 * Reads the handshake of an incoming connection and hands the connection to the running torrent
+	 * named by its info hash. Connections for unknown torrents are closed.
+	 *
+	 * @param socket The accepted connection.
+	 */
+	private void route(Socket socket)
+	{
+		byte[] handshake = new byte[HANDSHAKE_LENGTH];
+		try
+		{
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+			new DataInputStream(socket.getInputStream()).readFully(handshake);
+		}
+		catch(IOException e){close(socket); return;}
+
+		//Check the protocol string before trusting the info hash.
+		if(handshake[0] != PROTOCOL.length())
+		{close(socket); return;}
+		for(int i = 0; i < PROTOCOL.length(); i++)
+			if(handshake[1 + i] != PROTOCOL.charAt(i))
+			{close(socket); return;}
+
+		ByteBuffer infoHash = ByteBuffer.wrap(Arrays.copyOfRange(handshake, 28, 48));
+		DownloadManager dm;
+		synchronized(this)
+		{dm = active.get(infoHash);}
+
+		if(dm == null || !dm.acceptPeer(socket, handshake))
+			close(socket);
+	}
+
+	/**
+	 * Binds the first free port between 6881 and 6889.
+	 */
+	private static ServerSocket bindListener() throws IOException
+	{
+		for(int port = FIRST_PORT; port <= LAST_PORT; port++)
+		{
+			try{return new ServerSocket(port);}
+			catch(IOException e){;}
+		}
+
+		throw new IOException("No port between " + FIRST_PORT + " and " + LAST_PORT + " is available.");
+	}
+
+	/**
+	 * @return The active torrent cap from the system properties, or DEFAULT_MAX_ACTIVE.
+	 */
+	private static int getConfiguredMaxActive()
+	{
+		try{return Integer.parseInt(System.getProperty(MAX_ACTIVE_PROPERTY, Integer.toString(DEFAULT_MAX_ACTIVE)));}
+		catch(NumberFormatException e){return DEFAULT_MAX_ACTIVE;}
+	}
+
+	private static void close(Socket socket)
+	{
+		try{socket.close();}
+		catch(IOException e){;}
+	}
+}
@@ -0,0 +1,260 @@
+package cs352.RUBTClient.control;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+import cs352.RUBTClient.resources.BencodeReader;
+import cs352.RUBTClient.resources.BencodeReader.Token;
+import cs352.RUBTClient.resources.BencodingException;
+
+/** TrackerResponse holds the decoded answer to a single announce:
+ * interval, min interval, complete/incomplete counts, failure reason,
+ * warning message and the peer list as "ip:port" strings.
+ *
+ * The response is parsed in one pass straight from the bytes returned by the tracker,
+ * without building a String or a decoded tree.  Every instance is immutable, so announces
+ * for several torrents can be decoded at the same time.
+ * @author Yuriy Garnaev
+ *
+ */
+public final class TrackerResponse {
+
+	//Keys of the announce response dictionary.
+	private static final byte[] KEY_FAILURE_REASON = bytes("failure reason");
+	private static final byte[] KEY_WARNING_MESSAGE = bytes("warning message");
+	private static final byte[] KEY_INTERVAL = bytes("interval");
+	private static final byte[] KEY_MIN_INTERVAL = bytes("min interval");
+	private static final byte[] KEY_COMPLETE = bytes("complete");
+	private static final byte[] KEY_INCOMPLETE = bytes("incomplete");
+	private static final byte[] KEY_PEERS = bytes("peers");
+	private static final byte[] KEY_IP = bytes("ip");
+	private static final byte[] KEY_PORT = bytes("port");
+
+	private final String failureReason;
+	private final String warningMessage;
+	private final int interval;
+	private final int minInterval;
+	private final int complete;
+	private final int incomplete;
+	private final String[] peers;
+
+	private TrackerResponse(String failureReason, String warningMessage, int interval, int minInterval,
+			int complete, int incomplete, String[] peers){
+		this.failureReason = failureReason;
+		this.warningMessage = warningMessage;
+		this.interval = interval;
+		this.minInterval = minInterval;
+		this.complete = complete;
+		this.incomplete = incomplete;
+		this.peers = peers;
+	}
+
+	/**The human readable reason the announce failed, or null if it succeeded.
+	 * When set, none of the other values are meaningful.
+	 */
+	public String getFailureReason(){
+		return failureReason;
+	}
+
+	/**A warning the tracker attached to a successful announce, or null.
+	 */
+	public String getWarningMessage(){
+		return warningMessage;
+	}
+
+	/**The number of seconds to wait before the next regular announce, or -1 if not given.
+	 */
+	public int getInterval(){
+		return interval;
+	}
+
+	/**The minimum number of seconds between announces, or -1 if not given.
+	 */
+	public int getMinInterval(){
+		return minInterval;
+	}
+
+	/**The number of seeders, or -1 if not given.
+	 */
+	public int getComplete(){
+		return complete;
+	}
+
+	/**The number of leechers, or -1 if not given.
+	 */
+	public int getIncomplete(){
+		return incomplete;
+	}
+
+	/**The peers returned by the tracker as "ip:port" strings.
+	 * @return a copy of the peer list; empty, never null.
+	 */
+	public String[] getPeers(){
+		return peers.clone();
+	}
+
+	/**parse decodes an announce response in a single pass.  Both the compact
+	 * peer string and the list of peer dictionaries are understood; unknown keys are skipped.
+	 *
+	 * @param response - bytes returned by the tracker
+	 * @return the decoded response
+	 * @throws BencodingException if the response is not a well formed bencoded dictionary
+	 */
+	public static TrackerResponse parse(byte[] response) throws BencodingException{
+		if (response == null)
+			throw new BencodingException("Empty tracker response.");
+		return new Parser(response).parseResponse();
+	}
+
+	/**Builds the response to a UDP announce, which carries no warning and no min interval.
+	 */
+	static TrackerResponse fromUdp(int interval, int leechers, int seeders, String[] peers){
+		return new TrackerResponse(null, null, interval, -1, seeders, leechers, peers);
+	}
+
+	/**Builds a response holding only a failure reason, as a UDP tracker's error answer does.
+	 */
+	static TrackerResponse failure(String reason){
+		return new TrackerResponse(reason, null, -1, -1, -1, -1, new String[0]);
+	}
+
+	/**Formats compact peers: 4 bytes of IPv4 address and 2 bytes of port per peer.
+	 *
+	 * @param data - the bytes holding the peers
+	 * @param start - index of the first peer
+	 * @param count - number of peers
+	 * @return the peers as "ip:port" strings
+	 */
+	static String[] compactPeers(byte[] data, int start, int count){
+		String[] peers = new String[count];
+		StringBuilder sb = new StringBuilder(21);
+		for (int i = 0, p = start; i < count; i++, p += 6){
+			sb.setLength(0);
+			sb.append(data[p] & 0xff).append('.')
+				.append(data[p + 1] & 0xff).append('.')
+				.append(data[p + 2] & 0xff).append('.')
+				.append(data[p + 3] & 0xff).append(':')
+				.append(((data[p + 4] & 0xff) << 8) | (data[p + 5] & 0xff));
+			peers[i] = sb.toString();
+		}
+		return peers;
+	}
+
+	private static byte[] bytes(String key){
+		byte[] b = new byte[key.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte)key.charAt(i);
+		return b;
+	}
+
+	/** Walks the tokens of the response.  Byte strings are never copied; keys are compared
+	 * in place and only the values that are kept are turned into Strings.
+	 */
+	private static final class Parser {
+		private final byte[] data;
+		private final BencodeReader reader;
+
+		Parser(byte[] data){
+			this.data = data;
+			this.reader = new BencodeReader(data);
+		}
+
+		TrackerResponse parseResponse() throws BencodingException{
+			String failureReason = null;
+			String warningMessage = null;
+			long interval = -1;
+			long minInterval = -1;
+			long complete = -1;
+			long incomplete = -1;
+			String[] peers = new String[0];
+
+			if (reader.next() != Token.DICTIONARY)
+				throw new BencodingException("Tracker response is not a dictionary.");
+			while (reader.next() == Token.KEY){
+				if (reader.bytesEqual(KEY_FAILURE_REASON)){
+					failureReason = readText();
+				} else if (reader.bytesEqual(KEY_WARNING_MESSAGE)){
+					warningMessage = readText();
+				} else if (reader.bytesEqual(KEY_INTERVAL)){
+					interval = readInteger();
+				} else if (reader.bytesEqual(KEY_MIN_INTERVAL)){
+					minInterval = readInteger();
+				} else if (reader.bytesEqual(KEY_COMPLETE)){
+					complete = readInteger();
+				} else if (reader.bytesEqual(KEY_INCOMPLETE)){
+					incomplete = readInteger();
+				} else if (reader.bytesEqual(KEY_PEERS)){
+					Token value = reader.next();
+					if (value == Token.LIST)
+						peers = readPeerList();
+					else if (value == Token.BYTES)
+						peers = readCompactPeers();
+					else
+						throw new BencodingException("Peers must be a list or a byte string.");
+				} else {
+					reader.next();
+					reader.skip();
+				}
+			}
+
+			return new TrackerResponse(failureReason, warningMessage, clamp(interval), clamp(minInterval),
+					clamp(complete), clamp(incomplete), peers);
+		}
+
+		/** Compact form: 4 bytes of IPv4 address and 2 bytes of port per peer. */
+		private String[] readCompactPeers() throws BencodingException{
+			int start = reader.bytesStart();
+			int length = reader.bytesLength();
+			if (length % 6 != 0)
+				throw new BencodingException("Compact peer list length " + length + " is not a multiple of 6.");
+
+			return compactPeers(data, start, length / 6);
+		}
+
+		/** Original form: a list of dictionaries holding "peer id", "ip" and "port". */
+		private String[] readPeerList() throws BencodingException{
+			ArrayList<String> peers = new ArrayList<String>();
+			while (reader.next() == Token.DICTIONARY){
+				String ip = null;
+				long port = -1;
+				while (reader.next() == Token.KEY){
+					if (reader.bytesEqual(KEY_IP)){
+						ip = readText();
+					} else if (reader.bytesEqual(KEY_PORT)){
+						port = readInteger();
+					} else {
+						reader.next();
+						reader.skip();
+					}
+				}
+
+				if (ip != null && port >= 0 && port <= 0xffff)
+					peers.add(ip + ":" + port);
+			}
+			if (reader.token() != Token.END)
+				throw new BencodingException("Peer list entries must be dictionaries.");
+			return peers.toArray(new String[peers.size()]);
+		}
+
+		private long readInteger() throws BencodingException{
+			if (reader.next() != Token.INTEGER)
+				throw new BencodingException("Expected an integer in tracker response at position " + reader.tokenStart() + ".");
+			return reader.intValue();
+		}
+
+		private String readText() throws BencodingException{
+			if (reader.next() != Token.BYTES)
+				throw new BencodingException("Expected a byte string in tracker response at position " + reader.tokenStart() + ".");
+			try {
+				return new String(data, reader.bytesStart(), reader.bytesLength(), "UTF-8");
+			} catch (UnsupportedEncodingException e){
+				//UTF-8 is always supported.
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private static int clamp(long value){
+			return (int)Math.max(-1, Math.min(Integer.MAX_VALUE, value));
+		}
+	}
+}
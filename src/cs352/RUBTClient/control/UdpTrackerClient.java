@@ -0,0 +1,530 @@
+package cs352.RUBTClient.control;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/** UdpTrackerClient speaks the UDP tracker protocol (BEP 15): connect, announce and scrape.
+ *
+ * Every tracker and every torrent is served over one DatagramChannel by one I/O thread, so
+ * thousands of torrents cost no more sockets or threads than one. The connection ID a tracker
+ * hands out is cached for a minute and shared by all requests to that tracker; requests made
+ * while a connect is in flight wait for it instead of connecting again. A scrape covers up to
+ * MAX_SCRAPE_HASHES torrents in a single datagram.
+ *
+ * A datagram that gets no answer is sent again after 15 * 2^n seconds, n counting the attempts,
+ * until maxRetries retransmissions have failed. Callbacks run on the I/O thread and must not block.
+ * @author Yuriy Garnaev
+ *
+ */
+public final class UdpTrackerClient {
+
+	//Announce events.
+	public static final int EVENT_NONE = 0;
+	public static final int EVENT_COMPLETED = 1;
+	public static final int EVENT_STARTED = 2;
+	public static final int EVENT_STOPPED = 3;
+
+	//The most info hashes one scrape request may carry, keeping the answer within a safe datagram size.
+	public static final int MAX_SCRAPE_HASHES = 74;
+
+	private static final long PROTOCOL_ID = 0x41727101980L;
+	private static final int ACTION_CONNECT = 0;
+	private static final int ACTION_ANNOUNCE = 1;
+	private static final int ACTION_SCRAPE = 2;
+	private static final int ACTION_ERROR = 3;
+	private static final long CONNECTION_ID_LIFETIME = 60000; //In milliseconds.
+	private static final int DEFAULT_BASE_TIMEOUT = 15000; //In milliseconds.
+	private static final int DEFAULT_MAX_RETRIES = 4;
+	private static final int MAX_DATAGRAM = 2048;
+
+	/** Receives the outcome of an announce. A tracker's error answer arrives as a response
+	 * holding a failure reason.
+	 */
+	public interface AnnounceCallback {
+		void completed(TrackerResponse response);
+		void failed(IOException e);
+	}
+
+	/** Receives the outcome of a scrape.
+	 */
+	public interface ScrapeCallback {
+		void completed(ScrapeEntry[] entries);
+		void failed(IOException e);
+	}
+
+	/** The swarm counts of one torrent, in the order its info hash was scraped.
+	 */
+	public static final class ScrapeEntry {
+		public final int seeders;
+		public final int completed;
+		public final int leechers;
+
+		ScrapeEntry(int seeders, int completed, int leechers){
+			this.seeders = seeders;
+			this.completed = completed;
+			this.leechers = leechers;
+		}
+	}
+
+	private static UdpTrackerClient shared = null;
+
+	private final int baseTimeout;
+	private final int maxRetries;
+	private final int key;
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Thread ioThread;
+	private final Random random = new Random();
+
+	//Protocol state, guarded by the client itself.
+	private final HashMap<InetSocketAddress, Tracker> trackers = new HashMap<InetSocketAddress, Tracker>();
+	private final HashMap<Integer, Transaction> transactions = new HashMap<Integer, Transaction>();
+	private final ArrayList<Runnable> completions = new ArrayList<Runnable>();
+	private boolean closed = false;
+
+	/** Opens a client with the timeouts of BEP 15, retransmitting DEFAULT_MAX_RETRIES times.
+	 *
+	 * @throws IOException if the channel could not be opened
+	 */
+	public UdpTrackerClient() throws IOException{
+		this(DEFAULT_BASE_TIMEOUT, DEFAULT_MAX_RETRIES);
+	}
+
+	/** Opens a client on an ephemeral port and starts its I/O thread.
+	 *
+	 * @param baseTimeout - milliseconds to wait for the answer to a first attempt; doubled on each retransmission
+	 * @param maxRetries - the number of retransmissions before a request fails
+	 * @throws IOException if the channel could not be opened
+	 */
+	public UdpTrackerClient(int baseTimeout, int maxRetries) throws IOException{
+		this.baseTimeout = Math.max(1, baseTimeout);
+		this.maxRetries = Math.max(0, maxRetries);
+		this.key = random.nextInt();
+
+		channel = DatagramChannel.open();
+		channel.bind(null);
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+
+		ioThread = new Thread(new Runnable(){
+			public void run(){
+				runLoop();
+			}
+		}, "RUBT-udp-tracker");
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+	/** The client shared by the trackers of every torrent, opened on first use.
+	 *
+	 * @throws IOException if the channel could not be opened
+	 */
+	public static synchronized UdpTrackerClient getShared() throws IOException{
+		if (shared == null || shared.isClosed())
+			shared = new UdpTrackerClient();
+		return shared;
+	}
+
+	/** Sends an announce. The callback is told the outcome exactly once.
+	 *
+	 * @param tracker - address of the tracker
+	 * @param infoHash - 20 byte info hash of the torrent
+	 * @param peerId - 20 byte peer id of this client
+	 * @param event - one of the EVENT constants
+	 * @param port - the port this client accepts peers on
+	 */
+	public void announce(InetSocketAddress tracker, byte[] infoHash, byte[] peerId, long downloaded, long left,
+			long uploaded, int event, int port, AnnounceCallback callback){
+		ByteBuffer body = ByteBuffer.allocate(82);
+		body.put(infoHash, 0, 20).put(peerId, 0, 20)
+			.putLong(downloaded).putLong(left).putLong(uploaded)
+			.putInt(event).putInt(0).putInt(key).putInt(-1).putShort((short)port);
+		submit(tracker, new AnnounceRequest(body.array(), callback));
+	}
+
+	/** Sends a scrape of up to MAX_SCRAPE_HASHES torrents in one datagram.
+	 *
+	 * @param tracker - address of the tracker
+	 * @param infoHashes - 20 byte info hashes
+	 * @throws IllegalArgumentException if there are no hashes or too many
+	 */
+	public void scrape(InetSocketAddress tracker, byte[][] infoHashes, ScrapeCallback callback){
+		if (infoHashes.length == 0 || infoHashes.length > MAX_SCRAPE_HASHES)
+			throw new IllegalArgumentException("A scrape carries 1 to " + MAX_SCRAPE_HASHES + " info hashes.");
+		ByteBuffer body = ByteBuffer.allocate(20 * infoHashes.length);
+		for (int i = 0; i < infoHashes.length; i++)
+			body.put(infoHashes[i], 0, 20);
+		submit(tracker, new ScrapeRequest(body.array(), infoHashes.length, callback));
+	}
+
+	/** Fails every outstanding request. The I/O thread closes the channel once it wakes.
+	 */
+	public void close(){
+		synchronized (this){
+			if (closed)
+				return;
+			closed = true;
+			IOException e = new IOException("UDP tracker client closed.");
+			for (Transaction t : new ArrayList<Transaction>(transactions.values()))
+				completions.add(t.failed(e));
+			for (Tracker tracker : trackers.values())
+				for (Request r : tracker.waiting)
+					completions.add(r.failed(e));
+			transactions.clear();
+			trackers.clear();
+		}
+		runCompletions();
+		selector.wakeup();
+	}
+
+	private synchronized boolean isClosed(){
+		return closed;
+	}
+
+	private void submit(InetSocketAddress address, Request request){
+		if (address.isUnresolved()){
+			request.failed(new IOException("Unable to resolve tracker " + address.getHostString() + ".")).run();
+			return;
+		}
+		synchronized (this){
+			if (closed){
+				completions.add(request.failed(new IOException("UDP tracker client closed.")));
+			} else {
+				Tracker tracker = trackers.get(address);
+				if (tracker == null){
+					tracker = new Tracker(address);
+					trackers.put(address, tracker);
+				}
+				request.tracker = tracker;
+				dispatch(request, System.currentTimeMillis());
+			}
+		}
+		runCompletions();
+	}
+
+	/** Sends a request right away if its tracker's connection ID is fresh, else parks it behind a connect.
+	 */
+	private void dispatch(Request request, long now){
+		Tracker tracker = request.tracker;
+		if (tracker.expires > now){
+			send(request, now);
+			return;
+		}
+		tracker.waiting.add(request);
+		if (tracker.connecting == null){
+			tracker.connecting = new Connect(tracker);
+			send(tracker.connecting, now);
+		}
+	}
+
+	/** Sends or resends a transaction and arms its retransmission timer. A datagram the channel
+	 * could not take is treated as lost.
+	 */
+	private void send(Transaction t, long now){
+		if (t.id == 0){
+			do {
+				t.id = random.nextInt();
+			} while (t.id == 0 || transactions.containsKey(t.id));
+		}
+		transactions.put(t.id, t);
+		t.deadline = now + ((long)baseTimeout << Math.min(t.attempts, 20));
+		try {
+			channel.send(t.packet(), t.tracker.address);
+		} catch (IOException e){
+			//Retransmitted when the timer fires.
+		}
+		selector.wakeup();
+	}
+
+	private void runLoop(){
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+		while (true){
+			long wait;
+			synchronized (this){
+				if (closed)
+					break;
+				wait = expire(System.currentTimeMillis());
+			}
+			runCompletions();
+
+			try {
+				selector.select(wait);
+				selector.selectedKeys().clear();
+
+				SocketAddress from;
+				while ((from = channel.receive(buffer)) != null){
+					buffer.flip();
+					synchronized (this){
+						received(from, buffer);
+					}
+					buffer.clear();
+					runCompletions();
+				}
+			} catch (IOException e){
+				//The channel failed; nothing more can be sent.
+				break;
+			}
+		}
+
+		//Fail whatever is still outstanding if the loop ended on its own.
+		close();
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e){
+			//Nothing is left to clean up.
+		}
+	}
+
+	/** Retransmits or fails the transactions whose timers have fired.
+	 * @return milliseconds until the next timer, or 0 if none is armed
+	 */
+	private long expire(long now){
+		for (Transaction t : new ArrayList<Transaction>(transactions.values())){
+			if (t.deadline > now)
+				continue;
+
+			transactions.remove(t.id);
+			if (t.attempts >= maxRetries){
+				completions.add(t.failed(new IOException("Tracker " + t.tracker.address + " did not answer.")));
+				continue;
+			}
+
+			t.attempts++;
+			if (t instanceof Request && t.tracker.expires <= now)
+				dispatch((Request)t, now); //The connection ID ran out while waiting, so connect again first.
+			else
+				send(t, now);
+		}
+
+		long next = Long.MAX_VALUE;
+		for (Transaction t : transactions.values())
+			next = Math.min(next, t.deadline);
+		return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+	}
+
+	/** Matches an answer to its transaction by ID and sender.
+	 */
+	private void received(SocketAddress from, ByteBuffer data){
+		if (data.remaining() < 8)
+			return;
+		int action = data.getInt();
+		int id = data.getInt();
+		Transaction t = transactions.get(id);
+		if (t == null || !t.tracker.address.equals(from))
+			return;
+
+		transactions.remove(id);
+		if (action == ACTION_ERROR){
+			byte[] message = new byte[data.remaining()];
+			data.get(message);
+			completions.add(t.error(new String(message, StandardCharsets.UTF_8)));
+		} else if (action == t.action){
+			completions.add(t.received(data));
+		} else {
+			completions.add(t.failed(new IOException("Tracker answered with unexpected action " + action + ".")));
+		}
+	}
+
+	/** Runs the callbacks gathered under the lock, outside of it.
+	 */
+	private void runCompletions(){
+		ArrayList<Runnable> run;
+		synchronized (this){
+			if (completions.isEmpty())
+				return;
+			run = new ArrayList<Runnable>(completions);
+			completions.clear();
+		}
+		for (Runnable r : run){
+			if (r == null)
+				continue;
+			try {
+				r.run();
+			} catch (RuntimeException e){
+				System.err.println("ERROR: UDP tracker callback failed. " + e);
+			}
+		}
+	}
+
+	/** The cached connection and waiting requests of one tracker.
+	 */
+	private static final class Tracker {
+		final InetSocketAddress address;
+		long connectionId;
+		long expires = 0;
+		Connect connecting = null;
+		final ArrayList<Request> waiting = new ArrayList<Request>();
+
+		Tracker(InetSocketAddress address){
+			this.address = address;
+		}
+	}
+
+	/** One datagram exchange that may be retransmitted. The methods run under the client's
+	 * lock and return the callback to run once it is released, or null.
+	 */
+	private abstract class Transaction {
+		final int action;
+		Tracker tracker;
+		int id = 0;
+		int attempts = 0;
+		long deadline;
+
+		Transaction(int action){
+			this.action = action;
+		}
+
+		abstract ByteBuffer packet();
+		abstract Runnable received(ByteBuffer data);
+		abstract Runnable failed(IOException e);
+
+		Runnable error(String message){
+			return failed(new IOException("Tracker error: " + message));
+		}
+	}
+
+	/** Obtains a connection ID, then sends the requests that waited for it.
+	 */
+	private final class Connect extends Transaction {
+		Connect(Tracker tracker){
+			super(ACTION_CONNECT);
+			this.tracker = tracker;
+		}
+
+		ByteBuffer packet(){
+			ByteBuffer packet = ByteBuffer.allocate(16);
+			packet.putLong(PROTOCOL_ID).putInt(ACTION_CONNECT).putInt(id);
+			packet.flip();
+			return packet;
+		}
+
+		Runnable received(ByteBuffer data){
+			if (data.remaining() < 8)
+				return failed(new IOException("Truncated connect answer."));
+			long now = System.currentTimeMillis();
+			tracker.connectionId = data.getLong();
+			tracker.expires = now + CONNECTION_ID_LIFETIME;
+			tracker.connecting = null;
+			for (Request r : tracker.waiting)
+				send(r, now);
+			tracker.waiting.clear();
+			return null;
+		}
+
+		Runnable failed(final IOException e){
+			tracker.connecting = null;
+			final ArrayList<Runnable> failures = new ArrayList<Runnable>();
+			for (Request r : tracker.waiting)
+				failures.add(r.failed(e));
+			tracker.waiting.clear();
+			return new Runnable(){
+				public void run(){
+					for (Runnable r : failures)
+						r.run();
+				}
+			};
+		}
+	}
+
+	/** A request sent with the tracker's connection ID.
+	 */
+	private abstract class Request extends Transaction {
+		private final byte[] body;
+
+		Request(int action, byte[] body){
+			super(action);
+			this.body = body;
+		}
+
+		ByteBuffer packet(){
+			ByteBuffer packet = ByteBuffer.allocate(16 + body.length);
+			packet.putLong(tracker.connectionId).putInt(action).putInt(id).put(body);
+			packet.flip();
+			return packet;
+		}
+	}
+
+	private final class AnnounceRequest extends Request {
+		private final AnnounceCallback callback;
+
+		AnnounceRequest(byte[] body, AnnounceCallback callback){
+			super(ACTION_ANNOUNCE, body);
+			this.callback = callback;
+		}
+
+		Runnable received(ByteBuffer data){
+			if (data.remaining() < 12 || (data.remaining() - 12) % 6 != 0)
+				return failed(new IOException("Malformed announce answer of " + (data.remaining() + 8) + " bytes."));
+			int interval = data.getInt();
+			int leechers = data.getInt();
+			int seeders = data.getInt();
+			String[] peers = TrackerResponse.compactPeers(data.array(), data.position(), data.remaining() / 6);
+			final TrackerResponse response = TrackerResponse.fromUdp(interval, leechers, seeders, peers);
+			return new Runnable(){
+				public void run(){
+					callback.completed(response);
+				}
+			};
+		}
+
+		Runnable error(String message){
+			final TrackerResponse response = TrackerResponse.failure(message);
+			return new Runnable(){
+				public void run(){
+					callback.completed(response);
+				}
+			};
+		}
+
+		Runnable failed(final IOException e){
+			return new Runnable(){
+				public void run(){
+					callback.failed(e);
+				}
+			};
+		}
+	}
+
+	private final class ScrapeRequest extends Request {
+		private final int count;
+		private final ScrapeCallback callback;
+
+		ScrapeRequest(byte[] body, int count, ScrapeCallback callback){
+			super(ACTION_SCRAPE, body);
+			this.count = count;
+			this.callback = callback;
+		}
+
+		Runnable received(ByteBuffer data){
+			if (data.remaining() < 12 * count)
+				return failed(new IOException("Scrape answer covers fewer than " + count + " torrents."));
+			final ScrapeEntry[] entries = new ScrapeEntry[count];
+			for (int i = 0; i < count; i++)
+				entries[i] = new ScrapeEntry(data.getInt(), data.getInt(), data.getInt());
+			return new Runnable(){
+				public void run(){
+					callback.completed(entries);
+				}
+			};
+		}
+
+		Runnable failed(final IOException e){
+			return new Runnable(){
+				public void run(){
+					callback.failed(e);
+				}
+			};
+		}
+	}
+}
@@ -58,6 +58,9 @@ public class Gui extends JFrame {
 		JMenuItem mnOpen = new JMenuItem("Open");
 		menu.add(mnOpen);
 		
+		JMenuItem mnRecheck = new JMenuItem("Recheck");
+		menu.add(mnRecheck);
+		
 		JMenuItem mnHelp = new JMenuItem("Help");
 		menu.add(mnHelp);
 		
@@ -120,6 +123,18 @@ public class Gui extends JFrame {
 			} 
 		});
 		
+		//Listener for the File-> Recheck menu option
+		mnRecheck.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent e) {
+				if (!RUBTClient.validateTorrentName(main.fileName.getText().trim()) ||
+						!RUBTClient.recheck(main.fileName.getText().trim(), main.saveFileName.getText().trim())){
+					JOptionPane.showMessageDialog(new JFrame(), 
+							"Open a torrent before starting it to recheck its file.", "Dialog",
+					        JOptionPane.ERROR_MESSAGE);
+				}
+			} 
+		});
+		
 		//Listener for the Exit button in the Menu
 		mnExit.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent e) {
@@ -290,5 +305,20 @@ public class Gui extends JFrame {
 		main.progress.setValue((int)percentComplete);
 		main.progress.setString(main.progress.getValue()+"%");
 	}
+	
+	/**Sets the progress bar value while rechecking an existing download. It is called from the
+	 * recheck thread, so the progress bar is updated on the event dispatch thread.
+	 * 
+	 * @param fractionChecked fraction of the file hashed so far
+	 * @param bytesPerSecond average recheck throughput
+	 */
+	public void setRecheckProgress(final double fractionChecked, final double bytesPerSecond){
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				main.progress.setValue((int)(fractionChecked*100));
+				main.progress.setString(String.format("Rechecking %d%% (%.1f MB/s)", main.progress.getValue(), bytesPerSecond / (1024*1024)));
+			}
+		});
+	}
 
 }
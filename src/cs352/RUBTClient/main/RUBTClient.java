@@ -8,7 +8,9 @@ import java.io.InputStream;
 import java.util.Scanner;
 
 import cs352.RUBTClient.control.DownloadManager;
+import cs352.RUBTClient.control.SessionManager;
 import cs352.RUBTClient.gui.Gui;
+import cs352.RUBTClient.model.PieceRechecker;
 import cs352.RUBTClient.resources.TorrentInfo;
 import cs352.RUBTClient.utils.TorrentInfoDecoder;
 
@@ -27,7 +29,12 @@ public class RUBTClient{
 	
 	private static boolean paused = false;
 	private static boolean exit = false;
+	private static boolean started = false;
+	private static volatile boolean rechecking = false;
 	
+	private static Gui gui;
+	
+	private static SessionManager session;
 	private static DownloadManager dm;
 	private static TorrentInfo torrent;
 	private static String saveTorrentName;
@@ -90,11 +97,62 @@ public class RUBTClient{
 	 * @return
 	 */
 	public static boolean start(String torrent_file_path, String download_file_path){
+		if( rechecking )
+			return false;
+		
+		saveTorrentName = torrent_file_path;
+		saveFileName = download_file_path;
+		
+		if( getSession() == null )
+			return false;
+		
+		//Reuse the download manager of a finished recheck for the same file.
+		if( dm == null || !dm.getSessionInfo().getTorrentFilePath().equals( saveTorrentName )
+				|| !dm.getSessionInfo().getDownloadFilePath().equals( saveFileName ) ){
+			if( dm != null )
+				session.removeTorrent( dm );
+			dm = session.createTorrent( saveTorrentName, saveFileName );
+		}
+		session.startTorrent( dm, true );
+		started = true;
+		return true;
+	}
+	
+	/** The recheck method verifies an existing download against the torrent's piece hashes on a 
+	 * background thread, reporting progress and throughput to the GUI and standard out. The rebuilt
+	 * state is used by a following start.
+	 * 
+	 * @param torrent_file_path - torrent file name
+	 * @param download_file_path - file name of the file to check
+	 * @return false if a download is already running or a recheck is in progress
+	 */
+	public static boolean recheck(String torrent_file_path, String download_file_path){
+		if( started || rechecking )
+			return false;
+		
+		if( getSession() == null )
+			return false;
+		
 		saveTorrentName = torrent_file_path;
 		saveFileName = download_file_path;
+		dm = session.createTorrent( saveTorrentName, saveFileName );
+		rechecking = true;
+		
+		new Thread(new Runnable(){
+			public void run(){
+				Integer status = dm.recheck(new PieceRechecker.Listener(){
+					public void progress(long bytes_checked, long total_bytes, double bytes_per_second){
+						double fraction = bytes_checked / (double)total_bytes;
+						gui.setRecheckProgress(fraction, bytes_per_second);
+						System.out.println(String.format("Rechecking: %.1f%% (%.1f MB/s)", fraction*100, bytes_per_second / (1024*1024)));
+					}
+				});
+				
+				System.out.println("Recheck finished with status " + status + ".");
+				rechecking = false;
+			}
+		}).start();
 		
-		dm = new DownloadManager( saveTorrentName, saveFileName );
-		dm.start(false);
 		return true;
 	}
 	/** The pause method pauses the download manager to pause the download process
@@ -119,11 +177,27 @@ public class RUBTClient{
 	 * 
 	 */
 	public static void exit(){
-		if (dm!=null)
-			dm.shutdown();
+		if (session!=null)
+			session.shutdown();
 		exit = true;
 	}
 	
+	/**Returns the session every download runs in, opening its listening port on first use.
+	 * 
+	 * @return the session, or null if no port could be opened
+	 */
+	private static SessionManager getSession(){
+		if (session == null){
+			try{
+				session = new SessionManager();
+			}
+			catch (IOException e){
+				System.err.println("ERROR: Unable to open a listening port. " + e.getMessage());
+			}
+		}
+		return session;
+	}
+	
 	
 	
 	
@@ -132,12 +206,12 @@ public class RUBTClient{
 
 	public static void main(String[] args) {
 
-		Gui gui = new Gui("Thorrent - brought to you by the Thunder God");
+		gui = new Gui("Thorrent - brought to you by the Thunder God");
 		
 		// Sets the progress value every 100 ms until exit is set to true
 		// Once exit is set to true, exits the program
 		while (!exit){
-			if (paused || dm==null){
+			if (paused || dm==null || !started){
 				try{Thread.sleep(100);}catch(InterruptedException e){}
 				continue;
 			}
@@ -0,0 +1,265 @@
+package cs352.RUBTClient.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*************************************************************************
+ * An append-only journal of piece completions and invalidations, kept
+ * next to the resume file.  Each event is a fixed-size record:
+ *
+ *   piece index (int), then type (high byte) and check value (low three
+ *   bytes) packed into an int.
+ *
+ * Appending only queues the record; a background thread writes queued
+ * records in a single batch and forces them to disk every FLUSH_INTERVAL,
+ * so persisting a piece costs O(1) and never waits on the disk.  Once
+ * COMPACT_RECORDS records have been written, the compactor is run to write
+ * a fresh snapshot, after which the journal is truncated.  Replaying a
+ * record twice is harmless, so records queued around a compaction are
+ * safe to land in the new journal.
+ *
+ * The writer is not started until start() is called or the first record
+ * is appended.  A journal left over from an earlier run may already be due
+ * for compaction, and compacting before the owner has loaded its state
+ * would replace the saved progress with an empty snapshot.
+ *
+ * @author Thomas Travis
+ * For CS352 2013 Summer Session
+ *
+ *************************************************************************/
+public class CompletionJournal {
+
+	public static final byte INVALIDATED = 0;
+	public static final byte COMPLETED = 1;
+	public static final int RECORD_LENGTH = 8;
+
+	protected static final int FLUSH_INTERVAL = 1000; //In milliseconds.
+	protected static final int COMPACT_RECORDS = 4096;
+
+	protected Logger paLog;
+	protected File file;
+	protected Runnable compactor;
+
+	protected final Object pending_lock = new Object();
+	protected final Object io_lock = new Object();
+	protected ArrayList<Long> pending;
+	protected FileChannel channel;
+	protected int records_written;
+	protected volatile boolean closed;
+	protected Thread writerThread; //Null until started; guarded by pending_lock.
+
+	/**
+	 * Open the journal at the given file, appending to any records already present.  The writer is
+	 * started by start().
+	 * @param file
+	 * @param compactor - run on the writer thread once the journal is due for compaction.  It is expected
+	 * to write a snapshot and then call reset().
+	 * @param paLog - the logger to report I/O errors to.
+	 */
+	public CompletionJournal( File file, Runnable compactor, Logger paLog ){
+
+		this.file = file;
+		this.compactor = compactor;
+		this.paLog = paLog;
+		pending = new ArrayList<Long>();
+		records_written = (int)( file.length() / RECORD_LENGTH );
+		closed = false;
+	}
+
+	/**
+	 * Start the writer, once the owner's state has been loaded.  Calling this again does nothing.
+	 * @author Thomas Travis
+	 */
+	public void start(){
+
+		synchronized( pending_lock ){
+			if( writerThread != null || closed )
+				return;
+
+			writerThread = new Thread( new Runnable(){
+				public void run(){
+					while( !closed ){
+						synchronized( pending_lock ){
+							try{
+								pending_lock.wait( FLUSH_INTERVAL );
+							}
+							catch( InterruptedException e ){
+								return;
+							}
+						}
+
+						flush();
+
+						boolean compact;
+						synchronized( io_lock ){
+							compact = records_written >= COMPACT_RECORDS;
+						}
+						if( compact && !closed )
+							CompletionJournal.this.compactor.run();
+					}
+				}
+			});
+			writerThread.setDaemon( true );
+			writerThread.start();
+		}
+	}
+
+	/**
+	 * Queue a record of the given piece having been completed or invalidated.
+	 * @param index
+	 * @param completed - true if the piece was completed; false if it was invalidated.
+	 * @author Thomas Travis
+	 */
+	public void append( int index, boolean completed ){
+
+		synchronized( pending_lock ){
+			pending.add( encode( index, completed ? COMPLETED : INVALIDATED ) );
+		}
+		start();
+	}
+
+	/**
+	 * Write every queued record and force them to disk.
+	 * @author Thomas Travis
+	 */
+	public void flush(){
+
+		ArrayList<Long> batch;
+		synchronized( pending_lock ){
+			if( pending.isEmpty() )
+				return;
+			batch = pending;
+			pending = new ArrayList<Long>();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate( batch.size()*RECORD_LENGTH );
+		for( int i = 0; i < batch.size(); i++ )
+			buffer.putLong( batch.get( i ) );
+		buffer.flip();
+
+		synchronized( io_lock ){
+			try{
+				FileChannel fc = getChannel();
+				while( buffer.hasRemaining() )
+					fc.write( buffer );
+				fc.force( false );
+				records_written += batch.size();
+			}
+			catch( IOException e ){
+				paLog.log(Level.WARNING, "An I/O error occurred while writing the completion journal.", e);
+			}
+		}
+	}
+
+	/**
+	 * Discard every record written so far.  Call this right after a snapshot has been written.
+	 * @author Thomas Travis
+	 */
+	public void reset(){
+
+		synchronized( io_lock ){
+			try{
+				getChannel().truncate( 0 );
+				records_written = 0;
+			}
+			catch( IOException e ){
+				paLog.log(Level.WARNING, "An I/O error occurred while truncating the completion journal.", e);
+			}
+		}
+	}
+
+	/**
+	 * Write any queued records, stop the writer, and close the journal file.
+	 * @author Thomas Travis
+	 */
+	public void close(){
+
+		closed = true;
+		synchronized( pending_lock ){
+			if( writerThread != null )
+				writerThread.interrupt();
+		}
+		flush();
+
+		synchronized( io_lock ){
+			if( channel == null )
+				return;
+			try{
+				channel.close();
+			}
+			catch( IOException e ){
+				paLog.log(Level.WARNING, "An I/O error occurred while closing the completion journal.", e);
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Apply the records of a journal file, in order, to the given bitfield.  Replay stops at the first
+	 * torn or corrupt record.
+	 * @param file
+	 * @param bitfield
+	 * @param number_of_pieces - records for indices outside the torrent are ignored.
+	 * @return the number of records applied
+	 * @throws IOException if the journal exists but could not be read.
+	 * @author Thomas Travis
+	 */
+	public static int replay( File file, BitSet bitfield, int number_of_pieces ) throws IOException{
+
+		if( !file.exists() )
+			return 0;
+
+		FileChannel fc = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+		try{
+			ByteBuffer buffer = ByteBuffer.allocate( (int)( fc.size() - fc.size() % RECORD_LENGTH ) );
+			while( buffer.hasRemaining() && fc.read( buffer ) != -1 );
+			buffer.flip();
+
+			int applied = 0;
+			while( buffer.remaining() >= RECORD_LENGTH ){
+				long record = buffer.getLong();
+				int index = (int)( record >> 32 );
+				byte type = (byte)( record >>> 24 );
+				if( record != encode( index, type ) || index < 0 || index >= number_of_pieces )
+					break;
+
+				bitfield.set( index, type == COMPLETED );
+				applied++;
+			}
+			return applied;
+		}
+		finally{
+			fc.close();
+		}
+	}
+
+	/**
+	 * Pack a record into a long: the index in the high int, then the type byte, then a check value
+	 * derived from both in the low three bytes.
+	 */
+	protected static long encode( int index, byte type ){
+
+		int check = ( ( index * 0x9E3779B1 ) ^ ( type * 0x85EBCA6B ) ) & 0xFFFFFF;
+		return ( (long)index << 32 ) | ( ( (long)( type & 0xFF ) << 24 ) | check );
+	}
+
+	/**
+	 * Obtain the channel to the journal file, opening it for appending on first use.
+	 */
+	protected FileChannel getChannel() throws IOException{
+
+		if( channel == null || !channel.isOpen() ){
+			file.getParentFile().mkdirs();
+			channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+			channel.position( channel.size() - channel.size() % RECORD_LENGTH );
+		}
+		return channel;
+	}
+}
@@ -3,20 +3,20 @@ package cs352.RUBTClient.model;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,6 +27,15 @@ import cs352.RUBTClient.utils.SessionInfo;
  * Store pieces as they are download, save them to disk on request, and 
  * resume downloading unfinished pieces.
  * 
+ * Blocks of different pieces are stored concurrently.  The buffer and
+ * received blocks of a piece are guarded by one of PIECE_LOCKS striped
+ * locks, which is held while the block is written and the piece is hashed
+ * and forced to disk.  This object's lock only orders journal records
+ * against save(), and storage_lock is taken exclusively by whatever must
+ * not run alongside block storage: a recheck, restoring partial pieces,
+ * and changing which files exist.  Locks are taken in that order:
+ * storage_lock, then this object, then a piece lock.
+ * 
  * @author Thomas Travis
  * @since 7/23/2013
  * @version 2.0
@@ -35,31 +44,133 @@ import cs352.RUBTClient.utils.SessionInfo;
  *************************************************************************/
 public class FileManager {
 
+	/** The size of the blocks pieces are requested in, as recommended by BEP 3. */
+	public static final int BLOCK_LENGTH = 16384;
+	
+	/**
+	 * How the space of a new download file is reserved.
+	 * 
+	 * NONE - the file starts empty and grows as blocks are written.
+	 * SPARSE - the file is set to its full length at once, leaving holes where the file system supports them.
+	 * FULL - the file is set to its full length, then zero-filled one piece at a time on a background thread.
+	 */
+	public enum Preallocation { NONE, SPARSE, FULL }
+	
+	/** The number of locks the pieces are striped across. */
+	protected static final int PIECE_LOCKS = 64;
+	
+	/** The system property naming the Preallocation used by the single-argument constructor. */
+	public static final String PREALLOCATION_PROPERTY = "rubt.preallocation";
+	
+	/**
+	 * The download priority of a file, or of a piece.  A piece takes the highest priority of the files it
+	 * touches, so a piece shared between a skipped file and a wanted one is still downloaded.
+	 * 
+	 * SKIP - the file is not wanted, and is not created on disk.
+	 * LOW, NORMAL, HIGH - the file is wanted; pieces of higher priority are downloaded first.
+	 */
+	public enum Priority { SKIP, LOW, NORMAL, HIGH }
+	
+	/**
+	 * Told about each block storeDataBlock accepts, while the file manager still holds the lock of
+	 * its piece, so that whatever the listener records about the block cannot race another copy of it.
+	 */
+	public interface BlockListener {
+		
+		/**
+		 * @param index - the piece the block belongs to
+		 * @param offset - the offset of the block within the piece
+		 * @param block - the data of the block; only valid during the call
+		 * @param length - the length of the block
+		 */
+		void blockStored( int index, int offset, byte[] block, int length );
+	}
+	
 	protected Logger paLog = null;
 	protected SessionInfo info;
 	protected int piece_length;
 	protected int number_of_pieces;
 	protected ByteBuffer[] pieces;
 	protected int[] total_bytes_downloaded;
+	protected BitSet[] received_blocks;
 	protected BitSet bitfield;
+	protected byte[] wire_bitfield;
 	protected int final_piece_length;
+	protected final AtomicInteger pieces_had = new AtomicInteger();
+	protected final AtomicLong bytes_saved = new AtomicLong();
+	protected final AtomicLong bytes_downloaded = new AtomicLong();
+	protected final Object completion_lock = new Object();
+	protected final Object[] piece_locks;
+	protected final ReentrantReadWriteLock storage_lock = new ReentrantReadWriteLock();
+	protected FileStorage storage;
+	protected CompletionJournal journal;
+	protected Preallocation preallocation;
+	protected Priority[] file_priorities;
+	protected volatile Priority[] piece_priorities;
+	protected volatile boolean closed;
 	
+	/**
+	 * Create a FileManager using the Preallocation named by the rubt.preallocation system property,
+	 * or SPARSE if it is unset or unrecognized.
+	 * @param info
+	 */
 	public FileManager( SessionInfo info ){
+		this( info, getDefaultPreallocation(), null );
+	}
+	
+	/**
+	 * @param info
+	 * @param preallocation
+	 * @param file_priorities - the priority of each file, in torrent order; null if every file is NORMAL.
+	 * Skipped files are not created.
+	 */
+	public FileManager( SessionInfo info, Preallocation preallocation, Priority[] file_priorities ){
 		
-		paLog = RUBTClientLogger.getInstance().getLogger(this.getClass().getName(), "palog");
+		paLog = RUBTClientLogger.getInstance().getLogger(this.getClass().getName(), "palog", info.getHomeDirectory());
 		this.info = info;
 		
 		piece_length = info.piece_length();
 		number_of_pieces = info.number_of_pieces();
 		pieces = new ByteBuffer[ number_of_pieces ];
 		total_bytes_downloaded = new int[ number_of_pieces ];
+		received_blocks = new BitSet[ number_of_pieces ];
+		piece_locks = new Object[ Math.max( 1, Math.min( PIECE_LOCKS, number_of_pieces ) ) ];
+		for( int i = 0; i < piece_locks.length; i++ )
+			piece_locks[ i ] = new Object();
 		
 		int extraBits = 8 - ( info.number_of_pieces() % 8);
 		bitfield = new BitSet( info.number_of_pieces() + extraBits );
+		wire_bitfield = new byte[ ( number_of_pieces + 7 ) / 8 ];
 		
 		final_piece_length = info.last_piece_length();
 		
+		this.preallocation = preallocation;
+		closed = false;
+		storage = new FileStorage( getStoragePaths(), info.file_lengths(), getPartsPath(), piece_length );
+		
+		//Skipped files must be known before the files are created.
+		this.file_priorities = new Priority[ info.file_lengths().length ];
+		for( int i = 0; i < this.file_priorities.length; i++ ){
+			this.file_priorities[ i ] = ( file_priorities == null ) ? Priority.NORMAL : file_priorities[ i ];
+			if( this.file_priorities[ i ] == Priority.SKIP ){
+				try{
+					storage.setSkipped( i, true );
+				}
+				catch( IOException e ){
+					//Skipping a file never touches the disk.
+				}
+			}
+		}
+		piece_priorities = computePiecePriorities();
 		createDownloadFile();
+		
+		//Record completions in the journal, and fold them into a fresh resume file once it grows long.
+		//The journal is only compacted once resume() or recheck() has loaded the saved state.
+		journal = new CompletionJournal( getJournalFile(), new Runnable(){
+			public void run(){
+				save();
+			}
+		}, paLog );
 	}
 	
 	/**
@@ -75,87 +186,141 @@ public class FileManager {
 	}
 	
 	/**
-	 * This implementation utilizes a BitSet with size 
-	 * 
-	 * (number_of_pieces + (8 - (number_of_pieces mod 8)))
+	 * Alongside the BitSet, this file's bitfield is kept in its wire format: ceil(number_of_pieces/8)
+	 * bytes, where the leading bit in the MSB of byte 0 represents index 0.  If a bit is set, we have
+	 * completely downloaded this piece.  The spare trailing bits of the last byte are always zero.
+	 * The array is updated one bit at a time as pieces complete or are invalidated, so it is ready
+	 * to be sent as is.
 	 * 
-	 * to represent this file's bitfield.  If a bit is set, we have completely downloaded this piece.
-	 * The extra trailing bits, if any, are set to zero.  If any trailing bits are set, then an error 
-	 * has occurred.  Only those bits from index 0 to number_of_pieces-1 are valid.
-	 * The leading bit in the MSB of the byte array represents index 0.
-	 * 
-	 * @return a ByteBuffer wrapping the byte array representation of this BitSet.  ByteBuffer endianess
-	 * is BIG_ENDIAN by default; that is, bytes are ordered from MSB to LSB.
+	 * @return a copy of the wire format bitfield, always of full length
 	 * @author Thomas Travis
 	 */
-	public ByteBuffer getBitField(){
+	public byte[] getWireBitField(){
 		synchronized(bitfield){
-			return ByteBuffer.wrap( bitfield.toByteArray() );
+			return wire_bitfield.clone();
 		}
 	}
 	
 	/**
-	 * Check the status of the overall download.
+	 * @return a ByteBuffer wrapping a copy of the wire format bitfield, as per getWireBitField().
+	 * @author Thomas Travis
+	 */
+	public ByteBuffer getBitField(){
+		return ByteBuffer.wrap( getWireBitField() );
+	}
+	
+	/**
+	 * Check the status of the overall download.  Reads a cached counter without locking.
 	 * @return -1 if no pieces have been downloaded; 0 if some, but not all, pieces have been downloaded;
 	 * 1 if all piece have been downloaded
 	 * @author Thomas Travis
 	 */
 	public int getDownloadStatus(){
 		
-		int have = 0;
-		int haveNot = 0;
-		
-		synchronized(bitfield){
-			
-			for( int i = 0; i < number_of_pieces; i++ ){
-				if( bitfield.get(i) == true )
-					have++;
-				else
-					haveNot++;
-			}
-		}
+		int have = pieces_had.get();
 		
 		if( have == number_of_pieces)
 			return 1;
-		if( haveNot == number_of_pieces )
+		if( have == 0 )
 			return -1;
 		return 0;
 	}
 	
 	/**
-	 * Obtain the total number of bytes saved to disk so far.
+	 * Obtain the number of pieces completely downloaded.  Reads a cached counter without locking.
+	 * @author Thomas Travis
+	 */
+	public int getPiecesHad(){
+		return pieces_had.get();
+	}
+	
+	/**
+	 * Obtain the total number of bytes saved to disk so far.  Reads a cached counter without locking.
 	 * @return the number of bytes saved to disk so far
 	 * @author Thomas Travis
 	 */
-	public int getTotalBytesSavedToDisk(){
+	public long getTotalBytesSavedToDisk(){
+		return bytes_saved.get();
+	}
+	
+	/**
+	 * Obtain the quantity of bytes downloaded for the overall file, but not necessarily save to disk.
+	 * Reads a cached counter without locking.
+	 * @return the number of bytes downloaded so far
+	 * @author Thomas Travis
+	 */
+	public long getTotalFileBytesDownloaded(){
+		return bytes_downloaded.get();
+	}
+	
+	/**
+	 * Obtain the download priority of the piece at the given index: the highest priority of the files it touches.
+	 * @param index
+	 * @author Thomas Travis
+	 */
+	public Priority getPiecePriority( int index ){
+		return piece_priorities[ index ];
+	}
+	
+	/**
+	 * Obtain the download priority of the file at the given index.
+	 * @param file - the index of the file, in torrent order.
+	 * @author Thomas Travis
+	 */
+	public synchronized Priority getFilePriority( int file ){
+		return file_priorities[ file ];
+	}
+	
+	/**
+	 * Change the download priority of the file at the given index, and with it the priorities of its pieces.
+	 * A file that was skipped before it was ever created is created now, taking along any bytes of it that
+	 * were stored with boundary pieces.
+	 * @param file - the index of the file, in torrent order.
+	 * @param priority
+	 * @return false if the file could not be created; true otherwise
+	 * @author Thomas Travis
+	 */
+	public boolean setFilePriority( int file, Priority priority ){
 		
-		synchronized(bitfield){
-			int total = 0;
-			for( int i = 0; i < number_of_pieces; i++ ){
-				if( bitfield.get( i ) == true ){
-					if( i == number_of_pieces - 1 )
-						total += final_piece_length;
-					else
-						total += piece_length;
+		//Moving bytes out of the parts file must not race blocks being written into it.
+		storage_lock.writeLock().lock();
+		try{
+			synchronized(this){
+				try{
+					storage.setSkipped( file, priority == Priority.SKIP );
+				}
+				catch( IOException e ){
+					paLog.log(Level.WARNING, "An I/O error occurred while creating a previously skipped file.", e);
+					return false;
 				}
+				
+				file_priorities[ file ] = priority;
+				piece_priorities = computePiecePriorities();
+				return true;
 			}
-			return total;
+		}
+		finally{
+			storage_lock.writeLock().unlock();
 		}
 	}
 	
 	/**
-	 * Obtain the quantity of bytes downloaded for the overall file, but not necessarily save to disk.
-	 * @return the number of bytes downloaded so far
+	 * Check to see if the block at the given offset of the given piece has already been received,
+	 * either as part of a completed piece or as part of the piece currently being assembled.
+	 * 
+	 * @param index
+	 * @param offset - the offset of the block within the piece.  Should be a multiple of BLOCK_LENGTH.
+	 * @return true if the block does not need to be requested again; false otherwise
 	 * @author Thomas Travis
 	 */
-	public int getTotalFileBytesDownloaded(){
+	public boolean haveBlock( int index, int offset ){
 		
-		synchronized(total_bytes_downloaded){
-			int total = 0;
-			for( int i = 0; i < number_of_pieces; i++ ){
-				total += total_bytes_downloaded[ i ];
-			}
-			return total;
+		if( have( index ) )
+			return true;
+		synchronized( pieceLock( index ) ){
+			if( received_blocks[ index ] == null )
+				return false;
+			return received_blocks[ index ].get( offset / BLOCK_LENGTH );
 		}
 	}
 	
@@ -190,7 +355,18 @@ public class FileManager {
 	 * 
 	 * @author Thomas Travis
 	 */
-	public synchronized Integer storeDataBlock( int length, byte[] data){
+	public Integer storeDataBlock( int length, byte[] data){
+		return storeDataBlock( length, data, null );
+	}
+	
+	/**
+	 * Process a requested data block as storeDataBlock( length, data ) does, telling the listener
+	 * about the block if it is accepted, before the piece it completes is verified.
+	 * 
+	 * @param listener - told about the block if it is stored, or null
+	 * @return as storeDataBlock( length, data )
+	 */
+	public Integer storeDataBlock( int length, byte[] data, BlockListener listener ){
 		
 		//Parse through data, separating out necessary fields.
 		ByteBuffer data_buffer = ByteBuffer.wrap(data);
@@ -201,23 +377,59 @@ public class FileManager {
 		byte[] data_block = new byte[ length ];
 		data_buffer.get(data_block, 0, length);
 		
+		//Obtain the block at the given index from disk.  The whole piece is read and hashed, so this is done
+		//before taking any lock.  If we don't actually have the block, the invalidation has already been journaled.
+		boolean invalidated = false;
 		if( have( index ) ){
-			
-			//Obtain the block at the given index from disk.
-			ByteBuffer retrieved = retrieveDataBlock( index, offset, length );
-			
-			//If we don't actually have the block, update global fields and save state.
-			if( retrieved == null ){
-				pieces[ index ] = null;
-				total_bytes_downloaded[ index ] = 0;
-				bitfield.set( index, false );
-				save();
-			}
-			//Else inform caller that we already have the piece.
-			else{
+			if( retrieveDataBlock( index, offset, length ) != null )
 				return null;
+			invalidated = true;
+		}
+		
+		Integer response;
+		storage_lock.readLock().lock();
+		try{
+			synchronized( pieceLock( index ) ){
+				response = assembleBlock( index, offset, data_block, invalidated, listener );
 			}
 		}
+		finally{
+			storage_lock.readLock().unlock();
+		}
+		
+		//Journal the completion.  Holding this object's lock keeps the record from slipping between a
+		//snapshot and the journal reset.
+		if( response != null && response == 1 ){
+			synchronized(this){
+				journal.append( index, true );
+			}
+			
+			//Wake any reader waiting on this piece.
+			synchronized( completion_lock ){
+				completion_lock.notifyAll();
+			}
+		}
+		return response;
+	}
+	
+	/**
+	 * Add a block to its piece, write it through to disk, and verify and force the piece once it is
+	 * complete.  The caller holds the lock of the piece.
+	 * 
+	 * @param invalidated - true if the piece was had until its copy on disk failed its hash check.
+	 * @return as storeDataBlock( length, data )
+	 */
+	protected Integer assembleBlock( int index, int offset, byte[] data_block, boolean invalidated, BlockListener listener ){
+		
+		int length = data_block.length;
+		if( invalidated ){
+			pieces[ index ] = null;
+			received_blocks[ index ] = null;
+			setPieceBytes( index, 0 );
+		}
+		//Another copy of the piece may have completed it while the block waited for the lock.
+		else if( have( index ) )
+			return null;
 		
 		//Create ByteBuffer for piece if necessary.
 		if( pieces[index] == null )
@@ -225,11 +437,29 @@ public class FileManager {
 				pieces[index] = ByteBuffer.allocate( final_piece_length );
 			else
 				pieces[index] = ByteBuffer.allocate( piece_length );
+		if( received_blocks[index] == null )
+			received_blocks[index] = new BitSet();
+		
+		//Ignore blocks we already hold.  These arrive when a request was reassigned to another peer.
+		int block = offset / BLOCK_LENGTH;
+		if( received_blocks[ index ].get( block ) )
+			return 0;
+		received_blocks[ index ].set( block );
+		if( listener != null )
+			listener.blockStored( index, offset, data_block, length );
 		
 		//Copy data into the piece's ByteBuffer, and then update the tally of how many bytes of this piece have been downloaded.
 		pieces[ index ].position( offset );
 		pieces[ index ].put(data_block, 0, length);
-		total_bytes_downloaded[ index ] += length;
+		setPieceBytes( index, total_bytes_downloaded[ index ] + length );
+		
+		//Write the block through to disk so the partial piece survives a restart.
+		if( !writeBlockToDisk( index, offset, data_block ) ){
+			setPieceBytes( index, 0 );
+			pieces[ index ] = null;
+			received_blocks[ index ] = null;
+			return -1;
+		}
 		
 		//Check to see if the piece has been completely downloaded.
 		if( total_bytes_downloaded[ index ] == pieces[ index ].array().length ){
@@ -237,30 +467,30 @@ public class FileManager {
 			//If so, verify its hash.
 			boolean verified = verifyHash( index, pieces[ index ] );
 			if( verified ){
-				//Write the piece to disk if its hash has been verified.
+				//Make sure the piece's blocks are on disk if its hash has been verified.
 				boolean written = writePieceToDisk( index );
 				if( written ){
-					//If the piece is successfully written to disk, set the bitfield, clear its buffer, and save state.
-					bitfield.set( index, true );
+					//If the piece is successfully written to disk, set the bitfield and clear its buffer.
+					setHave( index, true );
 					pieces[ index ] = null;
-					save();
+					received_blocks[ index ] = null;
 					return 1;
 				}
 				else{
-					//If the piece was not successfully written to disk, reset all progress for the piece and save state.
-					total_bytes_downloaded[ index ] = 0;
-					bitfield.set( index, false );
+					//If the piece was not successfully written to disk, reset all progress for the piece.
+					setPieceBytes( index, 0 );
+					setHave( index, false );
 					pieces[ index ] = null;
-					save();
+					received_blocks[ index ] = null;
 					return -1;
 				}
 			}
 			else{
-				//If the piece's hash was not verified, reset all progress for the piece and save state.
-				total_bytes_downloaded[ index ] = 0;
-				bitfield.set( index, false );
+				//If the piece's hash was not verified, reset all progress for the piece.
+				setPieceBytes( index, 0 );
+				setHave( index, false );
 				pieces[ index ] = null;
-				save();
+				received_blocks[ index ] = null;
 				return -1;
 			}
 		}
@@ -294,20 +524,10 @@ public class FileManager {
 		ByteBuffer piece = ByteBuffer.allocate( length );
 	
 		try{
-			//Open a File Channel to the download file to read bytes.
-			Path path = Paths.get(System.getProperty("user.dir")+File.separator+"downloads"+File.separator+info.getDownloadFilePath());
-			FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
-			
-			//Read the bytes of a full piece in from disk.
-			fc.position( index*piece_length );
-			int bytes_read = 0;
-			while( bytes_read < length ){
-				bytes_read = fc.read( piece );
-				//If the File Channel reaches the end of the stream, throw an IOException.
-				if( bytes_read == -1 )
-					throw new IOException();
-			}
-			fc.close();
+			//Read the bytes of a full piece in from disk, across however many files it spans.
+			//If a file ends before the piece does, throw an IOException.
+			if( storage.read( piece, (long)index*piece_length ) < length )
+				throw new IOException("Unexpected end of the download file.");
 		}
 		catch( IOException e ){
 			paLog.log(Level.WARNING, "An I/O Exception occurred while retrieving a data block from disk.", e);
@@ -323,80 +543,284 @@ public class FileManager {
 			block.put(piece.array(), offset, requested_block_length);
 			return block;
 		}
-		//Else update the bitfield, save state, and report that the requested block hasn't actually been downloaded yet.
+		//Else update the bitfield, journal the invalidation, and report that the requested block hasn't actually been downloaded yet.
+		//Holding this object's lock keeps the invalidation from slipping between a snapshot and the journal reset.
 		else{
-			synchronized(bitfield){
-				bitfield.set( index, false );
+			synchronized(this){
+				setHave( index, false );
+				journal.append( index, false );
 			}
-			save();
 			return null;
 		}
 	}
 	
 	/**
-	 * Save the progress of this download by serializing the bitfield.
+	 * Wait until the piece at the given index has been verified and written to disk.
+	 * 
+	 * @param index
+	 * @param timeout - the longest time to wait, in milliseconds.
+	 * @return true if we have the piece; false if the timeout elapsed first.
+	 * @throws InterruptedException if the waiting thread is interrupted.
+	 * @author Thomas Travis
+	 */
+	public boolean awaitPiece( int index, long timeout ) throws InterruptedException{
+		
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized( completion_lock ){
+			while( !have( index ) ){
+				long remaining = deadline - System.currentTimeMillis();
+				if( remaining <= 0 )
+					return false;
+				completion_lock.wait( remaining );
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Read verified bytes of the download file, starting at the given position, into the given buffer.
+	 * The read stops at the end of the piece holding the position, and the piece is not rehashed.
+	 * 
+	 * @param position - the offset within the total file.
+	 * @param dst - the buffer to read into.
+	 * @return the number of bytes read; 0 if we do not yet have the piece holding the position; 
+	 * -1 if the position is at or past the end of the file.
+	 * @throws IOException if the download file could not be read.
 	 * @author Thomas Travis
 	 */
-	public void save(){
+	public int readData( long position, ByteBuffer dst ) throws IOException{
+		
+		if( position >= info.file_length() )
+			return -1;
+		
+		int index = (int)( position / piece_length );
+		if( !have( index ) )
+			return 0;
+		
+		//Limit the read to the rest of the piece.
+		long piece_end = Math.min( (long)( index + 1 ) * piece_length, info.file_length() );
+		int length = (int)Math.min( dst.remaining(), piece_end - position );
+		ByteBuffer window = dst.duplicate();
+		window.limit( window.position() + length );
+		
+		//Read the bytes in from disk.
+		int bytes_read = storage.read( window, position );
+		if( bytes_read < length )
+			throw new IOException("Unexpected end of the download file.");
+		dst.position( dst.position() + bytes_read );
+		return bytes_read;
+	}
 	
+	/**
+	 * Save the progress of this download in the compact resume format: the bitfield, the received
+	 * blocks of partial pieces, and the size and modification time of the download file.  Once the
+	 * snapshot is on disk the completion journal is emptied, as the snapshot covers it.
+	 * @author Thomas Travis
+	 */
+	public synchronized void save(){
+		
 		//Obtain the path to the state saving file.
-		String save_file = info.getDownloadFilePath()+".data";
-		String path = System.getProperty("user.dir")+File.separator+"data"+File.separator+save_file;
+		File file = getSaveFile();
+		file.getParentFile().mkdirs();
 		
-		//Create the file, if necessary.
-		File file = null;
-		try{
-			file = new File( path );
-			if( !file.exists() ){
-				file.getParentFile().mkdirs();
-				file.createNewFile();
+		//Gather the state to be saved.  A block is marked received only once it is on disk, under
+		//the lock of its piece.
+		ResumeFile resume = new ResumeFile();
+		resume.info_hash = info.info_hash().array();
+		resume.piece_length = piece_length;
+		resume.number_of_pieces = number_of_pieces;
+		synchronized(bitfield){
+			resume.bitfield = (BitSet)bitfield.clone();
+		}
+		for( int i = 0; i < number_of_pieces; i++ ){
+			synchronized( pieceLock( i ) ){
+				if( received_blocks[ i ] != null && !resume.bitfield.get( i ) )
+					resume.partial_blocks.put( i, (BitSet)received_blocks[ i ].clone() );
 			}
 		}
+		
+		//Write the resume file along with the current state of the download files.
+		try{
+			resume.file_length = storage.diskLength();
+			resume.file_mtime = storage.lastModified();
+			resume.write( file );
+			journal.reset();
+		}
 		catch( IOException e ){
-			paLog.log(Level.WARNING, "An I/O error occurred while trying to create the save file.", e);
-			return;
+			paLog.log(Level.WARNING, "An I/O error occurred while trying to save client progress.", e);
 		}
+	}
+	
+	/**
+	 * Resume the download by restoring the bitfield and replaying the completion journal over it.
+	 * If the download file is unchanged since the resume file was written, the received blocks of
+	 * partial pieces are read back from disk as well, so they need not be downloaded again.  Save
+	 * files written in the older serialized BitSet format are still accepted.
+	 * 
+	 * @return 1 if we have previously downloaded all pieces; -1 if we have downloaded no pieces; 
+	 * 0 if we have downloaded some pieces.  Returns null if the save-state file does
+	 * not exist, belongs to another torrent, or if an I/O error occurred in reading the file.
+	 * @author Thomas Travis
+	 */
+	public Integer resume(){
 		
-		//Serialize and write the bitfield to the save file.
+		//Obtain the path to the state saving file.
+		File file = getSaveFile();
+		if( !file.exists() ){
+			paLog.log(Level.WARNING, "The download progress save file was not found.");
+			return null;
+		}
+		if( !ResumeFile.isResumeFile( file ) )
+			return resumeLegacy( file );
+		
+		ResumeFile resume;
+		try{
+			resume = ResumeFile.read( file );
+		}
+		catch( IOException e ){
+			paLog.log(Level.WARNING, "An I/O error occurred while reading in the resume file.", e);
+			return null;
+		}
+		
+		if( !resume.matches( info.info_hash().array(), piece_length, number_of_pieces ) ){
+			paLog.log(Level.WARNING, "The resume file does not belong to this torrent.");
+			return null;
+		}
+		
+		//Restore the bitfield, replay the pieces completed or invalidated since, and reset the 
+		//total_bytes_downloaded values as per the bitfield.
+		int replayed;
 		synchronized(bitfield){
-			
+			bitfield.clear();
+			bitfield.or( resume.bitfield );
 			try{
-				FileOutputStream fos = new FileOutputStream( file );
-				ObjectOutputStream oos = new ObjectOutputStream( fos );
-				oos.writeObject( bitfield );
-				oos.flush();
-				oos.close();
-				fos.close();
+				replayed = CompletionJournal.replay( getJournalFile(), bitfield, number_of_pieces );
 			}
 			catch( IOException e ){
-				paLog.log(Level.WARNING, "An I/O error occurred while trying to save client progress.", e);
-				return;
+				paLog.log(Level.WARNING, "An I/O error occurred while reading in the completion journal.", e);
+				replayed = 0;
 			}
 		}
+		resetTotalBytesDownloaded();
+		
+		//Restore partial pieces only if nobody touched the download file since it was saved.
+		//After a crash the journal accounts for the change: pieces are only journaled once they are
+		//on disk, so the bitfield still holds, but the partial pieces can't be trusted.
+		//Otherwise the bitfield can't be trusted either, so verify the whole file.
+		if( downloadFileMatches( resume.file_length, resume.file_mtime ) )
+			restorePartialPieces( resume.partial_blocks );
+		else if( replayed > 0 )
+			paLog.log(Level.INFO, "Resumed from the completion journal; partial pieces were discarded.");
+		else{
+			paLog.log(Level.INFO, "The download file changed since the resume file was written; rechecking.");
+			return recheck( null );
+		}
+		
+		//The saved state is loaded, so the journal may now be folded into a new snapshot.
+		journal.start();
+		
+		//Check to see how far along we are in the download, and return.
+		int status = getDownloadStatus();
+		return status;
 	}
 	
 	/**
-	 * Resume the download by restoring the bitfield.
+	 * Verify the whole download file against the piece hashes and rebuild the bitfield from the result.
+	 * Any partial pieces are discarded.  Block storage is suspended while the recheck runs.
 	 * 
-	 * @return 1 if we have previously downloaded all pieces; -1 if we have downloaded no pieces; 
-	 * 0 if we have downloaded some pieces.  Returns null if the save-state file does
-	 * not exist, or if an I/O error occurred in reading the file.
+	 * @param listener - receives progress and throughput reports; may be null.
+	 * @return as per resume(), or null if the download file could not be read or the recheck was interrupted.
 	 * @author Thomas Travis
 	 */
-	public Integer resume(){
+	public Integer recheck( PieceRechecker.Listener listener ){
 		
-		//Obtain the path to the state saving file.
-		String save_file = info.getDownloadFilePath()+".data";
-		String path = System.getProperty("user.dir")+File.separator+"data"+File.separator+save_file;
+		storage_lock.writeLock().lock();
+		try{
+			synchronized(this){
+				return recheckLocked( listener );
+			}
+		}
+		finally{
+			storage_lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Recheck as recheck() does.  The caller holds storage_lock exclusively and this object's lock.
+	 */
+	protected Integer recheckLocked( PieceRechecker.Listener listener ){
+		
+		BitSet verified;
+		try{
+			verified = new PieceRechecker( info, storage ).recheck( listener );
+		}
+		catch( IOException e ){
+			paLog.log(Level.WARNING, "An I/O error occurred while rechecking the download file.", e);
+			return null;
+		}
+		catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		
+		//Replace the bitfield and drop any partial pieces.
+		synchronized(bitfield){
+			bitfield.clear();
+			bitfield.or( verified );
+		}
+		for( int i = 0; i < number_of_pieces; i++ ){
+			synchronized( pieceLock( i ) ){
+				pieces[ i ] = null;
+				received_blocks[ i ] = null;
+			}
+		}
+		resetTotalBytesDownloaded();
+		save();
+		journal.start();
+		
+		//Wake any reader waiting on a piece that turned out to be present.
+		synchronized( completion_lock ){
+			completion_lock.notifyAll();
+		}
+		
+		return getDownloadStatus();
+	}
+	
+	/**
+	 * Close the completion journal and the download file.
+	 * @author Thomas Travis
+	 */
+	public void close(){
+		
+		closed = true;
+		journal.close();
+		
+		try{
+			storage.close();
+		}
+		catch( IOException e ){
+			paLog.log(Level.WARNING, "An I/O error occurred while closing the download file.", e);
+		}
+	}
+	
+	/**
+	 * Resume the download from a save file holding a serialized BitSet.
+	 * @param file
+	 * @return as per resume()
+	 * @author Thomas Travis
+	 */
+	protected Integer resumeLegacy( File file ){
 		
 		try{
 			//Open streams to the serialized BitSet's file.
-			FileInputStream fis = new FileInputStream( path );
+			FileInputStream fis = new FileInputStream( file );
 			ObjectInputStream ois = new ObjectInputStream( fis );
 			
 			//Deserialize BitSet, and set bitfield to its value.
+			BitSet saved = (BitSet)ois.readObject();
 			synchronized(bitfield){
-				bitfield = (BitSet)ois.readObject();
+				bitfield.clear();
+				bitfield.or( saved );
 			}
 			
 			ois.close();
@@ -417,37 +841,229 @@ public class FileManager {
 		
 		//Reset the total_bytes_downloaded values as per the bitfield.
 		resetTotalBytesDownloaded();
+		journal.start();
 		
 		//Check to see how far along we are in the download, and return.
 		int status = getDownloadStatus();
 		return status;
 	}
 	
+	/**
+	 * Check whether the download files still have the given total length and latest modification time.
+	 * @param length
+	 * @param mtime
+	 * @return true if both match; false if either differs or a file can't be inspected
+	 * @author Thomas Travis
+	 */
+	protected boolean downloadFileMatches( long length, long mtime ){
+		
+		try{
+			return storage.diskLength() == length && storage.lastModified() == mtime;
+		}
+		catch( IOException e ){
+			return false;
+		}
+	}
+	
+	/**
+	 * Read the received blocks of partial pieces back from the download file.  A piece whose blocks
+	 * turn out to be complete is verified and marked as had or reset accordingly.
+	 * @param partial_blocks - the received block bitmaps, keyed by piece index.
+	 * @author Thomas Travis
+	 */
+	protected void restorePartialPieces( Map<Integer, BitSet> partial_blocks ){
+		
+		storage_lock.writeLock().lock();
+		try{
+			restorePartialPiecesLocked( partial_blocks );
+		}
+		finally{
+			storage_lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Restore partial pieces as restorePartialPieces() does.  The caller holds storage_lock exclusively.
+	 */
+	protected void restorePartialPiecesLocked( Map<Integer, BitSet> partial_blocks ){
+		
+		for( Map.Entry<Integer, BitSet> entry : partial_blocks.entrySet() ){
+			
+			int index = entry.getKey();
+			BitSet blocks = entry.getValue();
+			if( index < 0 || index >= number_of_pieces || have( index ) )
+				continue;
+			
+			int length = ( index == number_of_pieces - 1 ) ? final_piece_length : piece_length;
+			ByteBuffer piece = ByteBuffer.allocate( length );
+			BitSet received = new BitSet();
+			int total = 0;
+			
+			try{
+				for( int b = blocks.nextSetBit( 0 ); b >= 0 && b * BLOCK_LENGTH < length; b = blocks.nextSetBit( b + 1 ) ){
+					int offset = b * BLOCK_LENGTH;
+					int block_length = Math.min( BLOCK_LENGTH, length - offset );
+					ByteBuffer window = ByteBuffer.wrap( piece.array(), offset, block_length );
+					if( storage.read( window, (long)index*piece_length + offset ) < block_length )
+						throw new IOException("Unexpected end of the download file.");
+					received.set( b );
+					total += block_length;
+				}
+			}
+			catch( IOException e ){
+				paLog.log(Level.WARNING, "An I/O error occurred while restoring a partial piece.", e);
+				continue;
+			}
+			
+			//A piece whose last block landed just before shutdown only needs its hash checked.
+			if( total == length ){
+				if( verifyHash( index, piece ) ){
+					setHave( index, true );
+					setPieceBytes( index, length );
+				}
+				continue;
+			}
+			
+			synchronized( pieceLock( index ) ){
+				pieces[ index ] = piece;
+				received_blocks[ index ] = received;
+			}
+			setPieceBytes( index, total );
+		}
+	}
+	
+	/**
+	 * Map the file priorities to piece priorities.  Each file only visits the pieces it spans, so this
+	 * takes O(pieces + files).
+	 * @return the priority of every piece
+	 * @author Thomas Travis
+	 */
+	protected Priority[] computePiecePriorities(){
+		
+		Priority[] priorities = new Priority[ number_of_pieces ];
+		Arrays.fill( priorities, Priority.SKIP );
+		
+		long[] file_lengths = info.file_lengths();
+		long start = 0;
+		for( int i = 0; i < file_lengths.length; i++ ){
+			if( file_lengths[ i ] > 0 ){
+				int first = (int)( start / piece_length );
+				int last = (int)( ( start + file_lengths[ i ] - 1 ) / piece_length );
+				for( int p = first; p <= last; p++ )
+					if( file_priorities[ i ].compareTo( priorities[ p ] ) > 0 )
+						priorities[ p ] = file_priorities[ i ];
+			}
+			start += file_lengths[ i ];
+		}
+		return priorities;
+	}
+	
 	/**
 	 * Reset the values in total_bytes_downloaded.  Sets the values of items we have
 	 * (as per the bitfield), to the respective piece's total byte size; items the bitfield
-	 * states we don't have are set to zero.
+	 * states we don't have are set to zero.  The cached counters and the wire format bitfield are
+	 * rebuilt from scratch, which is only needed after the whole bitfield has been replaced.
 	 * @author Thomas Travis
 	 */
 	protected void resetTotalBytesDownloaded(){
 		
 		synchronized(this){
-			for( int i = 0; i < number_of_pieces; i++ ){
-				if( have( i ) ){
-					if( i == number_of_pieces - 1 )
-						total_bytes_downloaded[ i ] = final_piece_length;
-					else
-						total_bytes_downloaded[ i ] = piece_length;
-				}
-				else{
-					total_bytes_downloaded[ i ] = 0;
+			int had = 0;
+			long saved = 0;
+			synchronized(bitfield){
+				Arrays.fill( wire_bitfield, (byte)0 );
+				for( int i = bitfield.nextSetBit( 0 ); i >= 0 && i < number_of_pieces; i = bitfield.nextSetBit( i + 1 ) ){
+					had++;
+					saved += pieceLength( i );
+					wire_bitfield[ i >> 3 ] |= (byte)( 0x80 >>> ( i & 7 ) );
 				}
+				pieces_had.set( had );
+				bytes_saved.set( saved );
 			}
+			
+			synchronized(total_bytes_downloaded){
+				for( int i = 0; i < number_of_pieces; i++ )
+					total_bytes_downloaded[ i ] = have( i ) ? pieceLength( i ) : 0;
+				bytes_downloaded.set( saved );
+			}
+		}
+	}
+	
+	/**
+	 * Set or clear the bit of a single piece, keeping the cached counters and the wire format bitfield in step.
+	 * @param index
+	 * @param value - true if we now have the piece; false otherwise.
+	 * @author Thomas Travis
+	 */
+	protected void setHave( int index, boolean value ){
+		
+		synchronized(bitfield){
+			if( bitfield.get( index ) == value )
+				return;
+			bitfield.set( index, value );
+			if( value )
+				wire_bitfield[ index >> 3 ] |= (byte)( 0x80 >>> ( index & 7 ) );
+			else
+				wire_bitfield[ index >> 3 ] &= (byte)~( 0x80 >>> ( index & 7 ) );
+			pieces_had.addAndGet( value ? 1 : -1 );
+			bytes_saved.addAndGet( value ? pieceLength( index ) : -pieceLength( index ) );
+		}
+	}
+	
+	/**
+	 * Set the quantity of bytes downloaded for a single piece, keeping the cached total in step.
+	 * @param index
+	 * @param bytes
+	 * @author Thomas Travis
+	 */
+	protected void setPieceBytes( int index, int bytes ){
+		
+		synchronized(total_bytes_downloaded){
+			bytes_downloaded.addAndGet( bytes - total_bytes_downloaded[ index ] );
+			total_bytes_downloaded[ index ] = bytes;
+		}
+	}
+	
+	/**
+	 * Obtain the lock guarding the buffer and received blocks of the piece at the given index.
+	 * @author Thomas Travis
+	 */
+	protected Object pieceLock( int index ){
+		return piece_locks[ index % piece_locks.length ];
+	}
+	
+	/**
+	 * Obtain the length of the piece at the given index.
+	 * @author Thomas Travis
+	 */
+	protected int pieceLength( int index ){
+		return ( index == number_of_pieces - 1 ) ? final_piece_length : piece_length;
+	}
+	
+	/**
+	 * Write a single block of a piece to its place in the download file.
+	 * @param index
+	 * @param offset - the offset of the block within the piece.
+	 * @param block
+	 * @return true if the block has been successfully written; false otherwise.
+	 * @author Thomas Travis
+	 */
+	protected boolean writeBlockToDisk( int index, int offset, byte[] block ){
+		
+		try{
+			storage.write( ByteBuffer.wrap( block ), (long)index*piece_length + offset );
+		}
+		catch( IOException e ){
+			paLog.log(Level.WARNING, "An I/O error occurred while writing a block to the disk.", e);
+			return false;
 		}
+		
+		return true;
 	}
 	
 	/**
-	 * Write the bytes of the piece at the given index to disk.
+	 * Make sure the bytes of the piece at the given index, which were written block by block as they
+	 * arrived, have reached the disk.
 	 * @param index
 	 * @return true if the piece has been successfully written to the disk; false otherwise.
 	 * @author Thomas Travis
@@ -455,27 +1071,9 @@ public class FileManager {
 	protected boolean writePieceToDisk( int index ){
 		
 		try {
-			
-			//Open a FileChannel to the download file to write bytes.
-			Path path = Paths.get(System.getProperty("user.dir")+File.separator+"downloads"+File.separator+info.getDownloadFilePath());
-			FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE);
-			
-			synchronized( pieces ){
-				
-				//Prepare ByteBuffer for write.
-				pieces[ index ].flip();
-				
-				//Set to the correct position within the target file, and then write bytes.
-				fc.position( index*piece_length );
-				while( pieces[ index ].hasRemaining() ){
-					fc.write( pieces[ index ]);
-				}				
-			}
-			
-			//Force channel to write remaining bytes in channel to disk (Equivalent to a stream's flush() method).
-			fc.force(false);
-			fc.close();
-			
+			//Force the files holding the piece to write their remaining bytes to disk (Equivalent to a stream's flush() method).
+			int length = ( index == number_of_pieces - 1 ) ? final_piece_length : piece_length;
+			storage.force( (long)index*piece_length, length );
 		}
 		catch (IOException e) {
 			paLog.log(Level.WARNING, "An I/O error occurred while writing a piece to the disk.", e);
@@ -485,6 +1083,55 @@ public class FileManager {
 		return true;
 	}
 	
+	/**
+	 * Obtain the path to the download file, or to the directory holding the files of a multi-file torrent.
+	 * @author Thomas Travis
+	 */
+	protected Path getDownloadPath(){
+		return Paths.get(info.getHomeDirectory().getPath()+File.separator+"downloads"+File.separator+info.getDownloadFilePath());
+	}
+	
+	/**
+	 * Obtain the path of every file of the torrent, in torrent order.
+	 * @author Thomas Travis
+	 */
+	protected Path[] getStoragePaths(){
+		
+		if( !info.multi_file() )
+			return new Path[]{ getDownloadPath() };
+		
+		String[] file_paths = info.file_paths();
+		Path[] paths = new Path[ file_paths.length ];
+		for( int i = 0; i < file_paths.length; i++ )
+			paths[ i ] = getDownloadPath().resolve( file_paths[ i ].replace( '/', File.separatorChar ) );
+		return paths;
+	}
+	
+	/**
+	 * Obtain the path to the parts file, which holds the bytes of skipped files that share pieces with wanted files.
+	 * @author Thomas Travis
+	 */
+	protected Path getPartsPath(){
+		return Paths.get(info.getHomeDirectory().getPath()+File.separator+"downloads"+File.separator+info.getDownloadFilePath()+".parts");
+	}
+	
+	/**
+	 * Obtain the state saving file.
+	 * @author Thomas Travis
+	 */
+	protected File getSaveFile(){
+		String save_file = info.getDownloadFilePath()+".data";
+		return new File( info.getHomeDirectory().getPath()+File.separator+"data"+File.separator+save_file );
+	}
+	
+	/**
+	 * Obtain the completion journal file, which sits next to the state saving file.
+	 * @author Thomas Travis
+	 */
+	protected File getJournalFile(){
+		return new File( getSaveFile().getPath()+".journal" );
+	}
+	
 	/**
 	 * Verify the hash of the given piece.
 	 * @param index - corresponds to the position (index*piece_length) of the piece within the file.
@@ -495,7 +1142,6 @@ public class FileManager {
 	protected boolean verifyHash( int index, ByteBuffer piece ){
 		
 		//Obtain bytes for comparison
-		byte[] expected_bytes = info.piece_hashes()[ index ].array();
 		byte [] actual_bytes = piece.array();
 		
 		try{
@@ -503,8 +1149,8 @@ public class FileManager {
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
 			//Digest the piece's bytes (that is, run them through the hashing algorithm).
 			byte [] digestedActualBytes = md.digest( actual_bytes );
-			//Compare the digested piece's bytes to those from the .torrent MetaInfo object.
-			if( !Arrays.equals(expected_bytes, digestedActualBytes) ){
+			//Compare the digested piece's bytes to those from the .torrent MetaInfo object, in place.
+			if( !info.piece_hashes().matches( index, digestedActualBytes ) ){
 				return false;
 			}
 		}
@@ -518,35 +1164,80 @@ public class FileManager {
 	}
 	
 	/**
-	 * Create the file to which the download is saved.
-	 * @return true if the file is successfully created; false otherwise.
+	 * Obtain the Preallocation named by the rubt.preallocation system property.
+	 * @return the named Preallocation, or SPARSE if the property is unset or unrecognized.
+	 * @author Thomas Travis
+	 */
+	public static Preallocation getDefaultPreallocation(){
+		
+		String name = System.getProperty( PREALLOCATION_PROPERTY );
+		if( name == null )
+			return Preallocation.SPARSE;
+		try{
+			return Preallocation.valueOf( name.trim().toUpperCase() );
+		}
+		catch( IllegalArgumentException e ){
+			return Preallocation.SPARSE;
+		}
+	}
+	
+	/**
+	 * Create the files to which the download is saved, reserving their space as per the Preallocation.
+	 * No more than a single piece is ever held in memory, and any zero-filling happens off the calling thread.
+	 * @return true if the files are successfully created; false otherwise.
 	 * @author Thomas Travis
 	 */
 	protected boolean createDownloadFile(){
 		
-		String path = System.getProperty("user.dir")+File.separator+"downloads"+File.separator+info.getDownloadFilePath();
+		try{
+			storage.create( preallocation );
+		}
+		catch( IOException e ){
+			paLog.log(Level.SEVERE, "An I/O error occurred while creating the download file.", e);
+			return false;
+		}
 		
-		File file = new File( path );
-		if( !file.exists() ){
-			
-			try{
-				//Create file.
-				file.getParentFile().mkdirs();
-				file.createNewFile();
+		//Have the blocks of new files really allocated, without delaying the start of the download.
+		if( preallocation == Preallocation.FULL && storage.createdAny() )
+			fillDownloadFile();
+		return true;
+	}
+	
+	/**
+	 * Write zeros over every piece of the newly created download files on a background thread.  Each piece
+	 * is written while holding its lock, and skipped if any of its blocks have arrived in the meantime.
+	 * @author Thomas Travis
+	 */
+	protected void fillDownloadFile(){
+		
+		Thread filler = new Thread( new Runnable(){
+			public void run(){
 				
-				//Allocate the space necessary to download the total file.
-				FileOutputStream fos = new FileOutputStream( file );
-				fos.write(new byte[ info.file_length() ]);
-				fos.flush();
-				fos.close();
-			}
-			catch( IOException e ){
-				if( file.exists() )
-					file.delete();
-				paLog.log(Level.SEVERE, "An I/O error occurred while creating the download file.", e);
-				return false;
+				for( int i = 0; i < number_of_pieces && !closed; i++ ){
+					
+					storage_lock.readLock().lock();
+					try{
+						synchronized( pieceLock( i ) ){
+							if( have( i ) || received_blocks[ i ] != null )
+								continue;
+							
+							try{
+								int length = ( i == number_of_pieces - 1 ) ? final_piece_length : piece_length;
+								storage.zeroFill( (long)i*piece_length, length );
+							}
+							catch( IOException e ){
+								paLog.log(Level.WARNING, "An I/O error occurred while preallocating the download file.", e);
+								return;
+							}
+						}
+					}
+					finally{
+						storage_lock.readLock().unlock();
+					}
+				}
 			}
-		}
-		return true;
+		});
+		filler.setDaemon( true );
+		filler.start();
 	}
 }
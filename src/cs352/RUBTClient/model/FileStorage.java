@@ -0,0 +1,544 @@
+package cs352.RUBTClient.model;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*************************************************************************
+ * The files of a torrent, laid end to end as one continuous range of
+ * bytes.  The start of every file within the torrent is kept in a sorted
+ * array, so the file holding any position is found by binary search in
+ * O(log files), and a range of the torrent is mapped to the spans of the
+ * files it crosses.  Reads and writes are gathered from and scattered
+ * across those spans.
+ *
+ * Files are opened on demand through a pool of at most MAX_OPEN_FILES
+ * channels, least recently used first out.  A channel is never closed
+ * while a read or write is using it.
+ *
+ * A skipped file is never created.  The bytes of it that belong to pieces
+ * shared with wanted files are kept in a sparse side file, the parts file,
+ * at their offset within the torrent, so only those boundary pieces take
+ * up space.  If the file is wanted again later, its bytes are moved out of
+ * the parts file into the newly created file.
+ *
+ * @author Thomas Travis
+ * For CS352 2013 Summer Session
+ *
+ *************************************************************************/
+public class FileStorage {
+
+	/** The largest number of files held open at once. */
+	public static final int MAX_OPEN_FILES = 64;
+
+	/** The key of the parts file in the channel pool. */
+	protected static final int PARTS = -1;
+
+	/**
+	 * A run of bytes lying within a single file.
+	 */
+	public static class Span {
+
+		/** The index of the file. */
+		public final int file;
+		/** The offset of the run within the file. */
+		public final long file_offset;
+		/** The length of the run. */
+		public final int length;
+
+		public Span( int file, long file_offset, int length ){
+			this.file = file;
+			this.file_offset = file_offset;
+			this.length = length;
+		}
+	}
+
+	protected Path[] paths;
+	protected long[] lengths;
+	protected long[] starts;
+	protected long total_length;
+	protected Path parts_path;
+	protected int piece_length;
+	protected BitSet created;
+	protected BitSet skipped;
+	protected BitSet redirected;
+	protected LinkedHashMap<Integer, PooledChannel> open_channels;
+
+	/**
+	 * @param paths - the path of each file, in torrent order.
+	 * @param lengths - the length of each file, in torrent order.
+	 * @param parts_path - the path of the parts file holding the boundary pieces of skipped files.
+	 * @param piece_length - the nominal length of the pieces of the torrent.
+	 */
+	public FileStorage( Path[] paths, long[] lengths, Path parts_path, int piece_length ){
+
+		this.paths = paths;
+		this.lengths = lengths;
+		this.parts_path = parts_path;
+		this.piece_length = piece_length;
+		starts = new long[ lengths.length ];
+		total_length = 0;
+		for( int i = 0; i < lengths.length; i++ ){
+			starts[ i ] = total_length;
+			total_length += lengths[ i ];
+		}
+		created = new BitSet( paths.length );
+		skipped = new BitSet( paths.length );
+		redirected = new BitSet( paths.length );
+		open_channels = new LinkedHashMap<Integer, PooledChannel>( 16, 0.75f, true );
+	}
+
+	/**
+	 * Create every wanted file that does not exist yet, reserving its space as per the Preallocation.
+	 * FULL is treated as SPARSE here; the zeros are written afterwards with zeroFill().  Skipped files
+	 * that do not exist are left uncreated, and their bytes are kept in the parts file.
+	 * @param preallocation
+	 * @throws IOException if a file could not be created.
+	 * @author Thomas Travis
+	 */
+	public void create( FileManager.Preallocation preallocation ) throws IOException{
+
+		for( int i = 0; i < paths.length; i++ ){
+			if( Files.exists( paths[ i ] ) )
+				continue;
+
+			if( skipped.get( i ) ){
+				redirected.set( i );
+				continue;
+			}
+
+			createFile( i, preallocation != FileManager.Preallocation.NONE );
+			created.set( i );
+		}
+	}
+
+	/**
+	 * Mark the given file as skipped or wanted.  A skipped file that already exists keeps being used.
+	 * A file that was kept in the parts file is created once it is wanted again, and its bytes are
+	 * moved into it.
+	 * @param file
+	 * @param skip
+	 * @throws IOException if the file could not be created or its bytes could not be moved.
+	 * @author Thomas Travis
+	 */
+	public void setSkipped( int file, boolean skip ) throws IOException{
+
+		if( skip ){
+			skipped.set( file );
+			return;
+		}
+
+		skipped.clear( file );
+		if( !redirected.get( file ) )
+			return;
+
+		createFile( file, true );
+
+		//Only the pieces at either end of the file can be shared with wanted files, so only those
+		//bytes can have been stored.
+		long start = starts[ file ];
+		long end = start + lengths[ file ];
+		long head_end = Math.min( end, ( start / piece_length + 1 ) * piece_length );
+		long tail_start = Math.max( head_end, ( ( end - 1 ) / piece_length ) * piece_length );
+		if( Files.exists( parts_path ) ){
+			moveFromParts( file, start, head_end );
+			moveFromParts( file, tail_start, end );
+		}
+
+		synchronized( open_channels ){
+			redirected.clear( file );
+		}
+	}
+
+	/**
+	 * Check whether any file was created by the last call to create().
+	 * @author Thomas Travis
+	 */
+	public boolean createdAny(){
+		return !created.isEmpty();
+	}
+
+	/**
+	 * Find the file holding the given position of the torrent.  Empty files never hold a position.
+	 * @param position - an offset within the torrent, less than its total length.
+	 * @return the index of the file
+	 * @author Thomas Travis
+	 */
+	public int fileAt( long position ){
+
+		//Find the last file starting at or before the position.  An empty file shares its start with
+		//the file after it, so the last such file is never empty.
+		int low = 0;
+		int high = starts.length - 1;
+		while( low < high ){
+			int middle = ( low + high + 1 ) >>> 1;
+			if( starts[ middle ] <= position )
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Map a range of the torrent to the spans of the files it crosses.
+	 * @param position - the offset of the range within the torrent.
+	 * @param length
+	 * @return the spans, in order; the range is cut short at the end of the torrent.
+	 * @author Thomas Travis
+	 */
+	public ArrayList<Span> map( long position, int length ){
+
+		ArrayList<Span> spans = new ArrayList<Span>( 2 );
+		if( position >= total_length || length <= 0 )
+			return spans;
+
+		int file = fileAt( position );
+		long remaining = Math.min( length, total_length - position );
+		while( remaining > 0 && file < lengths.length ){
+			long file_offset = position - starts[ file ];
+			int span_length = (int)Math.min( remaining, lengths[ file ] - file_offset );
+			if( span_length > 0 ){
+				spans.add( new Span( file, file_offset, span_length ) );
+				position += span_length;
+				remaining -= span_length;
+			}
+			file++;
+		}
+		return spans;
+	}
+
+	/**
+	 * Read the bytes of the torrent starting at the given position, filling the buffer up to its limit.
+	 * Where a file has not yet grown to its full length, the missing bytes are skipped and the buffer's
+	 * contents there are left untouched.
+	 * @param dst
+	 * @param position - the offset within the torrent.
+	 * @return the number of bytes read; fewer than requested if the end of the torrent, or the end of
+	 * a short file, was reached.
+	 * @throws IOException if a file could not be read.
+	 * @author Thomas Travis
+	 */
+	public int read( ByteBuffer dst, long position ) throws IOException{
+
+		int total = 0;
+		ArrayList<Span> spans = map( position, dst.remaining() );
+		for( int i = 0; i < spans.size(); i++ ){
+
+			Span span = spans.get( i );
+			ByteBuffer window = dst.duplicate();
+			window.limit( window.position() + span.length );
+
+			int key = keyOf( span.file );
+			long file_position = positionOf( span );
+			FileChannel fc = acquire( key );
+			try{
+				while( window.hasRemaining() ){
+					if( fc.read( window, file_position + window.position() - dst.position() ) == -1 )
+						break;
+				}
+			}
+			finally{
+				release( key );
+			}
+
+			total += window.position() - dst.position();
+			dst.position( window.limit() );
+		}
+		return total;
+	}
+
+	/**
+	 * Write the remaining bytes of the buffer to the torrent, starting at the given position.
+	 * @param src
+	 * @param position - the offset within the torrent.
+	 * @throws IOException if a file could not be written, or the bytes run past the end of the torrent.
+	 * @author Thomas Travis
+	 */
+	public void write( ByteBuffer src, long position ) throws IOException{
+
+		if( position + src.remaining() > total_length )
+			throw new IOException("Write past the end of the torrent.");
+
+		ArrayList<Span> spans = map( position, src.remaining() );
+		for( int i = 0; i < spans.size(); i++ ){
+
+			Span span = spans.get( i );
+			ByteBuffer window = src.duplicate();
+			window.limit( window.position() + span.length );
+
+			int key = keyOf( span.file );
+			long file_position = positionOf( span );
+			FileChannel fc = acquire( key );
+			try{
+				while( window.hasRemaining() )
+					fc.write( window, file_position + window.position() - src.position() );
+			}
+			finally{
+				release( key );
+			}
+
+			src.position( window.position() );
+		}
+	}
+
+	/**
+	 * Write zeros over a range of the torrent, skipping files that already existed before create().
+	 * @param position - the offset within the torrent.
+	 * @param length
+	 * @throws IOException if a file could not be written.
+	 * @author Thomas Travis
+	 */
+	public void zeroFill( long position, int length ) throws IOException{
+
+		ArrayList<Span> spans = map( position, length );
+		for( int i = 0; i < spans.size(); i++ ){
+
+			Span span = spans.get( i );
+			if( !created.get( span.file ) )
+				continue;
+
+			ByteBuffer zeros = ByteBuffer.allocate( span.length );
+			FileChannel fc = acquire( span.file );
+			try{
+				while( zeros.hasRemaining() )
+					fc.write( zeros, span.file_offset + zeros.position() );
+			}
+			finally{
+				release( span.file );
+			}
+		}
+	}
+
+	/**
+	 * Force the bytes written to a range of the torrent to the disk.
+	 * @param position - the offset within the torrent.
+	 * @param length
+	 * @throws IOException if a file could not be forced.
+	 * @author Thomas Travis
+	 */
+	public void force( long position, int length ) throws IOException{
+
+		ArrayList<Span> spans = map( position, length );
+		for( int i = 0; i < spans.size(); i++ ){
+			int key = keyOf( spans.get( i ).file );
+			FileChannel fc = acquire( key );
+			try{
+				fc.force( false );
+			}
+			finally{
+				release( key );
+			}
+		}
+	}
+
+	/**
+	 * Obtain the total length of the files, including the parts file, as they are on disk.
+	 * @throws IOException if a file is missing.
+	 * @author Thomas Travis
+	 */
+	public long diskLength() throws IOException{
+
+		long total = 0;
+		for( int i = 0; i < paths.length; i++ )
+			if( !redirected.get( i ) )
+				total += Files.size( paths[ i ] );
+		if( Files.exists( parts_path ) )
+			total += Files.size( parts_path );
+		return total;
+	}
+
+	/**
+	 * Obtain the latest modification time of any of the files, including the parts file, in milliseconds.
+	 * @throws IOException if a file is missing.
+	 * @author Thomas Travis
+	 */
+	public long lastModified() throws IOException{
+
+		long latest = 0;
+		for( int i = 0; i < paths.length; i++ )
+			if( !redirected.get( i ) )
+				latest = Math.max( latest, Files.getLastModifiedTime( paths[ i ] ).toMillis() );
+		if( Files.exists( parts_path ) )
+			latest = Math.max( latest, Files.getLastModifiedTime( parts_path ).toMillis() );
+		return latest;
+	}
+
+	/**
+	 * Obtain the total length of the torrent.
+	 * @author Thomas Travis
+	 */
+	public long length(){
+		return total_length;
+	}
+
+	/**
+	 * Close every open file.
+	 * @throws IOException if a file could not be closed.
+	 * @author Thomas Travis
+	 */
+	public void close() throws IOException{
+
+		synchronized( open_channels ){
+			IOException failure = null;
+			for( PooledChannel pc : open_channels.values() ){
+				try{
+					pc.channel.close();
+				}
+				catch( IOException e ){
+					failure = e;
+				}
+			}
+			open_channels.clear();
+			if( failure != null )
+				throw failure;
+		}
+	}
+
+	/**
+	 * Obtain the pool key of the channel holding the bytes of the given file.
+	 */
+	protected int keyOf( int file ){
+
+		synchronized( open_channels ){
+			return redirected.get( file ) ? PARTS : file;
+		}
+	}
+
+	/**
+	 * Obtain the position of a span within the channel holding it.  The parts file is addressed by
+	 * offset within the torrent.
+	 */
+	protected long positionOf( Span span ){
+
+		synchronized( open_channels ){
+			return redirected.get( span.file ) ? starts[ span.file ] + span.file_offset : span.file_offset;
+		}
+	}
+
+	/**
+	 * Create the given file, setting it to its full length if asked.
+	 */
+	protected void createFile( int file, boolean set_length ) throws IOException{
+
+		Path parent = paths[ file ].getParent();
+		if( parent != null )
+			Files.createDirectories( parent );
+		Files.createFile( paths[ file ] );
+
+		//Set the file to its full length; the file system fills it with zeros lazily.
+		if( set_length ){
+			RandomAccessFile raf = new RandomAccessFile( paths[ file ].toFile(), "rw" );
+			try{
+				raf.setLength( lengths[ file ] );
+			}
+			finally{
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Copy the bytes of the given range of the torrent, which lies within the given file, from the
+	 * parts file into the file.
+	 */
+	protected void moveFromParts( int file, long from, long to ) throws IOException{
+
+		if( to <= from )
+			return;
+
+		ByteBuffer buffer = ByteBuffer.allocate( (int)( to - from ) );
+		FileChannel parts = acquire( PARTS );
+		try{
+			while( buffer.hasRemaining() ){
+				if( parts.read( buffer, from + buffer.position() ) == -1 )
+					break;
+			}
+		}
+		finally{
+			release( PARTS );
+		}
+
+		buffer.flip();
+		FileChannel fc = acquire( file );
+		try{
+			while( buffer.hasRemaining() )
+				fc.write( buffer, from - starts[ file ] + buffer.position() );
+		}
+		finally{
+			release( file );
+		}
+	}
+
+	/**
+	 * Obtain the channel with the given pool key, opening it if necessary, and mark it in use.
+	 */
+	protected FileChannel acquire( int key ) throws IOException{
+
+		synchronized( open_channels ){
+			PooledChannel pc = open_channels.get( key );
+			if( pc == null || !pc.channel.isOpen() ){
+				evict();
+				Path path = ( key == PARTS ) ? parts_path : paths[ key ];
+				if( key == PARTS && path.getParent() != null )
+					Files.createDirectories( path.getParent() );
+				pc = new PooledChannel( FileChannel.open( path, StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE ) );
+				open_channels.put( key, pc );
+			}
+			pc.users++;
+			return pc.channel;
+		}
+	}
+
+	/**
+	 * Mark the channel with the given pool key as no longer in use by the caller.
+	 */
+	protected void release( int key ){
+
+		synchronized( open_channels ){
+			PooledChannel pc = open_channels.get( key );
+			if( pc != null )
+				pc.users--;
+		}
+	}
+
+	/**
+	 * Close the least recently used idle channels until there is room for another.  If every channel is
+	 * in use, the pool briefly grows past MAX_OPEN_FILES instead.
+	 */
+	protected void evict() throws IOException{
+
+		Iterator<Map.Entry<Integer, PooledChannel>> it = open_channels.entrySet().iterator();
+		while( open_channels.size() >= MAX_OPEN_FILES && it.hasNext() ){
+			PooledChannel pc = it.next().getValue();
+			if( pc.users > 0 )
+				continue;
+			it.remove();
+			pc.channel.close();
+		}
+	}
+
+	/**
+	 * An open channel along with the number of reads and writes using it.
+	 */
+	protected static class PooledChannel {
+
+		protected FileChannel channel;
+		protected int users;
+
+		protected PooledChannel( FileChannel channel ){
+			this.channel = channel;
+			users = 0;
+		}
+	}
+}
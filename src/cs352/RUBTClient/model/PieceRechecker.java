@@ -0,0 +1,177 @@
+package cs352.RUBTClient.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs352.RUBTClient.utils.SessionInfo;
+
+/*************************************************************************
+ * Verify an existing download against the piece hashes of its .torrent
+ * file.  The file is read sequentially in large batches of whole pieces
+ * on the calling thread, while the pieces of each batch are hashed in
+ * parallel on a fork-join pool, so a recheck is limited by the disk rather
+ * than by a single core.  The number of batches in flight is bounded to
+ * keep memory use constant.
+ *
+ * @author Thomas Travis
+ * For CS352 2013 Summer Session
+ *
+ *************************************************************************/
+public class PieceRechecker {
+
+	/**
+	 * Receives progress reports while a recheck runs.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param bytes_checked - the number of bytes hashed so far.
+		 * @param total_bytes - the number of bytes to hash in total.
+		 * @param bytes_per_second - the average throughput so far.
+		 */
+		public void progress( long bytes_checked, long total_bytes, double bytes_per_second );
+	}
+
+	/** The pool on which pieces are hashed. */
+	protected static final ForkJoinPool HASH_POOL = new ForkJoinPool();
+
+	/** The target size of a single sequential read. */
+	protected static final int READ_SIZE = 4*1024*1024;
+
+	protected SessionInfo info;
+	protected FileStorage storage;
+	protected int piece_length;
+	protected int number_of_pieces;
+	protected long file_length;
+
+	protected BitSet verified;
+	protected AtomicLong bytes_checked;
+
+	public PieceRechecker( SessionInfo info, FileStorage storage ){
+
+		this.info = info;
+		this.storage = storage;
+		piece_length = info.piece_length();
+		number_of_pieces = info.number_of_pieces();
+		file_length = info.file_length();
+		verified = new BitSet( number_of_pieces );
+		bytes_checked = new AtomicLong();
+	}
+
+	/**
+	 * Hash every piece of the download file.
+	 * @param listener - notified after every batch; may be null.
+	 * @return a BitSet with the bit of every piece whose hash matches set.
+	 * @throws IOException if the download file could not be read.
+	 * @throws InterruptedException if the calling thread is interrupted.
+	 * @author Thomas Travis
+	 */
+	public BitSet recheck( Listener listener ) throws IOException, InterruptedException{
+
+		int pieces_per_batch = Math.max( 1, READ_SIZE / piece_length );
+		Semaphore in_flight = new Semaphore( HASH_POOL.getParallelism() + 1 );
+		ArrayList<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+		long start = System.nanoTime();
+
+		for( int first = 0; first < number_of_pieces; first += pieces_per_batch ){
+
+			int last = Math.min( first + pieces_per_batch, number_of_pieces );
+			long position = (long)first*piece_length;
+			int length = (int)( Math.min( (long)last*piece_length, file_length ) - position );
+
+			//Read the whole batch sequentially.  Bytes past the end of a short file are left as zeros.
+			in_flight.acquire();
+			ByteBuffer batch = ByteBuffer.allocate( length );
+			storage.read( batch, position );
+
+			//Hand the batch to the pool and move on to the next read.
+			tasks.add( HASH_POOL.submit( new HashTask( batch.array(), first, first, last, in_flight ) ) );
+
+			report( listener, start );
+		}
+
+		for( int i = 0; i < tasks.size(); i++ )
+			tasks.get( i ).join();
+		report( listener, start );
+
+		synchronized( verified ){
+			return (BitSet)verified.clone();
+		}
+	}
+
+	/**
+	 * Pass the current progress to the listener, if any.
+	 */
+	protected void report( Listener listener, long start ){
+
+		if( listener == null )
+			return;
+
+		long checked = bytes_checked.get();
+		double seconds = Math.max( 1, System.nanoTime() - start ) / 1e9;
+		listener.progress( checked, file_length, checked / seconds );
+	}
+
+	/**
+	 * Hashes a range of the pieces in a batch, splitting the range in half until a single piece remains.
+	 */
+	protected class HashTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		protected byte[] batch;
+		protected int batch_first;
+		protected int first;
+		protected int last;
+		protected Semaphore in_flight;
+
+		protected HashTask( byte[] batch, int batch_first, int first, int last, Semaphore in_flight ){
+			this.batch = batch;
+			this.batch_first = batch_first;
+			this.first = first;
+			this.last = last;
+			this.in_flight = in_flight;
+		}
+
+		protected void compute(){
+
+			try{
+				if( last - first > 1 ){
+					int middle = ( first + last ) >>> 1;
+					invokeAll( new HashTask( batch, batch_first, first, middle, null ),
+							new HashTask( batch, batch_first, middle, last, null ) );
+					return;
+				}
+
+				int offset = ( first - batch_first )*piece_length;
+				int length = Math.min( piece_length, batch.length - offset );
+				MessageDigest md = MessageDigest.getInstance("SHA-1");
+				md.update( batch, offset, length );
+				if( info.piece_hashes().matches( first, md.digest() ) ){
+					synchronized( verified ){
+						verified.set( first );
+					}
+				}
+				bytes_checked.addAndGet( length );
+			}
+			catch( NoSuchAlgorithmException e ){
+				//SHA-1 is an algorithm supported by the JVM, so we should never reach here.
+				throw new IllegalStateException( e );
+			}
+			finally{
+				//Only the task covering the whole batch holds a permit.
+				if( in_flight != null )
+					in_flight.release();
+			}
+		}
+	}
+}
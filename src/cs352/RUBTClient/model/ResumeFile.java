@@ -0,0 +1,191 @@
+package cs352.RUBTClient.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*************************************************************************
+ * The compact, versioned binary resume format.  A resume file holds:
+ *
+ *   magic "RUBT" (int), format version (short),
+ *   info hash (20 bytes), piece length (int), number of pieces (int),
+ *   download file length (long), download file mtime (long),
+ *   the bitfield of completed pieces (ceil(pieces/8) bytes, MSB first),
+ *   the number of partial pieces (int), and for each partial piece its
+ *   index (int), its number of blocks (int), and its bitmap of received
+ *   blocks (ceil(blocks/8) bytes, MSB first).
+ *
+ * The file length and mtime describe the download files at the moment the
+ * resume file was written (their total length and latest mtime, for a
+ * multi-file torrent); if either differs on resume, the partial piece
+ * bitmaps cannot be trusted.
+ *
+ * @author Thomas Travis
+ * For CS352 2013 Summer Session
+ *
+ *************************************************************************/
+public class ResumeFile {
+
+	public static final int MAGIC = 0x52554254;
+	public static final short VERSION = 1;
+
+	public byte[] info_hash;
+	public int piece_length;
+	public int number_of_pieces;
+	public long file_length;
+	public long file_mtime;
+	public BitSet bitfield;
+	public TreeMap<Integer, BitSet> partial_blocks;
+
+	public ResumeFile(){
+		bitfield = new BitSet();
+		partial_blocks = new TreeMap<Integer, BitSet>();
+	}
+
+	/**
+	 * Check whether the given file starts with the resume file magic number.
+	 * @param file
+	 * @return true if the file is in this format; false if it is missing, too short, or in another format
+	 * @author Thomas Travis
+	 */
+	public static boolean isResumeFile( File file ){
+
+		try{
+			DataInputStream dis = new DataInputStream( new FileInputStream( file ) );
+			try{
+				return dis.readInt() == MAGIC;
+			}
+			finally{
+				dis.close();
+			}
+		}
+		catch( IOException e ){
+			return false;
+		}
+	}
+
+	/**
+	 * Read a resume file from disk.
+	 * @param file
+	 * @return the decoded resume data
+	 * @throws IOException if the file could not be read, or is not a resume file of a supported version.
+	 * @author Thomas Travis
+	 */
+	public static ResumeFile read( File file ) throws IOException{
+
+		DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+		try{
+			if( dis.readInt() != MAGIC )
+				throw new IOException("Not a resume file.");
+			short version = dis.readShort();
+			if( version != VERSION )
+				throw new IOException("Unsupported resume file version "+version+".");
+
+			ResumeFile resume = new ResumeFile();
+			resume.info_hash = new byte[20];
+			dis.readFully( resume.info_hash );
+			resume.piece_length = dis.readInt();
+			resume.number_of_pieces = dis.readInt();
+			resume.file_length = dis.readLong();
+			resume.file_mtime = dis.readLong();
+			resume.bitfield = readBits( dis, resume.number_of_pieces );
+
+			int partial_count = dis.readInt();
+			for( int i = 0; i < partial_count; i++ ){
+				int index = dis.readInt();
+				int blocks = dis.readInt();
+				resume.partial_blocks.put( index, readBits( dis, blocks ) );
+			}
+			return resume;
+		}
+		finally{
+			dis.close();
+		}
+	}
+
+	/**
+	 * Write this resume data to disk.  The data is written to a temporary file which then replaces
+	 * the target, so a crash never leaves a half-written resume file behind.
+	 * @param file
+	 * @throws IOException if the file could not be written.
+	 * @author Thomas Travis
+	 */
+	public void write( File file ) throws IOException{
+
+		File tmp = new File( file.getPath()+".tmp" );
+		DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+		try{
+			dos.writeInt( MAGIC );
+			dos.writeShort( VERSION );
+			dos.write( info_hash, 0, 20 );
+			dos.writeInt( piece_length );
+			dos.writeInt( number_of_pieces );
+			dos.writeLong( file_length );
+			dos.writeLong( file_mtime );
+			writeBits( dos, bitfield, number_of_pieces );
+
+			dos.writeInt( partial_blocks.size() );
+			int blocks_per_piece = ( piece_length + FileManager.BLOCK_LENGTH - 1 ) / FileManager.BLOCK_LENGTH;
+			for( Map.Entry<Integer, BitSet> entry : partial_blocks.entrySet() ){
+				dos.writeInt( entry.getKey() );
+				dos.writeInt( blocks_per_piece );
+				writeBits( dos, entry.getValue(), blocks_per_piece );
+			}
+		}
+		finally{
+			dos.close();
+		}
+
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+	}
+
+	/**
+	 * Check whether this resume data was written for the given torrent.
+	 * @param info_hash_in
+	 * @param piece_length_in
+	 * @param number_of_pieces_in
+	 * @return true if the info hash and piece geometry match
+	 * @author Thomas Travis
+	 */
+	public boolean matches( byte[] info_hash_in, int piece_length_in, int number_of_pieces_in ){
+		return Arrays.equals( info_hash, info_hash_in )
+				&& piece_length == piece_length_in
+				&& number_of_pieces == number_of_pieces_in;
+	}
+
+	/**
+	 * Pack the first count bits of the given BitSet, MSB first, and write them.
+	 */
+	protected static void writeBits( DataOutputStream dos, BitSet bits, int count ) throws IOException{
+
+		byte[] packed = new byte[ ( count + 7 ) / 8 ];
+		for( int i = bits.nextSetBit( 0 ); i >= 0 && i < count; i = bits.nextSetBit( i + 1 ) )
+			packed[ i >> 3 ] |= (byte)( 0x80 >>> ( i & 7 ) );
+		dos.write( packed );
+	}
+
+	/**
+	 * Read count bits packed MSB first into a BitSet.
+	 */
+	protected static BitSet readBits( DataInputStream dis, int count ) throws IOException{
+
+		byte[] packed = new byte[ ( count + 7 ) / 8 ];
+		dis.readFully( packed );
+		BitSet bits = new BitSet( count );
+		for( int i = 0; i < count; i++ )
+			if( ( packed[ i >> 3 ] & ( 0x80 >>> ( i & 7 ) ) ) != 0 )
+				bits.set( i );
+		return bits;
+	}
+}
@@ -0,0 +1,348 @@
+package cs352.RUBTClient.resources;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pull parser over bencoded data held in a {@code ByteBuffer}.&nbsp; Each call to {@link #next()}
+ * steps over one token and reports its type; the value of an integer is then available from
+ * {@link #intValue()}, and a byte string is described by its position and length in the buffer
+ * rather than copied.&nbsp; No tree is built, so walking even a large metainfo file or tracker
+ * response allocates nothing beyond the reader itself.
+ * <p>
+ * Strings at key positions of a dictionary are reported as {@link Token#KEY}, everything else as
+ * values.&nbsp; The buffer is read with absolute gets between its position and limit at construction,
+ * and is never modified.
+ *
+ * @author Thomas Travis
+ *
+ */
+public final class BencodeReader
+{
+    /**
+     * The kinds of token the reader reports.
+     */
+    public enum Token
+    {
+        /** The start of a dictionary; its keys and values follow, then {@link #END}. */
+        DICTIONARY,
+        /** The start of a list; its values follow, then {@link #END}. */
+        LIST,
+        /** A byte string used as a dictionary key. */
+        KEY,
+        /** An integer value. */
+        INTEGER,
+        /** A byte string value. */
+        BYTES,
+        /** The end of the innermost open dictionary or list. */
+        END,
+        /** The end of the data, outside of any dictionary or list. */
+        EOF
+    }
+
+    /**
+     * Container states kept on the stack.
+     */
+    private static final byte IN_LIST = 0;
+    private static final byte EXPECT_KEY = 1;
+    private static final byte EXPECT_VALUE = 2;
+
+    /**
+     * The largest number of digits accepted in an integer.
+     */
+    private static final int MAX_INTEGER_DIGITS = 18;
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int position;
+
+    private byte[] stack;
+    private int depth;
+
+    private Token token;
+    private int token_start;
+    private long int_value;
+    private int bytes_start;
+    private int bytes_length;
+
+    /**
+     * Creates a reader over the bytes between the buffer's position and limit.
+     * @param buffer the bencoded data.
+     */
+    public BencodeReader(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+        this.stack = new byte[16];
+        this.depth = 0;
+    }
+
+    /**
+     * Creates a reader over the whole byte array.
+     * @param bencoded_bytes the bencoded data.
+     */
+    public BencodeReader(byte[] bencoded_bytes)
+    {
+        this(ByteBuffer.wrap(bencoded_bytes));
+    }
+
+    /**
+     * Steps over the next token.
+     * @return the type of the token.
+     * @throws BencodingException if the data is incorrectly encoded or ends inside a dictionary or list.
+     */
+    public Token next() throws BencodingException
+    {
+        token_start = position;
+        if(position >= limit)
+        {
+            if(depth > 0)
+                throw new BencodingException("Bencoded data ended inside an unterminated dictionary or list.");
+            return token = Token.EOF;
+        }
+
+        byte b = buffer.get(position);
+        byte state = depth > 0 ? stack[depth - 1] : IN_LIST;
+
+        if(b == 'e')
+        {
+            if(depth == 0)
+                throw new BencodingException("Unexpected 'e' at position " + position + ".");
+            if(state == EXPECT_VALUE)
+                throw new BencodingException("Dictionary key without a value at position " + position + ".");
+            depth--;
+            position++;
+            return token = Token.END;
+        }
+
+        if(state == EXPECT_KEY)
+        {
+            if(b < '0' || b > '9')
+                throw new BencodingException("Expected a byte string dictionary key at position " + position + ".");
+            readString();
+            stack[depth - 1] = EXPECT_VALUE;
+            return token = Token.KEY;
+        }
+
+        //A value is starting, so the enclosing dictionary now waits for its next key.
+        if(state == EXPECT_VALUE)
+            stack[depth - 1] = EXPECT_KEY;
+
+        switch(b)
+        {
+        case 'd':
+            position++;
+            push(EXPECT_KEY);
+            return token = Token.DICTIONARY;
+        case 'l':
+            position++;
+            push(IN_LIST);
+            return token = Token.LIST;
+        case 'i':
+            readInteger();
+            return token = Token.INTEGER;
+        default:
+            if(b < '0' || b > '9')
+                throw new BencodingException("Invalid character '" + (char)b + "' at position " + position + ".");
+            readString();
+            return token = Token.BYTES;
+        }
+    }
+
+    /**
+     * Skips the rest of the value that the current token started.&nbsp; After {@link Token#DICTIONARY}
+     * or {@link Token#LIST} this steps over the whole container, up to and including its {@link Token#END};
+     * after any other token it does nothing.
+     * @throws BencodingException if the data is incorrectly encoded.
+     */
+    public void skip() throws BencodingException
+    {
+        if(token != Token.DICTIONARY && token != Token.LIST)
+            return;
+        int target = depth - 1;
+        while(depth > target)
+            next();
+    }
+
+    /**
+     * @return the last token returned by {@link #next()}, or {@code null} before the first call.
+     */
+    public Token token()
+    {
+        return token;
+    }
+
+    /**
+     * @return the value of the current {@link Token#INTEGER}.
+     */
+    public long intValue()
+    {
+        return int_value;
+    }
+
+    /**
+     * @return the index in the buffer of the first byte of the current {@link Token#KEY} or {@link Token#BYTES}.
+     */
+    public int bytesStart()
+    {
+        return bytes_start;
+    }
+
+    /**
+     * @return the length of the current {@link Token#KEY} or {@link Token#BYTES}.
+     */
+    public int bytesLength()
+    {
+        return bytes_length;
+    }
+
+    /**
+     * Compares the current {@link Token#KEY} or {@link Token#BYTES} against the given bytes without copying it.
+     * @param other the bytes to compare against.
+     * @return true if the byte string holds exactly the given bytes.
+     */
+    public boolean bytesEqual(byte[] other)
+    {
+        if(other.length != bytes_length)
+            return false;
+        for(int i = 0; i < bytes_length; i++)
+            if(buffer.get(bytes_start + i) != other[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @return a copy of the current {@link Token#KEY} or {@link Token#BYTES}.
+     */
+    public byte[] copyBytes()
+    {
+        byte[] copy = new byte[bytes_length];
+        if(buffer.hasArray())
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + bytes_start, copy, 0, bytes_length);
+        else
+            for(int i = 0; i < bytes_length; i++)
+                copy[i] = buffer.get(bytes_start + i);
+        return copy;
+    }
+
+    /**
+     * @return a read-only view of the current {@link Token#KEY} or {@link Token#BYTES}, sharing the underlying buffer.
+     */
+    public ByteBuffer slice()
+    {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.limit(bytes_start + bytes_length);
+        view.position(bytes_start);
+        return view.slice();
+    }
+
+    /**
+     * @return the index in the buffer at which the current token began.
+     */
+    public int tokenStart()
+    {
+        return token_start;
+    }
+
+    /**
+     * @return the index in the buffer of the next unread byte.
+     */
+    public int position()
+    {
+        return position;
+    }
+
+    /**
+     * @return the number of dictionaries and lists currently open.
+     */
+    public int depth()
+    {
+        return depth;
+    }
+
+    /**
+     * @return the buffer this reader reads from.
+     */
+    public ByteBuffer buffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Opens a dictionary or list.
+     */
+    private void push(byte state)
+    {
+        if(depth == stack.length)
+        {
+            byte[] grown = new byte[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+        }
+        stack[depth++] = state;
+    }
+
+    /**
+     * Reads "i[-]digits e" at the current position.
+     */
+    private void readInteger() throws BencodingException
+    {
+        int start = position++;
+        boolean negative = false;
+        if(position < limit && buffer.get(position) == '-')
+        {
+            negative = true;
+            position++;
+        }
+
+        long value = 0;
+        int digits = 0;
+        for(; position < limit; position++)
+        {
+            byte b = buffer.get(position);
+            if(b == 'e')
+                break;
+            if(b < '0' || b > '9')
+                throw new BencodingException("Expected an ASCII integer character, found " + (int)b + " at position " + position + ".");
+            if(++digits > MAX_INTEGER_DIGITS)
+                throw new BencodingException("Integer at position " + start + " is too large.");
+            value = value * 10 + (b - '0');
+        }
+        if(position >= limit)
+            throw new BencodingException("Unterminated integer at position " + start + ".");
+        if(digits == 0)
+            throw new BencodingException("Empty integer at position " + start + ".");
+
+        position++;   // Skip the 'e'
+        int_value = negative ? -value : value;
+    }
+
+    /**
+     * Reads "length:bytes" at the current position, recording where the bytes are.
+     */
+    private void readString() throws BencodingException
+    {
+        int start = position;
+        long length = 0;
+        for(; position < limit; position++)
+        {
+            byte b = buffer.get(position);
+            if(b == ':')
+                break;
+            if(b < '0' || b > '9')
+                throw new BencodingException("Error: Invalid character at position " + position + ".\nExpecting ':' but found '" + (char)b + "'.");
+            length = length * 10 + (b - '0');
+            if(length > Integer.MAX_VALUE)
+                throw new BencodingException("Byte string at position " + start + " is too long.");
+        }
+        if(position >= limit)
+            throw new BencodingException("Unterminated byte string length at position " + start + ".");
+
+        position++;   // Skip the ':'
+        if(length > limit - position)
+            throw new BencodingException("Byte string at position " + start + " runs past the end of the data.");
+        bytes_start = position;
+        bytes_length = (int)length;
+        position += bytes_length;
+    }
+}
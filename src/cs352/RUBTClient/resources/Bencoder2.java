@@ -26,38 +26,15 @@ import java.util.TreeMap;
 
 /**
  * Parses a Bencoded byte array and returns a combination of {@code Map},
- * {@code List}, {@code ByteBuffer}, and {@code Integer} objects.
+ * {@code List}, {@code ByteBuffer}, and {@code Long} objects.&nbsp; The tree is
+ * built from the tokens of a {@link BencodeReader}; callers that only need a few
+ * values can use the reader directly and skip building the tree.
  * 
  * @author Robert Moore II
  *
  */
 public final class Bencoder2 
 {
-	/**
-	 * Indicates an invalid object type or bencoded object.
-	 */
-    private static final int INVALID = -1;
-    
-    /**
-     * Indicates that an object is a dictionary.
-     */
-    private static final int DICTIONARY = 0;
-    
-    /**
-     * Indicates that an object is an integer.
-     */
-    private static final int INTEGER = 1;
-    
-    /**
-     * Indicates an object is a byte string.
-     */
-    private static final int STRING = 2;
-    
-    /**
-     * Indicates an object is a list.
-     */
-    private static final int LIST = 3;
-    
     /*
      ********************************************
      ************ CONVENIENCE METHODS ***********
@@ -65,17 +42,37 @@ public final class Bencoder2
      */
     
     /**
-     * Extracts the bencoded 'info' dictionary from a metainfo torrent file.
+     * Key of the 'info' dictionary in a metainfo torrent file.
+     */
+    private static final byte[] KEY_INFO = new byte[] {'i', 'n', 'f', 'o'};
+    
+    /**
+     * Extracts the bencoded 'info' dictionary from a metainfo torrent file.&nbsp; Only the top-level
+     * keys are read; every value is stepped over without being decoded.
      * @param torrent_file_bytes the bencoded metainfo dictionary.
      * @return a {@code ByteBuffer} containing the bencoded 'info' dictionary from the metainfo file.
      * @throws BencodingException if the 'info' key is not contained in the decoded dictionary.
      */
     public static final ByteBuffer getInfoBytes(byte[] torrent_file_bytes) throws BencodingException
     {
-        Object[] vals = decodeDictionary(torrent_file_bytes,0);
-        if(vals.length != 3 || vals[2] == null)
+        BencodeReader reader = new BencodeReader(torrent_file_bytes);
+        if(reader.next() != BencodeReader.Token.DICTIONARY)
             throw new BencodingException("Exception: No info bytes found!");
-        return (ByteBuffer)vals[2];
+        
+        while(reader.next() == BencodeReader.Token.KEY)
+        {
+            boolean match = reader.bytesEqual(KEY_INFO);
+            reader.next();
+            int start = reader.tokenStart();
+            reader.skip();
+            if(match)
+            {
+                byte[] info_bytes = new byte[reader.position() - start];
+                System.arraycopy(torrent_file_bytes, start, info_bytes, 0, info_bytes.length);
+                return ByteBuffer.wrap(info_bytes);
+            }
+        }
+        throw new BencodingException("Exception: No info bytes found!");
     }
     
     /*
@@ -87,203 +84,81 @@ public final class Bencoder2
     /**
      * Decodes a bencoded object represented by the byte array.
      * @param bencoded_bytes the bencoded data to decode.
-     * @return either a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Integer}.
+     * @return either a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Long}.
      * @throws BencodingException if the bencoded data was improperly formatted.
      */
     public static final Object decode(byte[] bencoded_bytes) throws BencodingException
     {
-        return decode(bencoded_bytes, 0)[1];
-    }
-    
-    /**
-     * Decodes a bencoded object represented by the byte array, starting at the specified offset.
-     * @param bencoded_bytes the bencoded data to decode.
-     * @param offset the offset into {@code bencoded_bytes} at which to start decoding.
-     * @return a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Integer}.
-     * @throws BencodingException if the bencoded object in {@code bencoded_bytes} at offset {@code offset} is incorrectly encoded. 
-     */
-    private static final Object[] decode(byte[] bencoded_bytes, int offset) throws BencodingException
-    {
-        switch(nextObject(bencoded_bytes, offset))
-        {
-        case DICTIONARY:
-            return decodeDictionary(bencoded_bytes, offset);
-        case LIST:
-            return decodeList(bencoded_bytes, offset);
-        case INTEGER:
-            return decodeInteger(bencoded_bytes, offset);
-        case STRING:
-            return decodeString(bencoded_bytes, offset);
-        default:
-            return null;
-        }
+        return decode(new BencodeReader(bencoded_bytes));
     }
     
     /**
-     * Decodes an integer from the byte array.
-     * @param bencoded_bytes the byte array of the bencoded integer.
-     * @param offset the position of the 'i' indicating the start of the
-     *        bencoded integer to be bdecoded.
-     * @return an <code>Object[]</code> containing an <code>Integer</code> offset and the decoded
-     *          <code>Integer</code>, in positions 0 and 1, respectively
-     * @throws BencodingException if the bencoded integer in {@code bencoded_bytes} at offset {@code offset} is incorrectly encoded.
-     */
-    private static final Object[] decodeInteger(byte[] bencoded_bytes, int offset) throws BencodingException
-    {
-        StringBuffer int_chars = new StringBuffer();
-        offset++;
-        for(; bencoded_bytes[offset] != (byte)'e' && bencoded_bytes.length > (offset); offset++)
-        {
-            if((bencoded_bytes[offset] < 48 || bencoded_bytes[offset] > 57) && bencoded_bytes[offset] != 45)
-                throw new BencodingException("Expected an ASCII integer character, found " + (int)bencoded_bytes[offset]);
-            int_chars.append((char)bencoded_bytes[offset]);
-        }
-        try 
-        {
-            offset++;   // Skip the 'e'
-            return new Object[] {new Integer(offset),new Integer(Integer.parseInt(int_chars.toString()))};
-        }
-        catch(NumberFormatException nfe)
-        {
-            throw new BencodingException("Could not parse integer at position" + offset + ".\nInvalid character at position " + offset + ".");
-        }
-    }
-    
-    /**
-     * Decodes a byte string from the byte array
-     * @param bencoded_bytes the bencoded form of the byte string.
-     * @param offset the offset into {@code bencoded_bytes} where the byte string begins.
-     * @return an <code>Object[]</code> containing an <code>Integer</code> offset and the decoded
-     *          byte string (as a {@code ByteBuffer}), in positions 0 and 1, respectively
-     * @throws BencodingException if the bencoded object is incorrectly encoded.
-     */
-    private static final Object[] decodeString(byte[] bencoded_bytes, int offset) throws BencodingException
-    {
-        StringBuffer digits = new StringBuffer();
-        while(bencoded_bytes[offset] > '/' && bencoded_bytes[offset] < ':')
-        {
-            digits.append((char)bencoded_bytes[offset++]);
-        }
-        if(bencoded_bytes[offset] != ':')
-        {
-            throw new BencodingException("Error: Invalid character at position " + offset + ".\nExpecting ':' but found '" + (char)bencoded_bytes[offset] + "'.");
-        }
-        offset++;
-        int length = Integer.parseInt(digits.toString());
-        byte[] byte_string = new byte[length];
-        System.arraycopy(bencoded_bytes, offset, byte_string, 0, byte_string.length);
-        return new Object[] {new Integer(offset+length), ByteBuffer.wrap(byte_string)};
-    }
-    
-    /**
-     * Decodes a list from the bencoded byte array.
-     * @param bencoded_bytes the bencoded form of the list.
-     * @param offset the offset into {@code bencoded_bytes} where the list begins.
-     * @return an <code>Object[]</code> containing an <code>Integer</code> offset and the decoded
-     *          list (as a {@code List}), in positions 0 and 1, respectively
-     * @throws BencodingException if the bencoded object is incorrectly encoded.
+     * Decodes the bencoded object between the position and limit of the buffer.
+     * @param bencoded the bencoded data to decode.
+     * @return either a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Long}.
+     * @throws BencodingException if the bencoded data was improperly formatted.
      */
-    @SuppressWarnings("unchecked")
-	private static final Object[] decodeList(byte[] bencoded_bytes, int offset) throws BencodingException
+    public static final Object decode(ByteBuffer bencoded) throws BencodingException
     {
-        ArrayList list = new ArrayList();
-        offset++;
-        Object[] vals;
-        while(bencoded_bytes[offset] != (byte)'e')
-        {
-            vals = decode(bencoded_bytes,offset);
-            offset = ((Integer)vals[0]).intValue();
-            list.add(vals[1]);
-        }
-        offset++;
-        return new Object[] {new Integer(offset), list};
+        return decode(new BencodeReader(bencoded));
     }
     
     /**
-     * Decodes a dictionary from the bencoded byte array.
-     * @param bencoded_bytes the bencoded form of the dictionary.
-     * @param offset the offset into {@code bencoded_bytes} where the dictionary begins.
-     * @return an <code>Object[]</code> containing an <code>Integer</code> offset and the decoded
-     *          dictionary (as a {@code Map}, in positions 0 and 1, respectively
-     * @throws BencodingException if the bencoded object is incorrectly encoded.
+     * Builds the tree of the next object of the reader from its tokens.&nbsp; Containers are kept on an
+     * explicit stack, so deeply nested data cannot overflow the call stack.&nbsp; Byte strings are copied
+     * into arrays of their own, so {@code ByteBuffer.array()} holds exactly the string.
+     * @param reader a reader positioned before the object to decode.
+     * @return either a {@code Map}, {@code List}, {@code ByteBuffer}, or {@code Long}.
+     * @throws BencodingException if the bencoded data was improperly formatted.
      */
     @SuppressWarnings("unchecked")
-	private static final Object[] decodeDictionary(byte[] bencoded_bytes, int offset) throws BencodingException
+    public static final Object decode(BencodeReader reader) throws BencodingException
     {
-        HashMap map = new HashMap();
-        ++offset;
-        ByteBuffer info_hash_bytes = null;
-        while(bencoded_bytes[offset] != (byte)'e')
+        ArrayList<Object> containers = new ArrayList<Object>();
+        ArrayList<ByteBuffer> container_keys = new ArrayList<ByteBuffer>();
+        ByteBuffer key = null;
+        
+        while(true)
         {
-
-            // Decode the key, which must be a byte string
-            Object[] vals = decodeString(bencoded_bytes, offset);
-            ByteBuffer key = (ByteBuffer)vals[1];
-            offset = ((Integer)vals[0]).intValue();
-            boolean match = true;
-            for(int i = 0; i < key.array().length && i < 4; i++)
-            {
-                if(!key.equals(ByteBuffer.wrap(new byte[]{'i', 'n','f','o'})))
-                {
-                    match = false;
-                    break;
-                }
-            }
-            int info_offset = -1;
-            if(match)
-                info_offset = offset;
-            vals = decode(bencoded_bytes, offset);
-            offset = ((Integer)vals[0]).intValue();
-            if(match)
-            {
-                info_hash_bytes = ByteBuffer.wrap(new byte[offset - info_offset]);
-                info_hash_bytes.put(bencoded_bytes,info_offset, info_hash_bytes.array().length);
-            }
-            else if(vals[1] instanceof HashMap)
+            Object value;
+            switch(reader.next())
             {
-                info_hash_bytes = (ByteBuffer)vals[2];
+            case KEY:
+                key = ByteBuffer.wrap(reader.copyBytes());
+                continue;
+            case DICTIONARY:
+                containers.add(new HashMap());
+                container_keys.add(key);
+                key = null;
+                continue;
+            case LIST:
+                containers.add(new ArrayList());
+                container_keys.add(key);
+                key = null;
+                continue;
+            case END:
+                value = containers.remove(containers.size() - 1);
+                key = container_keys.remove(container_keys.size() - 1);
+                break;
+            case INTEGER:
+                value = Long.valueOf(reader.intValue());
+                break;
+            case BYTES:
+                value = ByteBuffer.wrap(reader.copyBytes());
+                break;
+            default:
+                throw new BencodingException("Error: No bencoded object found.");
             }
-            if(vals[1] != null)
-                map.put(key,vals[1]);
-        }
-
-        return new Object[] {new Integer(++offset), map, info_hash_bytes};
-    }
-    
-    /**
-     * Determines the bencoded data type at {@code bencoded_bytes[offset]}.
-     * @param bencoded_bytes the bencoded data.
-     * @param offset the offset into {@code bencoded_bytes} that contains a bencoded object.
-     * @return the type of the bencoded object.
-     * @see #DICTIONARY
-     * @see #LIST
-     * @see #INTEGER
-     * @see #STRING
-     * @see #INVALID
-     */
-    private static final int nextObject(byte[] bencoded_bytes, int offset)
-    {
-        switch(bencoded_bytes[offset])
-        {
-        case (byte)'d':
-            return DICTIONARY;
-        case (byte)'i':
-            return INTEGER;
-        case (byte)'l':
-            return LIST;
-        case (byte)'0':
-        case (byte)'1':
-        case (byte)'2':
-        case (byte)'3':
-        case (byte)'4':
-        case (byte)'5':
-        case (byte)'6':
-        case (byte)'7':
-        case (byte)'8':
-        case (byte)'9':
-            return STRING;
-        default:
-            return INVALID;
+            
+            if(containers.isEmpty())
+                return value;
+            
+            Object parent = containers.get(containers.size() - 1);
+            if(parent instanceof HashMap)
+                ((HashMap)parent).put(key, value);
+            else
+                ((ArrayList)parent).add(value);
+            key = null;
         }
     }
     
@@ -298,7 +173,7 @@ public final class Bencoder2
      * @param o the object to bencode.
      * @return the bencoded form of the object.
      * @throws BencodingException if {@code o} is not of type {@code HashMap}, {@code ArrayList},
-     *  		{@code Integer}, or {@code ByteBuffer}.
+     *  		{@code Integer}, {@code Long}, or {@code ByteBuffer}.
      */
     @SuppressWarnings("unchecked")
 	public static final byte[] encode(Object o) throws BencodingException
@@ -307,8 +182,8 @@ public final class Bencoder2
             return encodeDictionary((HashMap)o);
         else if(o instanceof ArrayList)
             return encodeList((ArrayList)o);
-        else if(o instanceof Integer)
-            return encodeInteger((Integer)o);
+        else if(o instanceof Integer || o instanceof Long)
+            return encodeInteger(((Number)o).longValue());
         else if(o instanceof ByteBuffer)
             return encodeString((ByteBuffer)o);
         else
@@ -341,17 +216,17 @@ public final class Bencoder2
     }
     
     /**
-     * Bencodes the specified Integer.
-     * @param integer the Integer to bencode.
-     * @return a {@code byte[]} containing the bencoded form of the Integer.
+     * Bencodes the specified integer.
+     * @param integer the integer to bencode.
+     * @return a {@code byte[]} containing the bencoded form of the integer.
      */
-    private static final byte[] encodeInteger(Integer integer)
+    private static final byte[] encodeInteger(long integer)
     {
         int num_digits = 1;
-        int int_val = integer.intValue();
+        long int_val = integer;
         while((int_val /= 10) > 0)
             ++num_digits;
-        int_val = integer.intValue();
+        int_val = integer;
         byte[] bencoded_integer = new byte[num_digits+2];
         bencoded_integer[0] = (byte)'i';
         bencoded_integer[bencoded_integer.length - 1] = (byte)'e';
@@ -0,0 +1,72 @@
+package cs352.RUBTClient.resources;
+
+/**
+ * The SHA-1 hashes of the pieces of a torrent, held back to back in a single array exactly as they
+ * appear in the 'pieces' string of the info dictionary.&nbsp; A hash is looked up by piece index and
+ * compared in place, so a torrent costs one array however many pieces it has.
+ *
+ * @author Thomas Travis
+ *
+ */
+public final class PieceHashTable
+{
+    /**
+     * The length in bytes of a single SHA-1 hash.
+     */
+    public static final int HASH_LENGTH = 20;
+
+    private final byte[] hashes;
+    private final int count;
+
+    /**
+     * Creates a table over the concatenated piece hashes.&nbsp; The array is used as is, not copied,
+     * and must not be modified afterwards.
+     * @param hashes the concatenated 20-byte hashes.
+     * @throws BencodingException if the length of the array is not a multiple of 20.
+     */
+    public PieceHashTable(byte[] hashes) throws BencodingException
+    {
+        if(hashes.length % HASH_LENGTH != 0)
+            throw new BencodingException("Piece hashes length is not a multiple of 20.  Corrupt file?");
+        this.hashes = hashes;
+        this.count = hashes.length / HASH_LENGTH;
+    }
+
+    /**
+     * @return the number of hashes in the table, which is the number of pieces.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Compares the hash of the given piece against a digest.
+     * @param index the index of the piece.
+     * @param digest a 20-byte SHA-1 digest.
+     * @return true if the digest equals the expected hash of the piece.
+     */
+    public boolean matches(int index, byte[] digest)
+    {
+        if(index < 0 || index >= count || digest == null || digest.length != HASH_LENGTH)
+            return false;
+        int offset = index * HASH_LENGTH;
+        for(int i = 0; i < HASH_LENGTH; i++)
+            if(hashes[offset + i] != digest[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @param index the index of the piece.
+     * @return a copy of the expected hash of the piece.
+     */
+    public byte[] get(int index)
+    {
+        if(index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("No piece " + index + " in a torrent of " + count + " pieces.");
+        byte[] hash = new byte[HASH_LENGTH];
+        System.arraycopy(hashes, index * HASH_LENGTH, hash, 0, HASH_LENGTH);
+        return hash;
+    }
+}
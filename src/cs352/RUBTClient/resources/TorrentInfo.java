@@ -18,18 +18,22 @@
  */
 package cs352.RUBTClient.resources;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
  * This is a data structure class that extracts basic information from a bencoded torrent metainfo
- * file and stores it in public fields.&nbsp; Note that this class only works for torrent metainfo files
- * for a single-file torrent.
+ * file and stores it in public fields.&nbsp; Both single-file and multi-file torrents are supported; a
+ * single-file torrent is described as a multi-file torrent holding one file named after the torrent.
  * 
  * @author Robert Moore II
  *
@@ -65,6 +69,18 @@ public class TorrentInfo
      */
     public final static ByteBuffer KEY_PIECE_LENGTH = ByteBuffer.wrap(new byte[]
     { 'p', 'i', 'e', 'c', 'e', ' ', 'l', 'e', 'n', 'g', 't', 'h' });
+
+    /**
+     * Key used to retrieve the list of files of a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_FILES = ByteBuffer.wrap(new byte[]
+    { 'f', 'i', 'l', 'e', 's' });
+
+    /**
+     * Key used to retrieve the path of a file within a multi-file torrent.
+     */
+    public final static ByteBuffer KEY_PATH = ByteBuffer.wrap(new byte[]
+    { 'p', 'a', 't', 'h' });
 	
 	/**
 	 * ByteBuffer to retrieve the announce URL from the metainfo dictionary.
@@ -95,6 +111,16 @@ public class TorrentInfo
 	 */
 	public final ByteBuffer info_hash;
 	
+	/**
+	 * The position of the bencoded info dictionary within torrent_file_bytes.
+	 */
+	public final int info_offset;
+	
+	/**
+	 * The length of the bencoded info dictionary within torrent_file_bytes.
+	 */
+	public final int info_length;
+	
 	/**
 	 * The base URL of the tracker for client scrapes.
 	 */
@@ -112,14 +138,30 @@ public class TorrentInfo
 	public final String file_name;
 	
 	/**
-	 * The length of the file in bytes.
+	 * The length of the file in bytes.&nbsp; For a multi-file torrent this is the total length of all files.
+	 */
+	public final long file_length;
+	
+	/**
+	 * True if the torrent metainfo file lists its files in an info.files list.
 	 */
-	public final int file_length;
+	public final boolean multi_file;
 	
 	/**
-	 * The SHA-1 hashes of each piece of the file.
+	 * The paths of the files of the torrent, in order, relative to the directory named by file_name.&nbsp;
+	 * Path components are joined with '/'.&nbsp; A single-file torrent holds the single entry file_name.
 	 */
-	public final ByteBuffer[] piece_hashes;
+	public final String[] file_paths;
+	
+	/**
+	 * The lengths in bytes of the files of the torrent, in the same order as file_paths.
+	 */
+	public final long[] file_lengths;
+	
+	/**
+	 * The SHA-1 hashes of each piece of the file, held in a single flat table.
+	 */
+	public final PieceHashTable piece_hashes;
 	
 	/**
 	 * Creates a new TorrentInfo object from the specified byte array.  If the byte array is {@code null} or
@@ -137,8 +179,25 @@ public class TorrentInfo
 		// Assign the byte array
 		this.torrent_file_bytes = torrent_file_bytes;
 		
-		// Assign the metainfo map
-		this.torrent_file_map = (Map<ByteBuffer,Object>)Bencoder2.decode(torrent_file_bytes);
+		// Assign the metainfo map, noting where the info dictionary lies on the way
+		BencodeReader reader = new BencodeReader(torrent_file_bytes);
+		if(reader.next() != BencodeReader.Token.DICTIONARY)
+			throw new BencodingException("Torrent metainfo is not a dictionary.  Corrupt file?");
+		HashMap<ByteBuffer,Object> torrent_file_map = new HashMap<ByteBuffer,Object>();
+		int info_start = -1;
+		int info_end = -1;
+		while(reader.next() == BencodeReader.Token.KEY)
+		{
+			ByteBuffer key = ByteBuffer.wrap(reader.copyBytes());
+			int value_start = reader.position();
+			torrent_file_map.put(key, Bencoder2.decode(reader));
+			if(key.equals(TorrentInfo.KEY_INFO))
+			{
+				info_start = value_start;
+				info_end = reader.position();
+			}
+		}
+		this.torrent_file_map = torrent_file_map;
 		
 		// Try to extract the announce URL
 		ByteBuffer url_buff = (ByteBuffer)this.torrent_file_map.get(TorrentInfo.KEY_ANNOUNCE);
@@ -147,7 +206,7 @@ public class TorrentInfo
 		
 		try {
 			String url_string = new String(url_buff.array(), "ASCII");
-			URL announce_url = new URL(url_string);
+			URL announce_url = parseAnnounceURL(url_string);
 			this.announce_url = announce_url;
 		}
 		catch(UnsupportedEncodingException uee)
@@ -160,17 +219,18 @@ public class TorrentInfo
 		}
 		
 		// Try to extract the info dictionary
-		ByteBuffer info_bytes = Bencoder2.getInfoBytes(torrent_file_bytes);
-		Map<ByteBuffer,Object> info_map = (Map<ByteBuffer,Object>)this.torrent_file_map.get(TorrentInfo.KEY_INFO);
+		Object info_map = this.torrent_file_map.get(TorrentInfo.KEY_INFO);
 		
-		if(info_map == null)
+		if(!(info_map instanceof Map))
 			throw new BencodingException("Could not extract info dictionary from torrent metainfo dictionary.  Corrupt file?");
-		this.info_map = info_map;
+		this.info_map = (Map<ByteBuffer,Object>)info_map;
+		this.info_offset = info_start;
+		this.info_length = info_end - info_start;
 		
-		// Try to generate the info hash value
+		// Try to generate the info hash value, hashing the info dictionary where it lies
 		try {
 			MessageDigest digest = MessageDigest.getInstance("SHA-1");
-			digest.update(info_bytes.array());
+			digest.update(torrent_file_bytes, this.info_offset, this.info_length);
 			byte[] info_hash = digest.digest();
 			this.info_hash = ByteBuffer.wrap(info_hash);
 		}
@@ -179,48 +239,62 @@ public class TorrentInfo
 			throw new BencodingException(nsae.getLocalizedMessage());
 		}
 		
-		// Extract the piece length from the info dictionary
-		Integer piece_length = (Integer)this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
-		if(piece_length == null)
-			throw new BencodingException("Could not extract piece length from info dictionary.  Corrupt file?");
-		this.piece_length = piece_length.intValue();
-		
-		// Extract the file name from the info dictionary
-		ByteBuffer name_bytes = (ByteBuffer)this.info_map.get(TorrentInfo.KEY_NAME);
-		if(name_bytes == null)
-			throw new BencodingException("Could not retrieve file name from info dictionary.  Corrupt file?");
-		try {
-			this.file_name = new String(name_bytes.array(),"ASCII");
-		}
-		catch(UnsupportedEncodingException uee)
+		// Pull the layout fields out of the info dictionary and check them as TorrentDescriptor does
+		Object piece_length = this.info_map.get(TorrentInfo.KEY_PIECE_LENGTH);
+		Object name_bytes = this.info_map.get(TorrentInfo.KEY_NAME);
+		Object file_length = this.info_map.get(TorrentInfo.KEY_LENGTH);
+		Object all_hashes = this.info_map.get(TorrentInfo.KEY_PIECES);
+		String name = null;
+		if(name_bytes instanceof ByteBuffer)
 		{
-			throw new BencodingException(uee.getLocalizedMessage());
+			try {
+				name = new String(((ByteBuffer)name_bytes).array(),"ASCII");
+			}
+			catch(UnsupportedEncodingException uee)
+			{
+				throw new BencodingException(uee.getLocalizedMessage());
+			}
 		}
+		TorrentLayout layout = TorrentLayout.validate(name,
+				(piece_length instanceof Long) ? (Long)piece_length : -1,
+				(file_length instanceof Long) ? (Long)file_length : -1,
+				this.info_map.get(TorrentInfo.KEY_FILES),
+				(all_hashes instanceof ByteBuffer) ? ((ByteBuffer)all_hashes).array().length : -1);
 		
-		// Extract the file length from the info dictionary
-		Integer file_length = (Integer)this.info_map.get(TorrentInfo.KEY_LENGTH);
-		if(file_length == null)
-			throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
-		this.file_length = file_length.intValue();
-		
-		// Extract the piece hashes from the info dictionary
-		ByteBuffer all_hashes = (ByteBuffer)this.info_map.get(TorrentInfo.KEY_PIECES);
-		if(all_hashes == null)
-			throw new BencodingException("Could not extract piece hashes from info dictionary.  Corrupt file?");
-		byte[] all_hashes_array = all_hashes.array();
-		
-		// Verify that the length of the array is a multiple of 20 bytes (160 bits)
-		if(all_hashes_array.length % 20 != 0)
-			throw new BencodingException("Piece hashes length is not a multiple of 20.  Corrupt file?");
-		int num_pieces = all_hashes_array.length / 20;
+		this.piece_length = ((Long)piece_length).intValue();
+		this.file_name = name;
+		this.multi_file = layout.multi_file;
+		this.file_length = layout.file_length;
+		this.file_paths = layout.file_paths;
+		this.file_lengths = layout.file_lengths;
 		
-		// Copy the values of the piece hashes into the local field
-		this.piece_hashes = new ByteBuffer[num_pieces];
-		for(int i = 0; i < num_pieces; i++)
+		// Share the decoded string as the hash table
+		this.piece_hashes = new PieceHashTable(((ByteBuffer)all_hashes).array());
+	}
+	
+	/**
+	 * Parses an announce URL.&nbsp; {@code java.net.URL} knows no {@code udp} protocol, so the URLs of
+	 * UDP trackers are given a handler that describes the tracker's address but opens no connections.
+	 * @param url_string the announce URL from the metainfo file.
+	 * @return the parsed URL; its protocol tells how to contact the tracker.
+	 * @throws MalformedURLException if the string is not a valid URL.
+	 */
+	public static URL parseAnnounceURL(String url_string) throws MalformedURLException
+	{
+		if(url_string.regionMatches(true, 0, "udp://", 0, 6))
+			return new URL(null, url_string, UDP_HANDLER);
+		return new URL(url_string);
+	}
+	
+	/**
+	 * The handler of udp:// announce URLs.
+	 */
+	private static final URLStreamHandler UDP_HANDLER = new URLStreamHandler()
+	{
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException
 		{
-			byte[] temp_buff = new byte[20];
-			System.arraycopy(all_hashes_array,i*20,temp_buff,0,20);
-			this.piece_hashes[i] = ByteBuffer.wrap(temp_buff);
+			throw new IOException("UDP trackers cannot be opened as URL connections.");
 		}
-	}
+	};
 }
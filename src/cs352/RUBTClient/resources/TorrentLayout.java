@@ -0,0 +1,145 @@
+package cs352.RUBTClient.resources;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The file layout of a torrent, checked against the fields of its info dictionary.&nbsp; Both
+ * {@link TorrentInfo} and {@code TorrentDescriptor} pull the fields out of the info dictionary
+ * and hand them here, so a .torrent file is accepted or rejected, with the same message, however it
+ * is loaded.
+ *
+ * @author Thomas Travis
+ *
+ */
+public final class TorrentLayout
+{
+	/**
+	 * True if the torrent lists its files in an info.files list.
+	 */
+	public final boolean multi_file;
+	
+	/**
+	 * The '/'-separated paths of the files, in the order they are laid out within the pieces.&nbsp;
+	 * A single-file torrent holds the single entry named after the torrent.
+	 */
+	public final String[] file_paths;
+	
+	/**
+	 * The lengths in bytes of the files, in the same order as file_paths.
+	 */
+	public final long[] file_lengths;
+	
+	/**
+	 * The total length of all files in bytes.
+	 */
+	public final long file_length;
+	
+	/**
+	 * The number of pieces, which is the number of piece hashes.
+	 */
+	public final int number_of_pieces;
+	
+	private TorrentLayout(boolean multi_file, String[] file_paths, long[] file_lengths, long file_length, int number_of_pieces)
+	{
+		this.multi_file = multi_file;
+		this.file_paths = file_paths;
+		this.file_lengths = file_lengths;
+		this.file_length = file_length;
+		this.number_of_pieces = number_of_pieces;
+	}
+	
+	/**
+	 * Checks the fields of an info dictionary and lays out its files.
+	 * @param name the info.name entry, or {@code null} if it is missing.
+	 * @param piece_length the info.piece length entry, or -1 if it is missing.
+	 * @param length the info.length entry of a single-file torrent, or -1 if it is missing.
+	 * @param files the decoded info.files entry of a multi-file torrent, or {@code null} if it is missing.
+	 * @param pieces_length the length of the info.pieces string, or -1 if it is missing.
+	 * @return the layout of the files.
+	 * @throws BencodingException if a field is missing or invalid, a file path is unsafe, or the number
+	 * of piece hashes does not match the total length of the files.
+	 */
+	@SuppressWarnings("unchecked")
+	public static TorrentLayout validate(String name, long piece_length, long length, Object files, long pieces_length) throws BencodingException
+	{
+		if(name == null)
+			throw new BencodingException("Could not retrieve file name from info dictionary.  Corrupt file?");
+		if(piece_length <= 0 || piece_length > Integer.MAX_VALUE)
+			throw new BencodingException("Could not extract piece length from info dictionary.  Corrupt file?");
+		if(pieces_length < 0 || pieces_length % PieceHashTable.HASH_LENGTH != 0)
+			throw new BencodingException("Could not extract piece hashes from info dictionary.  Corrupt file?");
+		
+		// Lay out the files of a multi-file torrent in order, or the single file named after the torrent
+		String[] file_paths;
+		long[] file_lengths;
+		long file_length = 0;
+		if(files != null)
+		{
+			if(!(files instanceof List))
+				throw new BencodingException("The info.files entry is not a list.  Corrupt file?");
+			List<Object> list = (List<Object>)files;
+			file_paths = new String[list.size()];
+			file_lengths = new long[list.size()];
+			for(int i = 0; i < list.size(); i++)
+			{
+				Object file = list.get(i);
+				Object file_size = (file instanceof Map) ? ((Map<ByteBuffer,Object>)file).get(TorrentInfo.KEY_LENGTH) : null;
+				Object path = (file instanceof Map) ? ((Map<ByteBuffer,Object>)file).get(TorrentInfo.KEY_PATH) : null;
+				if(!(file_size instanceof Long) || (Long)file_size < 0 || !(path instanceof List) || ((List<Object>)path).isEmpty())
+					throw new BencodingException("Could not extract the length and path of file " + i + ".  Corrupt file?");
+				file_paths[i] = decodePath((List<Object>)path);
+				file_lengths[i] = (Long)file_size;
+				file_length += file_lengths[i];
+			}
+		}
+		else
+		{
+			if(length < 0)
+				throw new BencodingException("Could not extract file length from info dictionary.  Corrupt file?");
+			file_length = length;
+			file_paths = new String[] { name };
+			file_lengths = new long[] { length };
+		}
+		
+		int number_of_pieces = (int)(pieces_length / PieceHashTable.HASH_LENGTH);
+		if(number_of_pieces != (file_length + piece_length - 1) / piece_length)
+			throw new BencodingException("The number of piece hashes does not match the file length.  Corrupt file?");
+		
+		return new TorrentLayout(files != null, file_paths, file_lengths, file_length, number_of_pieces);
+	}
+	
+	/**
+	 * Joins the components of a file path from an info.files entry with '/'.&nbsp; Components that could
+	 * escape the download directory are rejected.
+	 * @param path the list of path components.
+	 * @return the relative path of the file.
+	 * @throws BencodingException if a component is not a byte string, is empty, "." or "..", or contains a separator.
+	 */
+	public static String decodePath(List<Object> path) throws BencodingException
+	{
+		StringBuilder joined = new StringBuilder();
+		for(int i = 0; i < path.size(); i++)
+		{
+			if(!(path.get(i) instanceof ByteBuffer))
+				throw new BencodingException("File path component " + i + " is not a byte string.  Corrupt file?");
+			String component;
+			try {
+				component = new String(((ByteBuffer)path.get(i)).array(), "UTF-8");
+			}
+			catch(UnsupportedEncodingException uee)
+			{
+				throw new BencodingException(uee.getLocalizedMessage());
+			}
+			if(component.isEmpty() || component.equals(".") || component.equals("..")
+					|| component.indexOf('/') >= 0 || component.indexOf('\\') >= 0)
+				throw new BencodingException("Unsafe file path component \"" + component + "\".  Corrupt file?");
+			if(i > 0)
+				joined.append('/');
+			joined.append(component);
+		}
+		return joined.toString();
+	}
+}
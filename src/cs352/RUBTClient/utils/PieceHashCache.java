@@ -0,0 +1,135 @@
+package cs352.RUBTClient.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cs352.RUBTClient.resources.BencodingException;
+import cs352.RUBTClient.resources.PieceHashTable;
+
+/******************************************************************************
+ * A bounded, least recently used cache of piece hash tables, keyed by info
+ * hash and shared by every session in the JVM.  A table is loaded from its
+ * .torrent file on the first request and stays cached until the bytes of
+ * more recently used tables push it out.  Sessions that are downloading or
+ * seeding pin their table themselves, so eviction only ever drops the
+ * tables of idle torrents.
+ *
+ * The capacity in bytes is read from the rubt.hash_cache_bytes system
+ * property, and defaults to DEFAULT_CAPACITY.
+ *
+ * @author Thomas Travis
+ * For CS352 2013 Summer Session
+ *
+ ******************************************************************************/
+public class PieceHashCache {
+
+	public static final String CAPACITY_PROPERTY = "rubt.hash_cache_bytes";
+	public static final long DEFAULT_CAPACITY = 64L*1024*1024;
+
+	protected static PieceHashCache shared = null;
+
+	protected final long capacity;
+	protected long size;
+	protected LinkedHashMap<ByteBuffer, PieceHashTable> tables;
+
+	/**
+	 * @param capacity - the number of hash bytes to keep cached before evicting the least recently used tables.
+	 */
+	public PieceHashCache( long capacity ){
+
+		this.capacity = capacity;
+		this.size = 0;
+		this.tables = new LinkedHashMap<ByteBuffer, PieceHashTable>( 16, 0.75f, true );
+	}
+
+	/**
+	 * Obtain the cache shared by all sessions.
+	 * @return the shared cache, created on first use with the configured capacity.
+	 * @author Thomas Travis
+	 */
+	public static synchronized PieceHashCache getShared(){
+
+		if( shared == null ){
+			long capacity = DEFAULT_CAPACITY;
+			try{
+				capacity = Long.parseLong( System.getProperty( CAPACITY_PROPERTY, Long.toString( DEFAULT_CAPACITY ) ) );
+			}
+			catch( NumberFormatException e ){
+			}
+			shared = new PieceHashCache( capacity );
+		}
+		return shared;
+	}
+
+	/**
+	 * Obtain the piece hashes of the given torrent, loading them from its .torrent file if they are not cached.
+	 * The file is read without holding the cache, so loads for different torrents proceed in parallel.
+	 * @param descriptor
+	 * @return the piece hash table of the torrent
+	 * @throws IOException if the .torrent file could not be read.
+	 * @throws BencodingException if the .torrent file no longer holds the torrent.
+	 * @author Thomas Travis
+	 */
+	public PieceHashTable get( TorrentDescriptor descriptor ) throws IOException, BencodingException{
+
+		synchronized( this ){
+			PieceHashTable table = tables.get( descriptor.info_hash );
+			if( table != null )
+				return table;
+		}
+
+		PieceHashTable table = descriptor.loadPieceHashes();
+		put( descriptor.info_hash, table );
+		return table;
+	}
+
+	/**
+	 * Cache the given table, evicting the least recently used tables while the cache is over capacity.
+	 * The table just added is never evicted, even if it alone exceeds the capacity.
+	 * @param info_hash
+	 * @param table
+	 * @author Thomas Travis
+	 */
+	public synchronized void put( ByteBuffer info_hash, PieceHashTable table ){
+
+		PieceHashTable old = tables.put( info_hash, table );
+		if( old != null )
+			size -= bytesOf( old );
+		size += bytesOf( table );
+
+		for( Iterator<Map.Entry<ByteBuffer, PieceHashTable>> it = tables.entrySet().iterator(); it.hasNext() && size > capacity; ){
+			Map.Entry<ByteBuffer, PieceHashTable> eldest = it.next();
+			if( eldest.getValue() == table )
+				continue;
+			size -= bytesOf( eldest.getValue() );
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drop the table of the given torrent, if cached.
+	 * @param info_hash
+	 * @author Thomas Travis
+	 */
+	public synchronized void remove( ByteBuffer info_hash ){
+
+		PieceHashTable old = tables.remove( info_hash );
+		if( old != null )
+			size -= bytesOf( old );
+	}
+
+	/**
+	 * @return the number of hash bytes currently cached.
+	 * @author Thomas Travis
+	 */
+	public synchronized long size(){
+		return size;
+	}
+
+	protected static long bytesOf( PieceHashTable table ){
+		return (long)table.size()*PieceHashTable.HASH_LENGTH;
+	}
+}
@@ -57,6 +57,19 @@ public class RUBTClientLogger {
 	 * @author Thomas Travis
 	 */
 	public Logger getLogger( String class_name, String log_file_name ){
+		return getLogger( class_name, log_file_name, SessionInfo.getDefaultHomeDirectory() );
+	}
+	
+	/**
+	 * Obtain a logger for the calling class, as getLogger( class_name, log_file_name ) does, whose
+	 * "logs" folder is located in the given home directory rather than the default one.
+	 * 
+	 * @param home_directory - the directory holding the "logs" folder
+	 * @return the configured Logger object for the calling class
+	 * 
+	 * @author Thomas Travis
+	 */
+	public Logger getLogger( String class_name, String log_file_name, File home_directory ){
 		
 		//Create a new logger and disallow legacy settings.
 		Logger new_logger = Logger.getLogger(class_name);
@@ -68,7 +81,7 @@ public class RUBTClientLogger {
 		new_logger.addHandler( ch );
 		
 		//Construct the path to the directory into which we will save this logger's log files.
-		String log_directory = System.getProperty("user.dir")+File.separator+"logs"+File.separator+class_name+File.separator;
+		String log_directory = home_directory.getPath()+File.separator+"logs"+File.separator+class_name+File.separator;
 		
 		//If the directory doesn't already exist in the file system, create it.
 		File f = new File( log_directory );
@@ -1,9 +1,13 @@
 package cs352.RUBTClient.utils;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.Map;
 
+import cs352.RUBTClient.resources.BencodingException;
+import cs352.RUBTClient.resources.PieceHashTable;
 import cs352.RUBTClient.resources.TorrentInfo;
 
 
@@ -14,7 +18,14 @@ import cs352.RUBTClient.resources.TorrentInfo;
  * 
  * This class also provided universal access to the torrent_file_path and 
  * download_file_path, which combined uniquely identify this particular 
- * session.
+ * session, and to the home directory its downloads, saved state and logs
+ * are kept under.  The home directory is the rubt.home system property,
+ * or the working directory if it is not set.
+ * 
+ * Only a lightweight TorrentDescriptor of the .torrent file is kept.  The
+ * piece hashes come from the shared PieceHashCache; activate() pins them
+ * while the session is downloading or seeding, and deactivate() lets the
+ * cache drop them once the session goes idle.
  * 
  * @author Thomas Travis
  * @since 8/4/2013
@@ -23,39 +34,72 @@ import cs352.RUBTClient.resources.TorrentInfo;
  ******************************************************************************/
 public class SessionInfo {
 
-	protected TorrentInfo info;
+	/** The system property naming the directory downloads, saved state and logs are kept under. */
+	public static final String HOME_PROPERTY = "rubt.home";
+	
+	protected TorrentDescriptor info;
+	protected File home_directory;
 	protected String download_file_path;
 	protected String torrent_file_path;
 	
 	protected URL announce_url;
 	protected String announce_url_string;
 	protected String default_file_name;
-	protected int file_length;
+	protected long file_length;
+	protected long[] file_lengths;
+	protected String[] file_paths;
 	protected ByteBuffer info_hash;
-	protected Map<ByteBuffer, Object> info_map;
 	protected int last_piece_length;
+	protected boolean multi_file;
 	protected int number_of_pieces;
-	protected ByteBuffer[] piece_hashes;
+	protected volatile PieceHashTable pinned_hashes;
 	protected int piece_length;
-	protected TorrentInfo torrent_info;
 	
 	public SessionInfo( String torrent_file_path, String download_file_path ){
+		this( torrent_file_path, download_file_path, getDefaultHomeDirectory() );
+	}
+	
+	/**
+	 * @param home_directory - the directory the downloads, data and logs directories of this session are kept under
+	 */
+	public SessionInfo( String torrent_file_path, String download_file_path, File home_directory ){
 		
+		this.home_directory = home_directory;
 		this.torrent_file_path = torrent_file_path;
 		this.download_file_path = download_file_path;
 		
-		this.info = generateTorrentInfoObject( torrent_file_path );
+		this.info = generateTorrentDescriptor( torrent_file_path );
 		this.announce_url = info.announce_url;
 		this.announce_url_string = info.announce_url.toString();
-		this.default_file_name = info.file_name;
+		this.default_file_name = info.name;
 		this.file_length = info.file_length;
+		this.file_lengths = info.file_lengths;
+		this.file_paths = info.file_paths;
 		this.info_hash = info.info_hash;
-		this.info_map = info.info_map;
 		this.piece_length = info.piece_length;
 		this.last_piece_length = getLastPieceLength();
-		this.number_of_pieces = (int)Math.ceil( info.file_length / (double)info.piece_length );
-		this.piece_hashes = info.piece_hashes;
-		this.torrent_info = info;
+		this.multi_file = info.multi_file;
+		this.number_of_pieces = info.number_of_pieces;
+		this.pinned_hashes = null;
+	}
+	
+	/**
+	 * Load the piece hashes, if needed, and keep them until deactivate() is called.  Call this when the
+	 * session starts downloading or seeding.
+	 * @throws IOException if the .torrent file could not be read.
+	 * @throws BencodingException if the .torrent file no longer holds this torrent.
+	 * @author Thomas Travis
+	 */
+	public void activate() throws IOException, BencodingException{
+		pinned_hashes = PieceHashCache.getShared().get( info );
+	}
+	
+	/**
+	 * Stop keeping the piece hashes; the shared cache may then drop them.  Call this when the session goes idle.
+	 * @author Thomas Travis
+	 */
+	public void deactivate(){
+		pinned_hashes = null;
 	}
 	
 	/** The base URL of the tracker for client scrapes. */
@@ -74,10 +118,20 @@ public class SessionInfo {
 	}
 	
 	/** The number of bytes comprising the total file. */
-	public int file_length(){
+	public long file_length(){
 		return file_length;
 	}
 	
+	/** The lengths (in bytes) of the files of the torrent, in the order they are laid out within the pieces. */
+	public long[] file_lengths(){
+		return file_lengths;
+	}
+	
+	/** The '/'-separated paths of the files of the torrent, relative to the download location. */
+	public String[] file_paths(){
+		return file_paths;
+	}
+	
 	/** The SHA-1 hash of the bencoded form of the info dictionary from the torrent metainfo file. */
 	public ByteBuffer info_hash(){
 		return info_hash;
@@ -86,9 +140,10 @@ public class SessionInfo {
 	/** The unbencoded info dictionary of the torrent metainfo file.  
 	 * See http://www.bittorrent.org/beps/bep_0003.html for an explanation of 
 	 * what keys are available and how they map.
+	 * The .torrent file is decoded anew on every call; the result is not kept.
 	 */
 	public Map<ByteBuffer, Object> info_map(){
-		return info_map;
+		return torrent_info().info_map;
 	}
 	
 	/** The number of bytes comprising the last piece.  This is either less than or equal to piece_length." */
@@ -96,14 +151,33 @@ public class SessionInfo {
 		return last_piece_length;
 	}
 	
+	/** True if the torrent lists several files, which are saved beneath a directory at the download location. */
+	public boolean multi_file(){
+		return multi_file;
+	}
+	
 	/** The total number of pieces (of length up to piece_length) comprising the file. */
 	public int number_of_pieces(){
 		return number_of_pieces;
 	}
 	
-	/** The SHA-1 hashes of each piece of the file. */
-	public ByteBuffer[] piece_hashes(){
-		return piece_hashes;
+	/** The SHA-1 hashes of each piece of the file, compared in place by index.
+	 * Unless the session is active, they come from the shared cache and may need to be read from the .torrent file.
+	 * @throws IllegalStateException if the hashes are not cached and could not be read back.
+	 */
+	public PieceHashTable piece_hashes(){
+		PieceHashTable hashes = pinned_hashes;
+		if( hashes != null )
+			return hashes;
+		try{
+			return PieceHashCache.getShared().get( info );
+		}
+		catch( IOException e ){
+			throw new IllegalStateException( "Unable to read the piece hashes of "+torrent_file_path, e );
+		}
+		catch( BencodingException e ){
+			throw new IllegalStateException( "Unable to read the piece hashes of "+torrent_file_path+": "+e, e );
+		}
 	}
 	
 	/** The nominal size (in bytes) of the pieces comprising the file. */
@@ -111,8 +185,13 @@ public class SessionInfo {
 		return piece_length;
 	}
 	
-	/** The underlying TorrentInfo object backing this SessionInfo object. */
+	/** A TorrentInfo object for this session's .torrent file, decoded anew on every call. */
 	public TorrentInfo torrent_info(){
+		return generateTorrentInfoObject( torrent_file_path );
+	}
+	
+	/** The lightweight descriptor of this session's torrent. */
+	public TorrentDescriptor descriptor(){
 		return info;
 	}
 	
@@ -126,6 +205,16 @@ public class SessionInfo {
 		return torrent_file_path;
 	}
 	
+	/** The directory the downloads, data and logs directories of this session are kept under. */
+	public File getHomeDirectory(){
+		return home_directory;
+	}
+	
+	/** The rubt.home system property, or the working directory if it is not set. */
+	public static File getDefaultHomeDirectory(){
+		return new File( System.getProperty( HOME_PROPERTY, System.getProperty("user.dir") ) );
+	}
+	
 	/**
 	 * Generate the TorrentInfo object backing this SessionInfo object.
 	 * @param torrent_file_path
@@ -135,15 +224,24 @@ public class SessionInfo {
 		return TorrentInfoDecoder.generateTorrentInfoObject(torrent_file_path);
 	}
 	
+	/**
+	 * Generate the TorrentDescriptor backing this SessionInfo object.
+	 * @param torrent_file_path
+	 * @return a TorrentDescriptor; null if the .torrent file doesn't exist.
+	 */
+	protected static TorrentDescriptor generateTorrentDescriptor( String torrent_file_path ){
+		return TorrentInfoDecoder.generateTorrentDescriptor(torrent_file_path);
+	}
+	
 	/**
 	 * Calculate the length of the last piece, which may be less than the nominal piece_length
 	 * provided by the .torrent meta info object.
 	 * @return the length of the last piece of the file
 	 */
 	protected int getLastPieceLength(){
-		int length = info.file_length % info.piece_length;
+		int length = (int)( file_length % piece_length );
 		if( length == 0 )
-			length = info.piece_length;
+			length = piece_length;
 		return length;
 	}
 }
@@ -0,0 +1,284 @@
+package cs352.RUBTClient.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import cs352.RUBTClient.resources.BencodeReader;
+import cs352.RUBTClient.resources.BencodeReader.Token;
+import cs352.RUBTClient.resources.Bencoder2;
+import cs352.RUBTClient.resources.BencodingException;
+import cs352.RUBTClient.resources.PieceHashTable;
+import cs352.RUBTClient.resources.TorrentInfo;
+import cs352.RUBTClient.resources.TorrentLayout;
+
+/******************************************************************************
+ * A lightweight description of a torrent: its info hash, name, announce URL,
+ * piece geometry and file layout.  Nothing else of the .torrent file is kept;
+ * the piece hashes are only located, so that loadPieceHashes() can read them
+ * back from the .torrent file when the torrent becomes active.  Descriptors
+ * are cheap enough to hold for every torrent of a large library at once.
+ *
+ * The .torrent file is walked once with a BencodeReader; apart from the
+ * file list of a multi-file torrent, no part of it is decoded into a tree.
+ * The fields found are checked by TorrentLayout, as TorrentInfo's are.
+ *
+ * @author Thomas Travis
+ * For CS352 2013 Summer Session
+ *
+ ******************************************************************************/
+public class TorrentDescriptor {
+
+	protected static final byte[] KEY_ANNOUNCE = TorrentInfo.KEY_ANNOUNCE.array();
+	protected static final byte[] KEY_INFO = TorrentInfo.KEY_INFO.array();
+	protected static final byte[] KEY_NAME = TorrentInfo.KEY_NAME.array();
+	protected static final byte[] KEY_PIECE_LENGTH = TorrentInfo.KEY_PIECE_LENGTH.array();
+	protected static final byte[] KEY_LENGTH = TorrentInfo.KEY_LENGTH.array();
+	protected static final byte[] KEY_FILES = TorrentInfo.KEY_FILES.array();
+	protected static final byte[] KEY_PIECES = TorrentInfo.KEY_PIECES.array();
+
+	/** The location in the file system of the .torrent metainfo file. */
+	public final String torrent_file_path;
+	/** The SHA-1 hash of the bencoded info dictionary. */
+	public final ByteBuffer info_hash;
+	/** The URL of the tracker. */
+	public final URL announce_url;
+	/** The name of the file, or of the directory of a multi-file torrent. */
+	public final String name;
+	/** The nominal length of each piece in bytes. */
+	public final int piece_length;
+	/** The total length of all files in bytes. */
+	public final long file_length;
+	/** True if the torrent lists its files in an info.files list. */
+	public final boolean multi_file;
+	/** The '/'-separated paths of the files, in the order they are laid out within the pieces. */
+	public final String[] file_paths;
+	/** The lengths of the files in bytes, in the same order as file_paths. */
+	public final long[] file_lengths;
+	/** The number of pieces. */
+	public final int number_of_pieces;
+
+	//Where the info dictionary and the piece hashes lie within the .torrent file.
+	protected final int info_offset;
+	protected final int info_length;
+	protected final int pieces_offset;
+
+	//The length and modification time of the .torrent file when it was described; -1 if unknown.
+	protected final long torrent_file_length;
+	protected final long torrent_file_mtime;
+
+	protected TorrentDescriptor( String torrent_file_path, ByteBuffer info_hash, URL announce_url, String name,
+			int piece_length, TorrentLayout layout, int info_offset, int info_length, int pieces_offset,
+			long torrent_file_length, long torrent_file_mtime ){
+
+		this.torrent_file_path = torrent_file_path;
+		this.info_hash = info_hash;
+		this.announce_url = announce_url;
+		this.name = name;
+		this.piece_length = piece_length;
+		this.file_length = layout.file_length;
+		this.multi_file = layout.multi_file;
+		this.file_paths = layout.file_paths;
+		this.file_lengths = layout.file_lengths;
+		this.number_of_pieces = layout.number_of_pieces;
+		this.info_offset = info_offset;
+		this.info_length = info_length;
+		this.pieces_offset = pieces_offset;
+		this.torrent_file_length = torrent_file_length;
+		this.torrent_file_mtime = torrent_file_mtime;
+	}
+
+	/**
+	 * Read the .torrent file at the given path and describe it.
+	 * @param torrent_file_path
+	 * @return the descriptor of the torrent
+	 * @throws IOException if the file could not be read.
+	 * @throws BencodingException if the file is not a valid .torrent file.
+	 * @author Thomas Travis
+	 */
+	public static TorrentDescriptor read( String torrent_file_path ) throws IOException, BencodingException{
+
+		//Remember the file as it was read, so that loadPieceHashes() can tell whether it changed since.
+		File file = new File( torrent_file_path );
+		long mtime = file.lastModified();
+		byte[] torrent_file_bytes = Files.readAllBytes( file.toPath() );
+		if( file.lastModified() != mtime || file.length() != torrent_file_bytes.length )
+			mtime = -1;
+		return parse( torrent_file_path, torrent_file_bytes, mtime );
+	}
+
+	/**
+	 * Describe the torrent held in the given .torrent file bytes.
+	 * @param torrent_file_path - the path the bytes were read from; used to load the piece hashes later.
+	 * @param torrent_file_bytes
+	 * @return the descriptor of the torrent
+	 * @throws BencodingException if the bytes are not a valid .torrent file.
+	 * @author Thomas Travis
+	 */
+	public static TorrentDescriptor parse( String torrent_file_path, byte[] torrent_file_bytes ) throws BencodingException{
+		return parse( torrent_file_path, torrent_file_bytes, -1 );
+	}
+
+	/**
+	 * Describe the torrent held in the given .torrent file bytes, read from a file last modified at the given time.
+	 */
+	protected static TorrentDescriptor parse( String torrent_file_path, byte[] torrent_file_bytes, long mtime ) throws BencodingException{
+
+		String announce = null;
+		String name = null;
+		long piece_length = -1;
+		long length = -1;
+		Object files = null;
+		int info_offset = -1;
+		int info_length = 0;
+		int pieces_offset = -1;
+		int pieces_length = -1;
+
+		BencodeReader reader = new BencodeReader( torrent_file_bytes );
+		if( reader.next() != Token.DICTIONARY )
+			throw new BencodingException("Torrent metainfo is not a dictionary.  Corrupt file?");
+
+		while( reader.next() == Token.KEY ){
+
+			if( reader.bytesEqual( KEY_ANNOUNCE ) ){
+				announce = readString( reader, "ASCII" );
+			}
+			else if( reader.bytesEqual( KEY_INFO ) ){
+				info_offset = reader.position();
+				if( reader.next() != Token.DICTIONARY )
+					throw new BencodingException("Could not extract info dictionary from torrent metainfo dictionary.  Corrupt file?");
+
+				while( reader.next() == Token.KEY ){
+					if( reader.bytesEqual( KEY_NAME ) )
+						name = readString( reader, "ASCII" );
+					else if( reader.bytesEqual( KEY_PIECE_LENGTH ) )
+						piece_length = readInteger( reader );
+					else if( reader.bytesEqual( KEY_LENGTH ) )
+						length = readInteger( reader );
+					else if( reader.bytesEqual( KEY_FILES ) )
+						files = Bencoder2.decode( reader );
+					else if( reader.bytesEqual( KEY_PIECES ) ){
+						if( reader.next() != Token.BYTES )
+							throw new BencodingException("Could not extract piece hashes from info dictionary.  Corrupt file?");
+						pieces_offset = reader.bytesStart();
+						pieces_length = reader.bytesLength();
+					}
+					else{
+						reader.next();
+						reader.skip();
+					}
+				}
+				info_length = reader.position() - info_offset;
+			}
+			else{
+				reader.next();
+				reader.skip();
+			}
+		}
+
+		//Check that everything needed was found, and lay out the files.
+		if( announce == null )
+			throw new BencodingException("Could not retrieve anounce URL from torrent metainfo.  Corrupt file?");
+		URL announce_url;
+		try{
+			announce_url = TorrentInfo.parseAnnounceURL( announce );
+		}
+		catch( MalformedURLException e ){
+			throw new BencodingException( e.getLocalizedMessage() );
+		}
+		if( info_offset < 0 )
+			throw new BencodingException("Could not extract info dictionary from torrent metainfo dictionary.  Corrupt file?");
+		TorrentLayout layout = TorrentLayout.validate( name, piece_length, length, files, pieces_length );
+
+		ByteBuffer info_hash = ByteBuffer.wrap( sha1( torrent_file_bytes, info_offset, info_length ) );
+
+		return new TorrentDescriptor( torrent_file_path, info_hash, announce_url, name, (int)piece_length, layout,
+				info_offset, info_length, pieces_offset, torrent_file_bytes.length, mtime );
+	}
+
+	/**
+	 * Read the piece hashes back from the .torrent file.  Only the recorded span of the info dictionary
+	 * is read.  If the file's length or modification time changed since it was described, the span is
+	 * hashed again first, so a .torrent file that no longer holds this torrent is never trusted.
+	 * @return the piece hash table of the torrent
+	 * @throws IOException if the .torrent file could not be read.
+	 * @throws BencodingException if the .torrent file no longer holds this torrent.
+	 * @author Thomas Travis
+	 */
+	public PieceHashTable loadPieceHashes() throws IOException, BencodingException{
+
+		File file = new File( torrent_file_path );
+		boolean unchanged = torrent_file_mtime >= 0 && file.lastModified() == torrent_file_mtime
+				&& file.length() == torrent_file_length;
+
+		//An unchanged file is trusted, and only its piece hashes are read; otherwise the whole info span is checked.
+		int hashes_length = number_of_pieces*PieceHashTable.HASH_LENGTH;
+		int offset = unchanged ? pieces_offset : info_offset;
+		byte[] bytes = new byte[ unchanged ? hashes_length : info_length ];
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try{
+			if( raf.length() < offset + bytes.length )
+				throw new BencodingException("The torrent file "+torrent_file_path+" changed since it was loaded.");
+			raf.seek( offset );
+			raf.readFully( bytes );
+		}
+		finally{
+			raf.close();
+		}
+		if( unchanged )
+			return new PieceHashTable( bytes );
+
+		if( !Arrays.equals( sha1( bytes, 0, bytes.length ), info_hash.array() ) )
+			throw new BencodingException("The torrent file "+torrent_file_path+" changed since it was loaded.");
+		int start = pieces_offset - info_offset;
+		return new PieceHashTable( Arrays.copyOfRange( bytes, start, start + hashes_length ) );
+	}
+
+	/**
+	 * Read the byte string value that follows a key.
+	 */
+	protected static String readString( BencodeReader reader, String charset ) throws BencodingException{
+
+		if( reader.next() != Token.BYTES )
+			throw new BencodingException("Expected a byte string at position " + reader.tokenStart() + ".  Corrupt file?");
+		try{
+			return new String( reader.copyBytes(), charset );
+		}
+		catch( UnsupportedEncodingException e ){
+			throw new BencodingException( e.getLocalizedMessage() );
+		}
+	}
+
+	/**
+	 * Read the integer value that follows a key.
+	 */
+	protected static long readInteger( BencodeReader reader ) throws BencodingException{
+
+		if( reader.next() != Token.INTEGER )
+			throw new BencodingException("Expected an integer at position " + reader.tokenStart() + ".  Corrupt file?");
+		return reader.intValue();
+	}
+
+	/**
+	 * Hash a range of bytes with SHA-1.
+	 */
+	protected static byte[] sha1( byte[] bytes, int offset, int length ) throws BencodingException{
+
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update( bytes, offset, length );
+			return digest.digest();
+		}
+		catch( NoSuchAlgorithmException e ){
+			throw new BencodingException( e.getLocalizedMessage() );
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 
 import cs352.RUBTClient.resources.BencodingException;
 import cs352.RUBTClient.resources.TorrentInfo;
@@ -71,5 +72,32 @@ public class TorrentInfoDecoder {
 		return info;
 	}
 	
+	/**
+	 * Generates a lightweight TorrentDescriptor from the file specified by torrent_file_path.
+	 * This method should be accessed in a static way.
+	 * @param torrent_file_path
+	 * @return the TorrentDescriptor, if the file exists; returns null otherwise.
+	 */
+	public static TorrentDescriptor generateTorrentDescriptor( String torrent_file_path ){
+		
+		try{
+			return TorrentDescriptor.read( torrent_file_path );
+		}
+		catch( NoSuchFileException e ){
+			return null;
+		}
+		catch( IOException e ){
+			System.err.println("An I/O error occurred while reading the torrent file bytes in from disk.");
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+		catch( BencodingException e ){
+			System.err.println(" An error occurred while trying to unbencode the torrent file bytes.");
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+		return null;
+	}
+	
 	protected TorrentInfoDecoder(){}
 }
@@ -0,0 +1,144 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives the Choker with a fake clock to check the rechoke and optimistic unchoke intervals.
+ */
+public class ChokerTest
+{
+	private FakeClock clock;
+	private PeerFixture fixture;
+	private ArrayList<Peer> peers;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		clock = new FakeClock();
+		fixture = new PeerFixture();
+		peers = new ArrayList<Peer>();
+		for(int i = 0; i < 4; i++)
+		{
+			Peer peer = fixture.connectPeer();
+			peer.interestedInMe();
+			peers.add(peer);
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		fixture.close();
+	}
+
+	@Test
+	public void rechokesOnlyOnceTheIntervalHasPassed()
+	{
+		Choker choker = new Choker(1, 0, clock);
+		for(int i = 0; i < peers.size(); i++)
+			choker.addPeer(peers.get(i));
+		assertTrue(choker.isUnchoked(peers.get(0)));
+
+		//The fastest peer only takes the regular slot at the next rechoke.
+		peers.get(2).downloaded.addAndGet(100000);
+		clock.now += Choker.RECHOKE_INTERVAL - 1;
+		assertFalse(choker.tick(peers, false));
+		assertTrue(choker.isUnchoked(peers.get(0)));
+		assertFalse(choker.isUnchoked(peers.get(2)));
+
+		clock.now += 1;
+		assertTrue(choker.tick(peers, false));
+		assertTrue(choker.isUnchoked(peers.get(2)));
+		assertFalse(choker.isUnchoked(peers.get(0)));
+		assertEquals(10000, (long)choker.getRate(peers.get(2)));
+	}
+
+	@Test
+	public void ranksByUploadRateWhileSeeding()
+	{
+		Choker choker = new Choker(1, 0, clock);
+		for(int i = 0; i < peers.size(); i++)
+			choker.addPeer(peers.get(i));
+
+		peers.get(1).downloaded.addAndGet(100000);
+		peers.get(3).uploaded.addAndGet(50000);
+		clock.now += Choker.RECHOKE_INTERVAL;
+		choker.tick(peers, true);
+		assertTrue(choker.isUnchoked(peers.get(3)));
+		assertFalse(choker.isUnchoked(peers.get(1)));
+	}
+
+	@Test
+	public void rotatesTheOptimisticSlotOnlyEveryOptimisticInterval()
+	{
+		Choker choker = new Choker(1, 1, clock);
+		for(int i = 0; i < peers.size(); i++)
+			choker.addPeer(peers.get(i));
+
+		//Keep one peer clearly fastest so it holds the regular slot throughout.
+		boolean rotated = false;
+		Peer optimistic = null;
+		for(int rechoke = 1; rechoke <= 60; rechoke++)
+		{
+			peers.get(0).downloaded.addAndGet(100000);
+			clock.now += Choker.RECHOKE_INTERVAL;
+			assertTrue(choker.tick(peers, false));
+			assertTrue(choker.isUnchoked(peers.get(0)));
+
+			Peer current = findOptimistic(choker);
+			assertNotNull(current);
+
+			//Rechokes between rotations keep the optimistic peer.
+			boolean due = (rechoke * Choker.RECHOKE_INTERVAL) % Choker.OPTIMISTIC_INTERVAL == 0;
+			if(optimistic != null && !due)
+				assertSame(optimistic, current);
+			if(optimistic != null && due && current != optimistic)
+				rotated = true;
+			optimistic = current;
+		}
+
+		//Twenty random picks from three choked peers all landing on the same one is not plausible.
+		assertTrue(rotated);
+	}
+
+	/**
+	 * Finds the single unchoked peer besides the regular one.
+	 */
+	private Peer findOptimistic(Choker choker)
+	{
+		Peer found = null;
+		for(int i = 1; i < peers.size(); i++)
+		{
+			if(choker.isUnchoked(peers.get(i)))
+			{
+				assertTrue(found == null);
+				found = peers.get(i);
+			}
+		}
+		return found;
+	}
+
+	private static class FakeClock implements Choker.Clock
+	{
+		long now = 1000000;
+
+		public long currentTimeMillis()
+		{
+			return now;
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cs352.RUBTClient.model.TorrentFixture;
+
+/**
+ * Checks that the ConnectionManager keeps to its half-open, per-torrent and per-session caps, and
+ * that every slot it hands out comes back once the attempt fails or the connection closes.
+ * Outbound candidates are loopback listeners that either never answer the handshake, or answer it.
+ */
+public class ConnectionManagerTest
+{
+	private static final long WAIT = 5000; //In milliseconds, the longest a test waits for the dispatcher.
+
+	private PeerFixture fixture;
+	private PeerFixture other;
+	private ConnectionManager connections;
+	private final ArrayList<ServerSocket> listeners = new ArrayList<ServerSocket>();
+	private final ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		fixture = new PeerFixture();
+		fixture.dm.setAccepting(true);
+	}
+
+	@After
+	public void tearDown()
+	{
+		if(connections != null)
+			connections.shutdown();
+		closeListeners();
+		synchronized(sockets)
+		{
+			for(int i = 0; i < sockets.size(); i++)
+			{
+				try{sockets.get(i).close();}
+				catch(IOException e){;}
+			}
+		}
+		fixture.close();
+		if(other != null)
+			other.close();
+	}
+
+	@Test
+	public void halfOpenAttemptsStayWithinTheCap() throws Exception
+	{
+		connections = new ConnectionManager(2, 50, 200);
+		connections.register(fixture.dm, new PeerCandidatePool(fixture.infoHash));
+		connections.offer(fixture.dm, silentListeners(6), ConnectionManager.Source.TRACKER);
+
+		//The attempts hang on the handshake, so the cap is reached and held.
+		long deadline = System.currentTimeMillis() + 1000;
+		int most = 0;
+		while(System.currentTimeMillis() < deadline)
+		{
+			int halfOpen = connections.getHalfOpenCount();
+			assertTrue("half-open " + halfOpen, halfOpen <= 2);
+			assertTrue(connections.getOpenCount(fixture.dm) <= 2);
+			most = Math.max(most, halfOpen);
+			Thread.sleep(10);
+		}
+		assertEquals(2, most);
+
+		//Closing the listeners fails every attempt, and every slot comes back.
+		closeListeners();
+		awaitCounts(fixture.dm, 0, 0, 0);
+	}
+
+	@Test
+	public void torrentSlotsStayWithinTheCap() throws Exception
+	{
+		connections = new ConnectionManager(8, 2, 200);
+		connections.register(fixture.dm, new PeerCandidatePool(fixture.infoHash));
+		connections.offer(fixture.dm, silentListeners(5), ConnectionManager.Source.TRACKER);
+
+		awaitCounts(fixture.dm, 2, 2, 2);
+		Thread.sleep(200);
+		assertEquals(2, connections.getHalfOpenCount());
+		assertEquals(2, connections.getOpenCount(fixture.dm));
+		assertFalse(connections.reserveIncoming(fixture.dm));
+
+		closeListeners();
+		awaitCounts(fixture.dm, 0, 0, 0);
+		assertTrue(connections.reserveIncoming(fixture.dm));
+	}
+
+	@Test
+	public void sessionSlotsStayWithinTheCap() throws Exception
+	{
+		other = new PeerFixture();
+		connections = new ConnectionManager(8, 50, 3);
+		connections.register(fixture.dm, new PeerCandidatePool(fixture.infoHash));
+		connections.register(other.dm, new PeerCandidatePool(other.infoHash));
+
+		assertTrue(connections.reserveIncoming(fixture.dm));
+		assertTrue(connections.reserveIncoming(fixture.dm));
+		assertTrue(connections.reserveIncoming(other.dm));
+		assertFalse(connections.reserveIncoming(other.dm));
+		assertFalse(connections.reserveIncoming(fixture.dm));
+		assertEquals(3, connections.getSessionOpenCount());
+
+		//No outbound attempt starts while the session is full.
+		other.dm.setAccepting(true);
+		connections.offer(other.dm, silentListeners(2), ConnectionManager.Source.TRACKER);
+		Thread.sleep(200);
+		assertEquals(0, connections.getHalfOpenCount());
+
+		//Unregistering a torrent gives back its slots, and the other torrent takes them at once.
+		connections.unregister(fixture.dm);
+		awaitCounts(other.dm, 2, 3, 3);
+	}
+
+	@Test
+	public void closedConnectionsGiveBackTheirSlots() throws Exception
+	{
+		connections = new ConnectionManager(8, 50, 200);
+		connections.register(fixture.dm, new PeerCandidatePool(fixture.infoHash));
+
+		//An incoming connection holds a slot until it closes.
+		assertTrue(connections.reserveIncoming(fixture.dm));
+		assertEquals(1, connections.getOpenCount(fixture.dm));
+		connections.peerClosed(fixture.dm, peer("127.0.0.1", 1));
+		assertEquals(0, connections.getOpenCount(fixture.dm));
+
+		//An outbound connection that handshakes holds its slot, but not a half-open one.
+		ServerSocket listener = answeringListener();
+		connections.offer(fixture.dm, new String[]{"127.0.0.1:" + listener.getLocalPort()}, ConnectionManager.Source.TRACKER);
+		awaitCounts(fixture.dm, 0, 1, 1);
+		Thread.sleep(200);
+		assertEquals(1, connections.getOpenCount(fixture.dm));
+
+		connections.peerClosed(fixture.dm, peer("127.0.0.1", listener.getLocalPort()));
+		assertEquals(0, connections.getOpenCount(fixture.dm));
+		assertEquals(0, connections.getSessionOpenCount());
+	}
+
+	/**
+	 * Waits until the manager holds the given numbers of slots.
+	 */
+	private void awaitCounts(DownloadManager dm, int halfOpen, int open, int sessionOpen) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + WAIT;
+		while(connections.getHalfOpenCount() != halfOpen || connections.getOpenCount(dm) != open
+				|| connections.getSessionOpenCount() != sessionOpen)
+		{
+			if(System.currentTimeMillis() > deadline)
+				fail("Expected " + halfOpen + "/" + open + "/" + sessionOpen + " slots but held "
+						+ connections.getHalfOpenCount() + "/" + connections.getOpenCount(dm) + "/" + connections.getSessionOpenCount());
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Opens listeners that take connections but never accept them, so the handshake never comes.
+	 *
+	 * @return Their addresses as "ip:port" strings.
+	 */
+	private String[] silentListeners(int count) throws IOException
+	{
+		String[] addresses = new String[count];
+		for(int i = 0; i < count; i++)
+		{
+			ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			listeners.add(listener);
+			addresses[i] = "127.0.0.1:" + listener.getLocalPort();
+		}
+		return addresses;
+	}
+
+	/**
+	 * Opens a listener that answers one handshake for the fixture torrent and then stays silent.
+	 */
+	private ServerSocket answeringListener() throws IOException
+	{
+		final ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		listeners.add(listener);
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					Socket socket = listener.accept();
+					synchronized(sockets)
+					{sockets.add(socket);}
+					new DataInputStream(socket.getInputStream()).readFully(new byte[68]);
+
+					OutputStream out = socket.getOutputStream();
+					out.write(19);
+					out.write(TorrentFixture.bytes("BitTorrent protocol"));
+					out.write(new byte[8]);
+					out.write(fixture.infoHash);
+					out.write(TorrentFixture.bytes("-FX0001-abcdefghijkl"));
+					out.flush();
+				}
+				catch(IOException e){;}
+			}
+		}, "answering-listener");
+		thread.setDaemon(true);
+		thread.start();
+		return listener;
+	}
+
+	/**
+	 * @return A peer of the fixture torrent named by the given address, as the connection manager knows it.
+	 */
+	private Peer peer(String ip, int port)
+	{
+		return new Peer(ip, Integer.toString(port), "", fixture.infoHash, "-FX0001-mnopqrstuvwx", fixture.dm);
+	}
+
+	private void closeListeners()
+	{
+		for(int i = 0; i < listeners.size(); i++)
+		{
+			try{listeners.get(i).close();}
+			catch(IOException e){;}
+		}
+		listeners.clear();
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cs352.RUBTClient.model.FileManager;
+import cs352.RUBTClient.model.TorrentFixture;
+
+/**
+ * Two incoming connections from the same address, as from two clients behind one NAT, must be
+ * two peers: their requests and snub timing are kept apart, so a silent one does not take the
+ * requests of an answering one down with it.
+ */
+public class DownloadManagerInboundTest
+{
+	private static final long SNUB_TIMEOUT = 60000;
+
+	private FakeClock clock;
+	private PeerFixture fixture;
+	private Peer first;
+	private Peer second;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		clock = new FakeClock();
+		fixture = new PeerFixture(clock);
+		first = fixture.connectPeer();
+		second = fixture.connectPeer();
+		for(Peer peer : new Peer[]{first, second})
+		{
+			peer.interestedInPeer();
+			peer.unchokeMe();
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		fixture.close();
+	}
+
+	@Test
+	public void connectionsFromOneAddressAreDistinctPeers()
+	{
+		assertTrue(first.getIP().equals(second.getIP()));
+		assertFalse(first.equals(second));
+	}
+
+	@Test
+	public void silentPeerDoesNotTakeTheOthersRequests()
+	{
+		fixture.dm.requestPiece(1, first);
+		fixture.dm.requestPiece(2, second);
+
+		//Only the second peer answers.
+		clock.now += SNUB_TIMEOUT - 1000;
+		byte[] block = TorrentFixture.pieceMessage(2, 0, FileManager.BLOCK_LENGTH);
+		fixture.dm.registerPiece(block.length, block, second);
+
+		clock.now += 2000;
+		fixture.dm.checkSnubbed();
+		assertTrue(first.getSnubbed());
+		assertTrue(fixture.dm.isQueued(1));
+		assertFalse(second.getSnubbed());
+		assertFalse(fixture.dm.isQueued(2));
+	}
+
+	private static class FakeClock implements Choker.Clock
+	{
+		long now = 1000000;
+
+		public long currentTimeMillis()
+		{
+			return now;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cs352.RUBTClient.model.FileManager;
+import cs352.RUBTClient.model.TorrentFixture;
+
+/**
+ * Drives the snub check of the DownloadManager with a fake clock: a peer that stays silent on its
+ * requests for SNUB_TIMEOUT is snubbed and its piece goes back to the download queue, and the
+ * snub is cleared as soon as the peer sends a block again.
+ */
+public class DownloadManagerSnubTest
+{
+	private static final long SNUB_TIMEOUT = 60000;
+
+	private FakeClock clock;
+	private PeerFixture fixture;
+	private Peer peer;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		clock = new FakeClock();
+		fixture = new PeerFixture(clock);
+		peer = fixture.connectPeer();
+
+		//Let requests go out: I am interested and the peer has unchoked me.
+		peer.interestedInPeer();
+		peer.unchokeMe();
+	}
+
+	@After
+	public void tearDown()
+	{
+		fixture.close();
+	}
+
+	@Test
+	public void silentPeerIsSnubbedAndItsPieceRequeued()
+	{
+		fixture.dm.requestPiece(1, peer);
+		assertFalse(fixture.dm.isQueued(1));
+
+		//Still within the timeout: nothing happens.
+		clock.now += SNUB_TIMEOUT;
+		fixture.dm.checkSnubbed();
+		assertFalse(peer.getSnubbed());
+		assertFalse(fixture.dm.isQueued(1));
+
+		clock.now += 1;
+		fixture.dm.checkSnubbed();
+		assertTrue(peer.getSnubbed());
+		assertTrue(fixture.dm.isQueued(1));
+	}
+
+	@Test
+	public void blockFromSnubbedPeerClearsTheSnub()
+	{
+		fixture.dm.requestPiece(1, peer);
+		clock.now += SNUB_TIMEOUT + 1;
+		fixture.dm.checkSnubbed();
+		assertTrue(peer.getSnubbed());
+
+		//The peer answers late; it is no longer snubbed and its new requests are timed from now.
+		byte[] block = TorrentFixture.pieceMessage(1, 0, FileManager.BLOCK_LENGTH);
+		fixture.dm.registerPiece(block.length, block, peer);
+		assertFalse(peer.getSnubbed());
+
+		fixture.dm.requestPiece(2, peer);
+		clock.now += SNUB_TIMEOUT;
+		fixture.dm.checkSnubbed();
+		assertFalse(peer.getSnubbed());
+		assertFalse(fixture.dm.isQueued(2));
+	}
+
+	@Test
+	public void answeringPeerIsNotSnubbed()
+	{
+		fixture.dm.requestPiece(1, peer);
+
+		//A block shortly before the timeout keeps the peer's remaining request alive.
+		clock.now += SNUB_TIMEOUT - 1000;
+		byte[] block = TorrentFixture.pieceMessage(1, 0, FileManager.BLOCK_LENGTH);
+		fixture.dm.registerPiece(block.length, block, peer);
+
+		clock.now += 2000;
+		fixture.dm.checkSnubbed();
+		assertFalse(peer.getSnubbed());
+		assertFalse(fixture.dm.isQueued(1));
+	}
+
+	private static class FakeClock implements Choker.Clock
+	{
+		long now = 1000000;
+
+		public long currentTimeMillis()
+		{
+			return now;
+		}
+	}
+}
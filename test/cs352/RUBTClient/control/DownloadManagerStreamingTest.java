@@ -0,0 +1,151 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cs352.RUBTClient.model.FileManager;
+import cs352.RUBTClient.model.TorrentFixture;
+
+/**
+ * Drives streaming mode with a fake clock: the pieces from the playhead on are queued first and in
+ * order, queued deadline pieces are requested at once, a deadline piece that misses its deadline is
+ * raced with a second peer, and a stream read blocks until its piece has been verified.
+ */
+public class DownloadManagerStreamingTest
+{
+	private static final long SNUB_TIMEOUT = 60000;
+	private static final long DEADLINE_STEP = 1000;
+	private static final byte[] ALL_PIECES = {(byte)0xf0};
+
+	private FakeClock clock;
+	private PeerFixture fixture;
+	private Peer first;
+	private Peer second;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		clock = new FakeClock();
+		fixture = new PeerFixture(clock);
+		first = fixture.connectPeer();
+		second = fixture.connectPeer();
+		for(Peer peer : new Peer[]{first, second})
+		{
+			fixture.dm.registerBitfield(ALL_PIECES, peer);
+			peer.interestedInPeer();
+			peer.unchokeMe();
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		fixture.close();
+	}
+
+	@Test
+	public void piecesFromThePlayheadAreQueuedFirstInOrder()
+	{
+		fixture.dm.openStream();
+		fixture.dm.queueNeededPieces();
+		fixture.dm.setPlayhead(2);
+
+		ArrayList<Integer> order = fixture.dm.queueOrder();
+		assertEquals(4, order.size());
+		assertEquals(Integer.valueOf(2), order.get(0));
+		assertEquals(Integer.valueOf(3), order.get(1));
+	}
+
+	@Test
+	public void queuedDeadlinePiecesAreRequestedAtOnce()
+	{
+		fixture.dm.openStream();
+		fixture.dm.queueNeededPieces();
+		fixture.dm.serviceDeadlines();
+
+		for(int i = 0; i < 4; i++)
+			assertFalse(fixture.dm.isQueued(i));
+	}
+
+	@Test
+	public void pieceOnScheduleIsNotRaced()
+	{
+		fixture.dm.openStream();
+		fixture.dm.requestPiece(0, first);
+
+		//Piece 0 is due DEADLINE_STEP after the playhead was set: not late yet.
+		clock.now += DEADLINE_STEP;
+		fixture.dm.serviceDeadlines();
+		clock.now += SNUB_TIMEOUT + 1;
+		fixture.dm.checkSnubbed();
+		assertTrue(first.getSnubbed());
+		assertFalse(second.getSnubbed());
+	}
+
+	@Test
+	public void missedDeadlineDuplicatesTheRequests()
+	{
+		fixture.dm.openStream();
+		fixture.dm.requestPiece(0, first);
+
+		//Once late, the blocks are also asked of the second peer, which now owes them.
+		clock.now += DEADLINE_STEP + 1;
+		fixture.dm.serviceDeadlines();
+		clock.now += SNUB_TIMEOUT + 1;
+		fixture.dm.checkSnubbed();
+		assertTrue(second.getSnubbed());
+	}
+
+	@Test
+	public void streamReadBlocksUntilThePieceIsVerified() throws Exception
+	{
+		final SeekableByteChannel stream = fixture.dm.openStream();
+		final ByteBuffer dst = ByteBuffer.allocate(1);
+		final int[] read = {-2};
+		Thread reader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try{read[0] = stream.read(dst);}
+				catch(Exception e){read[0] = -3;}
+			}
+		});
+		reader.start();
+
+		//Half of the piece is not enough.
+		byte[] block = TorrentFixture.pieceMessage(0, 0, FileManager.BLOCK_LENGTH);
+		fixture.dm.registerPiece(block.length, block, first);
+		reader.join(300);
+		assertTrue(reader.isAlive());
+
+		block = TorrentFixture.pieceMessage(0, FileManager.BLOCK_LENGTH, FileManager.BLOCK_LENGTH);
+		fixture.dm.registerPiece(block.length, block, first);
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals(1, read[0]);
+		stream.close();
+	}
+
+	private static class FakeClock implements Choker.Clock
+	{
+		long now = 1000000;
+
+		public long currentTimeMillis()
+		{
+			return now;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks who the HashFailureTracker blames for a piece that fails its hash check.
+ */
+public class HashFailureTrackerTest
+{
+	private static final String FIRST = "10.0.0.1";
+	private static final String SECOND = "10.0.0.2";
+
+	private HashFailureTracker tracker;
+
+	@Before
+	public void setUp()
+	{
+		tracker = new HashFailureTracker();
+	}
+
+	@Test
+	public void peerThatSentTheWholePieceIsBanned()
+	{
+		tracker.recordBlock(0, 0, new byte[]{1}, 0, 1, FIRST);
+		tracker.recordBlock(0, 16384, new byte[]{2}, 0, 1, FIRST);
+
+		ArrayList<String> banned = tracker.pieceFailed(0, 2);
+		assertEquals(1, banned.size());
+		assertTrue(tracker.isBanned(FIRST));
+		assertFalse(tracker.needsIsolation(0));
+	}
+
+	@Test
+	public void peerThatSentPartOfThePieceIsIsolatedNotBanned()
+	{
+		//The other block was restored from disk, with no recorded source.
+		tracker.recordBlock(0, 16384, new byte[]{2}, 0, 1, FIRST);
+
+		assertTrue(tracker.pieceFailed(0, 2).isEmpty());
+		assertFalse(tracker.isBanned(FIRST));
+		assertTrue(tracker.needsIsolation(0));
+		assertFalse(tracker.isTrusted(0, FIRST));
+		assertTrue(tracker.isTrusted(0, SECOND));
+
+		//A verified copy that differs in the peer's block proves it sent bad data.
+		tracker.recordBlock(0, 0, new byte[]{1}, 0, 1, SECOND);
+		tracker.recordBlock(0, 16384, new byte[]{3}, 0, 1, SECOND);
+		ArrayList<String> banned = tracker.pieceVerified(0);
+		assertEquals(1, banned.size());
+		assertTrue(tracker.isBanned(FIRST));
+		assertFalse(tracker.isBanned(SECOND));
+	}
+
+	@Test
+	public void peerWhoseBlockMatchesTheVerifiedCopyKeepsOnlyItsStrike()
+	{
+		tracker.recordBlock(0, 16384, new byte[]{2}, 0, 1, FIRST);
+		tracker.pieceFailed(0, 2);
+
+		tracker.recordBlock(0, 0, new byte[]{1}, 0, 1, SECOND);
+		tracker.recordBlock(0, 16384, new byte[]{2}, 0, 1, SECOND);
+		assertTrue(tracker.pieceVerified(0).isEmpty());
+		assertFalse(tracker.isBanned(FIRST));
+	}
+}
@@ -0,0 +1,239 @@
+package cs352.RUBTClient.control;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/** LocalUdpTracker is a small in-process UDP tracker (BEP 15) that UdpTrackerClient is tested
+ * against. It hands out connection IDs, remembers the peers that announce per
+ * info hash, answers announces with the other peers of the swarm and answers scrapes with
+ * the swarm counts. A stopped event removes the peer.
+ *
+ * Requests with an unknown or expired connection ID get an error answer, like a real tracker
+ * gives; forgetConnections() expires every ID at once. dropNext(n) makes it ignore the next n
+ * datagrams, to exercise retransmission.
+ * @author Yuriy Garnaev
+ *
+ */
+final class LocalUdpTracker {
+
+	private static final long PROTOCOL_ID = 0x41727101980L;
+	private static final long CONNECTION_ID_LIFETIME = 120000; //In milliseconds, as BEP 15 asks of trackers.
+	private static final int MAX_PEERS = 50;
+
+	private final DatagramSocket socket;
+	private final int interval;
+	private final Random random = new Random();
+	private final Thread thread;
+
+	//Tracker state, guarded by the tracker itself.
+	private final HashMap<Long, Long> connectionIds = new HashMap<Long, Long>(); //Expiry time by ID.
+	private final HashMap<ByteBuffer, LinkedHashMap<String, Boolean>> swarms = new HashMap<ByteBuffer, LinkedHashMap<String, Boolean>>(); //Seeding flag by "ip:port".
+	private int dropped = 0;
+	private int connects = 0;
+	private int announces = 0;
+	private int scrapes = 0;
+
+	/** Binds the tracker to a free port on the loopback address and starts answering.
+	 *
+	 * @param interval - the announce interval in seconds given to peers
+	 * @throws IOException if no port could be bound
+	 */
+	public LocalUdpTracker(int interval) throws IOException{
+		this.interval = interval;
+		socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		thread = new Thread(new Runnable(){
+			public void run(){
+				serve();
+			}
+		}, "RUBT-local-udp-tracker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** The address to announce to, as a udp:// URL string.
+	 */
+	public String getAnnounceURL(){
+		return "udp://" + socket.getLocalAddress().getHostAddress() + ":" + socket.getLocalPort() + "/announce";
+	}
+
+	public InetSocketAddress getAddress(){
+		return (InetSocketAddress)socket.getLocalSocketAddress();
+	}
+
+	/** Ignore the next n datagrams received, as if they were lost.
+	 */
+	public synchronized void dropNext(int n){
+		dropped = n;
+	}
+
+	/** Expire every connection ID handed out so far, as if their lifetime had passed.
+	 */
+	public synchronized void forgetConnections(){
+		connectionIds.clear();
+	}
+
+	public synchronized int getConnectCount(){
+		return connects;
+	}
+
+	public synchronized int getAnnounceCount(){
+		return announces;
+	}
+
+	public synchronized int getScrapeCount(){
+		return scrapes;
+	}
+
+	public void close(){
+		socket.close();
+	}
+
+	private void serve(){
+		byte[] buffer = new byte[2048];
+		while (true){
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (IOException e){
+				//The socket was closed.
+				return;
+			}
+
+			byte[] answer;
+			synchronized (this){
+				if (dropped > 0){
+					dropped--;
+					continue;
+				}
+				answer = answer(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), packet.getAddress());
+			}
+
+			if (answer == null)
+				continue;
+			try {
+				socket.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+			} catch (IOException e){
+				//The peer retransmits.
+			}
+		}
+	}
+
+	/** Builds the answer to one request, or null to ignore it.
+	 */
+	private byte[] answer(ByteBuffer request, InetAddress from){
+		if (request.remaining() < 16)
+			return null;
+		long connectionId = request.getLong();
+		int action = request.getInt();
+		int transactionId = request.getInt();
+		long now = System.currentTimeMillis();
+
+		if (action == 0){
+			if (connectionId != PROTOCOL_ID)
+				return null;
+			long id = random.nextLong();
+			connectionIds.put(id, now + CONNECTION_ID_LIFETIME);
+			connects++;
+			return ByteBuffer.allocate(16).putInt(0).putInt(transactionId).putLong(id).array();
+		}
+
+		Long expires = connectionIds.get(connectionId);
+		if (expires == null || expires < now)
+			return error(transactionId, "Connection ID missmatch.");
+
+		if (action == 1 && request.remaining() >= 82)
+			return announce(request, from, transactionId);
+		if (action == 2 && request.remaining() >= 20 && request.remaining() % 20 == 0)
+			return scrape(request, transactionId);
+		return error(transactionId, "Malformed request.");
+	}
+
+	private byte[] announce(ByteBuffer request, InetAddress from, int transactionId){
+		byte[] infoHash = new byte[20];
+		request.get(infoHash);
+		request.position(request.position() + 20 + 8); //Skip the peer id and downloaded.
+		long left = request.getLong();
+		request.getLong(); //Uploaded.
+		int event = request.getInt();
+		request.position(request.position() + 4 + 4 + 4); //Skip the ip, key and num_want.
+		int port = request.getShort() & 0xffff;
+		announces++;
+
+		if (!(from instanceof Inet4Address))
+			return error(transactionId, "Only IPv4 peers are supported.");
+
+		ByteBuffer key = ByteBuffer.wrap(infoHash);
+		LinkedHashMap<String, Boolean> swarm = swarms.get(key);
+		if (swarm == null){
+			swarm = new LinkedHashMap<String, Boolean>();
+			swarms.put(key, swarm);
+		}
+
+		String self = from.getHostAddress() + ":" + port;
+		if (event == UdpTrackerClient.EVENT_STOPPED)
+			swarm.remove(self);
+		else
+			swarm.put(self, left == 0);
+
+		int seeders = 0;
+		ArrayList<String> others = new ArrayList<String>();
+		for (Map.Entry<String, Boolean> entry : swarm.entrySet()){
+			if (entry.getValue())
+				seeders++;
+			if (!entry.getKey().equals(self) && others.size() < MAX_PEERS)
+				others.add(entry.getKey());
+		}
+
+		ByteBuffer answer = ByteBuffer.allocate(20 + 6 * others.size());
+		answer.putInt(1).putInt(transactionId).putInt(interval).putInt(swarm.size() - seeders).putInt(seeders);
+		for (String peer : others){
+			int colon = peer.lastIndexOf(':');
+			try {
+				answer.put(InetAddress.getByName(peer.substring(0, colon)).getAddress());
+			} catch (IOException e){
+				answer.put(new byte[4]);
+			}
+			answer.putShort((short)Integer.parseInt(peer.substring(colon + 1)));
+		}
+		return answer.array();
+	}
+
+	private byte[] scrape(ByteBuffer request, int transactionId){
+		int count = request.remaining() / 20;
+		scrapes++;
+
+		ByteBuffer answer = ByteBuffer.allocate(8 + 12 * count);
+		answer.putInt(2).putInt(transactionId);
+		for (int i = 0; i < count; i++){
+			byte[] infoHash = new byte[20];
+			request.get(infoHash);
+			LinkedHashMap<String, Boolean> swarm = swarms.get(ByteBuffer.wrap(infoHash));
+			int seeders = 0;
+			int size = 0;
+			if (swarm != null){
+				size = swarm.size();
+				for (Boolean seeding : swarm.values())
+					if (seeding)
+						seeders++;
+			}
+			answer.putInt(seeders).putInt(seeders).putInt(size - seeders);
+		}
+		return answer.array();
+	}
+
+	private static byte[] error(int transactionId, String message){
+		byte[] text = message.getBytes(StandardCharsets.UTF_8);
+		return ByteBuffer.allocate(8 + text.length).putInt(3).putInt(transactionId).put(text).array();
+	}
+}
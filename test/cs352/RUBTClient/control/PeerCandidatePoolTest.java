@@ -0,0 +1,230 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Saves a PeerCandidatePool to a .peers file and reads it back, and checks each eviction rule:
+ * candidates that grew too old, that failed too often in a row, and that overflow the pool.
+ */
+public class PeerCandidatePoolTest
+{
+	private static final byte[] INFO_HASH = hash(1);
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("pool", ".peers");
+		file.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	@Test
+	public void savedPoolReadsBack() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		PeerCandidatePool pool = new PeerCandidatePool(INFO_HASH);
+
+		//Two candidates connect and move data, the second after failing once; the third never connects.
+		PeerCandidatePool.Candidate first = connect(pool, "10.0.0.1", 6881, 40, now);
+		pool.closed(first, 3 << 20, 1 << 20, 1000, now);
+		pool.add("10.0.0.2", 6882, ConnectionManager.Source.TRACKER, now);
+		PeerCandidatePool.Candidate second = pool.poll();
+		pool.failed(second, 0, now);
+		pool.promote(now);
+		assertSame(second, pool.poll());
+		pool.succeeded(second, 250, now);
+		pool.closed(second, 512, 0, 1000, now);
+		pool.add("10.0.0.3", 6883, ConnectionManager.Source.TRACKER, now);
+		pool.write(file);
+
+		PeerCandidatePool read = PeerCandidatePool.read(file, INFO_HASH);
+		assertEquals(2, read.size());
+		assertNull(read.get("10.0.0.3", 6883));
+		assertSameHistory(first, read.get("10.0.0.1", 6881));
+		assertSameHistory(second, read.get("10.0.0.2", 6882));
+
+		//Saved candidates are all ready, best first.
+		assertSame(read.get("10.0.0.1", 6881), read.poll());
+		assertSame(read.get("10.0.0.2", 6882), read.poll());
+		assertFalse(read.hasReady());
+
+		//A pool saved for another torrent is not used.
+		assertEquals(0, PeerCandidatePool.read(file, hash(2)).size());
+	}
+
+	@Test
+	public void oldCandidatesAreEvicted()
+	{
+		long now = 1000000;
+		PeerCandidatePool pool = new PeerCandidatePool(INFO_HASH);
+
+		//The first is being connected to; the second is listed again later.
+		pool.add("10.0.0.1", 6881, ConnectionManager.Source.TRACKER, now);
+		assertNotNull(pool.poll());
+		pool.add("10.0.0.2", 6882, ConnectionManager.Source.TRACKER, now);
+		pool.add("10.0.0.3", 6883, ConnectionManager.Source.TRACKER, now);
+		pool.add("10.0.0.2", 6882, ConnectionManager.Source.TRACKER, now + PeerCandidatePool.MAX_AGE / 2);
+
+		pool.evict(now + PeerCandidatePool.MAX_AGE);
+		assertEquals(3, pool.size());
+
+		pool.evict(now + PeerCandidatePool.MAX_AGE + 1);
+		assertEquals(2, pool.size());
+		assertNotNull(pool.get("10.0.0.1", 6881));
+		assertNotNull(pool.get("10.0.0.2", 6882));
+		assertNull(pool.get("10.0.0.3", 6883));
+
+		//The evicted candidate is no longer offered.
+		assertSame(pool.get("10.0.0.2", 6882), pool.poll());
+		assertNull(pool.poll());
+	}
+
+	@Test
+	public void repeatedlyFailingCandidatesAreDropped()
+	{
+		long now = 1000000;
+		PeerCandidatePool pool = new PeerCandidatePool(INFO_HASH);
+		pool.add("10.0.0.1", 6881, ConnectionManager.Source.TRACKER, now);
+
+		for(int i = 1; i < PeerCandidatePool.MAX_FAILURES; i++)
+		{
+			PeerCandidatePool.Candidate candidate = pool.poll();
+			assertNotNull(candidate);
+			pool.failed(candidate, 1000, now);
+
+			//It backs off, and is ready again once the backoff passes.
+			assertFalse(pool.hasReady());
+			now += 1000;
+			pool.promote(now);
+			assertTrue(pool.hasReady());
+		}
+		assertEquals(1, pool.size());
+
+		pool.failed(pool.poll(), 1000, now);
+		assertEquals(0, pool.size());
+		pool.promote(now + 1000);
+		assertFalse(pool.hasReady());
+	}
+
+	@Test
+	public void successResetsTheFailureCount()
+	{
+		long now = 1000000;
+		PeerCandidatePool pool = new PeerCandidatePool(INFO_HASH);
+		pool.add("10.0.0.1", 6881, ConnectionManager.Source.TRACKER, now);
+
+		for(int i = 1; i < PeerCandidatePool.MAX_FAILURES; i++)
+		{
+			pool.failed(pool.poll(), 0, now);
+			pool.promote(now);
+		}
+		PeerCandidatePool.Candidate candidate = pool.poll();
+		pool.succeeded(candidate, 100, now);
+		pool.closed(candidate, 0, 0, 0, now);
+		pool.promote(now);
+
+		pool.failed(pool.poll(), 0, now);
+		assertEquals(1, pool.size());
+	}
+
+	@Test
+	public void overflowEvictsTheLowestScores()
+	{
+		long now = 1000000;
+		long never = Long.MAX_VALUE / 2; //A backoff that outlasts the test.
+		PeerCandidatePool pool = new PeerCandidatePool(INFO_HASH);
+
+		//Two candidates fail twice and one fails once, which ranks them last. They are added one at a
+		//time, so each is the only ready candidate when it is polled.
+		for(int i = 0; i < 3; i++)
+		{
+			pool.add(ip(i), 6881, ConnectionManager.Source.TRACKER, now);
+			if(i < 2)
+			{
+				pool.failed(pool.poll(), 0, now);
+				pool.promote(now);
+			}
+			pool.failed(pool.poll(), never, now);
+		}
+
+		//A connected candidate scores lowest of all, but is never evicted.
+		PeerCandidatePool.Candidate connected = connect(pool, ip(3), 6881, 100, now);
+		connected.failures = 10;
+
+		//Fill the pool past its limit; saved candidates rank below tracker candidates, but above failed ones.
+		for(int i = 4; i < PeerCandidatePool.MAX_CANDIDATES; i++)
+			pool.add(ip(i), 6881, ConnectionManager.Source.TRACKER, now);
+		pool.add("10.1.0.1", 6881, ConnectionManager.Source.SAVED, now);
+		pool.add("10.1.0.2", 6881, ConnectionManager.Source.SAVED, now);
+		pool.evict(now);
+
+		assertEquals(PeerCandidatePool.MAX_CANDIDATES, pool.size());
+		assertNull(pool.get(ip(0), 6881));
+		assertNull(pool.get(ip(1), 6881));
+		assertNotNull(pool.get(ip(2), 6881));
+		assertSame(connected, pool.get(ip(3), 6881));
+		assertNotNull(pool.get("10.1.0.1", 6881));
+		assertNotNull(pool.get("10.1.0.2", 6881));
+	}
+
+	/**
+	 * Adds a candidate while no other is ready, and connects to it.
+	 */
+	private static PeerCandidatePool.Candidate connect(PeerCandidatePool pool, String ip, int port, long latency, long now)
+	{
+		pool.add(ip, port, ConnectionManager.Source.TRACKER, now);
+		PeerCandidatePool.Candidate candidate = pool.poll();
+		assertSame(pool.get(ip, port), candidate);
+		pool.succeeded(candidate, latency, now);
+		return candidate;
+	}
+
+	private static void assertSameHistory(PeerCandidatePool.Candidate expected, PeerCandidatePool.Candidate actual)
+	{
+		assertNotNull(actual);
+		assertEquals(ConnectionManager.Source.SAVED, actual.source);
+		assertEquals(expected.successes, actual.successes);
+		assertEquals(expected.failures, actual.failures);
+		assertEquals(expected.latency, actual.latency);
+		assertEquals(expected.downloaded, actual.downloaded);
+		assertEquals(expected.uploaded, actual.uploaded);
+		assertEquals(expected.lastSeen, actual.lastSeen);
+	}
+
+	private static String ip(int i)
+	{
+		return "10.0." + (i >> 8) + "." + (i & 0xff);
+	}
+
+	private static byte[] hash(int fill)
+	{
+		byte[] hash = new byte[20];
+		Arrays.fill(hash, (byte)fill);
+		return hash;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import cs352.RUBTClient.model.TorrentFixture;
+
+/**
+ * Builds a download manager for a TorrentFixture, and peers connected to it over loopback sockets.
+ * The far end of each socket is held open but never answers, so the peers behave like remote peers
+ * that stay silent. close() closes them and deletes the temporary directory of the torrent.
+ */
+final class PeerFixture
+{
+	final DownloadManager dm;
+	final byte[] infoHash;
+
+	private final TorrentFixture torrent;
+	private final ArrayList<Socket> sockets;
+	private final ArrayList<Peer> peers;
+
+	PeerFixture() throws Exception
+	{
+		this(Choker.SYSTEM_CLOCK);
+	}
+
+	/**
+	 * @param clock The clock the download manager times its peers with.
+	 */
+	PeerFixture(Choker.Clock clock) throws Exception
+	{
+		torrent = new TorrentFixture("fixture.bin");
+		infoHash = torrent.infoHash;
+		dm = new DownloadManager(torrent.session(), null, null, clock);
+		sockets = new ArrayList<Socket>();
+		peers = new ArrayList<Peer>();
+	}
+
+	/**
+	 * Connects a new peer to the download manager the way an incoming connection is connected.
+	 *
+	 * @return The connected peer, which is not yet in the peer list of the download manager.
+	 */
+	Peer connectPeer() throws IOException
+	{
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Socket remote;
+		Socket local;
+		try
+		{
+			remote = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			local = server.accept();
+		}
+		finally{server.close();}
+		sockets.add(remote);
+		sockets.add(local);
+
+		//Named the way the DownloadManager names incoming peers: by the remote address and port.
+		Peer peer = dm.createInboundPeer(local);
+		if(!peer.connect(local, handshake()))
+			throw new IOException("The fixture peer did not connect.");
+		peers.add(peer);
+		return peer;
+	}
+
+	/**
+	 * Closes every peer and socket and deletes the temporary directory.
+	 */
+	void close()
+	{
+		for(int i = 0; i < peers.size(); i++)
+			peers.get(i).close();
+		for(int i = 0; i < sockets.size(); i++)
+		{
+			try{sockets.get(i).close();}
+			catch(IOException e){;}
+		}
+
+		torrent.close();
+	}
+
+	private byte[] handshake() throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(19);
+		out.write(TorrentFixture.bytes("BitTorrent protocol"));
+		out.write(new byte[8]);
+		out.write(infoHash);
+		out.write(TorrentFixture.bytes("-FX0001-mnopqrstuvwx"));
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.control;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/** Runs UdpTrackerClient against a LocalUdpTracker: the connection ID is cached across requests,
+ * announces and scrape batches are answered, an error answer reaches the caller, and a dropped
+ * datagram is sent again after the base timeout.
+ */
+public class UdpTrackerClientTest {
+
+	private static final int BASE_TIMEOUT = 100; //In milliseconds, short enough to retransmit quickly.
+	private static final long WAIT = 5000; //In milliseconds, the longest a test waits for a callback.
+
+	private LocalUdpTracker tracker;
+	private UdpTrackerClient client;
+
+	@After
+	public void tearDown(){
+		if (client != null)
+			client.close();
+		if (tracker != null)
+			tracker.close();
+	}
+
+	@Test
+	public void connectionIdIsCachedAcrossRequests() throws Exception{
+		start(2);
+
+		//Requests made while the connect is in flight wait for it.
+		Outcome first = announce(hash(1), 6881, 100, UdpTrackerClient.EVENT_STARTED);
+		Outcome second = announce(hash(2), 6881, 100, UdpTrackerClient.EVENT_STARTED);
+		first.await();
+		second.await();
+		assertNotNull(first.response);
+		assertNotNull(second.response);
+
+		announce(hash(1), 6881, 0, UdpTrackerClient.EVENT_COMPLETED).await();
+		scrape(hash(1)).await();
+		assertEquals(1, tracker.getConnectCount());
+		assertEquals(3, tracker.getAnnounceCount());
+		assertEquals(1, tracker.getScrapeCount());
+	}
+
+	@Test
+	public void announceListsTheOtherPeers() throws Exception{
+		start(2);
+
+		Outcome seeder = announce(hash(1), 6881, 0, UdpTrackerClient.EVENT_STARTED).await();
+		assertNull(seeder.response.getFailureReason());
+		assertEquals(0, seeder.response.getPeers().length);
+
+		Outcome leecher = announce(hash(1), 6882, 100, UdpTrackerClient.EVENT_STARTED).await();
+		assertNull(leecher.response.getFailureReason());
+		assertEquals(1800, leecher.response.getInterval());
+		assertEquals(1, leecher.response.getComplete());
+		assertEquals(1, leecher.response.getIncomplete());
+		assertEquals(1, leecher.response.getPeers().length);
+		assertTrue(leecher.response.getPeers()[0], leecher.response.getPeers()[0].endsWith(":6881"));
+
+		//A stopped peer leaves the swarm.
+		announce(hash(1), 6881, 0, UdpTrackerClient.EVENT_STOPPED).await();
+		Outcome again = announce(hash(1), 6882, 100, UdpTrackerClient.EVENT_NONE).await();
+		assertEquals(0, again.response.getPeers().length);
+	}
+
+	@Test
+	public void scrapeBatchIsAnsweredInOrder() throws Exception{
+		start(2);
+		announce(hash(1), 6881, 0, UdpTrackerClient.EVENT_STARTED).await();
+		announce(hash(1), 6882, 100, UdpTrackerClient.EVENT_STARTED).await();
+		announce(hash(3), 6881, 100, UdpTrackerClient.EVENT_STARTED).await();
+
+		Outcome outcome = scrape(hash(1), hash(2), hash(3)).await();
+		assertNotNull(outcome.entries);
+		assertEquals(3, outcome.entries.length);
+		assertEquals(1, outcome.entries[0].seeders);
+		assertEquals(1, outcome.entries[0].leechers);
+		assertEquals(0, outcome.entries[1].seeders);
+		assertEquals(0, outcome.entries[1].leechers);
+		assertEquals(0, outcome.entries[2].seeders);
+		assertEquals(1, outcome.entries[2].leechers);
+		assertEquals(1, tracker.getScrapeCount());
+
+		try {
+			scrape(new byte[UdpTrackerClient.MAX_SCRAPE_HASHES + 1][]);
+			fail("A scrape of too many torrents was sent.");
+		} catch (IllegalArgumentException e){
+			//Expected.
+		}
+	}
+
+	@Test
+	public void errorAnswerReachesTheCaller() throws Exception{
+		start(2);
+		announce(hash(1), 6881, 100, UdpTrackerClient.EVENT_STARTED).await();
+
+		//The tracker no longer knows the cached connection ID, and says so.
+		tracker.forgetConnections();
+		Outcome announced = announce(hash(1), 6881, 100, UdpTrackerClient.EVENT_NONE).await();
+		assertEquals("Connection ID missmatch.", announced.response.getFailureReason());
+
+		Outcome scraped = scrape(hash(1)).await();
+		assertNotNull(scraped.error);
+		assertTrue(scraped.error.getMessage(), scraped.error.getMessage().contains("Connection ID missmatch."));
+	}
+
+	@Test
+	public void droppedDatagramIsSentAgain() throws Exception{
+		start(2);
+
+		//The connect is lost, then the announce.
+		tracker.dropNext(1);
+		long start = System.currentTimeMillis();
+		Outcome connected = announce(hash(1), 6881, 100, UdpTrackerClient.EVENT_STARTED).await();
+		assertNotNull(connected.response);
+		assertTrue(System.currentTimeMillis() - start >= BASE_TIMEOUT);
+		assertEquals(1, tracker.getConnectCount());
+
+		tracker.dropNext(1);
+		Outcome announced = announce(hash(1), 6881, 100, UdpTrackerClient.EVENT_NONE).await();
+		assertNotNull(announced.response);
+		assertEquals(2, tracker.getAnnounceCount());
+	}
+
+	@Test
+	public void requestFailsOnceEveryRetransmissionIsLost() throws Exception{
+		start(1);
+		tracker.dropNext(Integer.MAX_VALUE);
+
+		//One attempt and one retransmission, waiting BASE_TIMEOUT and then twice that.
+		long start = System.currentTimeMillis();
+		Outcome outcome = announce(hash(1), 6881, 100, UdpTrackerClient.EVENT_STARTED).await();
+		assertNotNull(outcome.error);
+		assertTrue(System.currentTimeMillis() - start >= 3 * BASE_TIMEOUT);
+		assertEquals(0, tracker.getConnectCount());
+	}
+
+	private void start(int maxRetries) throws IOException{
+		tracker = new LocalUdpTracker(1800);
+		client = new UdpTrackerClient(BASE_TIMEOUT, maxRetries);
+	}
+
+	private Outcome announce(byte[] infoHash, int port, long left, int event){
+		Outcome outcome = new Outcome();
+		client.announce(tracker.getAddress(), infoHash, peerId(port), 0, left, 0, event, port, outcome);
+		return outcome;
+	}
+
+	private Outcome scrape(byte[]... infoHashes){
+		Outcome outcome = new Outcome();
+		client.scrape(tracker.getAddress(), infoHashes, outcome);
+		return outcome;
+	}
+
+	private static byte[] hash(int fill){
+		byte[] hash = new byte[20];
+		Arrays.fill(hash, (byte)fill);
+		return hash;
+	}
+
+	private static byte[] peerId(int port){
+		byte[] id = hash('a');
+		id[19] = (byte)port;
+		return id;
+	}
+
+	/** Records the outcome of one request, which the client reports exactly once.
+	 */
+	private static final class Outcome implements UdpTrackerClient.AnnounceCallback, UdpTrackerClient.ScrapeCallback {
+		private final CountDownLatch done = new CountDownLatch(1);
+		volatile TrackerResponse response;
+		volatile UdpTrackerClient.ScrapeEntry[] entries;
+		volatile IOException error;
+
+		public void completed(TrackerResponse response){
+			this.response = response;
+			done.countDown();
+		}
+
+		public void completed(UdpTrackerClient.ScrapeEntry[] entries){
+			this.entries = entries;
+			done.countDown();
+		}
+
+		public void failed(IOException e){
+			error = e;
+			done.countDown();
+		}
+
+		Outcome await() throws InterruptedException{
+			if (!done.await(WAIT, TimeUnit.MILLISECONDS))
+				fail("The tracker client never reported the outcome.");
+			return this;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays journals with torn and corrupt tails, and checks that the writer does not compact a
+ * journal left over from an earlier run until it is started.
+ */
+public class CompletionJournalTest {
+
+	private static final Logger LOG = Logger.getAnonymousLogger();
+	private static final Runnable NO_COMPACTION = new Runnable(){
+		public void run(){
+		}
+	};
+
+	private File directory;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception{
+		directory = Files.createTempDirectory( "rubt-test" ).toFile();
+		file = new File( directory, "fixture.data.journal" );
+	}
+
+	@After
+	public void tearDown(){
+		TorrentFixture.delete( directory );
+	}
+
+	@Test
+	public void replayAppliesRecordsInOrder() throws Exception{
+
+		CompletionJournal journal = new CompletionJournal( file, NO_COMPACTION, LOG );
+		journal.append( 0, true );
+		journal.append( 1, true );
+		journal.append( 2, true );
+		journal.append( 1, false );
+		journal.close();
+
+		BitSet bitfield = new BitSet();
+		assertEquals( 4, CompletionJournal.replay( file, bitfield, 4 ) );
+		assertTrue( bitfield.get( 0 ) );
+		assertFalse( bitfield.get( 1 ) );
+		assertTrue( bitfield.get( 2 ) );
+	}
+
+	@Test
+	public void replayStopsAtATornRecord() throws Exception{
+
+		CompletionJournal journal = new CompletionJournal( file, NO_COMPACTION, LOG );
+		journal.append( 0, true );
+		journal.close();
+
+		//Half a record, as left by a crash in the middle of a write.
+		append( new byte[]{ 0, 0, 0, 2 } );
+
+		BitSet bitfield = new BitSet();
+		assertEquals( 1, CompletionJournal.replay( file, bitfield, 4 ) );
+		assertTrue( bitfield.get( 0 ) );
+		assertEquals( 1, bitfield.cardinality() );
+	}
+
+	@Test
+	public void replayStopsAtACorruptRecord() throws Exception{
+
+		CompletionJournal journal = new CompletionJournal( file, NO_COMPACTION, LOG );
+		journal.append( 0, true );
+		journal.close();
+
+		//A record whose check value does not match, then a good record that must not be applied.
+		append( new byte[]{ 0, 0, 0, 1, 1, 0, 0, 0 } );
+		journal = new CompletionJournal( file, NO_COMPACTION, LOG );
+		journal.append( 3, true );
+		journal.close();
+
+		BitSet bitfield = new BitSet();
+		assertEquals( 1, CompletionJournal.replay( file, bitfield, 4 ) );
+		assertFalse( bitfield.get( 1 ) );
+		assertFalse( bitfield.get( 3 ) );
+	}
+
+	@Test
+	public void leftoverJournalIsNotCompactedUntilStarted() throws Exception{
+
+		CompletionJournal journal = new CompletionJournal( file, NO_COMPACTION, LOG );
+		for( int i = 0; i < CompletionJournal.COMPACT_RECORDS; i++ )
+			journal.append( i % 4, true );
+		journal.close();
+
+		final AtomicInteger compactions = new AtomicInteger();
+		journal = new CompletionJournal( file, new Runnable(){
+			public void run(){
+				compactions.incrementAndGet();
+			}
+		}, LOG );
+		Thread.sleep( 2*CompletionJournal.FLUSH_INTERVAL + 500 );
+		assertEquals( 0, compactions.get() );
+
+		journal.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while( compactions.get() == 0 && System.currentTimeMillis() < deadline )
+			Thread.sleep( 50 );
+		journal.close();
+		assertTrue( compactions.get() > 0 );
+	}
+
+	private void append( byte[] bytes ) throws Exception{
+
+		FileOutputStream out = new FileOutputStream( file, true );
+		try{
+			out.write( bytes );
+		}
+		finally{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Resumes a download from its snapshot and completion journal, and checks that a FileManager that
+ * was never resumed leaves the saved progress alone.
+ */
+public class FileManagerResumeTest {
+
+	private TorrentFixture torrent;
+
+	@Before
+	public void setUp() throws Exception{
+		torrent = new TorrentFixture( "fixture.bin" );
+	}
+
+	@After
+	public void tearDown(){
+		torrent.close();
+	}
+
+	@Test
+	public void resumeReplaysTheJournalOverTheSnapshot(){
+
+		FileManager manager = new FileManager( torrent.session() );
+		assertEquals( 1, (int)storePiece( manager, 0 ) );
+		manager.save();
+		assertEquals( 1, (int)storePiece( manager, 2 ) );
+		manager.close();
+
+		FileManager resumed = new FileManager( torrent.session() );
+		assertEquals( 0, (int)resumed.resume() );
+		assertTrue( resumed.have( 0 ) );
+		assertFalse( resumed.have( 1 ) );
+		assertTrue( resumed.have( 2 ) );
+		assertFalse( resumed.have( 3 ) );
+		resumed.close();
+	}
+
+	@Test
+	public void managerThatWasNeverResumedKeepsTheSavedProgress() throws Exception{
+
+		FileManager manager = new FileManager( torrent.session() );
+		storePiece( manager, 0 );
+		manager.save();
+		manager.close();
+
+		//A journal long enough to be compacted at once, completing piece 1.
+		CompletionJournal journal = new CompletionJournal( manager.getJournalFile(), new Runnable(){
+			public void run(){
+			}
+		}, manager.paLog );
+		for( int i = 0; i < CompletionJournal.COMPACT_RECORDS; i++ )
+			journal.append( 1, true );
+		journal.close();
+
+		//A manager waiting to be started must not fold the journal into an empty snapshot.
+		FileManager waiting = new FileManager( torrent.session() );
+		Thread.sleep( 2*CompletionJournal.FLUSH_INTERVAL + 500 );
+		waiting.close();
+
+		FileManager resumed = new FileManager( torrent.session() );
+		resumed.resume();
+		assertTrue( resumed.have( 0 ) );
+		assertTrue( resumed.have( 1 ) );
+		resumed.close();
+	}
+
+	private static Integer storePiece( FileManager manager, int index ){
+
+		Integer response = null;
+		for( int offset = 0; offset < TorrentFixture.PIECE_LENGTH; offset += FileManager.BLOCK_LENGTH ){
+			byte[] block = TorrentFixture.pieceMessage( index, offset, FileManager.BLOCK_LENGTH );
+			response = manager.storeDataBlock( block.length, block );
+		}
+		return response;
+	}
+}
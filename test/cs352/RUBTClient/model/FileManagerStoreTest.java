@@ -0,0 +1,109 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stores blocks of different pieces from several threads at once, and checks that a piece stuck in
+ * its disk force does not hold up the blocks of other pieces.
+ */
+public class FileManagerStoreTest {
+
+	private TorrentFixture torrent;
+
+	@Before
+	public void setUp() throws Exception{
+		torrent = new TorrentFixture( "fixture.bin" );
+	}
+
+	@After
+	public void tearDown(){
+		torrent.close();
+	}
+
+	@Test
+	public void piecesStoredFromSeveralThreadsAreAllCompleted() throws Exception{
+
+		final FileManager manager = new FileManager( torrent.session() );
+		final AtomicInteger completed = new AtomicInteger();
+		Thread[] threads = new Thread[ TorrentFixture.PIECES ];
+		for( int i = 0; i < threads.length; i++ ){
+			final int index = i;
+			threads[ i ] = new Thread( new Runnable(){
+				public void run(){
+					if( storePiece( manager, index ) == 1 )
+						completed.incrementAndGet();
+				}
+			});
+			threads[ i ].start();
+		}
+		for( int i = 0; i < threads.length; i++ )
+			threads[ i ].join( 5000 );
+
+		assertEquals( TorrentFixture.PIECES, completed.get() );
+		assertEquals( 1, manager.getDownloadStatus() );
+		manager.close();
+	}
+
+	@Test
+	public void slowForceDoesNotHoldUpOtherPieces() throws Exception{
+
+		final CountDownLatch forcing = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final FileManager manager = new FileManager( torrent.session(), FileManager.Preallocation.SPARSE, null ){
+			protected boolean writePieceToDisk( int index ){
+				if( index == 0 ){
+					forcing.countDown();
+					try{
+						release.await();
+					}
+					catch( InterruptedException e ){
+						return false;
+					}
+				}
+				return super.writePieceToDisk( index );
+			}
+		};
+
+		Thread slow = new Thread( new Runnable(){
+			public void run(){
+				storePiece( manager, 0 );
+			}
+		});
+		slow.start();
+		assertTrue( forcing.await( 5, TimeUnit.SECONDS ) );
+
+		//Piece 0 is stuck on its way to disk; piece 1 is stored and completed meanwhile.
+		assertEquals( 1, (int)storePiece( manager, 1 ) );
+		assertTrue( manager.have( 1 ) );
+		assertFalse( manager.have( 0 ) );
+
+		release.countDown();
+		slow.join( 5000 );
+		assertTrue( manager.have( 0 ) );
+		manager.close();
+	}
+
+	private static Integer storePiece( FileManager manager, int index ){
+
+		Integer response = null;
+		for( int offset = 0; offset < TorrentFixture.PIECE_LENGTH; offset += FileManager.BLOCK_LENGTH ){
+			byte[] block = TorrentFixture.pieceMessage( index, offset, FileManager.BLOCK_LENGTH );
+			response = manager.storeDataBlock( block.length, block );
+		}
+		return response;
+	}
+}
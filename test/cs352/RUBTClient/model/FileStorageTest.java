@@ -0,0 +1,154 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lays four files end to end, one of them empty, with 16 byte pieces, and reads and writes across
+ * their boundaries, with and without a skipped file kept in the parts file.
+ */
+public class FileStorageTest {
+
+	private static final long[] LENGTHS = { 10, 0, 25, 7 };
+	private static final int PIECE_LENGTH = 16;
+	private static final int TOTAL = 42;
+
+	private File directory;
+	private Path[] paths;
+	private Path parts;
+	private FileStorage storage;
+
+	@Before
+	public void setUp() throws Exception{
+
+		directory = Files.createTempDirectory( "rubt-test" ).toFile();
+		paths = new Path[ LENGTHS.length ];
+		for( int i = 0; i < paths.length; i++ )
+			paths[ i ] = new File( directory, "dir/file"+i ).toPath();
+		parts = new File( directory, "fixture.parts" ).toPath();
+		storage = new FileStorage( paths, LENGTHS, parts, PIECE_LENGTH );
+	}
+
+	@After
+	public void tearDown() throws Exception{
+		storage.close();
+		TorrentFixture.delete( directory );
+	}
+
+	@Test
+	public void rangesAreMappedToTheFilesTheyCross(){
+
+		ArrayList<FileStorage.Span> spans = storage.map( 5, 30 );
+		assertEquals( 2, spans.size() );
+		assertSpan( spans.get( 0 ), 0, 5, 5 );
+		assertSpan( spans.get( 1 ), 2, 0, 25 );
+
+		spans = storage.map( 30, 100 );
+		assertEquals( 2, spans.size() );
+		assertSpan( spans.get( 0 ), 2, 20, 5 );
+		assertSpan( spans.get( 1 ), 3, 0, 7 );
+
+		assertEquals( 0, storage.fileAt( 9 ) );
+		assertEquals( 2, storage.fileAt( 10 ) );
+		assertEquals( 3, storage.fileAt( 41 ) );
+	}
+
+	@Test
+	public void blocksAreWrittenAndReadAcrossFileBoundaries() throws Exception{
+
+		storage.create( FileManager.Preallocation.SPARSE );
+		byte[] data = pattern();
+		storage.write( ByteBuffer.wrap( data, 4, 36 ), 4 );
+		storage.write( ByteBuffer.wrap( data, 0, 4 ), 0 );
+		storage.write( ByteBuffer.wrap( data, 40, 2 ), 40 );
+
+		ByteBuffer read = ByteBuffer.allocate( 30 );
+		assertEquals( 30, storage.read( read, 6 ) );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 6, 36 ), read.array() ) );
+
+		storage.close();
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 0, 10 ), Files.readAllBytes( paths[ 0 ] ) ) );
+		assertEquals( 0, Files.size( paths[ 1 ] ) );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 10, 35 ), Files.readAllBytes( paths[ 2 ] ) ) );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 35, 42 ), Files.readAllBytes( paths[ 3 ] ) ) );
+	}
+
+	@Test
+	public void skippedFileIsKeptInThePartsFile() throws Exception{
+
+		storage.setSkipped( 2, true );
+		storage.create( FileManager.Preallocation.SPARSE );
+		assertFalse( Files.exists( paths[ 2 ] ) );
+
+		byte[] data = pattern();
+		storage.write( ByteBuffer.wrap( data ), 0 );
+		assertFalse( Files.exists( paths[ 2 ] ) );
+		assertTrue( Files.exists( parts ) );
+
+		ByteBuffer read = ByteBuffer.allocate( TOTAL );
+		assertEquals( TOTAL, storage.read( read, 0 ) );
+		assertTrue( Arrays.equals( data, read.array() ) );
+
+		//The parts file holds the bytes at their offset within the torrent.
+		storage.close();
+		byte[] kept = Files.readAllBytes( parts );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 10, 35 ), Arrays.copyOfRange( kept, 10, 35 ) ) );
+	}
+
+	@Test
+	public void unskippedFileIsMovedOutOfThePartsFile() throws Exception{
+
+		storage.setSkipped( 2, true );
+		storage.create( FileManager.Preallocation.SPARSE );
+		byte[] data = pattern();
+		storage.write( ByteBuffer.wrap( data ), 0 );
+
+		storage.setSkipped( 2, false );
+		assertTrue( Files.exists( paths[ 2 ] ) );
+		assertEquals( 25, Files.size( paths[ 2 ] ) );
+
+		//Only the pieces shared with the neighbouring files are moved: torrent bytes 10-16 and 32-35.
+		storage.close();
+		byte[] moved = Files.readAllBytes( paths[ 2 ] );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 10, 16 ), Arrays.copyOfRange( moved, 0, 6 ) ) );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 32, 35 ), Arrays.copyOfRange( moved, 22, 25 ) ) );
+
+		//Reads of the file now come from the file itself.
+		storage.write( ByteBuffer.wrap( data, 16, 16 ), 16 );
+		ByteBuffer read = ByteBuffer.allocate( 25 );
+		assertEquals( 25, storage.read( read, 10 ) );
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 10, 35 ), read.array() ) );
+		storage.close();
+		assertTrue( Arrays.equals( Arrays.copyOfRange( data, 10, 35 ), Files.readAllBytes( paths[ 2 ] ) ) );
+	}
+
+	private static byte[] pattern(){
+
+		byte[] data = new byte[ TOTAL ];
+		for( int i = 0; i < data.length; i++ )
+			data[ i ] = (byte)( i + 1 );
+		return data;
+	}
+
+	private static void assertSpan( FileStorage.Span span, int file, long file_offset, int length ){
+		assertEquals( file, span.file );
+		assertEquals( file_offset, span.file_offset );
+		assertEquals( length, span.length );
+	}
+}
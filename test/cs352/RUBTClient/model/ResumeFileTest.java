@@ -0,0 +1,84 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes resume files and reads them back.
+ */
+public class ResumeFileTest {
+
+	private File directory;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception{
+		directory = Files.createTempDirectory( "rubt-test" ).toFile();
+		file = new File( directory, "fixture.data" );
+	}
+
+	@After
+	public void tearDown(){
+		TorrentFixture.delete( directory );
+	}
+
+	@Test
+	public void roundTrip() throws Exception{
+
+		ResumeFile resume = new ResumeFile();
+		resume.info_hash = new byte[ 20 ];
+		Arrays.fill( resume.info_hash, (byte)0x5a );
+		resume.piece_length = 65536;
+		resume.number_of_pieces = 11;
+		resume.file_length = 700000;
+		resume.file_mtime = 1234567890123L;
+		resume.bitfield.set( 0 );
+		resume.bitfield.set( 7 );
+		resume.bitfield.set( 10 );
+		BitSet blocks = new BitSet();
+		blocks.set( 1 );
+		blocks.set( 3 );
+		resume.partial_blocks.put( 4, blocks );
+		resume.write( file );
+
+		assertTrue( ResumeFile.isResumeFile( file ) );
+		ResumeFile read = ResumeFile.read( file );
+		assertTrue( read.matches( resume.info_hash, 65536, 11 ) );
+		assertEquals( 700000, read.file_length );
+		assertEquals( 1234567890123L, read.file_mtime );
+		assertEquals( resume.bitfield, read.bitfield );
+		assertEquals( 1, read.partial_blocks.size() );
+		assertEquals( blocks, read.partial_blocks.get( 4 ) );
+		assertFalse( new File( file.getPath()+".tmp" ).exists() );
+	}
+
+	@Test
+	public void otherFilesAreNotResumeFiles() throws Exception{
+
+		FileOutputStream out = new FileOutputStream( file );
+		try{
+			out.write( new byte[]{ (byte)0xac, (byte)0xed, 0, 5 } );
+		}
+		finally{
+			out.close();
+		}
+
+		assertFalse( ResumeFile.isResumeFile( file ) );
+		assertFalse( ResumeFile.isResumeFile( new File( directory, "missing" ) ) );
+	}
+}
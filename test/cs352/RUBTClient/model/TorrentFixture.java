@@ -0,0 +1,121 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import cs352.RUBTClient.utils.SessionInfo;
+
+/**
+ * Writes a small single file torrent of zeroes into a temporary home directory. The download, its
+ * saved state and its logs are all kept in that directory, which close() deletes again.
+ */
+public final class TorrentFixture {
+
+	public static final int PIECE_LENGTH = 32768;
+	public static final int PIECES = 4;
+	private static final String ANNOUNCE = "http://127.0.0.1:1/announce";
+
+	public final File home;
+	public final File torrent;
+	public final byte[] infoHash;
+	private final String name;
+
+	/**
+	 * @param name - the name of the file the torrent describes.
+	 */
+	public TorrentFixture( String name ) throws Exception{
+
+		this.name = name;
+		home = Files.createTempDirectory( "rubt-test" ).toFile();
+		torrent = new File( home, name+".torrent" );
+		byte[] info = infoDictionary( name );
+		FileOutputStream out = new FileOutputStream( torrent );
+		try{
+			out.write( bytes( "d8:announce"+ANNOUNCE.length()+":"+ANNOUNCE+"4:info" ) );
+			out.write( info );
+			out.write( 'e' );
+		}
+		finally{
+			out.close();
+		}
+
+		infoHash = MessageDigest.getInstance( "SHA-1" ).digest( info );
+	}
+
+	/**
+	 * A new SessionInfo for the torrent, downloading into the temporary directory.
+	 */
+	public SessionInfo session(){
+		return new SessionInfo( torrent.getPath(), name, home );
+	}
+
+	/**
+	 * Deletes the temporary directory.
+	 */
+	public void close(){
+		delete( home );
+	}
+
+	/**
+	 * Deletes a file, or a directory and everything in it.
+	 */
+	public static void delete( File file ){
+
+		File[] children = file.listFiles();
+		if( children != null )
+			for( int i = 0; i < children.length; i++ )
+				delete( children[ i ] );
+		file.delete();
+	}
+
+	/**
+	 * Builds the message the peer reader hands on for a block of zeroes, as storeDataBlock takes it.
+	 */
+	public static byte[] pieceMessage( int index, int offset, int length ){
+
+		byte[] message = new byte[ 9+length ];
+		message[ 0 ] = 7;
+		message[ 1 ] = (byte)( index >>> 24 );
+		message[ 2 ] = (byte)( index >>> 16 );
+		message[ 3 ] = (byte)( index >>> 8 );
+		message[ 4 ] = (byte)index;
+		message[ 5 ] = (byte)( offset >>> 24 );
+		message[ 6 ] = (byte)( offset >>> 16 );
+		message[ 7 ] = (byte)( offset >>> 8 );
+		message[ 8 ] = (byte)offset;
+		return message;
+	}
+
+	public static byte[] bytes( String s ){
+		try{
+			return s.getBytes( "US-ASCII" );
+		}
+		catch( IOException e ){
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * The info dictionary of a file of zeroes, PIECES pieces long.
+	 */
+	private static byte[] infoDictionary( String name ) throws Exception{
+
+		byte[] zeroes = MessageDigest.getInstance( "SHA-1" ).digest( new byte[ PIECE_LENGTH ] );
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write( bytes( "d6:lengthi"+( PIECES*PIECE_LENGTH )+"e4:name"+name.length()+":"+name
+				+"12:piece lengthi"+PIECE_LENGTH+"e6:pieces"+( 20*PIECES )+":" ) );
+		for( int i = 0; i < PIECES; i++ )
+			out.write( zeroes );
+		out.write( 'e' );
+		return out.toByteArray();
+	}
+}
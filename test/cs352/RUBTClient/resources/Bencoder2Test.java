@@ -0,0 +1,243 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Decodes nested structures, integers at the digit limit, truncated input and trailing garbage with
+ * Bencoder2.decode and the BencodeReader under it, and checks that the trees it builds are those the
+ * original recursive decoder built, with integers as {@code Long}.
+ */
+public class Bencoder2Test
+{
+    private static final String[] SAMPLES = {
+        "i0e",
+        "i-42e",
+        "0:",
+        "4:spam",
+        "le",
+        "de",
+        "li1ei2el3:abcee",
+        "d3:bar4:spam3:fooi42ee",
+        "d4:infod6:lengthi100e4:name5:a.bin12:piece lengthi16384ee8:announce9:localhoste",
+        "d1:ad1:bd1:cl1:d1:eeeee",
+        "l" + "l" + "l" + "i7e" + "e" + "e" + "e",
+    };
+
+    @Test
+    public void nestedStructures() throws Exception
+    {
+        Object decoded = Bencoder2.decode(bytes("d4:listli1ei-2el0:ee4:dictd1:a1:be3:numi42e3:str4:spame"));
+        Map<?, ?> map = (Map<?, ?>)decoded;
+        assertEquals(4, map.size());
+        assertEquals(Long.valueOf(42), map.get(key("num")));
+        assertEquals(key("spam"), map.get(key("str")));
+
+        List<?> list = (List<?>)map.get(key("list"));
+        assertEquals(3, list.size());
+        assertEquals(Long.valueOf(1), list.get(0));
+        assertEquals(Long.valueOf(-2), list.get(1));
+        List<?> inner = (List<?>)list.get(2);
+        assertEquals(1, inner.size());
+        assertEquals(key(""), inner.get(0));
+
+        Map<?, ?> dict = (Map<?, ?>)map.get(key("dict"));
+        assertEquals(key("b"), dict.get(key("a")));
+    }
+
+    @Test
+    public void deepNestingDoesNotOverflowTheStack() throws Exception
+    {
+        StringBuilder s = new StringBuilder();
+        for(int i = 0; i < 100000; i++)
+            s.append('l');
+        for(int i = 0; i < 100000; i++)
+            s.append('e');
+        Object decoded = Bencoder2.decode(bytes(s.toString()));
+        assertTrue(decoded instanceof List);
+    }
+
+    @Test
+    public void integersUpToEighteenDigits() throws Exception
+    {
+        assertEquals(Long.valueOf(999999999999999999L), Bencoder2.decode(bytes("i999999999999999999e")));
+        assertEquals(Long.valueOf(-999999999999999999L), Bencoder2.decode(bytes("i-999999999999999999e")));
+        assertEquals(Long.valueOf(4294967296L), Bencoder2.decode(bytes("i4294967296e")));
+        assertRejected("i1000000000000000000e");
+        assertRejected("i-1000000000000000000e");
+        assertRejected("ie");
+        assertRejected("i-e");
+        assertRejected("i12x4e");
+    }
+
+    @Test
+    public void truncatedInputIsRejected() throws Exception
+    {
+        String whole = "d4:listli1ei-2el0:ee4:dictd1:a1:be3:numi42e3:str4:spame";
+        for(int i = 0; i < whole.length(); i++)
+            assertRejected(whole.substring(0, i));
+        assertRejected("5:spam");
+        assertRejected("i42");
+    }
+
+    @Test
+    public void trailingGarbageIsLeftUnread() throws Exception
+    {
+        //As before, decode returns the first object and does not look past it.
+        assertEquals(Long.valueOf(1), Bencoder2.decode(bytes("i1exyz")));
+
+        //The reader reports the garbage once it is asked for the next token.
+        BencodeReader reader = new BencodeReader(bytes("i1exyz"));
+        assertEquals(BencodeReader.Token.INTEGER, reader.next());
+        assertEquals(3, reader.position());
+        try
+        {
+            reader.next();
+            fail("The trailing garbage was not reported.");
+        }
+        catch(BencodingException e){;}
+
+        reader = new BencodeReader(bytes("lee"));
+        assertEquals(BencodeReader.Token.LIST, reader.next());
+        assertEquals(BencodeReader.Token.END, reader.next());
+        try
+        {
+            reader.next();
+            fail("The unmatched 'e' was not reported.");
+        }
+        catch(BencodingException e){;}
+    }
+
+    @Test
+    public void malformedDictionariesAreRejected() throws Exception
+    {
+        assertRejected("di1ei2ee");
+        assertRejected("d3:fooe");
+        assertRejected("x");
+    }
+
+    @Test
+    public void decodingMatchesTheOriginalDecoder() throws Exception
+    {
+        for(int i = 0; i < SAMPLES.length; i++)
+            assertEquals(BaselineDecoder.decode(bytes(SAMPLES[i])), Bencoder2.decode(bytes(SAMPLES[i])));
+
+        byte[] torrent = Files.readAllBytes(Paths.get("src/cs352/RUBTClient/resources/cs352.png.torrent"));
+        assertEquals(BaselineDecoder.decode(torrent), Bencoder2.decode(torrent));
+    }
+
+    private static void assertRejected(String bencoded)
+    {
+        try
+        {
+            Bencoder2.decode(bytes(bencoded));
+            fail("Decoded malformed data: " + bencoded);
+        }
+        catch(BencodingException e){;}
+        catch(RuntimeException e)
+        {
+            fail("Malformed data threw " + e + " instead of a BencodingException: " + bencoded);
+        }
+    }
+
+    private static ByteBuffer key(String s)
+    {
+        return ByteBuffer.wrap(bytes(s));
+    }
+
+    private static byte[] bytes(String s)
+    {
+        try{return s.getBytes("US-ASCII");}
+        catch(Exception e){throw new IllegalStateException(e);}
+    }
+
+    /**
+     * The recursive decoder Bencoder2 used before the BencodeReader, reduced to the trees it builds,
+     * with integers widened to {@code Long}.
+     */
+    private static final class BaselineDecoder
+    {
+        static Object decode(byte[] b)
+        {
+            return decode(b, 0)[1];
+        }
+
+        private static Object[] decode(byte[] b, int offset)
+        {
+            switch(b[offset])
+            {
+            case 'd':
+                return decodeDictionary(b, offset);
+            case 'l':
+                return decodeList(b, offset);
+            case 'i':
+                return decodeInteger(b, offset);
+            default:
+                return decodeString(b, offset);
+            }
+        }
+
+        private static Object[] decodeInteger(byte[] b, int offset)
+        {
+            StringBuffer chars = new StringBuffer();
+            for(offset++; b[offset] != 'e'; offset++)
+                chars.append((char)b[offset]);
+            return new Object[] {offset + 1, Long.valueOf(Long.parseLong(chars.toString()))};
+        }
+
+        private static Object[] decodeString(byte[] b, int offset)
+        {
+            StringBuffer digits = new StringBuffer();
+            while(b[offset] > '/' && b[offset] < ':')
+                digits.append((char)b[offset++]);
+            offset++;
+            int length = Integer.parseInt(digits.toString());
+            byte[] string = new byte[length];
+            System.arraycopy(b, offset, string, 0, length);
+            return new Object[] {offset + length, ByteBuffer.wrap(string)};
+        }
+
+        private static Object[] decodeList(byte[] b, int offset)
+        {
+            ArrayList<Object> list = new ArrayList<Object>();
+            offset++;
+            while(b[offset] != 'e')
+            {
+                Object[] vals = decode(b, offset);
+                offset = (Integer)vals[0];
+                list.add(vals[1]);
+            }
+            return new Object[] {offset + 1, list};
+        }
+
+        private static Object[] decodeDictionary(byte[] b, int offset)
+        {
+            HashMap<Object, Object> map = new HashMap<Object, Object>();
+            offset++;
+            while(b[offset] != 'e')
+            {
+                Object[] vals = decodeString(b, offset);
+                Object key = vals[1];
+                vals = decode(b, (Integer)vals[0]);
+                offset = (Integer)vals[0];
+                map.put(key, vals[1]);
+            }
+            return new Object[] {offset + 1, map};
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * @Authors Kyle Waranis, Thomas Travis, Yuriy Garnaev
+ */
+
+package cs352.RUBTClient.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cs352.RUBTClient.resources.BencodingException;
+import cs352.RUBTClient.resources.PieceHashTable;
+import cs352.RUBTClient.resources.TorrentInfo;
+
+/**
+ * Checks that a TorrentDescriptor describes a torrent as TorrentInfo does, that both reject the same
+ * malformed torrents, and that loadPieceHashes() notices a .torrent file that changed under it.
+ */
+public class TorrentDescriptorTest {
+
+	private static final String SAMPLE = "src/cs352/RUBTClient/resources/cs352.png.torrent";
+
+	private File copy;
+
+	@After
+	public void tearDown(){
+		if( copy != null )
+			copy.delete();
+	}
+
+	@Test
+	public void describesTheTorrentAsTorrentInfoDoes() throws Exception{
+		byte[] bytes = Files.readAllBytes( new File( SAMPLE ).toPath() );
+		TorrentInfo info = new TorrentInfo( bytes );
+		TorrentDescriptor descriptor = TorrentDescriptor.read( SAMPLE );
+
+		assertEquals( info.info_hash, descriptor.info_hash );
+		assertEquals( info.announce_url.toString(), descriptor.announce_url.toString() );
+		assertEquals( info.file_name, descriptor.name );
+		assertEquals( info.piece_length, descriptor.piece_length );
+		assertEquals( info.file_length, descriptor.file_length );
+		assertEquals( info.multi_file, descriptor.multi_file );
+		assertTrue( Arrays.equals( info.file_paths, descriptor.file_paths ) );
+		assertTrue( Arrays.equals( info.file_lengths, descriptor.file_lengths ) );
+		assertEquals( info.info_offset, descriptor.info_offset );
+		assertEquals( info.info_length, descriptor.info_length );
+		assertSameHashes( bytes, info.piece_hashes, descriptor.loadPieceHashes() );
+	}
+
+	@Test
+	public void rejectsWhatTorrentInfoRejects() throws Exception{
+		String hashes = "20:" + repeat( 'h', 20 );
+		String[] malformed = {
+			"d4:infod6:lengthi10e4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/ae",
+			"d8:announce9:localhost4:infod6:lengthi10e4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod6:lengthi10e12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod6:lengthi10e4:name1:a12:piece lengthi0e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod6:lengthi10e4:name1:a12:piece lengthi16e6:pieces3:abcee",
+			"d8:announce10:http://x/a4:infod4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod6:lengthi40e4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod5:files3:abc4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod5:filesld6:lengthi-1e4:pathl1:beee4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod5:filesld6:lengthi10e4:pathleee4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+			"d8:announce10:http://x/a4:infod5:filesld6:lengthi10e4:pathli1eeee4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee",
+		};
+		for( String sample : malformed ){
+			String info_message = rejection( sample, true );
+			String descriptor_message = rejection( sample, false );
+			assertTrue( sample, info_message != null );
+			assertEquals( sample, info_message, descriptor_message );
+		}
+
+		String valid = "d8:announce10:http://x/a4:infod5:filesld6:lengthi10e4:pathl1:b1:ceee4:name1:a12:piece lengthi16e6:pieces" + hashes + "ee";
+		assertEquals( null, rejection( valid, true ) );
+		assertEquals( null, rejection( valid, false ) );
+		assertEquals( "b/c", TorrentDescriptor.parse( "x", bytes( valid ) ).file_paths[0] );
+	}
+
+	@Test
+	public void loadsPieceHashesFromATouchedButUnchangedFile() throws Exception{
+		byte[] bytes = copySample();
+		TorrentDescriptor descriptor = TorrentDescriptor.read( copy.getPath() );
+		assertTrue( copy.setLastModified( copy.lastModified() - 60000 ) );
+
+		assertSameHashes( bytes, new TorrentInfo( bytes ).piece_hashes, descriptor.loadPieceHashes() );
+	}
+
+	@Test
+	public void rejectsAChangedFile() throws Exception{
+		byte[] bytes = copySample();
+		TorrentDescriptor descriptor = TorrentDescriptor.read( copy.getPath() );
+
+		//Flip a byte of the first piece hash, and make the change visible to the modification time.
+		RandomAccessFile raf = new RandomAccessFile( copy, "rw" );
+		try{
+			int offset = descriptor.pieces_offset;
+			raf.seek( offset );
+			raf.write( bytes[offset] ^ 0xff );
+		}
+		finally{
+			raf.close();
+		}
+		assertTrue( copy.setLastModified( copy.lastModified() - 60000 ) );
+
+		try{
+			descriptor.loadPieceHashes();
+			fail( "A changed torrent file was trusted." );
+		}
+		catch( BencodingException e ){
+			//Expected.
+		}
+	}
+
+	private byte[] copySample() throws IOException{
+		copy = File.createTempFile( "descriptor", ".torrent" );
+		byte[] bytes = Files.readAllBytes( new File( SAMPLE ).toPath() );
+		Files.write( copy.toPath(), bytes );
+		return bytes;
+	}
+
+	/**
+	 * The message the torrent is rejected with, or null if it is accepted.
+	 */
+	private static String rejection( String sample, boolean torrent_info ){
+		try{
+			if( torrent_info )
+				new TorrentInfo( bytes( sample ) );
+			else
+				TorrentDescriptor.parse( "x", bytes( sample ) );
+			return null;
+		}
+		catch( BencodingException e ){
+			return e.toString();
+		}
+	}
+
+	private static void assertSameHashes( byte[] torrent_file_bytes, PieceHashTable expected, PieceHashTable actual ) throws Exception{
+		TorrentInfo info = new TorrentInfo( torrent_file_bytes );
+		byte[] hashes = ((ByteBuffer)info.info_map.get( TorrentInfo.KEY_PIECES )).array();
+		assertEquals( expected.size(), actual.size() );
+		for( int i = 0; i < expected.size(); i++ ){
+			byte[] hash = Arrays.copyOfRange( hashes, i*PieceHashTable.HASH_LENGTH, (i + 1)*PieceHashTable.HASH_LENGTH );
+			assertTrue( expected.matches( i, hash ) );
+			assertTrue( actual.matches( i, hash ) );
+		}
+	}
+
+	private static String repeat( char c, int count ){
+		char[] chars = new char[ count ];
+		Arrays.fill( chars, c );
+		return new String( chars );
+	}
+
+	private static byte[] bytes( String sample ){
+		return sample.getBytes( StandardCharsets.ISO_8859_1 );
+	}
+}